@@ -1,26 +1,49 @@
 package client;
 
-import util.MessageProtocol;
+import util.CreditWindow;
+import util.Message;
+import util.MessageCodec;
 import util.MessageType;
+import util.VirtualThreads;
 
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
 import java.util.Objects;
 import java.util.Scanner;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Client-side application that connects to the server and handles user interaction.
  */
 public class ChatClient {
+    private static final int PAGE_SIZE = 20;
+    private static final int CREDIT_WINDOW = 64;
+    private static final long HOUR_MILLIS = 60 * 60 * 1000;
+
     private Socket serverSocket;
     private DataInputStream input;
     private DataOutputStream output;
     private final String username;
     private final String serverAddress;
     private final int port;
+    private final boolean virtualListener;
     private volatile boolean isConnected;
+    private final LocalRoster roster;
+    private final ReentrantLock writeLock;
+    private volatile String pagePrefix;
+    private volatile String pageCursor;
+    private volatile String historyTarget;
+    private volatile long historyFrom;
+    private volatile long historyTo;
+    private volatile String historyCursor;
+    private volatile SendWindow sendWindow;
+    private CreditWindow receiveWindow;
 
     /**
      * Constructs a ChatClient with the specified server address, port, and username.
@@ -30,9 +53,25 @@ public class ChatClient {
      * @param username      The desired username for the client.
      */
     public ChatClient(String serverAddress, int port, String username) {
+        this(serverAddress, port, username, false);
+    }
+
+    /**
+     * Constructs a ChatClient, choosing the kind of thread its server listener runs on.
+     * Virtual listeners let a single process hold tens of thousands of sessions.
+     *
+     * @param serverAddress   The server's IP address or hostname.
+     * @param port            The server's port number.
+     * @param username        The desired username for the client.
+     * @param virtualListener Whether to run the server listener on a virtual thread.
+     */
+    public ChatClient(String serverAddress, int port, String username, boolean virtualListener) {
         this.serverAddress = serverAddress;
         this.port = port;
         this.username = username;
+        this.virtualListener = virtualListener;
+        this.roster = new LocalRoster();
+        this.writeLock = new ReentrantLock();
     }
 
     public boolean isConnected() {
@@ -44,16 +83,7 @@ public class ChatClient {
      */
     public void start() {
         try {
-            serverSocket = new Socket(serverAddress, port);
-            input = new DataInputStream(serverSocket.getInputStream());
-            output = new DataOutputStream(serverSocket.getOutputStream());
-            isConnected = true;
-
-            sendConnectMessage();
-
-            ServerListener serverListener = new ServerListener(input, this);
-            new Thread(serverListener).start();
-
+            connect();
             handleUserInput();
         }
 
@@ -62,14 +92,88 @@ public class ChatClient {
         }
     }
 
+    /**
+     * Connects to the server, sends the connect message and starts listening for replies,
+     * without reading commands from the console.
+     *
+     * @throws IOException If the connection cannot be established.
+     */
+    public void connect() throws IOException {
+        serverSocket = new Socket(serverAddress, port);
+        input = new DataInputStream(serverSocket.getInputStream());
+        output = new DataOutputStream(new BufferedOutputStream(serverSocket.getOutputStream()));
+        isConnected = true;
+
+        sendConnectMessage();
+
+        ServerListener serverListener = new ServerListener(input, this);
+        VirtualThreads.start(serverListener, virtualListener);
+    }
+
+    /**
+     * Sends a message to the server, first waiting for credit if flow control has run out.
+     * Credit grants never wait, so the listener can always hand out more.
+     *
+     * @param message The message to send.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void send(Message message) throws IOException {
+        SendWindow window = sendWindow;
+
+        if (window != null && !message.is(MessageType.CREDIT)) {
+            // Wait outside the write lock, so the listener's grants aren't held up behind us.
+            window.acquire();
+        }
+
+        write(message);
+    }
+
+    /**
+     * Sends a message to the server from the server listener. The message is counted
+     * against the server's grant but never waits for credit, since only the listener reads
+     * the grants that would end the wait.
+     *
+     * @param message The message to send.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void sendFromListener(Message message) throws IOException {
+        SendWindow window = sendWindow;
+
+        if (window != null && !message.is(MessageType.CREDIT)) {
+            window.overdraw();
+        }
+
+        write(message);
+    }
+
+    /**
+     * Writes a message to the server in a version 1 frame, with a single write. Both the
+     * console and the server listener send, so writes are serialised, by a lock rather
+     * than a monitor so a virtual listener blocked in the write doesn't pin its carrier.
+     *
+     * @param message The message to send.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void write(Message message) throws IOException {
+        writeLock.lock();
+
+        try {
+            MessageCodec.encode(message, MessageCodec.CURRENT_VERSION).writeTo(output);
+            output.flush();
+        }
+
+        finally {
+            writeLock.unlock();
+        }
+    }
+
     /**
      * Sends a connect message to the server.
      *
      * @throws IOException If an I/O error occurs.
      */
     private void sendConnectMessage() throws IOException {
-        output.writeInt(MessageType.CONNECT_MESSAGE.getValue());
-        MessageProtocol.writeString(output, username);
+        send(Message.of(MessageType.CONNECT_MESSAGE, username));
     }
 
     /**
@@ -105,9 +209,29 @@ public class ChatClient {
                 sendDisconnectMessage();
             }
 
+            else if (input.regionMatches(true, 0, "who ", 0, 4)) {
+                sendUsersPageQuery(input.substring(4).trim(), "");
+            }
+
+            else if (input.equalsIgnoreCase("more")) {
+                if (pageCursor == null || pageCursor.isEmpty()) {
+                    System.out.println("No more users to list.");
+                }
+
+                else {
+                    sendUsersPageQuery(pagePrefix, pageCursor);
+                }
+            }
+
             else if (input.equalsIgnoreCase("who")) {
-                System.out.println("Sending query users message...");
-                sendQueryUsersMessage();
+                if (roster.isSynced()) {
+                    showUsers(roster.usernames(username));
+                }
+
+                else {
+                    System.out.println("Sending query users message...");
+                    sendQueryUsersMessage();
+                }
             }
 
             else if (input.startsWith("@")) {
@@ -118,6 +242,14 @@ public class ChatClient {
                 handleExclamationCommand(input);
             }
 
+            else if (input.startsWith("/")) {
+                handleSlashCommand(input);
+            }
+
+            else if (input.startsWith("#")) {
+                handleRoomCommand(input);
+            }
+
             else {
                 System.out.println("Unknown command. Type '?' for help.");
             }
@@ -187,6 +319,200 @@ public class ChatClient {
         }
     }
 
+    /**
+     * Handles commands starting with '/', which join, leave and list rooms, and query
+     * history and search messages.
+     *
+     * @param input The user's input string.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void handleSlashCommand(String input) throws IOException {
+        String[] parts = input.substring(1).trim().split("\\s+", 2);
+        String command = parts[0].toLowerCase();
+        String room = parts.length > 1 ? stripHash(parts[1].trim()) : "";
+
+        if (command.equals("rooms")) {
+            send(Message.of(MessageType.LIST_ROOMS, username));
+        }
+
+        else if (command.equals("history")) {
+            handleHistoryCommand(parts.length > 1 ? parts[1].trim() : "");
+        }
+
+        else if (command.equals("search")) {
+            if (parts.length < 2 || parts[1].isBlank()) {
+                System.out.println("Search words are required. Use '/search words'.");
+            }
+
+            else {
+                send(Message.search(username, parts[1].trim(), PAGE_SIZE));
+            }
+        }
+
+        else if ((command.equals("join") || command.equals("leave")) && room.isEmpty()) {
+            System.out.println("Room name is required. Use '/" + command + " room'.");
+        }
+
+        else if (command.equals("join")) {
+            send(Message.of(MessageType.JOIN_ROOM, username, room));
+        }
+
+        else if (command.equals("leave")) {
+            send(Message.of(MessageType.LEAVE_ROOM, username, room));
+        }
+
+        else {
+            System.out.println("Unknown command. Type '?' for help.");
+        }
+    }
+
+    /**
+     * Handles commands starting with '#', which send a message to a room.
+     *
+     * @param input The user's input string.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void handleRoomCommand(String input) throws IOException {
+        int spaceIndex = input.indexOf(' ');
+
+        if (spaceIndex > 1) {
+            String room = input.substring(1, spaceIndex);
+            String message = input.substring(spaceIndex + 1).trim();
+
+            if (message.isEmpty()) {
+                System.out.println("Message cannot be empty.");
+            }
+
+            else {
+                send(Message.of(MessageType.ROOM_MESSAGE, username, room, message));
+            }
+        }
+
+        else {
+            System.out.println("Invalid room message format. Use '#room message'.");
+        }
+    }
+
+    /**
+     * Handles '/history #room [hours]' and '/history user [hours]', which show the
+     * conversation's messages from the last hours (24 by default) a page at a time, and
+     * '/history more', which shows the next page.
+     *
+     * @param arguments What follows the command.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void handleHistoryCommand(String arguments) throws IOException {
+        if (arguments.equalsIgnoreCase("more")) {
+            if (historyCursor == null || historyCursor.isEmpty()) {
+                System.out.println("No more history to show.");
+            }
+
+            else {
+                sendHistoryQuery(historyTarget, historyFrom, historyTo, historyCursor);
+            }
+
+            return;
+        }
+
+        String[] parts = arguments.split("\\s+");
+        long hours = 24;
+
+        if (parts[0].isEmpty()) {
+            System.out.println("Conversation is required. Use '/history #room [hours]' or '/history user [hours]'.");
+            return;
+        }
+
+        if (parts.length > 1) {
+            try {
+                hours = Long.parseLong(parts[1]);
+            }
+
+            catch (NumberFormatException e) {
+                hours = 0;
+            }
+
+            if (hours < 1) {
+                System.out.println("Invalid number of hours: " + parts[1]);
+                return;
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        sendHistoryQuery(parts[0], now - hours * HOUR_MILLIS, now, "");
+    }
+
+    /**
+     * Sends a query for one page of a conversation's history.
+     *
+     * @param target The conversation: '#' and a room name, or another username.
+     * @param from   The start of the time range.
+     * @param to     The end of the time range.
+     * @param cursor The cursor from the previous page, or empty for the first page.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void sendHistoryQuery(String target, long from, long to, String cursor) throws IOException {
+        historyTarget = target;
+        historyFrom = from;
+        historyTo = to;
+        historyCursor = null;
+        send(Message.historyQuery(username, target, from, to, cursor, PAGE_SIZE));
+    }
+
+    /**
+     * Shows one page of a conversation's history and remembers where the next page starts.
+     *
+     * @param entries    Each message's timestamp, sender and text, one after another.
+     * @param nextCursor The cursor for the next page, or empty if this was the last one.
+     */
+    void showHistory(List<String> entries, String nextCursor) {
+        historyCursor = nextCursor;
+
+        if (entries.isEmpty()) {
+            System.out.println("No messages in that time range.");
+        }
+
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+
+        for (int i = 0; i + 2 < entries.size(); i += 3) {
+            String time = format.format(new Date(Long.parseLong(entries.get(i))));
+            System.out.println("[" + time + "] " + entries.get(i + 1) + ": " + entries.get(i + 2));
+        }
+
+        if (!nextCursor.isEmpty()) {
+            System.out.println("Type '/history more' for the next page.");
+        }
+    }
+
+    /**
+     * Shows the matches of a search, newest first.
+     *
+     * @param entries Each match's timestamp, sender, where it was sent and text, one after
+     *                another.
+     */
+    void showSearchResults(List<String> entries) {
+        if (entries.isEmpty()) {
+            System.out.println("No messages found.");
+        }
+
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+
+        for (int i = 0; i + 3 < entries.size(); i += 4) {
+            String time = format.format(new Date(Long.parseLong(entries.get(i))));
+            String where = entries.get(i + 2).isEmpty() ? "" : " -> " + entries.get(i + 2);
+            System.out.println("[" + time + "] " + entries.get(i + 1) + where + ": " + entries.get(i + 3));
+        }
+    }
+
+    /**
+     * Removes a leading '#' from a room name, so '/join #general' and '/join general' agree.
+     *
+     * @param room The room name as typed.
+     * @return The room name.
+     */
+    private static String stripHash(String room) {
+        return room.startsWith("#") ? room.substring(1) : room;
+    }
+
     /**
      * Displays the help menu.
      */
@@ -195,9 +521,19 @@ public class ChatClient {
         System.out.println("?: Display this help menu");
         System.out.println("logoff: Disconnect from the server");
         System.out.println("who: List connected users");
+        System.out.println("who prefix: List connected users whose names start with prefix, " + PAGE_SIZE + " at a time");
+        System.out.println("more: Show the next page of the last 'who prefix'");
         System.out.println("@all message: Send a message to all users");
         System.out.println("@username message: Send a direct message to a user");
         System.out.println("!username: Send a random insult to a user");
+        System.out.println("/join room: Join a room, creating it if needed");
+        System.out.println("/leave room: Leave a room");
+        System.out.println("/rooms: List the rooms and how many users are in each");
+        System.out.println("#room message: Send a message to a room you are in");
+        System.out.println("/history #room [hours]: Show a room's messages from the last hours (default 24)");
+        System.out.println("/history username [hours]: Show your direct messages with a user");
+        System.out.println("/history more: Show the next page of the last '/history'");
+        System.out.println("/search words: Find recent messages you can see that hold all the words");
     }
 
     /**
@@ -206,8 +542,7 @@ public class ChatClient {
      * @throws IOException If an I/O error occurs.
      */
     private void sendDisconnectMessage() throws IOException {
-        output.writeInt(MessageType.DISCONNECT_MESSAGE.getValue());
-        MessageProtocol.writeString(output, username);
+        send(Message.of(MessageType.DISCONNECT_MESSAGE, username));
         isConnected = false;
     }
 
@@ -217,8 +552,133 @@ public class ChatClient {
      * @throws IOException If an I/O error occurs.
      */
     private void sendQueryUsersMessage() throws IOException {
-        output.writeInt(MessageType.QUERY_CONNECTED_USERS.getValue());
-        MessageProtocol.writeString(output, username);
+        send(Message.of(MessageType.QUERY_CONNECTED_USERS, username));
+    }
+
+    /**
+     * Sends a query for one page of the users whose names start with a prefix.
+     *
+     * @param prefix The prefix.
+     * @param cursor The cursor from the previous page, or empty for the first page.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void sendUsersPageQuery(String prefix, String cursor) throws IOException {
+        pagePrefix = prefix;
+        pageCursor = null;
+        send(Message.usersPageQuery(username, prefix, cursor, PAGE_SIZE));
+    }
+
+    /**
+     * Shows one page of a prefix query and remembers where the next page starts.
+     *
+     * @param usernames  The usernames on the page.
+     * @param nextCursor The cursor for the next page, or empty if this was the last one.
+     */
+    void showUsersPage(List<String> usernames, String nextCursor) {
+        pageCursor = nextCursor;
+
+        if (usernames.isEmpty()) {
+            System.out.println("No matching users are connected.");
+        }
+
+        else {
+            for (String user : usernames) {
+                System.out.println("- " + user);
+            }
+        }
+
+        if (!nextCursor.isEmpty()) {
+            System.out.println("Type 'more' for the next page.");
+        }
+    }
+
+    /**
+     * Starts flow control by granting the server a window of frames. The server answers
+     * with a grant of its own, after which sends wait whenever that credit runs out.
+     */
+    void startFlowControl() {
+        receiveWindow = new CreditWindow(CREDIT_WINDOW);
+        sendWindow = new SendWindow();
+
+        try {
+            send(Message.credit(receiveWindow.getLimit()));
+        }
+
+        catch (IOException e) {
+            System.err.println("Error sending message to server.");
+        }
+    }
+
+    /**
+     * Counts a message from the server as handled and grants the server more credit once
+     * half the window is used. Called by the listener after each message.
+     *
+     * @param message The handled message.
+     */
+    void messageHandled(Message message) {
+        if (receiveWindow == null || message.is(MessageType.CREDIT)) {
+            return;
+        }
+
+        receiveWindow.consume();
+        long grant = receiveWindow.replenish();
+
+        if (grant >= 0) {
+            try {
+                send(Message.credit(grant));
+            }
+
+            catch (IOException e) {
+                System.err.println("Error sending message to server.");
+            }
+        }
+    }
+
+    /**
+     * Records a credit grant from the server, letting waiting sends go ahead.
+     *
+     * @param limit The frame count the client may reach.
+     */
+    void grantCredit(long limit) {
+        SendWindow window = sendWindow;
+
+        if (window != null) {
+            window.grant(limit);
+        }
+    }
+
+    /**
+     * Subscribes to presence, asking the server for a snapshot of the connected users
+     * followed by deltas as they join and leave. Also used to resync after a missed delta.
+     * Called by the listener, so it never waits for credit.
+     */
+    void subscribePresence() {
+        try {
+            sendFromListener(Message.of(MessageType.PRESENCE_SUBSCRIBE, username));
+        }
+
+        catch (IOException e) {
+            System.err.println("Error sending message to server.");
+        }
+    }
+
+    /**
+     * Prints a list of the other connected users.
+     *
+     * @param usernames The usernames to print.
+     */
+    void showUsers(List<String> usernames) {
+        if (usernames.isEmpty()) {
+            System.out.println("No other users are connected.");
+        }
+
+        else {
+            System.out.println("Connected users:");
+
+            for (String user : usernames) {
+                System.out.println("- " + user);
+            }
+        }
     }
 
     /**
@@ -228,9 +688,7 @@ public class ChatClient {
      * @throws IOException If an I/O error occurs.
      */
     private void sendBroadcastMessage(String message) throws IOException {
-        output.writeInt(MessageType.BROADCAST_MESSAGE.getValue());
-        MessageProtocol.writeString(output, username);
-        MessageProtocol.writeString(output, message);
+        send(Message.of(MessageType.BROADCAST_MESSAGE, username, message));
     }
 
     /**
@@ -241,10 +699,7 @@ public class ChatClient {
      * @throws IOException If an I/O error occurs.
      */
     private void sendDirectMessage(String recipient, String message) throws IOException {
-        output.writeInt(MessageType.DIRECT_MESSAGE.getValue());
-        MessageProtocol.writeString(output, username);
-        MessageProtocol.writeString(output, recipient);
-        MessageProtocol.writeString(output, message);
+        send(Message.of(MessageType.DIRECT_MESSAGE, username, recipient, message));
     }
 
     /**
@@ -254,9 +709,7 @@ public class ChatClient {
      * @throws IOException If an I/O error occurs.
      */
     private void sendInsultMessage(String recipient) throws IOException {
-        output.writeInt(MessageType.SEND_INSULT.getValue());
-        MessageProtocol.writeString(output, username);
-        MessageProtocol.writeString(output, recipient);
+        send(Message.of(MessageType.SEND_INSULT, username, recipient));
     }
 
     /**
@@ -268,6 +721,15 @@ public class ChatClient {
         return username;
     }
 
+    /**
+     * Gets the client's copy of the connected users, kept current by presence deltas.
+     *
+     * @return The local roster.
+     */
+    public LocalRoster getRoster() {
+        return roster;
+    }
+
     /**
      * Sets the connection status of the client.
      *
@@ -282,6 +744,11 @@ public class ChatClient {
      */
     public void disconnect() {
         isConnected = false;
+        SendWindow window = sendWindow;
+
+        if (window != null) {
+            window.close();
+        }
 
         try {
             input.close();
@@ -5,6 +5,7 @@ public class ClientMain {
         String serverAddress = "localhost";
         int port = 8000;
         String username = "DefaultUser";
+        boolean virtualListener = false;
 
         if (args.length >= 3) {
             serverAddress = args[0];
@@ -16,7 +17,11 @@ public class ClientMain {
             System.out.println("Using default values: serverAddress=localhost, port=8000, username=SideC");
         }
 
-        ChatClient client = new ChatClient(serverAddress, port, username);
+        if (args.length >= 4) {
+            virtualListener = args[3].equalsIgnoreCase("virtual");
+        }
+
+        ChatClient client = new ChatClient(serverAddress, port, username, virtualListener);
         client.start();
     }
 }
\ No newline at end of file
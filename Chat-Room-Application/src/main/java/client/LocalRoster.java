@@ -0,0 +1,118 @@
+package client;
+
+import util.Message;
+import util.PresenceEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The client's copy of the connected usernames, kept up to date by the server's presence
+ * snapshot and deltas so that "who" is answered without a round trip. Each delta names
+ * the sequence number of its first event; one that starts past the next expected number
+ * means a delta was missed, and the roster stays out of sync until a new snapshot arrives.
+ */
+public class LocalRoster {
+    private final Set<String> usernames;
+    private long sequence;
+    private boolean synced;
+
+    /**
+     * Constructs an empty LocalRoster, not yet synced.
+     */
+    public LocalRoster() {
+        this.usernames = new TreeSet<>();
+    }
+
+    /**
+     * Replaces the roster with a presence snapshot.
+     *
+     * @param snapshot The snapshot: its sequence number, then every username.
+     */
+    public synchronized void applySnapshot(Message snapshot) {
+        List<String> fields = snapshot.getFields();
+        usernames.clear();
+        usernames.addAll(fields.subList(1, fields.size()));
+        sequence = Long.parseLong(fields.get(0));
+        synced = true;
+    }
+
+    /**
+     * Applies the events of a presence delta that are newer than the roster.
+     *
+     * @param delta The delta: the sequence number of its first event, then the events.
+     * @return False if the delta starts past the next expected event, so the roster needs
+     *         a new snapshot; true otherwise, including for deltas already covered.
+     */
+    public synchronized boolean applyDelta(Message delta) {
+        if (!synced) {
+            // Deltas that race ahead of the first snapshot are covered by it.
+            return true;
+        }
+
+        List<String> fields = delta.getFields();
+        long first = Long.parseLong(fields.get(0));
+
+        if (first > sequence + 1) {
+            synced = false;
+            return false;
+        }
+
+        for (int i = (int) (sequence + 1 - first) + 1; i < fields.size(); i++) {
+            String event = fields.get(i);
+
+            if (PresenceEvent.isJoin(event)) {
+                usernames.add(PresenceEvent.username(event));
+            }
+
+            else {
+                usernames.remove(PresenceEvent.username(event));
+            }
+
+            sequence++;
+        }
+
+        return true;
+    }
+
+    /**
+     * Checks whether the roster reflects the server's, having had a snapshot and no gap since.
+     *
+     * @return True if the roster can answer "who".
+     */
+    public synchronized boolean isSynced() {
+        return synced;
+    }
+
+    /**
+     * Gets the sequence number of the last change the roster reflects.
+     *
+     * @return The sequence number.
+     */
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Lists the usernames in the roster, in order, except one.
+     *
+     * @param excludeUsername The username to leave out.
+     * @return The other usernames.
+     */
+    public synchronized List<String> usernames(String excludeUsername) {
+        List<String> others = new ArrayList<>(usernames);
+        others.remove(excludeUsername);
+        return others;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "LocalRoster{" +
+                "usernames=" + usernames.size() +
+                ", sequence=" + sequence +
+                ", synced=" + synced +
+                '}';
+    }
+}
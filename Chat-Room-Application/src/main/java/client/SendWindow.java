@@ -0,0 +1,158 @@
+package client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The sending side of credit-based flow control on the client. Every frame sent after
+ * flow control starts is counted, apart from credit grants, and once the count reaches
+ * the server's latest grant the sender waits until the server grants more. Until the
+ * server's first grant arrives nothing is held back, so a server that does not take part
+ * in flow control never stalls the client.
+ *
+ * <p>Waiting uses a lock and condition rather than a monitor, so a virtual thread waiting
+ * for credit unmounts from its carrier.
+ */
+public class SendWindow {
+    private final ReentrantLock lock;
+    private final Condition credited;
+    private long limit;
+    private long sent;
+    private boolean closed;
+
+    /**
+     * Constructs a SendWindow with no grant yet.
+     */
+    public SendWindow() {
+        this.lock = new ReentrantLock();
+        this.credited = lock.newCondition();
+        this.limit = -1;
+    }
+
+    /**
+     * Waits for credit and counts a frame about to be sent.
+     *
+     * @throws IOException If the window was closed, or the thread interrupted, while waiting.
+     */
+    public void acquire() throws IOException {
+        lock.lock();
+
+        try {
+            while (!closed && limit >= 0 && sent >= limit) {
+                try {
+                    credited.await();
+                }
+
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for credit.");
+                }
+            }
+
+            if (closed) {
+                throw new IOException("Connection closed while waiting for credit.");
+            }
+
+            sent++;
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Counts a frame about to be sent without waiting for credit, even if that takes the
+     * client past the server's grant. For frames the server listener sends: it alone reads
+     * the grants, so it must never wait for one.
+     *
+     * @throws IOException If the window was closed.
+     */
+    public void overdraw() throws IOException {
+        lock.lock();
+
+        try {
+            if (closed) {
+                throw new IOException("Connection closed.");
+            }
+
+            sent++;
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Raises the frame count the client may reach, waking a waiting sender.
+     *
+     * @param limit The server's grant; grants below the current limit are ignored.
+     */
+    public void grant(long limit) {
+        lock.lock();
+
+        try {
+            if (limit > this.limit) {
+                this.limit = limit;
+                credited.signalAll();
+            }
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks whether the next frame would have to wait for credit.
+     *
+     * @return True if the client has used all its credit.
+     */
+    public boolean isStalled() {
+        lock.lock();
+
+        try {
+            return limit >= 0 && sent >= limit;
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wakes any waiting sender for good, once the connection is closing.
+     */
+    public void close() {
+        lock.lock();
+
+        try {
+            closed = true;
+            credited.signalAll();
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+
+        try {
+            return "SendWindow{" +
+                    "limit=" + limit +
+                    ", sent=" + sent +
+                    ", closed=" + closed +
+                    '}';
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+}
@@ -2,16 +2,23 @@ package client;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.util.List;
 
-import util.MessageProtocol;
+import util.Message;
+import util.MessageCodec;
 import util.MessageType;
 
 /**
- * Listens for incoming messages from the server in a separate thread.
+ * Listens for incoming messages from the server in a separate thread. Presence snapshots
+ * and deltas update the client's local roster; a delta that shows one was missed makes
+ * the client subscribe again for a fresh snapshot. Each message counts against the credit
+ * the client granted the server, and credit grants from the server let the client's
+ * waiting sends go ahead.
  */
 public class ServerListener implements Runnable {
     private final DataInputStream input;
     private final ChatClient client;
+    private final MessageCodec codec;
 
     /**
      * Constructs a ServerListener with the specified input stream and client reference.
@@ -22,14 +29,16 @@ public class ServerListener implements Runnable {
     public ServerListener(DataInputStream input, ChatClient client) {
         this.input = input;
         this.client = client;
+        this.codec = new MessageCodec();
     }
 
     @Override
     public void run() {
         try {
             while (client.isConnected()) {
-                int messageType = input.readInt();
-                processMessage(messageType);
+                Message message = codec.read(input);
+                processMessage(message);
+                client.messageHandled(message);
             }
         }
 
@@ -42,106 +51,228 @@ public class ServerListener implements Runnable {
     /**
      * Processes a message from the server based on the message type.
      *
-     * @param messageType The type of the message.
-     * @throws IOException If an I/O error occurs.
+     * @param message The decoded message.
      */
-    private void processMessage(int messageType) throws IOException {
-        if (messageType == MessageType.CONNECT_RESPONSE.getValue()) {
-            handleConnectResponse();
+    private void processMessage(Message message) {
+        if (message.is(MessageType.CONNECT_RESPONSE)) {
+            handleConnectResponse(message);
         }
 
-        else if (messageType == MessageType.QUERY_USER_RESPONSE.getValue()) {
-            handleQueryUserResponse();
+        else if (message.is(MessageType.QUERY_USER_RESPONSE)) {
+            handleQueryUserResponse(message);
         }
 
-        else if (messageType == MessageType.BROADCAST_MESSAGE.getValue()) {
-            handleBroadcastMessage();
+        else if (message.is(MessageType.USERS_PAGE_RESPONSE)) {
+            handleUsersPage(message);
         }
 
-        else if (messageType == MessageType.DIRECT_MESSAGE.getValue()) {
-            handleDirectMessage();
+        else if (message.is(MessageType.PRESENCE_SNAPSHOT)) {
+            client.getRoster().applySnapshot(message);
         }
 
-        else if (messageType == MessageType.FAILED_MESSAGE.getValue()) {
-            handleFailedMessage();
+        else if (message.is(MessageType.PRESENCE_DELTA)) {
+            handlePresenceDelta(message);
+        }
+
+        else if (message.is(MessageType.BROADCAST_MESSAGE)) {
+            handleBroadcastMessage(message);
+        }
+
+        else if (message.is(MessageType.DIRECT_MESSAGE)) {
+            handleDirectMessage(message);
+        }
+
+        else if (message.is(MessageType.FAILED_MESSAGE)) {
+            handleFailedMessage(message);
+        }
+
+        else if (message.is(MessageType.CREDIT)) {
+            handleCredit(message);
+        }
+
+        else if (message.is(MessageType.ROOM_MESSAGE)) {
+            handleRoomMessage(message);
+        }
+
+        else if (message.is(MessageType.JOIN_ROOM) || message.is(MessageType.LEAVE_ROOM)) {
+            handleRoomMembership(message);
+        }
+
+        else if (message.is(MessageType.ROOM_LIST_RESPONSE)) {
+            handleRoomList(message);
+        }
+
+        else if (message.is(MessageType.HISTORY_RESPONSE)) {
+            handleHistory(message);
+        }
+
+        else if (message.is(MessageType.SEARCH_RESPONSE)) {
+            client.showSearchResults(message.getFields());
         }
 
         else {
-            System.out.println("Unknown message type received: " + messageType);
+            System.out.println("Unknown message type received: " + message.getType());
         }
     }
 
     /**
      * Handles a connect response from the server.
      *
-     * @throws IOException If an I/O error occurs.
+     * @param message The connect response.
      */
-    private void handleConnectResponse() throws IOException {
-        boolean success = input.readBoolean();
-        String message = MessageProtocol.readString(input);
-        System.out.println(message);
+    private void handleConnectResponse(Message message) {
+        System.out.println(message.getField(0));
 
-        if (!success) {
+        if (!message.isSuccess()) {
             client.setConnected(false);
             client.disconnect();
         }
+
+        else {
+            client.startFlowControl();
+            client.subscribePresence();
+        }
     }
 
     /**
      * Handles a query user response from the server.
      *
-     * @throws IOException If an I/O error occurs.
+     * @param message The query user response.
      */
-    private void handleQueryUserResponse() throws IOException {
-        int numUsers = input.readInt();
+    private void handleQueryUserResponse(Message message) {
+        client.showUsers(message.getFields());
+    }
 
-        if (numUsers == 0) {
-            System.out.println("No other users are connected.");
-        }
+    /**
+     * Handles one page of a prefix query from the server.
+     *
+     * @param message The page: the cursor for the next page, then the usernames.
+     */
+    private void handleUsersPage(Message message) {
+        List<String> fields = message.getFields();
+        client.showUsersPage(fields.subList(1, fields.size()), fields.get(0));
+    }
 
-        else {
-            System.out.println("Connected users:");
+    /**
+     * Handles one page of a conversation's history from the server.
+     *
+     * @param message The page: the cursor for the next page, then each message's
+     *                timestamp, sender and text.
+     */
+    private void handleHistory(Message message) {
+        List<String> fields = message.getFields();
+        client.showHistory(fields.subList(1, fields.size()), fields.get(0));
+    }
 
-            for (int i = 0; i < numUsers; i++) {
-                String username = MessageProtocol.readString(input);
-                System.out.println("- " + username);
-            }
+    /**
+     * Handles a presence delta from the server, resubscribing if a delta was missed.
+     *
+     * @param message The presence delta.
+     */
+    private void handlePresenceDelta(Message message) {
+        if (!client.getRoster().applyDelta(message)) {
+            client.subscribePresence();
         }
     }
 
     /**
      * Handles a broadcast message from the server.
      *
-     * @throws IOException If an I/O error occurs.
+     * @param message The broadcast message.
      */
-    private void handleBroadcastMessage() throws IOException {
-        String sender = MessageProtocol.readString(input);
-        String message = MessageProtocol.readString(input);
-        System.out.println(sender + " (broadcast): " + message);
+    private void handleBroadcastMessage(Message message) {
+        System.out.println(message.getField(0) + " (broadcast): " + message.getField(1));
     }
 
     /**
      * Handles a direct message from the server.
      *
-     * @throws IOException If an I/O error occurs.
+     * @param message The direct message.
      */
-    private void handleDirectMessage() throws IOException {
-        String sender = MessageProtocol.readString(input);
-        String recipient = MessageProtocol.readString(input);
-        String message = MessageProtocol.readString(input);
+    private void handleDirectMessage(Message message) {
+        String sender = message.getField(0);
+        String recipient = message.getField(1);
 
         if (recipient.equals(client.getUsername())) {
-            System.out.println(sender + " (private): " + message);
+            System.out.println(sender + " (private): " + message.getField(2));
         }
     }
 
+    /**
+     * Handles a message sent to a room the client is in.
+     *
+     * @param message The room message.
+     */
+    private void handleRoomMessage(Message message) {
+        System.out.println(message.getField(0) + " (#" + message.getField(1) + "): " + message.getField(2));
+    }
+
+    /**
+     * Handles a user joining or leaving a room the client is in, the client included.
+     *
+     * @param message The join or leave event.
+     */
+    private void handleRoomMembership(Message message) {
+        String user = message.getField(0);
+        String room = message.getField(1);
+        boolean joined = message.is(MessageType.JOIN_ROOM);
+
+        if (user.equals(client.getUsername())) {
+            System.out.println((joined ? "Joined #" : "Left #") + room);
+        }
+
+        else {
+            System.out.println(user + (joined ? " joined #" : " left #") + room);
+        }
+    }
+
+    /**
+     * Handles the list of rooms from the server.
+     *
+     * @param message The room list: each room name followed by its member count.
+     */
+    private void handleRoomList(Message message) {
+        List<String> fields = message.getFields();
+
+        if (fields.isEmpty()) {
+            System.out.println("There are no rooms.");
+            return;
+        }
+
+        System.out.println("Rooms:");
+
+        for (int i = 0; i + 1 < fields.size(); i += 2) {
+            System.out.println("- #" + fields.get(i) + " (" + fields.get(i + 1) + ")");
+        }
+    }
+
+    /**
+     * Handles a credit grant from the server. A grant that isn't a number is reported and
+     * ignored, so it can't stop the listener.
+     *
+     * @param message The credit message.
+     */
+    private void handleCredit(Message message) {
+        long limit;
+
+        try {
+            limit = Long.parseLong(message.getField(0));
+        }
+
+        catch (NumberFormatException e) {
+            System.err.println("Invalid credit from server: " + message.getField(0));
+            return;
+        }
+
+        client.grantCredit(limit);
+    }
+
     /**
      * Handles a failed message from the server.
      *
-     * @throws IOException If an I/O error occurs.
+     * @param message The failed message.
      */
-    private void handleFailedMessage() throws IOException {
-        String errorMessage = MessageProtocol.readString(input);
-        System.out.println("Error: " + errorMessage);
+    private void handleFailedMessage(Message message) {
+        System.out.println("Error: " + message.getField(0));
     }
 }
\ No newline at end of file
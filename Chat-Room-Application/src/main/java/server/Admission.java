@@ -0,0 +1,138 @@
+package server;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The outcome of asking the {@link AdmissionController} to let a connection in. An
+ * accepted admission holds one connection slot and one pending-handshake slot; the
+ * handshake slot is given back when the client connects or its handshake times out, and
+ * the connection slot when the connection closes. Each transition happens once, however
+ * many threads race to make it.
+ */
+public class Admission {
+    private static final int PENDING = 0;
+    private static final int ESTABLISHED = 1;
+    private static final int TIMED_OUT = 2;
+    private static final int RELEASED = 3;
+
+    private final AdmissionController controller;
+    private final RefusalReason refusal;
+    private final AtomicInteger state;
+    private volatile ScheduledFuture<?> timeout;
+
+    /**
+     * Constructs an Admission.
+     *
+     * @param controller The controller whose slots this admission holds, or null if refused.
+     * @param refusal    Why the connection was refused, or null if it was accepted.
+     */
+    Admission(AdmissionController controller, RefusalReason refusal) {
+        this.controller = controller;
+        this.refusal = refusal;
+        this.state = new AtomicInteger(refusal == null ? PENDING : RELEASED);
+    }
+
+    /**
+     * Checks whether the connection was let in.
+     *
+     * @return True if the connection was accepted.
+     */
+    public boolean isAccepted() {
+        return refusal == null;
+    }
+
+    /**
+     * Gets why the connection was refused.
+     *
+     * @return The refusal reason, or null if the connection was accepted.
+     */
+    public RefusalReason getRefusal() {
+        return refusal;
+    }
+
+    /**
+     * Checks whether the client is still completing its handshake.
+     *
+     * @return True until the client connects, times out or closes.
+     */
+    public boolean isPending() {
+        return state.get() == PENDING;
+    }
+
+    /**
+     * Records that the client has connected, giving back its handshake slot.
+     */
+    public void completeHandshake() {
+        if (state.compareAndSet(PENDING, ESTABLISHED)) {
+            cancelTimeout();
+            controller.handshakeEnded(false);
+        }
+    }
+
+    /**
+     * Records that the handshake timed out, giving back its handshake slot. The
+     * connection slot is held until the connection closes.
+     *
+     * @return True if the handshake was still pending and is now timed out.
+     */
+    boolean expireHandshake() {
+        if (state.compareAndSet(PENDING, TIMED_OUT)) {
+            controller.handshakeEnded(true);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Gives back every slot the admission still holds, once the connection has closed.
+     */
+    public void release() {
+        int previous = state.getAndSet(RELEASED);
+
+        if (previous == RELEASED) {
+            return;
+        }
+
+        cancelTimeout();
+
+        if (previous == PENDING) {
+            controller.handshakeEnded(false);
+        }
+
+        controller.connectionClosed();
+    }
+
+    /**
+     * Remembers the scheduled handshake timeout, so it can be cancelled.
+     *
+     * @param timeout The scheduled timeout task.
+     */
+    void setTimeout(ScheduledFuture<?> timeout) {
+        this.timeout = timeout;
+
+        if (state.get() != PENDING) {
+            timeout.cancel(false);
+        }
+    }
+
+    /**
+     * Cancels the handshake timeout, if one was scheduled.
+     */
+    private void cancelTimeout() {
+        ScheduledFuture<?> scheduled = timeout;
+
+        if (scheduled != null) {
+            scheduled.cancel(false);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Admission{" +
+                "refusal=" + refusal +
+                ", state=" + state.get() +
+                '}';
+    }
+}
@@ -0,0 +1,312 @@
+package server;
+
+import util.Frame;
+import util.Message;
+import util.MessageCodec;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides whether a freshly accepted connection may stay, before any handler is built for
+ * it. A connection needs a token from its source address's accept-rate bucket, a slot
+ * under the pending-handshake limit and a slot under the connection limit. Slots are
+ * claimed with a compare-and-set at accept time, so a burst of connections cannot
+ * overshoot a limit the way checking the registry size before registering could.
+ *
+ * <p>A connection that has not sent a successful connect message within the handshake
+ * timeout is refused and closed. A refused client is sent a failed connect response
+ * naming the {@link RefusalReason}. Every outcome is counted.
+ */
+public class AdmissionController {
+    private static final int MAX_TRACKED_SOURCES = 4096;
+    private static final long PRUNE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final int maxConnections;
+    private final int maxPendingHandshakes;
+    private final double acceptRate;
+    private final int acceptBurst;
+    private final long handshakeTimeoutMillis;
+    private final ScheduledExecutorService timer;
+    private final AtomicInteger connections;
+    private final AtomicInteger pendingHandshakes;
+    private final ConcurrentHashMap<InetAddress, TokenBucket> buckets;
+    private final AtomicLong lastPruneNanos;
+    private final AtomicLong accepted;
+    private final AtomicLongArray refused;
+    private final AtomicLong timedOut;
+
+    /**
+     * Constructs an AdmissionController from the server's configuration.
+     *
+     * @param config The server configuration holding the limits.
+     * @param timer  The executor that runs handshake timeouts.
+     */
+    public AdmissionController(ServerConfig config, ScheduledExecutorService timer) {
+        this.maxConnections = config.getMaxClients();
+        this.maxPendingHandshakes = config.getMaxPendingHandshakes();
+        this.acceptRate = config.getAcceptRatePerSecond();
+        this.acceptBurst = config.getAcceptBurst();
+        this.handshakeTimeoutMillis = config.getHandshakeTimeoutMillis();
+        this.timer = timer;
+        this.connections = new AtomicInteger();
+        this.pendingHandshakes = new AtomicInteger();
+        this.buckets = new ConcurrentHashMap<>();
+        this.lastPruneNanos = new AtomicLong(System.nanoTime());
+        this.accepted = new AtomicLong();
+        this.refused = new AtomicLongArray(RefusalReason.values().length);
+        this.timedOut = new AtomicLong();
+    }
+
+    /**
+     * Decides whether a connection from the given address may stay, claiming its slots if so.
+     *
+     * @param source The client's address.
+     * @return The admission, accepted or refused with a reason.
+     */
+    public Admission admit(InetAddress source) {
+        RefusalReason refusal = null;
+
+        if (!takeAcceptToken(source)) {
+            refusal = RefusalReason.RATE_LIMITED;
+        }
+
+        else if (!claim(pendingHandshakes, maxPendingHandshakes)) {
+            refusal = RefusalReason.TOO_MANY_HANDSHAKES;
+        }
+
+        else if (!claim(connections, maxConnections)) {
+            pendingHandshakes.decrementAndGet();
+            refusal = RefusalReason.SERVER_FULL;
+        }
+
+        if (refusal != null) {
+            refused.incrementAndGet(refusal.ordinal());
+            return new Admission(null, refusal);
+        }
+
+        accepted.incrementAndGet();
+        return new Admission(this, null);
+    }
+
+    /**
+     * Starts the handshake timer of an accepted connection.
+     *
+     * @param admission The accepted admission.
+     * @param onTimeout What to do if the handshake is still pending when the timer fires.
+     */
+    public void startHandshakeTimer(Admission admission, Runnable onTimeout) {
+        if (handshakeTimeoutMillis <= 0 || !admission.isAccepted()) {
+            return;
+        }
+
+        admission.setTimeout(timer.schedule(() -> {
+            if (admission.expireHandshake()) {
+                onTimeout.run();
+            }
+        }, handshakeTimeoutMillis, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Spends a token from the source address's bucket.
+     *
+     * @param source The client's address.
+     * @return True if the address is within its accept rate.
+     */
+    private boolean takeAcceptToken(InetAddress source) {
+        if (acceptRate <= 0 || source == null) {
+            return true;
+        }
+
+        long now = System.nanoTime();
+        pruneBuckets(now);
+        return buckets.computeIfAbsent(source, address -> new TokenBucket(acceptRate, acceptBurst, now)).tryAcquire(now);
+    }
+
+    /**
+     * Forgets the buckets of idle addresses once too many are tracked, at most once a second.
+     *
+     * @param now The current time.
+     */
+    private void pruneBuckets(long now) {
+        long last = lastPruneNanos.get();
+
+        if (buckets.size() > MAX_TRACKED_SOURCES && now - last >= PRUNE_INTERVAL_NANOS
+                && lastPruneNanos.compareAndSet(last, now)) {
+            // A full bucket is indistinguishable from a new one, so dropping it changes nothing.
+            buckets.values().removeIf(bucket -> bucket.isFull(now));
+        }
+    }
+
+    /**
+     * Claims a slot under a limit without overshooting it.
+     *
+     * @param counter The slots in use.
+     * @param limit   The limit.
+     * @return True if a slot was claimed.
+     */
+    private static boolean claim(AtomicInteger counter, int limit) {
+        int current;
+
+        do {
+            current = counter.get();
+
+            if (current >= limit) {
+                return false;
+            }
+        } while (!counter.compareAndSet(current, current + 1));
+
+        return true;
+    }
+
+    /**
+     * Gives back a pending-handshake slot.
+     *
+     * @param timedOutHandshake Whether the handshake ended by timing out.
+     */
+    void handshakeEnded(boolean timedOutHandshake) {
+        pendingHandshakes.decrementAndGet();
+
+        if (timedOutHandshake) {
+            timedOut.incrementAndGet();
+        }
+    }
+
+    /**
+     * Gives back a connection slot.
+     */
+    void connectionClosed() {
+        connections.decrementAndGet();
+    }
+
+    /**
+     * Encodes the failed connect response sent to a refused client. It uses the legacy
+     * format, which clients of every version can read.
+     *
+     * @param reason Why the client was refused.
+     * @return The encoded response.
+     */
+    public static Frame refusalFrame(RefusalReason reason) {
+        try {
+            return MessageCodec.encode(Message.connectResponse(false, reason.toMessage()), MessageCodec.LEGACY_VERSION);
+        }
+
+        catch (IOException e) {
+            throw new IllegalStateException("The legacy version is always supported.", e);
+        }
+    }
+
+    /**
+     * Tells a blocking-mode client why it was refused, then closes its socket.
+     *
+     * @param socket The client's socket.
+     * @param reason Why the client was refused.
+     */
+    public static void refuse(Socket socket, RefusalReason reason) {
+        try (socket) {
+            refusalFrame(reason).writeTo(socket.getOutputStream());
+        }
+
+        catch (IOException e) {
+            // The client may already have gone; it was being closed anyway.
+        }
+    }
+
+    /**
+     * Tells an nio-mode client why it was refused, then closes its channel. The channel
+     * must still be in blocking mode, as accepted channels are.
+     *
+     * @param channel The client's channel.
+     * @param reason  Why the client was refused.
+     */
+    public static void refuse(SocketChannel channel, RefusalReason reason) {
+        try (channel) {
+            channel.write(refusalFrame(reason).buffer());
+        }
+
+        catch (IOException e) {
+            // The client may already have gone; it was being closed anyway.
+        }
+    }
+
+    /**
+     * Gets the number of connections currently holding a slot.
+     *
+     * @return The connection count.
+     */
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    /**
+     * Gets the number of connections that have not yet completed their handshake.
+     *
+     * @return The pending handshake count.
+     */
+    public int getPendingHandshakeCount() {
+        return pendingHandshakes.get();
+    }
+
+    /**
+     * Gets the number of connections let in.
+     *
+     * @return The accepted count.
+     */
+    public long getAcceptedCount() {
+        return accepted.get();
+    }
+
+    /**
+     * Gets the number of connections refused for a reason. Handshake timeouts are counted
+     * separately, by {@link #getTimedOutCount()}.
+     *
+     * @param reason The refusal reason.
+     * @return The refused count.
+     */
+    public long getRefusedCount(RefusalReason reason) {
+        return reason == RefusalReason.HANDSHAKE_TIMEOUT ? timedOut.get() : refused.get(reason.ordinal());
+    }
+
+    /**
+     * Gets the number of connections refused at accept time, for any reason.
+     *
+     * @return The refused count.
+     */
+    public long getRefusedCount() {
+        long total = 0;
+
+        for (int i = 0; i < refused.length(); i++) {
+            total += refused.get(i);
+        }
+
+        return total;
+    }
+
+    /**
+     * Gets the number of connections closed for not completing their handshake in time.
+     *
+     * @return The timed-out count.
+     */
+    public long getTimedOutCount() {
+        return timedOut.get();
+    }
+
+    @Override
+    public String toString() {
+        return "AdmissionController{" +
+                "connections=" + connections.get() +
+                ", pendingHandshakes=" + pendingHandshakes.get() +
+                ", accepted=" + accepted.get() +
+                ", refused=" + getRefusedCount() +
+                ", timedOut=" + timedOut.get() +
+                '}';
+    }
+}
@@ -1,45 +1,207 @@
 package server;
 
-import util.MessageProtocol;
+import storage.Conversations;
+import storage.HistoryPage;
+import storage.MailboxStore;
+import storage.MessageLog;
+import util.Frame;
+import util.Message;
+import util.MessageCodec;
 import util.MessageType;
+import util.VirtualThreads;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The main server class that listens for incoming client connections and manages connected clients.
  */
 public class ChatServer {
-    private ServerSocket serverSocket;
-    private final List<ConnectedClient> connectedClients;
+    private volatile ServerSocket serverSocket;
+    private final ExecutorService handlerExecutor;
+    private final ExecutorService writerExecutor;
+    private final AtomicLong retiredDroppedFrames;
+    private final AtomicLong retiredDisconnects;
+    private final AtomicLong retiredWrites;
+    private final AtomicLong retiredFramesWritten;
+    private final AtomicLong rejectedFrames;
+    private final SlowConsumerGuard slowConsumerGuard;
+    private volatile NioEventLoop acceptorLoop;
+    private volatile EventLoopGroup workerLoops;
+    private ScheduledExecutorService statsReporter;
+    private final ClientRegistry connectedClients;
+    private final SubscriberSet subscribers;
+    private final ScheduledExecutorService timer;
+    private final PresenceFeed presenceFeed;
+    private final AdmissionController admissionController;
+    private final MessageRateLimiter rateLimiter;
+    private final RoomRegistry rooms;
+    private final FanOutEngine fanOutEngine;
+    private final HistoryRing history;
+    private final MessageLog messageLog;
+    private final OfflineDelivery offlineDelivery;
+    private final SearchIndex searchIndex;
+    private final SearchIndexer searchIndexer;
     private final int port;
-    private final boolean isRunning;
+    private final ServerConfig config;
+    private volatile boolean isRunning;
 
     /**
-     * Constructs a ChatServer that listens on the specified port.
+     * Constructs a ChatServer that listens on the specified port with the default configuration.
      *
      * @param port The port number the server will listen on.
      */
     public ChatServer(int port) {
+        this(port, new ServerConfig());
+    }
+
+    /**
+     * Constructs a ChatServer that listens on the specified port with the given configuration.
+     *
+     * @param port   The port number the server will listen on.
+     * @param config The server's startup options.
+     */
+    public ChatServer(int port, ServerConfig config) {
         this.port = port;
-        connectedClients = new CopyOnWriteArrayList<>();
+        this.config = config;
+        subscribers = new SubscriberSet();
+        timer = Executors.newSingleThreadScheduledExecutor(newDaemonThreadFactory("server-timer-"));
+        presenceFeed = new PresenceFeed(subscribers, this::getRoster, timer, config.getPresenceBatchMillis());
+        admissionController = new AdmissionController(config, timer);
+        rooms = new RoomRegistry(config.getHistoryCapacity(), config.getHistoryBytes());
+        history = new HistoryRing(config.getHistoryCapacity(), config.getHistoryBytes());
+        messageLog = openMessageLog(config);
+        offlineDelivery = openMailboxes(config, timer);
+        searchIndex = new SearchIndex(config.getSearchCapacity());
+        searchIndexer = new SearchIndexer(searchIndex);
+        fanOutEngine = new FanOutEngine(config.getFanOutParallelism(), config.getParallelFanOutThreshold());
+        rateLimiter = new MessageRateLimiter();
+        config.getMessageRateLimits().forEach(rateLimiter::setLimit);
+        connectedClients = new ClientRegistry(presenceFeed);
+        retiredDroppedFrames = new AtomicLong();
+        retiredDisconnects = new AtomicLong();
+        retiredWrites = new AtomicLong();
+        retiredFramesWritten = new AtomicLong();
+        rejectedFrames = new AtomicLong();
+        slowConsumerGuard = new SlowConsumerGuard(config.getSlowConsumerPolicy(), config.getSlowConsumerGraceMillis());
         isRunning = true;
+
+        if (config.getMode() == ServerMode.VIRTUAL) {
+            handlerExecutor = VirtualThreads.newPerTaskExecutor();
+            writerExecutor = handlerExecutor;
+        }
+
+        else {
+            handlerExecutor = null;
+            writerExecutor = Executors.newCachedThreadPool(newDaemonThreadFactory("client-writer-"));
+        }
+    }
+
+    /**
+     * Opens the durable message log, if the configuration asks for one.
+     *
+     * @param config The server's startup options.
+     * @return The log, or null if relayed messages are not logged.
+     * @throws UncheckedIOException If the log directory cannot be opened.
+     */
+    private static MessageLog openMessageLog(ServerConfig config) {
+        if (config.getMessageLogDirectory() == null) {
+            return null;
+        }
+
+        try {
+            return new MessageLog(config.getMessageLogDirectory(), config.getLogSegmentBytes(),
+                    config.getLogFsyncPolicy(), config.getLogGroupCommitMillis(),
+                    config.getLogRetentionMillis(), config.getLogRetentionBytes());
+        }
+
+        catch (IOException e) {
+            throw new UncheckedIOException("Unable to open message log in " + config.getMessageLogDirectory(), e);
+        }
+    }
+
+    /**
+     * Opens the mailboxes for offline users, if the configuration asks for them.
+     *
+     * @param config The server's startup options.
+     * @param timer  The timer to pace deliveries and purge expired messages on.
+     * @return The delivery of stored messages, or null if direct messages to offline users
+     *         are refused.
+     * @throws UncheckedIOException If the mailbox directory cannot be opened.
+     */
+    private static OfflineDelivery openMailboxes(ServerConfig config, ScheduledExecutorService timer) {
+        if (config.getMailboxDirectory() == null) {
+            return null;
+        }
+
+        try {
+            MailboxStore store = new MailboxStore(config.getMailboxDirectory(), config.getMailboxMaxMessages(),
+                    config.getMailboxMaxBytes(), config.getMailboxTtlMillis());
+            return new OfflineDelivery(store, timer);
+        }
+
+        catch (IOException e) {
+            throw new UncheckedIOException("Unable to open mailboxes in " + config.getMailboxDirectory(), e);
+        }
+    }
+
+    /**
+     * Creates a thread factory for numbered daemon threads.
+     *
+     * @param prefix The thread name prefix.
+     * @return The thread factory.
+     */
+    private static ThreadFactory newDaemonThreadFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+
+        return task -> {
+            Thread thread = new Thread(task, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
     }
 
     /**
      * Starts the server and begins accepting client connections.
+     * This call blocks until the server is stopped.
      */
     public void start() {
         try {
-            serverSocket = new ServerSocket(port);
-            System.out.println("Chat server started on port " + port);
-            acceptClients();
+            if (config.getMode() == ServerMode.NIO) {
+                startEventLoop();
+            }
+
+            else {
+                serverSocket = new ServerSocket(port);
+
+                if (handlerExecutor != null) {
+                    System.out.println("Chat server started on port " + port + " (virtual threads)");
+                }
+
+                else {
+                    System.out.println("Chat server started on port " + port);
+                }
+
+                acceptClients();
+            }
         }
 
         catch (IOException e) {
@@ -47,6 +209,274 @@ public class ChatServer {
         }
     }
 
+    /**
+     * Stops accepting connections and shuts down the event loop, if any.
+     */
+    public void stop() {
+        isRunning = false;
+
+        if (acceptorLoop != null) {
+            acceptorLoop.shutdown();
+        }
+
+        if (workerLoops != null) {
+            workerLoops.shutdown();
+        }
+
+        if (statsReporter != null) {
+            statsReporter.shutdownNow();
+        }
+
+        writerExecutor.shutdown();
+        slowConsumerGuard.shutdown();
+        fanOutEngine.shutdown();
+        searchIndexer.shutdown();
+        timer.shutdownNow();
+
+        if (messageLog != null) {
+            try {
+                messageLog.close();
+            }
+
+            catch (IOException e) {
+                System.err.println("Error closing message log.");
+            }
+        }
+
+        if (offlineDelivery != null) {
+            offlineDelivery.shutdown();
+
+            try {
+                offlineDelivery.getStore().close();
+            }
+
+            catch (IOException e) {
+                System.err.println("Error closing mailboxes.");
+            }
+        }
+
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            }
+
+            catch (IOException e) {
+                System.err.println("Error closing server socket.");
+            }
+        }
+    }
+
+    /**
+     * Binds a non-blocking server channel, starts the worker loops, and runs the
+     * acceptor loop on the calling thread.
+     *
+     * @throws IOException If the channel cannot be opened or bound.
+     */
+    private void startEventLoop() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+
+        try {
+            serverChannel.bind(new InetSocketAddress(port));
+            workerLoops = new EventLoopGroup(this, config.getWorkerThreads(), config.getLoopSelection());
+            acceptorLoop = new NioEventLoop(this, "nio-acceptor");
+            acceptorLoop.registerAcceptor(serverChannel, workerLoops);
+        }
+
+        catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+
+        System.out.println("Chat server started on port " + port + " (nio, worker loops: "
+                + config.getWorkerThreads() + ")");
+
+        if (isRunning) {
+            workerLoops.start();
+            startStatsReporter();
+            acceptorLoop.run();
+        }
+    }
+
+    /**
+     * Prints the worker loop and outbound queue stats at the configured interval, if reporting is on.
+     */
+    private void startStatsReporter() {
+        long interval = config.getStatsIntervalMillis();
+
+        if (interval <= 0) {
+            return;
+        }
+
+        statsReporter = Executors.newSingleThreadScheduledExecutor(newDaemonThreadFactory("nio-stats-"));
+
+        List<LoopStats> previous = new ArrayList<>(getLoopStats());
+
+        statsReporter.scheduleAtFixedRate(() -> {
+            List<LoopStats> current = getLoopStats();
+
+            for (int i = 0; i < current.size(); i++) {
+                LoopStats stats = current.get(i);
+                System.out.printf("%s: %d connections, %.1f%% busy%n", stats.getName(),
+                        stats.getConnections(), stats.utilizationSince(previous.get(i)) * 100);
+                previous.set(i, stats);
+            }
+
+            System.out.println(getOutboundStats());
+            System.out.println(slowConsumerGuard);
+            System.out.println("Rejected frames: " + rejectedFrames.get());
+            System.out.println(presenceFeed);
+            System.out.println(admissionController);
+            System.out.println(rateLimiter);
+            System.out.println(rooms);
+            System.out.println(fanOutEngine);
+            System.out.println(searchIndex);
+            System.out.println(searchIndexer);
+
+            if (messageLog != null) {
+                System.out.println(messageLog);
+            }
+
+            if (offlineDelivery != null) {
+                System.out.println(offlineDelivery);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets a snapshot of each worker loop's connection count and utilisation.
+     *
+     * @return The stats of every worker loop, or an empty list when not running in nio mode.
+     */
+    public List<LoopStats> getLoopStats() {
+        EventLoopGroup group = workerLoops;
+
+        if (group == null) {
+            return Collections.emptyList();
+        }
+
+        List<LoopStats> stats = new ArrayList<>();
+
+        for (NioEventLoop loop : group.getLoops()) {
+            stats.add(loop.getStats());
+        }
+
+        return stats;
+    }
+
+    /**
+     * Creates an outbound queue sized by the server's configuration.
+     *
+     * @return A new, empty outbound queue.
+     */
+    OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(config.getOutboundCapacity(), config.getOutboundHighWatermark(),
+                config.getOutboundLowWatermark());
+    }
+
+    /**
+     * Gets the server's configuration.
+     *
+     * @return The server config.
+     */
+    ServerConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Records a frame rejected for breaking the frame limits.
+     */
+    void recordRejectedFrame() {
+        rejectedFrames.incrementAndGet();
+    }
+
+    /**
+     * Gets the number of frames rejected for breaking the frame limits.
+     *
+     * @return The rejected frame count.
+     */
+    public long getRejectedFrameCount() {
+        return rejectedFrames.get();
+    }
+
+    /**
+     * Gets the executor that drains blocking clients' outbound queues.
+     *
+     * @return The writer executor.
+     */
+    Executor getWriterExecutor() {
+        return writerExecutor;
+    }
+
+    /**
+     * Summarises the outbound queues of the connected clients, plus the drops, disconnects
+     * and writes of clients that have since left.
+     *
+     * @return The outbound queue stats.
+     */
+    public OutboundStats getOutboundStats() {
+        int clients = 0;
+        long queuedFrames = 0;
+        int maxDepth = 0;
+        int overloadedClients = 0;
+        long droppedFrames = retiredDroppedFrames.get();
+        long disconnects = retiredDisconnects.get();
+        long writes = retiredWrites.get();
+        long framesWritten = retiredFramesWritten.get();
+
+        for (ConnectedClient client : connectedClients.clients()) {
+            OutboundQueue outbound = client.getOutboundQueue();
+            int depth = outbound.size();
+
+            clients++;
+            queuedFrames += depth;
+            maxDepth = Math.max(maxDepth, depth);
+            overloadedClients += outbound.isOverloaded() ? 1 : 0;
+            droppedFrames += outbound.getDroppedCount();
+            disconnects += outbound.getDisconnectCount();
+            writes += outbound.getWriteCount();
+            framesWritten += outbound.getWrittenFrameCount();
+        }
+
+        return new OutboundStats(clients, queuedFrames, maxDepth, overloadedClients, droppedFrames, disconnects,
+                writes, framesWritten);
+    }
+
+    /**
+     * Gets the guard that applies the slow-consumer policy to broadcasts.
+     *
+     * @return The slow-consumer guard, which also counts evictions by reason.
+     */
+    public SlowConsumerGuard getSlowConsumerGuard() {
+        return slowConsumerGuard;
+    }
+
+    /**
+     * Gets the per-user message rate limits, which may be changed while the server runs.
+     *
+     * @return The rate limiter, which also counts the messages that went over a limit.
+     */
+    public MessageRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Gets the executor that runs the server's timed tasks, such as handshake timeouts.
+     *
+     * @return The shared timer.
+     */
+    ScheduledExecutorService getTimer() {
+        return timer;
+    }
+
+    /**
+     * Gets the controller that decides which new connections may stay.
+     *
+     * @return The admission controller, which also counts accepted, refused and timed-out connections.
+     */
+    public AdmissionController getAdmissionController() {
+        return admissionController;
+    }
+
     /**
      * Accepts incoming client connections.
      */
@@ -54,60 +484,122 @@ public class ChatServer {
         while (isRunning) {
             try {
                 Socket clientSocket = serverSocket.accept();
-                int MAX_CLIENTS = 10;
+                Admission admission = admissionController.admit(clientSocket.getInetAddress());
 
-                if (connectedClients.size() < MAX_CLIENTS) {
+                if (admission.isAccepted()) {
                     ClientHandler clientHandler = new ClientHandler(clientSocket, this);
-                    new Thread(clientHandler).start();
+                    clientHandler.setAdmission(admission);
+                    startHandler(clientHandler);
                 }
 
                 else {
-                    System.out.println("Maximum clients connected. Connection refused.");
-                    clientSocket.close();
+                    System.out.println("Connection refused: " + admission.getRefusal());
+                    AdmissionController.refuse(clientSocket, admission.getRefusal());
                 }
             }
 
             catch (IOException e) {
-                System.err.println("Error accepting client connection.");
+                if (isRunning) {
+                    System.err.println("Error accepting client connection.");
+                }
             }
         }
     }
 
     /**
-     * Adds a new client to the list of connected clients.
+     * Runs a client handler on a virtual thread in virtual mode, or on a new platform thread otherwise.
+     *
+     * @param clientHandler The handler to run.
+     */
+    private void startHandler(ClientHandler clientHandler) {
+        if (handlerExecutor != null) {
+            handlerExecutor.execute(clientHandler);
+        }
+
+        else {
+            new Thread(clientHandler).start();
+        }
+    }
+
+    /**
+     * Adds a new client to the connected clients, claiming its username atomically, and
+     * sends it broadcasts from now on, without replaying the recent ones.
      *
-     * @param client The client to add.
+     * @param client The client to add, with its username set.
+     * @return True if the client was added, false if its username is already taken.
      */
-    public synchronized void addClient(ConnectedClient client) {
-        connectedClients.add(client);
+    public boolean addClient(ConnectedClient client) {
+        if (!registerClient(client)) {
+            return false;
+        }
+
+        subscribers.add(client);
+        return true;
+    }
+
+    /**
+     * Adds a new client to the connected clients, claiming its username atomically. The
+     * client gets no broadcasts until {@link #subscribeBroadcasts} is called.
+     *
+     * @param client The client to add, with its username set.
+     * @return True if the client was added, false if its username is already taken.
+     */
+    public boolean registerClient(ConnectedClient client) {
+        if (!connectedClients.register(client)) {
+            return false;
+        }
+
         System.out.println("Client connected: " + client.getUsername());
+        return true;
     }
 
     /**
-     * Removes a client from the list of connected clients.
+     * Removes a client from the connected clients and closes it. Only the client that owns
+     * its username's entry is removed; a different client with the same name is left alone.
      *
      * @param client The client to remove.
      */
-    public synchronized void removeClient(ConnectedClient client) {
-        connectedClients.remove(client);
+    public void removeClient(ConnectedClient client) {
+        boolean removed = connectedClients.unregister(client);
+
+        if (removed) {
+            subscribers.remove(client);
+        }
+
         client.close();
-        System.out.println("Client disconnected: " + client.getUsername());
+
+        // Closed first, so a join racing this sees it and undoes itself.
+        for (Room room : rooms.leaveAll(client)) {
+            fanOut(room.getMembers(), Message.of(MessageType.LEAVE_ROOM, client.getUsername(), room.getName()));
+        }
+
+        if (removed) {
+            OutboundQueue outbound = client.getOutboundQueue();
+            retiredDroppedFrames.addAndGet(outbound.getDroppedCount());
+            retiredDisconnects.addAndGet(outbound.getDisconnectCount());
+            retiredWrites.addAndGet(outbound.getWriteCount());
+            retiredFramesWritten.addAndGet(outbound.getWrittenFrameCount());
+            System.out.println("Client disconnected: " + client.getUsername());
+        }
     }
 
     /**
-     * Retrieves a client by their username.
+     * Retrieves a client by their username, without locking.
      *
      * @param username The username of the client.
      * @return The ConnectedClient object, or null if not found.
      */
-    public synchronized ConnectedClient getClientByUsername(String username) {
-        for (ConnectedClient client : connectedClients) {
-            if (client.getUsername().equals(username)) {
-                return client;
-            }
-        }
+    public ConnectedClient getClientByUsername(String username) {
+        return connectedClients.get(username);
+    }
 
-        return null;
+    /**
+     * Gets the number of connected clients.
+     *
+     * @return The client count.
+     */
+    public int getClientCount() {
+        return connectedClients.size();
     }
 
     /**
@@ -116,39 +608,413 @@ public class ChatServer {
      * @param excludeUsername The username to exclude.
      * @return A list of usernames.
      */
-    public synchronized List<String> getConnectedUsernames(String excludeUsername) {
-        List<String> usernames = new CopyOnWriteArrayList<>();
+    public List<String> getConnectedUsernames(String excludeUsername) {
+        return connectedClients.usernames(excludeUsername);
+    }
 
-        for (ConnectedClient client : connectedClients) {
-            if (!client.getUsername().equals(excludeUsername)) {
-                usernames.add(client.getUsername());
-            }
-        }
+    /**
+     * Gets one page of the connected usernames that start with a prefix, in order.
+     *
+     * @param prefix          The prefix; empty for all names.
+     * @param cursor          The last name of the previous page, or empty for the first page.
+     * @param limit           The most names to list, at least 1.
+     * @param excludeUsername A username to leave out, such as the requester's.
+     * @return The page.
+     */
+    public UserPage getUserPage(String prefix, String cursor, int limit, String excludeUsername) {
+        return connectedClients.page(prefix, cursor, limit, excludeUsername);
+    }
+
+    /**
+     * Gets a snapshot of the connected usernames, shared until a client joins or leaves.
+     *
+     * @return The current roster.
+     */
+    public Roster getRoster() {
+        return connectedClients.roster();
+    }
 
-        return usernames;
+    /**
+     * Subscribes a client to presence snapshots and deltas, queuing the current snapshot.
+     *
+     * @param client The client, which must have connected.
+     * @throws IOException If the client's connection has been closed.
+     */
+    public void subscribePresence(ConnectedClient client) throws IOException {
+        presenceFeed.subscribe(client);
     }
 
     /**
-     * Broadcasts a message to all connected clients.
+     * Gets the feed that pushes joins and leaves to presence subscribers.
+     *
+     * @return The presence feed.
+     */
+    public PresenceFeed getPresenceFeed() {
+        return presenceFeed;
+    }
+
+    /**
+     * Broadcasts a message to all connected clients. The frame is encoded once and the
+     * same immutable frame is queued for every recipient, and kept in the history
+     * replayed to clients that connect later.
      *
      * @param message The message to send.
      * @param sender  The username of the sender.
      */
     public void broadcastMessage(String message, String sender) {
-        for (ConnectedClient client : connectedClients) {
-            try {
-                byte[] messageData = createBroadcastMessageData(sender, message);
-                client.sendMessage(MessageType.BROADCAST_MESSAGE.getValue(), messageData);
+        EncodedMessage broadcast = new EncodedMessage(Message.of(MessageType.BROADCAST_MESSAGE, sender, message));
+        log(broadcast);
+        index(broadcast);
+        relay(history, subscribers, broadcast);
+    }
+
+    /**
+     * Queues a message for every client in a set.
+     *
+     * @param recipients The clients to send to.
+     * @param message    The message to send.
+     */
+    private void fanOut(SubscriberSet recipients, Message message) {
+        fanOut(recipients, new EncodedMessage(message));
+    }
+
+    /**
+     * Queues a message for every client in a set.
+     *
+     * @param recipients The clients to send to.
+     * @param message    The message to send, with its shared frames.
+     */
+    private void fanOut(SubscriberSet recipients, EncodedMessage message) {
+        fanOut(recipients, message, null);
+    }
+
+    /**
+     * Queues a message for every client in a set. The frame is encoded once per protocol
+     * version in use and the same immutable frame is queued for every recipient. Large
+     * sets are fanned out in parallel, and the call returns once every frame is queued.
+     *
+     * @param recipients The clients to send to.
+     * @param message    The message to send, with its shared frames.
+     * @param except     A client in the set to skip, or null.
+     */
+    private void fanOut(SubscriberSet recipients, EncodedMessage message, ConnectedClient except) {
+        fanOutEngine.fanOut(recipients, client -> {
+            if (client != except) {
+                deliver(client, message);
             }
+        });
+    }
 
-            catch (IOException e) {
-                System.err.println("Error broadcasting message to " + client.getUsername());
+    /**
+     * Keeps a message in a channel's history and queues it for every client in the
+     * channel. A client still being replayed the history gets the message through its
+     * subscription, which skips it if the replay included it, so it arrives exactly once.
+     *
+     * @param ring       The channel's history.
+     * @param recipients The channel's clients.
+     * @param message    The message to send, with its shared frames.
+     */
+    private void relay(HistoryRing ring, SubscriberSet recipients, EncodedMessage message) {
+        long sequence = remember(ring, message);
+
+        fanOutEngine.fanOut(recipients, client -> {
+            HistoryRing.Subscription subscription = client.getSubscription(ring);
+
+            if (subscription == null) {
+                deliver(client, message);
+            }
+
+            else {
+                subscription.deliver(sequence, () -> deliver(client, message));
             }
+        });
+    }
+
+    /**
+     * Queues a fanned-out message for one client, through the slow consumer guard.
+     *
+     * @param client  The client.
+     * @param message The message, with its shared frames.
+     */
+    private void deliver(ConnectedClient client, EncodedMessage message) {
+        try {
+            slowConsumerGuard.deliver(client, message.frame(client.getProtocolVersion()));
+        }
+
+        catch (IOException e) {
+            System.err.println("Error broadcasting message to " + client.getUsername());
+        }
+    }
+
+    /**
+     * Keeps a message in a history ring.
+     *
+     * @param ring    The history to add to.
+     * @param message The message.
+     * @return The message's sequence number in the ring, or -1 if it was not kept.
+     */
+    private long remember(HistoryRing ring, EncodedMessage message) {
+        try {
+            return ring.keep(message);
+        }
+
+        catch (IOException e) {
+            System.err.println("Error keeping message in history.");
+            return -1;
         }
     }
 
     /**
-     * Sends a direct message to a specific client.
+     * Queues a relayed message for the durable log, if there is one. Only the frame,
+     * already encoded for the fan-out, is handed over; the disk write happens on the
+     * log's own thread.
+     *
+     * @param message The message.
+     */
+    private void log(EncodedMessage message) {
+        if (messageLog == null) {
+            return;
+        }
+
+        try {
+            messageLog.append(message.frame(MessageCodec.CURRENT_VERSION));
+        }
+
+        catch (IOException e) {
+            System.err.println("Error logging message.");
+        }
+    }
+
+    /**
+     * Queues a relayed message for the search index, stamped with the time it was relayed.
+     * The indexer thread adds it, so the relay never waits for the index.
+     *
+     * @param message The message.
+     */
+    private void index(EncodedMessage message) {
+        searchIndexer.submit(message.getMessage(), System.currentTimeMillis());
+    }
+
+    /**
+     * Searches the recent messages a client may see: broadcasts, messages in the rooms it
+     * is in, and the direct messages it sent or received.
+     *
+     * @param client The searching client.
+     * @param query  The words to search for; a message must hold all of them.
+     * @param limit  The most matches to return.
+     * @return The matches, newest first.
+     */
+    public List<SearchIndex.Match> search(ConnectedClient client, String query, int limit) {
+        String username = client.getUsername();
+        Set<String> rooms = client.getRooms();
+
+        return searchIndex.search(query, limit, message -> message.is(MessageType.BROADCAST_MESSAGE)
+                || message.is(MessageType.ROOM_MESSAGE) && rooms.contains(message.getField(1))
+                || message.is(MessageType.DIRECT_MESSAGE)
+                && (username.equals(message.getField(0)) || username.equals(message.getField(1))));
+    }
+
+    /**
+     * Gets the index of recent messages searched by clients.
+     *
+     * @return The search index.
+     */
+    public SearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    /**
+     * Gets the durable log of relayed messages.
+     *
+     * @return The message log, or null if relayed messages are not logged.
+     */
+    public MessageLog getMessageLog() {
+        return messageLog;
+    }
+
+    /**
+     * Reads a page of a room's or a direct conversation's history from the message log.
+     *
+     * @param conversation  The conversation, named by {@link Conversations}.
+     * @param fromMillis    The start of the time range, inclusive.
+     * @param toMillis      The end of the time range, exclusive.
+     * @param afterSequence The cursor from the previous page, or -1 for the first page.
+     * @param limit         The most messages on the page, at least 1.
+     * @return The page, or null if relayed messages are not logged.
+     * @throws IOException If the log cannot be read.
+     */
+    public HistoryPage getHistoryPage(String conversation, long fromMillis, long toMillis, long afterSequence,
+                                      int limit) throws IOException {
+        if (messageLog == null) {
+            return null;
+        }
+
+        return messageLog.history(conversation, fromMillis, toMillis, afterSequence, limit);
+    }
+
+    /**
+     * Starts sending broadcasts to a client that has just connected, replaying the recent
+     * ones first, queued together so they go out in one write. Each recent broadcast
+     * reaches the client once, and before any newer one. Broadcasts relayed meanwhile
+     * don't wait for the replay; the client's subscription holds them back until it is queued.
+     *
+     * @param client The client, which must have been registered.
+     */
+    public void subscribeBroadcasts(ConnectedClient client) {
+        HistoryRing.Subscription subscription = history.subscribe();
+        client.subscribed(history, subscription);
+        subscribers.add(client);
+        subscription.replay(messages -> replay(client, messages));
+
+        // The client disconnected while subscribing; its removal may have missed the set.
+        if (client.isClosed() || connectedClients.get(client.getUsername()) != client) {
+            subscribers.remove(client);
+        }
+    }
+
+    /**
+     * Queues messages for a client, in the client's protocol version.
+     *
+     * @param client   The client.
+     * @param messages The messages to replay, oldest first.
+     */
+    private void replay(ConnectedClient client, List<EncodedMessage> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        try {
+            List<Frame> frames = new ArrayList<>(messages.size());
+
+            for (EncodedMessage message : messages) {
+                frames.add(message.frame(client.getProtocolVersion()));
+            }
+
+            client.sendBroadcasts(frames);
+        }
+
+        catch (IOException e) {
+            // The client is closing; there is no one to replay to.
+        }
+    }
+
+    /**
+     * Gets the recent broadcasts replayed to clients as they connect.
+     *
+     * @return The broadcast history.
+     */
+    public HistoryRing getHistory() {
+        return history;
+    }
+
+    /**
+     * Gets the engine that fans broadcasts and room messages out to their recipients.
+     *
+     * @return The fan-out engine.
+     */
+    public FanOutEngine getFanOutEngine() {
+        return fanOutEngine;
+    }
+
+    /**
+     * Gets the rooms on the server.
+     *
+     * @return The room registry.
+     */
+    public RoomRegistry getRooms() {
+        return rooms;
+    }
+
+    /**
+     * Adds a client to a room, creating it if needed, tells every member, the new one
+     * included, that the client joined, and replays the room's recent messages to it.
+     * The new member's confirmation and replay are queued before any room message relayed
+     * after it was added, and each recent message reaches it once.
+     *
+     * @param client The client, which must have connected.
+     * @param name   The room name, which must be valid.
+     * @return The room, or null if the client was already in it or is disconnecting.
+     */
+    public Room joinRoom(ConnectedClient client, String name) {
+        EncodedMessage joined = new EncodedMessage(Message.of(MessageType.JOIN_ROOM, client.getUsername(), name));
+
+        Room room = rooms.join(name, client, messages -> {
+            List<EncodedMessage> frames = new ArrayList<>(messages.size() + 1);
+            frames.add(joined);
+            frames.addAll(messages);
+            replay(client, frames);
+        });
+
+        if (room == null) {
+            return null;
+        }
+
+        if (client.isClosed()) {
+            // The client disconnected while joining; its leaveAll may have missed this room.
+            rooms.leave(name, client);
+            return null;
+        }
+
+        fanOut(room.getMembers(), joined, client);
+        return room;
+    }
+
+    /**
+     * Takes a client out of a room and tells the client and the remaining members.
+     *
+     * @param client The client.
+     * @param name   The room name.
+     * @return The room, or null if the client was not in it.
+     */
+    public Room leaveRoom(ConnectedClient client, String name) {
+        Room room = rooms.leave(name, client);
+
+        if (room == null) {
+            return null;
+        }
+
+        Message left = Message.of(MessageType.LEAVE_ROOM, client.getUsername(), name);
+        fanOut(room.getMembers(), left);
+
+        try {
+            client.sendMessage(left);
+        }
+
+        catch (IOException e) {
+            // The client is closing; there is no one to confirm to.
+        }
+
+        return room;
+    }
+
+    /**
+     * Lists the rooms on the server.
+     *
+     * @return The member count of each room, by room name in order.
+     */
+    public Map<String, Integer> getRoomListing() {
+        return rooms.listing();
+    }
+
+    /**
+     * Sends a message to the members of a room only.
+     *
+     * @param message The message text.
+     * @param sender  The username of the sender.
+     * @param room    The room.
+     */
+    public void roomMessage(String message, String sender, Room room) {
+        EncodedMessage posted = new EncodedMessage(Message.of(MessageType.ROOM_MESSAGE, sender, room.getName(), message));
+        log(posted);
+        index(posted);
+        relay(room.getHistory(), room.getMembers(), posted);
+    }
+
+    /**
+     * Sends a direct message to a specific client. If the recipient is offline, or still
+     * has stored messages on their way, the message is stored in their mailbox behind
+     * them, when mailboxes are on. So is a message their outbound queue has no room for;
+     * without mailboxes, the sender is told it was not delivered.
      *
      * @param message   The message to send.
      * @param sender    The username of the sender.
@@ -156,107 +1022,120 @@ public class ChatServer {
      */
     public void directMessage(String message, String sender, String recipient) {
         ConnectedClient client = getClientByUsername(recipient);
+        EncodedMessage direct = new EncodedMessage(Message.of(MessageType.DIRECT_MESSAGE, sender, recipient, message));
+
+        if (offlineDelivery != null && (client == null || offlineDelivery.hasBacklog(recipient))) {
+            log(direct);
+            index(direct);
+            store(direct, sender, recipient);
+            return;
+        }
 
         if (client != null) {
+            log(direct);
+            index(direct);
+            boolean queued;
+
             try {
-                byte[] messageData = createDirectMessageData(sender, recipient, message);
-                client.sendMessage(MessageType.DIRECT_MESSAGE.getValue(), messageData);
+                queued = client.send(direct.frame(client.getProtocolVersion()));
             }
 
             catch (IOException e) {
                 System.err.println("Error sending direct message to " + recipient);
+                queued = false;
             }
-        }
 
-        else {
-            System.err.println("User not found: " + recipient);
-
-            // Optionally we can send a failed message back to the sender
-            ConnectedClient senderClient = getClientByUsername(sender);
+            if (queued) {
+                return;
+            }
 
-            if (senderClient != null) {
-                try {
-                    byte[] errorData = createFailedMessageData("User not found: " + recipient);
-                    senderClient.sendMessage(MessageType.FAILED_MESSAGE.getValue(), errorData);
-                }
+            // The recipient is too far behind or just disconnected; keep the message if we can.
+            if (offlineDelivery != null) {
+                store(direct, sender, recipient);
+            }
 
-                catch (IOException e) {
-                    System.err.println("Error sending failed message to " + sender);
-                }
+            else {
+                sendFailure(sender, "Message to " + recipient + " could not be delivered.");
             }
         }
+
+        else {
+            System.err.println("User not found: " + recipient);
+            sendFailure(sender, "User not found: " + recipient);
+        }
     }
 
     /**
-     * Creates the message data for a broadcast message.
+     * Stores a direct message in the recipient's mailbox, and starts delivering it if the
+     * recipient connected in the meantime. The sender is told if the mailbox is full.
      *
-     * @param sender  The sender's username.
-     * @param message The message content.
-     * @return The byte array representing the message data.
-     * @throws IOException If an I/O error occurs.
+     * @param direct    The direct message.
+     * @param sender    The username of the sender.
+     * @param recipient The username of the recipient.
      */
-    private byte[] createBroadcastMessageData(String sender, String message) throws IOException {
-        // Message format:
-        // int sender username size, byte[] sender username
-        // int message size, byte[] message
+    private void store(EncodedMessage direct, String sender, String recipient) {
+        try {
+            if (!offlineDelivery.getStore().store(recipient, direct.frame(MessageCodec.CURRENT_VERSION))) {
+                sendFailure(sender, "Mailbox full for " + recipient + ".");
+                return;
+            }
+        }
 
-        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-             DataOutputStream dataOutput = new DataOutputStream(baos)) {
+        catch (IOException e) {
+            System.err.println("Error storing direct message for " + recipient);
+            sendFailure(sender, "Unable to store message for " + recipient + ".");
+            return;
+        }
 
-            MessageProtocol.writeString(dataOutput, sender);
-            MessageProtocol.writeString(dataOutput, message);
+        ConnectedClient client = getClientByUsername(recipient);
 
-            return baos.toByteArray();
+        if (client != null) {
+            offlineDelivery.deliver(client);
         }
     }
 
     /**
-     * Creates the message data for a direct message.
+     * Tells a sender that their message could not be sent.
      *
-     * @param sender    The sender's username.
-     * @param recipient The recipient's username.
-     * @param message   The message content.
-     * @return The byte array representing the message data.
-     * @throws IOException If an I/O error occurs.
+     * @param sender The username of the sender.
+     * @param reason Why the message failed.
      */
-    private byte[] createDirectMessageData(String sender, String recipient, String message) throws IOException {
-        // Message format:
-        // int sender username size, byte[] sender username
-        // int recipient username size, byte[] recipient username
-        // int message size, byte[] message
+    private void sendFailure(String sender, String reason) {
+        ConnectedClient senderClient = getClientByUsername(sender);
 
-        // Use a ByteArrayOutputStream to build the message data
-        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-             DataOutputStream dataOutput = new DataOutputStream(baos)) {
-
-            MessageProtocol.writeString(dataOutput, sender);
-            MessageProtocol.writeString(dataOutput, recipient);
-            MessageProtocol.writeString(dataOutput, message);
+        if (senderClient != null) {
+            try {
+                senderClient.sendMessage(Message.of(MessageType.FAILED_MESSAGE, reason));
+            }
 
-            return baos.toByteArray();
+            catch (IOException e) {
+                System.err.println("Error sending failed message to " + sender);
+            }
         }
     }
 
     /**
-     * Creates the message data for a failed message.
+     * Starts streaming the direct messages stored while a client was offline, in batches
+     * paced by its outbound queue. Returns at once; the backlog goes out on the delivery
+     * thread.
      *
-     * @param errorMessage The error message.
-     * @return The byte array representing the failed message data.
-     * @throws IOException If an I/O error occurs.
+     * @param client The client, which has just connected.
      */
-    private byte[] createFailedMessageData(String errorMessage) throws IOException {
-        // Message format:
-        // int message size, byte[] message
-
-        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-             DataOutputStream dataOutput = new DataOutputStream(baos)) {
-
-            MessageProtocol.writeString(dataOutput, errorMessage);
-
-            return baos.toByteArray();
+    public void deliverOfflineMessages(ConnectedClient client) {
+        if (offlineDelivery != null) {
+            offlineDelivery.deliver(client);
         }
     }
 
+    /**
+     * Gets the delivery of direct messages stored for offline users.
+     *
+     * @return The offline delivery, or null if direct messages to offline users are refused.
+     */
+    public OfflineDelivery getOfflineDelivery() {
+        return offlineDelivery;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -276,6 +1155,7 @@ public class ChatServer {
     public String toString() {
         return "ChatServer{" +
                 "port=" + port +
+                ", mode=" + config.getMode() +
                 ", connectedClients=" + connectedClients.size() +
                 '}';
     }
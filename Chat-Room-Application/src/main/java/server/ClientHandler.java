@@ -1,24 +1,48 @@
 package server;
 
-import util.MessageProtocol;
+import storage.Conversations;
+import storage.HistoryPage;
+import storage.LogRecord;
+import util.CreditWindow;
+import util.Frame;
+import util.FrameTooLargeException;
+import util.Message;
+import util.MessageCodec;
 import util.MessageType;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Handles communication with a single client in a separate thread.
+ * Handles communication with a single client, either on its own thread or on an event loop.
+ * Every reply goes through the client's outbound queue, so replies and relayed messages
+ * reach the client in order.
  */
 public class ClientHandler implements Runnable {
+    /**
+     * The most usernames one page of a prefix query lists.
+     */
+    public static final int MAX_PAGE_SIZE = 100;
+
     private final Socket clientSocket;
     private final ChatServer server;
     private DataInputStream input;
-    private DataOutputStream output;
+    private final MessageCodec codec;
+    private final ConnectedClient client;
     private String username;
     private final InsultGenerator insultGenerator;
+    private final UserRateLimits rateLimits;
+    private CreditWindow inboundCredit;
+    private volatile Admission admission;
+    private Roster listedRoster;
+    private int listedVersion;
+    private Frame listedFrame;
 
     /**
      * Constructs a ClientHandler with the specified client socket and server reference.
@@ -30,6 +54,9 @@ public class ClientHandler implements Runnable {
         this.clientSocket = clientSocket;
         this.server = server;
         this.insultGenerator = new InsultGenerator();
+        this.rateLimits = new UserRateLimits(server.getRateLimiter());
+        this.codec = new MessageCodec(server.getConfig().getFrameLimits());
+        DataOutputStream output = null;
 
         try {
             input = new DataInputStream(clientSocket.getInputStream());
@@ -39,85 +66,288 @@ public class ClientHandler implements Runnable {
         catch (IOException e) {
             System.err.println("Error initializing client handler.");
         }
+
+        OutboundQueue outbound = server.newOutboundQueue();
+        FrameWriter writer = new StreamFrameWriter(outbound, output, clientSocket, server.getWriterExecutor());
+        this.client = new ConnectedClient(null, clientSocket, outbound, writer);
+    }
+
+    /**
+     * Constructs a ClientHandler for a non-blocking connection. The connection decodes
+     * messages itself and hands them over through {@link #processMessage(Message, int)}
+     * instead of them being read by {@link #run()}.
+     *
+     * @param connection The non-blocking connection.
+     * @param server     The ChatServer instance.
+     */
+    ClientHandler(NioConnection connection, ChatServer server) {
+        this.clientSocket = connection.getSocket();
+        this.server = server;
+        this.insultGenerator = new InsultGenerator();
+        this.rateLimits = new UserRateLimits(server.getRateLimiter());
+        this.codec = null;
+        this.client = new ConnectedClient(null, clientSocket, connection.getOutboundQueue(), connection);
     }
 
     @Override
     public void run() {
         try {
             while (true) {
-                int messageType = input.readInt();
-                processMessage(messageType);
+                Message message;
+
+                try {
+                    message = codec.read(input);
+                }
+
+                catch (FrameTooLargeException e) {
+                    rejectFrame(e, codec.getVersion());
+                    continue;
+                }
+
+                long wait = throttle(message, codec.getVersion());
+
+                if (wait == UserRateLimits.OVER_LIMIT) {
+                    continue;
+                }
+
+                if (wait > 0) {
+                    // Not reading from the socket meanwhile pushes back on the client.
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+
+                processMessage(message, codec.getVersion());
             }
         }
 
         catch (IOException e) {
-            System.out.println("Client disconnected: " + username);
+            // The connection has gone away.
+        }
 
-            if (username != null) {
-                server.removeClient(new ConnectedClient(username, clientSocket, output));
-            }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        finally {
+            // On every exit, so the connection's admission slots are always given back.
+            connectionClosed();
         }
     }
 
     /**
-     * Processes a message from the client based on the message type.
+     * Checks a message against the client's rate limits before it is processed. A
+     * message over a limit that rejects is answered with a failed message.
      *
-     * @param messageType The type of the message.
+     * @param message The decoded message.
+     * @param version The protocol version of the frame it came in.
+     * @return 0 to process the message now, the nanoseconds to hold it back for first, or
+     *         {@link UserRateLimits#OVER_LIMIT} if it must not be processed.
      * @throws IOException If an I/O error occurs.
      */
-    private void processMessage(int messageType) throws IOException {
-        if (messageType == MessageType.CONNECT_MESSAGE.getValue()) {
-            handleConnectMessage();
+    long throttle(Message message, int version) throws IOException {
+        long wait = rateLimits.acquire(message.getType(), System.nanoTime());
+
+        if (wait == UserRateLimits.OVER_LIMIT && rateLimits.getPolicy(message.getType()) == RateLimitPolicy.REJECT) {
+            client.setProtocolVersion(version);
+            sendFailedMessage("Rate limit exceeded. Slow down and try again.");
         }
 
-        else if (messageType == MessageType.DISCONNECT_MESSAGE.getValue()) {
-            handleDisconnectMessage();
+        return wait;
+    }
+
+    /**
+     * Attaches the admission this connection was let in with and starts its handshake
+     * timer. The admission's slots are given back when the connection closes.
+     *
+     * @param admission The connection's admission.
+     */
+    void setAdmission(Admission admission) {
+        this.admission = admission;
+        server.getAdmissionController().startHandshakeTimer(admission, this::handshakeTimedOut);
+    }
+
+    /**
+     * Refuses and closes a connection that did not send a successful connect message in
+     * time. Runs on the server's timer thread.
+     */
+    private void handshakeTimedOut() {
+        System.out.println("Connection refused: " + RefusalReason.HANDSHAKE_TIMEOUT);
+
+        try {
+            client.send(AdmissionController.refusalFrame(RefusalReason.HANDSHAKE_TIMEOUT));
         }
 
-        else if (messageType == MessageType.QUERY_CONNECTED_USERS.getValue()) {
-            handleQueryUsers();
+        catch (IOException e) {
+            // Already closing; nothing to tell the client.
+        }
+
+        client.close();
+    }
+
+    /**
+     * Removes the client from the server once its connection has gone away.
+     */
+    void connectionClosed() {
+        System.out.println("Client disconnected: " + username);
+
+        if (admission != null) {
+            admission.release();
+        }
+
+        if (username != null) {
+            server.removeClient(client);
+        }
+
+        else {
+            client.close();
+        }
+    }
+
+    /**
+     * Processes a message from the client based on the message type. Replies are encoded
+     * in the protocol version the message arrived in.
+     *
+     * @param message The decoded message.
+     * @param version The protocol version of the frame it came in.
+     * @throws IOException If an I/O error occurs.
+     */
+    void processMessage(Message message, int version) throws IOException {
+        client.setProtocolVersion(version);
+
+        if (inboundCredit != null && !message.is(MessageType.CREDIT)) {
+            consumeCredit();
+        }
+
+        if (message.is(MessageType.CONNECT_MESSAGE)) {
+            handleConnectMessage(message);
+        }
+
+        else if (message.is(MessageType.DISCONNECT_MESSAGE)) {
+            handleDisconnectMessage(message);
+        }
+
+        else if (message.is(MessageType.QUERY_CONNECTED_USERS)) {
+            handleQueryUsers(message);
+        }
+
+        else if (message.is(MessageType.PRESENCE_SUBSCRIBE)) {
+            handlePresenceSubscribe(message);
+        }
+
+        else if (message.is(MessageType.QUERY_USERS_PAGE)) {
+            handleQueryUsersPage(message);
         }
 
-        else if (messageType == MessageType.BROADCAST_MESSAGE.getValue()) {
-            handleBroadcastMessage();
+        else if (message.is(MessageType.BROADCAST_MESSAGE)) {
+            handleBroadcastMessage(message);
         }
 
-        else if (messageType == MessageType.DIRECT_MESSAGE.getValue()) {
-            handleDirectMessage();
+        else if (message.is(MessageType.DIRECT_MESSAGE)) {
+            handleDirectMessage(message);
         }
 
-        else if (messageType == MessageType.SEND_INSULT.getValue()) {
-            handleSendInsult();
+        else if (message.is(MessageType.SEND_INSULT)) {
+            handleSendInsult(message);
+        }
+
+        else if (message.is(MessageType.CREDIT)) {
+            handleCredit(message);
+        }
+
+        else if (message.is(MessageType.JOIN_ROOM)) {
+            handleJoinRoom(message);
+        }
+
+        else if (message.is(MessageType.LEAVE_ROOM)) {
+            handleLeaveRoom(message);
+        }
+
+        else if (message.is(MessageType.LIST_ROOMS)) {
+            handleListRooms();
+        }
+
+        else if (message.is(MessageType.ROOM_MESSAGE)) {
+            handleRoomMessage(message);
+        }
+
+        else if (message.is(MessageType.QUERY_HISTORY)) {
+            handleQueryHistory(message);
+        }
+
+        else if (message.is(MessageType.SEARCH)) {
+            handleSearch(message);
         }
 
         else {
-            sendFailedMessage("Unknown message type: " + messageType);
+            sendFailedMessage("Unknown message type: " + message.getType());
+        }
+    }
+
+    /**
+     * Answers a frame that broke the frame limits with a failed message and adds to the
+     * client's abuse score. The client is disconnected once its score reaches the
+     * threshold, or straight away if the stream can no longer be read in step.
+     *
+     * @param e       The violation.
+     * @param version The protocol version of the rejected frame.
+     * @throws IOException If an I/O error occurs.
+     */
+    void rejectFrame(FrameTooLargeException e, int version) throws IOException {
+        server.recordRejectedFrame();
+        client.setProtocolVersion(version);
+        int score = client.recordAbuse();
+        sendFailedMessage("Message rejected: " + e.getMessage());
+
+        if (!e.isRecoverable() || score >= server.getConfig().getAbuseThreshold()) {
+            System.out.println("Disconnecting " + clientSocket.getRemoteSocketAddress() + ": " + e.getMessage());
+            client.close();
         }
     }
 
     /**
      * Handles a connect message from the client.
      *
+     * @param message The connect message.
      * @throws IOException If an I/O error occurs.
      */
-    private void handleConnectMessage() throws IOException {
-        String requestedUsername = MessageProtocol.readString(input);
+    private void handleConnectMessage(Message message) throws IOException {
+        String requestedUsername = message.getField(0);
         boolean success = true;
         String responseMessage;
 
-        if (server.getClientByUsername(requestedUsername) != null) {
+        if (username != null) {
             success = false;
-            responseMessage = "Username already taken.";
+            responseMessage = "Already connected as " + username + ".";
         }
 
         else {
-            username = requestedUsername;
-            server.addClient(new ConnectedClient(username, clientSocket, output));
-            int numClients = server.getConnectedUsernames(username).size();
-            responseMessage = "There are " + numClients + " other connected clients.";
+            // The name is claimed atomically, so two clients racing for it cannot both win.
+            client.setUsername(requestedUsername);
+
+            if (server.registerClient(client)) {
+                username = requestedUsername;
+
+                if (admission != null) {
+                    admission.completeHandshake();
+                }
+
+                int numClients = server.getClientCount() - 1;
+                responseMessage = "There are " + numClients + " other connected clients.";
+            }
+
+            else {
+                client.setUsername(null);
+                success = false;
+                responseMessage = "Username already taken.";
+            }
         }
 
         sendConnectResponse(success, responseMessage);
+
+        if (success) {
+            // Subscribed only now, so no broadcast overtakes the response.
+            server.subscribeBroadcasts(client);
+            server.deliverOfflineMessages(client);
+        }
     }
 
     /**
@@ -128,23 +358,66 @@ public class ClientHandler implements Runnable {
      * @throws IOException If an I/O error occurs.
      */
     private void sendConnectResponse(boolean success, String responseMessage) throws IOException {
-        output.writeInt(MessageType.CONNECT_RESPONSE.getValue());
-        output.writeBoolean(success);
-        MessageProtocol.writeString(output, responseMessage);
+        client.sendMessage(Message.connectResponse(success, responseMessage));
+    }
+
+    /**
+     * Counts a frame against the credit the server granted the client, and grants more
+     * once half the window is used. Frames are counted as they are taken for processing,
+     * so the client is never more than a window ahead of the server.
+     *
+     * @throws IOException If the client's connection has been closed.
+     */
+    private void consumeCredit() throws IOException {
+        inboundCredit.consume();
+        long grant = inboundCredit.replenish();
+
+        if (grant >= 0) {
+            client.sendCredit(grant);
+        }
+    }
+
+    /**
+     * Handles a credit grant from the client. The first one starts flow control in both
+     * directions: frames to the client are held back once it runs out of credit, and the
+     * client is granted a window of its own.
+     *
+     * @param message The credit message.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void handleCredit(Message message) throws IOException {
+        long limit;
+
+        try {
+            limit = Long.parseLong(message.getField(0));
+        }
+
+        catch (NumberFormatException e) {
+            sendFailedMessage("Invalid credit: " + message.getField(0));
+            return;
+        }
+
+        if (inboundCredit == null) {
+            inboundCredit = new CreditWindow(server.getConfig().getCreditWindow());
+            client.sendCredit(inboundCredit.getLimit());
+        }
+
+        client.grantCredit(limit);
     }
 
     /**
      * Handles a disconnect message from the client.
      *
+     * @param message The disconnect message.
      * @throws IOException If an I/O error occurs.
      */
-    private void handleDisconnectMessage() throws IOException {
-        String disconnectingUsername = MessageProtocol.readString(input);
+    private void handleDisconnectMessage(Message message) throws IOException {
+        String disconnectingUsername = message.getField(0);
 
-        if (username.equals(disconnectingUsername)) {
-            server.removeClient(new ConnectedClient(username, clientSocket, output));
+        if (username != null && username.equals(disconnectingUsername)) {
+            // Queue the reply first; removing the client closes it once the queue is written.
             sendConnectResponse(true, "You are no longer connected.");
-            clientSocket.close();
+            server.removeClient(client);
         }
 
         else {
@@ -153,79 +426,349 @@ public class ClientHandler implements Runnable {
     }
 
     /**
-     * Handles a query connected users message from the client.
+     * Handles a query connected users message from the client. The reply comes from the
+     * server's roster snapshot, and is kept until membership changes, so repeated queries
+     * queue the same frame again without encoding anything.
      *
+     * @param message The query message.
      * @throws IOException If an I/O error occurs.
      */
-    private void handleQueryUsers() throws IOException {
-        String requestingUsername = MessageProtocol.readString(input);
+    private void handleQueryUsers(Message message) throws IOException {
+        String requestingUsername = message.getField(0);
+
+        if (username == null || !username.equals(requestingUsername)) {
+            sendFailedMessage("Invalid username for query.");
+            return;
+        }
+
+        Roster roster = server.getRoster();
+
+        int version = client.getProtocolVersion();
 
-        if (!username.equals(requestingUsername)) {
+        if (roster != listedRoster || version != listedVersion) {
+            listedFrame = roster.userListFrame(username, version);
+            listedRoster = roster;
+            listedVersion = version;
+        }
+
+        client.send(listedFrame);
+    }
+
+    /**
+     * Handles a query for one page of the usernames that start with a prefix. The page is
+     * read from the sorted name index, so its cost depends on the page size rather than
+     * on how many users are connected. Page sizes over {@link #MAX_PAGE_SIZE} are capped.
+     *
+     * @param message The page query: username, prefix, cursor and page size.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void handleQueryUsersPage(Message message) throws IOException {
+        if (username == null || !username.equals(message.getField(0))) {
             sendFailedMessage("Invalid username for query.");
             return;
         }
 
-        output.writeInt(MessageType.QUERY_USER_RESPONSE.getValue());
-        var otherUsers = server.getConnectedUsernames(username);
-        output.writeInt(otherUsers.size());
+        int limit;
 
-        for (String user : otherUsers) {
-            MessageProtocol.writeString(output, user);
+        try {
+            limit = Integer.parseInt(message.getField(3));
+        }
+
+        catch (NumberFormatException e) {
+            limit = 0;
         }
+
+        if (limit < 1) {
+            sendFailedMessage("Invalid page size: " + message.getField(3));
+            return;
+        }
+
+        int pageSize = Math.min(limit, MAX_PAGE_SIZE);
+        UserPage page = server.getUserPage(message.getField(1), message.getField(2), pageSize, username);
+        client.sendMessage(Message.usersPage(page.getUsernames(), page.getNextCursor()));
+    }
+
+    /**
+     * Handles a presence subscription from the client, which is answered with a snapshot
+     * of the roster and followed by deltas as users join and leave. A client resubscribes
+     * the same way when it finds a gap in the deltas.
+     *
+     * @param message The subscribe message.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void handlePresenceSubscribe(Message message) throws IOException {
+        if (username == null || !username.equals(message.getField(0))) {
+            sendFailedMessage("Invalid username for presence.");
+            return;
+        }
+
+        server.subscribePresence(client);
     }
 
     /**
      * Handles a broadcast message from the client.
      *
+     * @param message The broadcast message.
      * @throws IOException If an I/O error occurs.
      */
-    private void handleBroadcastMessage() throws IOException {
-        String senderUsername = MessageProtocol.readString(input);
-        String message = MessageProtocol.readString(input);
+    private void handleBroadcastMessage(Message message) throws IOException {
+        String senderUsername = message.getField(0);
+        String text = message.getField(1);
 
-        if (!username.equals(senderUsername)) {
+        if (username == null || !username.equals(senderUsername)) {
             sendFailedMessage("Invalid sender username.");
             return;
         }
 
-        server.broadcastMessage(message, senderUsername);
+        server.broadcastMessage(text, senderUsername);
     }
 
     /**
      * Handles a direct message from the client.
      *
+     * @param message The direct message.
      * @throws IOException If an I/O error occurs.
      */
-    private void handleDirectMessage() throws IOException {
-        String senderUsername = MessageProtocol.readString(input);
-        String recipientUsername = MessageProtocol.readString(input);
-        String message = MessageProtocol.readString(input);
+    private void handleDirectMessage(Message message) throws IOException {
+        String senderUsername = message.getField(0);
+        String recipientUsername = message.getField(1);
+        String text = message.getField(2);
 
-        if (!username.equals(senderUsername)) {
+        if (username == null || !username.equals(senderUsername)) {
             sendFailedMessage("Invalid sender username.");
             return;
         }
 
-        server.directMessage(message, senderUsername, recipientUsername);
+        server.directMessage(text, senderUsername, recipientUsername);
     }
 
     /**
      * Handles a send insult message from the client.
      *
+     * @param message The send insult message.
      * @throws IOException If an I/O error occurs.
      */
-    private void handleSendInsult() throws IOException {
-        String senderUsername = MessageProtocol.readString(input);
-        String recipientUsername = MessageProtocol.readString(input);
+    private void handleSendInsult(Message message) throws IOException {
+        String senderUsername = message.getField(0);
+        String recipientUsername = message.getField(1);
 
-        if (!username.equals(senderUsername)) {
+        if (username == null || !username.equals(senderUsername)) {
             sendFailedMessage("Invalid sender username.");
             return;
         }
 
         String insult = insultGenerator.generateInsult();
-        String message = senderUsername + " -> " + recipientUsername + ": " + insult;
-        server.broadcastMessage(message, senderUsername);
+        String text = senderUsername + " -> " + recipientUsername + ": " + insult;
+        server.broadcastMessage(text, senderUsername);
+    }
+
+    /**
+     * Handles a join room message from the client. The room is created if it does not exist.
+     *
+     * @param message The join room message.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void handleJoinRoom(Message message) throws IOException {
+        String senderUsername = message.getField(0);
+        String roomName = message.getField(1);
+
+        if (username == null || !username.equals(senderUsername)) {
+            sendFailedMessage("Invalid sender username.");
+            return;
+        }
+
+        if (!RoomRegistry.isValidName(roomName)) {
+            sendFailedMessage("Invalid room name: " + roomName);
+            return;
+        }
+
+        if (client.getRooms().size() >= RoomRegistry.MAX_ROOMS_PER_CLIENT) {
+            sendFailedMessage("You can be in at most " + RoomRegistry.MAX_ROOMS_PER_CLIENT + " rooms.");
+            return;
+        }
+
+        if (server.joinRoom(client, roomName) == null) {
+            sendFailedMessage("You are already in #" + roomName + ".");
+        }
+    }
+
+    /**
+     * Handles a leave room message from the client.
+     *
+     * @param message The leave room message.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void handleLeaveRoom(Message message) throws IOException {
+        String senderUsername = message.getField(0);
+        String roomName = message.getField(1);
+
+        if (username == null || !username.equals(senderUsername)) {
+            sendFailedMessage("Invalid sender username.");
+            return;
+        }
+
+        if (server.leaveRoom(client, roomName) == null) {
+            sendFailedMessage("You are not in #" + roomName + ".");
+        }
+    }
+
+    /**
+     * Handles a list rooms message from the client.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    private void handleListRooms() throws IOException {
+        client.sendMessage(Message.roomList(server.getRoomListing()));
+    }
+
+    /**
+     * Handles a room message from the client, which only the room's members receive.
+     *
+     * @param message The room message.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void handleRoomMessage(Message message) throws IOException {
+        String senderUsername = message.getField(0);
+        String roomName = message.getField(1);
+        String text = message.getField(2);
+
+        if (username == null || !username.equals(senderUsername)) {
+            sendFailedMessage("Invalid sender username.");
+            return;
+        }
+
+        Room room = server.getRooms().get(roomName);
+
+        if (room == null || !client.getRooms().contains(roomName)) {
+            sendFailedMessage("You are not in #" + roomName + ".");
+            return;
+        }
+
+        server.roomMessage(text, senderUsername, room);
+    }
+
+    /**
+     * Handles a query for one page of a conversation's history: a room the client is in,
+     * or its direct messages with another user. The page is found through the message
+     * log's time index, so its cost doesn't grow with the size of the log. Page sizes over
+     * {@link #MAX_PAGE_SIZE} are capped.
+     *
+     * @param message The history query: username, '#' and a room or another username,
+     *                start and end of the time range, cursor and page size.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void handleQueryHistory(Message message) throws IOException {
+        if (username == null || !username.equals(message.getField(0))) {
+            sendFailedMessage("Invalid username for query.");
+            return;
+        }
+
+        String target = message.getField(1);
+        long from;
+        long to;
+        long cursor;
+        int limit;
+
+        try {
+            from = Long.parseLong(message.getField(2));
+            to = Long.parseLong(message.getField(3));
+            cursor = message.getField(4).isEmpty() ? -1 : Long.parseLong(message.getField(4));
+            limit = Integer.parseInt(message.getField(5));
+        }
+
+        catch (NumberFormatException e) {
+            sendFailedMessage("Invalid history query.");
+            return;
+        }
+
+        if (limit < 1) {
+            sendFailedMessage("Invalid page size: " + message.getField(5));
+            return;
+        }
+
+        String conversation;
+
+        if (target.startsWith("#")) {
+            String room = target.substring(1);
+
+            if (!client.getRooms().contains(room)) {
+                sendFailedMessage("You are not in #" + room + ".");
+                return;
+            }
+
+            conversation = Conversations.room(room);
+        }
+
+        else {
+            conversation = Conversations.direct(username, target);
+        }
+
+        HistoryPage page = server.getHistoryPage(conversation, from, to, cursor, Math.min(limit, MAX_PAGE_SIZE));
+
+        if (page == null) {
+            sendFailedMessage("History is not available.");
+            return;
+        }
+
+        List<String> entries = new ArrayList<>(page.getRecords().size() * 3);
+
+        for (LogRecord record : page.getRecords()) {
+            entries.add(Long.toString(record.getTimestampMillis()));
+            entries.add(record.getMessage().getField(0));
+            entries.add(record.getMessage().getField(2));
+        }
+
+        client.sendMessage(Message.historyPage(entries, page.hasMore() ? Long.toString(page.getNextCursor()) : ""));
+    }
+
+    /**
+     * Handles a full-text search of the recent messages the client may see. Matches over
+     * {@link #MAX_PAGE_SIZE} are capped.
+     *
+     * @param message The search: username, the words to search for and the most matches.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void handleSearch(Message message) throws IOException {
+        if (username == null || !username.equals(message.getField(0))) {
+            sendFailedMessage("Invalid username for query.");
+            return;
+        }
+
+        int limit;
+
+        try {
+            limit = Integer.parseInt(message.getField(2));
+        }
+
+        catch (NumberFormatException e) {
+            limit = 0;
+        }
+
+        if (limit < 1) {
+            sendFailedMessage("Invalid page size: " + message.getField(2));
+            return;
+        }
+
+        List<SearchIndex.Match> matches = server.search(client, message.getField(1), Math.min(limit, MAX_PAGE_SIZE));
+        List<String> entries = new ArrayList<>(matches.size() * 4);
+
+        for (SearchIndex.Match match : matches) {
+            Message found = match.getMessage();
+            entries.add(Long.toString(match.getTimestampMillis()));
+            entries.add(found.getField(0));
+
+            if (found.is(MessageType.BROADCAST_MESSAGE)) {
+                entries.add("");
+                entries.add(found.getField(1));
+            }
+
+            else {
+                entries.add(found.is(MessageType.ROOM_MESSAGE) ? "#" + found.getField(1) : found.getField(1));
+                entries.add(found.getField(2));
+            }
+        }
+
+        client.sendMessage(Message.searchResults(entries));
     }
 
     /**
@@ -235,8 +778,7 @@ public class ClientHandler implements Runnable {
      * @throws IOException If an I/O error occurs.
      */
     private void sendFailedMessage(String errorMessage) throws IOException {
-        output.writeInt(MessageType.FAILED_MESSAGE.getValue());
-        MessageProtocol.writeString(output, errorMessage);
+        client.sendMessage(Message.of(MessageType.FAILED_MESSAGE, errorMessage));
     }
 
     @Override
@@ -261,4 +803,4 @@ public class ClientHandler implements Runnable {
                 ", clientSocket=" + clientSocket +
                 '}';
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,206 @@
+package server;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The connected clients, keyed by username. Claiming a name is a single atomic
+ * {@code computeIfAbsent}, so two clients racing for the same name cannot both get it.
+ * Lookups never lock, and a client is only ever removed by the connection that owns the
+ * entry, never by another client that happens to share its name.
+ *
+ * <p>Every successful register or unregister bumps a membership version. The roster
+ * snapshot is rebuilt only when the version has moved, so queries between membership
+ * changes share one immutable snapshot. The names are also kept in a sorted
+ * {@link UsernameIndex} for paged prefix queries.
+ */
+public class ClientRegistry {
+    private final ConcurrentHashMap<String, ConnectedClient> clients;
+    private final UsernameIndex index;
+    private final AtomicLong version;
+    private final Object rosterLock;
+    private final MembershipListener listener;
+    private volatile Roster roster;
+
+    /**
+     * Constructs an empty ClientRegistry.
+     */
+    public ClientRegistry() {
+        this((version, username, joined) -> {
+        });
+    }
+
+    /**
+     * Constructs an empty ClientRegistry that reports every join and leave.
+     *
+     * @param listener The listener told of each membership change.
+     */
+    public ClientRegistry(MembershipListener listener) {
+        this.clients = new ConcurrentHashMap<>();
+        this.index = new UsernameIndex();
+        this.listener = listener;
+        this.version = new AtomicLong();
+        this.rosterLock = new Object();
+        this.roster = new Roster(0, List.of());
+    }
+
+    /**
+     * Registers a client under its username, unless the name is already taken.
+     *
+     * @param client The client, whose username must be set.
+     * @return True if the client now owns the name, false if another client already did.
+     */
+    public boolean register(ConnectedClient client) {
+        long[] added = new long[1];
+
+        clients.computeIfAbsent(client.getUsername(), name -> {
+            // Indexed and versioned while the map holds the key, so a racing unregister of an
+            // earlier owner of the name cannot remove it from the index after this adds it,
+            // and its leave always takes an earlier version than this join.
+            index.add(name);
+            added[0] = version.incrementAndGet();
+            return client;
+        });
+
+        if (added[0] == 0) {
+            return false;
+        }
+
+        listener.membershipChanged(added[0], client.getUsername(), true);
+        return true;
+    }
+
+    /**
+     * Removes a client, if it is the one registered under its username.
+     *
+     * @param client The client to remove.
+     * @return True if this call removed the client.
+     */
+    public boolean unregister(ConnectedClient client) {
+        String username = client.getUsername();
+
+        if (username == null) {
+            return false;
+        }
+
+        long[] removed = new long[1];
+
+        clients.computeIfPresent(username, (name, current) -> {
+            // Compare by identity: ConnectedClient.equals matches any client with the same name.
+            if (current != client) {
+                return current;
+            }
+
+            index.remove(name);
+            // Versioned under the key too, so changes to one name are numbered in map order.
+            removed[0] = version.incrementAndGet();
+            return null;
+        });
+
+        if (removed[0] == 0) {
+            return false;
+        }
+
+        listener.membershipChanged(removed[0], username, false);
+        return true;
+    }
+
+    /**
+     * Looks up a client by username without locking.
+     *
+     * @param username The username.
+     * @return The client, or null if no client has that name.
+     */
+    public ConnectedClient get(String username) {
+        return username != null ? clients.get(username) : null;
+    }
+
+    /**
+     * Gets a live view of the registered clients. Iterating it never fails, and sees
+     * clients registered or removed during the iteration or not.
+     *
+     * @return The registered clients.
+     */
+    public Collection<ConnectedClient> clients() {
+        return clients.values();
+    }
+
+    /**
+     * Lists the registered usernames, except one.
+     *
+     * @param excludeUsername The username to leave out.
+     * @return The other usernames.
+     */
+    public List<String> usernames(String excludeUsername) {
+        return roster().usernames(excludeUsername);
+    }
+
+    /**
+     * Gets one page of the registered usernames that start with a prefix, in order.
+     *
+     * @param prefix          The prefix; empty for all names.
+     * @param cursor          The last name of the previous page, or empty for the first page.
+     * @param limit           The most names to list, at least 1.
+     * @param excludeUsername A username to leave out, or null.
+     * @return The page.
+     */
+    public UserPage page(String prefix, String cursor, int limit, String excludeUsername) {
+        return index.page(prefix, cursor, limit, excludeUsername);
+    }
+
+    /**
+     * Gets the membership version, which moves on every successful register or unregister.
+     *
+     * @return The membership version.
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Gets a snapshot of the registered usernames, rebuilding it only if membership has
+     * changed since the last one was taken.
+     *
+     * @return The current roster.
+     */
+    public Roster roster() {
+        Roster current = roster;
+
+        if (current.getVersion() == version.get()) {
+            return current;
+        }
+
+        synchronized (rosterLock) {
+            // Read the version before the names: a change that lands during the copy
+            // leaves the snapshot behind the version, so the next call rebuilds again.
+            long latest = version.get();
+            current = roster;
+
+            if (current.getVersion() != latest) {
+                current = new Roster(latest, List.copyOf(clients.keySet()));
+                roster = current;
+            }
+
+            return current;
+        }
+    }
+
+    /**
+     * Gets the number of registered clients.
+     *
+     * @return The client count.
+     */
+    public int size() {
+        return clients.size();
+    }
+
+    @Override
+    public String toString() {
+        return "ClientRegistry{" +
+                "clients=" + clients.size() +
+                ", version=" + version.get() +
+                '}';
+    }
+}
@@ -1,20 +1,47 @@
 package server;
 
+import util.Frame;
+import util.Message;
+import util.MessageCodec;
+import util.MessageType;
+
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Represents a connected client with their username and output stream.
+ * Represents a connected client with their username and outbound queue. Sending only
+ * queues the frame; the client's frame writer delivers it.
  */
 public class ConnectedClient {
-    private String username;
-    private Socket socket;
-    private DataOutputStream output;
+    private static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    private static final int DEFAULT_HIGH_WATERMARK = 768;
+    private static final int DEFAULT_LOW_WATERMARK = 256;
+
+    private volatile String username;
+    private volatile int protocolVersion;
+    private volatile boolean presenceSubscribed;
+    private final Socket socket;
+    private final OutboundQueue outbound;
+    private final FrameWriter writer;
+    private final AtomicBoolean closed;
+    private final AtomicBoolean dropWarningSent;
+    private final AtomicInteger skippedBroadcasts;
+    private final AtomicInteger abuseScore;
+    private final Set<String> rooms;
+    private final Map<HistoryRing, HistoryRing.Subscription> subscriptions;
 
     /**
      * Constructs a ConnectedClient with the specified username, socket, and output stream.
+     * Frames are written on the sending thread, through a default-sized outbound queue.
      *
      * @param username The username of the client.
      * @param socket   The client's socket connection.
@@ -23,7 +50,37 @@ public class ConnectedClient {
     public ConnectedClient(String username, Socket socket, DataOutputStream output) {
         this.username = username;
         this.socket = socket;
-        this.output = output;
+        this.outbound = new OutboundQueue(DEFAULT_QUEUE_CAPACITY, DEFAULT_HIGH_WATERMARK, DEFAULT_LOW_WATERMARK);
+        this.writer = new StreamFrameWriter(outbound, output, socket, Runnable::run);
+        this.closed = new AtomicBoolean();
+        this.dropWarningSent = new AtomicBoolean();
+        this.skippedBroadcasts = new AtomicInteger();
+        this.abuseScore = new AtomicInteger();
+        this.rooms = ConcurrentHashMap.newKeySet();
+        this.subscriptions = new ConcurrentHashMap<>();
+        outbound.setRecoveryListener(this::onRecovered);
+    }
+
+    /**
+     * Constructs a ConnectedClient whose frames are delivered by the given writer.
+     *
+     * @param username The username of the client, or null until the client has connected.
+     * @param socket   The client's socket connection.
+     * @param outbound The queue of frames waiting for the client.
+     * @param writer   The writer that drains the queue.
+     */
+    public ConnectedClient(String username, Socket socket, OutboundQueue outbound, FrameWriter writer) {
+        this.username = username;
+        this.socket = socket;
+        this.outbound = outbound;
+        this.writer = writer;
+        this.closed = new AtomicBoolean();
+        this.dropWarningSent = new AtomicBoolean();
+        this.skippedBroadcasts = new AtomicInteger();
+        this.abuseScore = new AtomicInteger();
+        this.rooms = ConcurrentHashMap.newKeySet();
+        this.subscriptions = new ConcurrentHashMap<>();
+        outbound.setRecoveryListener(this::onRecovered);
     }
 
     /**
@@ -36,32 +93,373 @@ public class ConnectedClient {
     }
 
     /**
-     * Sends a message to the client in a thread-safe manner.
+     * Sets the username once the client's connect message has been accepted.
+     *
+     * @param username The client's username.
+     */
+    void setUsername(String username) {
+        this.username = username;
+    }
+
+    /**
+     * Gets the protocol version the client speaks, which replies are encoded with.
+     *
+     * @return The protocol version.
+     */
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    /**
+     * Sets the protocol version the client speaks, as seen on its latest frame.
+     *
+     * @param protocolVersion The protocol version.
+     */
+    void setProtocolVersion(int protocolVersion) {
+        this.protocolVersion = protocolVersion;
+    }
+
+    /**
+     * Checks whether the client has asked to be sent presence snapshots and deltas.
+     *
+     * @return True if the client is subscribed to presence.
+     */
+    public boolean isPresenceSubscribed() {
+        return presenceSubscribed;
+    }
+
+    /**
+     * Marks the client as subscribed to presence.
+     *
+     * @param presenceSubscribed Whether the client is subscribed.
+     */
+    void setPresenceSubscribed(boolean presenceSubscribed) {
+        this.presenceSubscribed = presenceSubscribed;
+    }
+
+    /**
+     * Gets the names of the rooms the client is in.
+     *
+     * @return An unmodifiable view of the room names.
+     */
+    public Set<String> getRooms() {
+        return Collections.unmodifiableSet(rooms);
+    }
+
+    /**
+     * Records that the client has joined a room. Called by the room registry.
+     *
+     * @param room The room name.
+     */
+    void joinedRoom(String room) {
+        rooms.add(room);
+    }
+
+    /**
+     * Records that the client has left a room. Called by the room registry.
+     *
+     * @param room The room name.
+     */
+    void leftRoom(String room) {
+        rooms.remove(room);
+    }
+
+    /**
+     * Gets the client's subscription to a channel's history.
+     *
+     * @param history The channel's history.
+     * @return The subscription, or null if the client joined the channel without a replay.
+     */
+    public HistoryRing.Subscription getSubscription(HistoryRing history) {
+        return subscriptions.get(history);
+    }
+
+    /**
+     * Records the client's subscription to a channel's history, before it is added to the channel.
+     *
+     * @param history      The channel's history.
+     * @param subscription The subscription.
+     */
+    void subscribed(HistoryRing history, HistoryRing.Subscription subscription) {
+        subscriptions.put(history, subscription);
+    }
+
+    /**
+     * Forgets the client's subscription to a channel's history, once it has left the channel.
+     *
+     * @param history The channel's history.
+     */
+    void unsubscribed(HistoryRing history) {
+        subscriptions.remove(history);
+    }
+
+    /**
+     * Checks whether the client's connection has been closed or evicted.
+     *
+     * @return True if no more frames will be queued for the client.
+     */
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * Gets the client's abuse score: the number of its frames rejected for breaking the
+     * frame limits.
+     *
+     * @return The abuse score.
+     */
+    public int getAbuseScore() {
+        return abuseScore.get();
+    }
+
+    /**
+     * Adds a point to the client's abuse score.
+     *
+     * @return The new abuse score.
+     */
+    int recordAbuse() {
+        return abuseScore.incrementAndGet();
+    }
+
+    /**
+     * Gets the queue of frames waiting to be written to the client.
+     *
+     * @return The outbound queue.
+     */
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+
+    /**
+     * Queues a message for the client. This never blocks on the client's socket; if the
+     * queue is full the message is dropped and counted.
      *
      * @param messageType The type of message to send.
      * @param messageData The message data to send.
-     * @throws IOException If an I/O error occurs.
+     * @throws IOException If the client's connection has been closed.
      */
-    public synchronized void sendMessage(int messageType, byte[] messageData) throws IOException {
-        output.writeInt(messageType);
-        output.write(messageData);
-        output.flush();
+    public void sendMessage(int messageType, byte[] messageData) throws IOException {
+        send(Frame.of(protocolVersion, messageType, messageData));
     }
 
     /**
-     * Closes the client's socket and output stream.
+     * Queues a message for the client, encoded in the client's protocol version.
+     *
+     * @param message The message to send.
+     * @throws IOException If the client's connection has been closed.
      */
-    public void close() {
+    public void sendMessage(Message message) throws IOException {
+        send(MessageCodec.encode(message, protocolVersion));
+    }
+
+    /**
+     * Queues an encoded frame for the client.
+     *
+     * @param frame The frame to send.
+     * @return True if the frame was queued, false if the outbound queue was full and it was dropped.
+     * @throws IOException If the client's connection has been closed.
+     */
+    public boolean send(Frame frame) throws IOException {
+        return enqueue(frame, false);
+    }
+
+    /**
+     * Queues a broadcast for the client, marked so a slow-consumer policy may drop it.
+     *
+     * @param frame The encoded broadcast.
+     * @throws IOException If the client's connection has been closed.
+     */
+    void sendBroadcast(Frame frame) throws IOException {
+        enqueue(frame, true);
+    }
+
+    /**
+     * Queues several broadcasts for the client together, asking the writer to drain once.
+     *
+     * @param frames The encoded broadcasts, in order.
+     * @throws IOException If the client's connection has been closed.
+     */
+    void sendBroadcasts(List<Frame> frames) throws IOException {
+        enqueueAll(frames, true);
+    }
+
+    /**
+     * Queues several frames for the client together, asking the writer to drain once.
+     * Frames that don't fit in the outbound queue are left unsent.
+     *
+     * @param frames The encoded frames, in order.
+     * @return The number of frames queued, from the start of the list.
+     * @throws IOException If the client's connection has been closed.
+     */
+    int sendAll(List<Frame> frames) throws IOException {
+        return enqueueAll(frames, false);
+    }
+
+    /**
+     * Queues frames together and asks the writer to drain once.
+     *
+     * @param frames    The frames to send, in order.
+     * @param broadcast Whether the frames are broadcasts.
+     * @return The number of frames queued.
+     * @throws IOException If the client's connection has been closed.
+     */
+    private int enqueueAll(List<Frame> frames, boolean broadcast) throws IOException {
+        if (closed.get()) {
+            throw new IOException("Connection to " + username + " is closed.");
+        }
+
+        int queued = outbound.offerAll(frames, broadcast);
+
+        if (queued > 0) {
+            writer.requestDrain();
+        }
+
+        return queued;
+    }
+
+    /**
+     * Queues a frame and asks the writer to drain.
+     *
+     * @param frame     The frame to send.
+     * @param broadcast Whether the frame is a broadcast.
+     * @return True if the frame was queued.
+     * @throws IOException If the client's connection has been closed.
+     */
+    private boolean enqueue(Frame frame, boolean broadcast) throws IOException {
+        if (closed.get()) {
+            throw new IOException("Connection to " + username + " is closed.");
+        }
+
+        if (!outbound.offer(frame, broadcast)) {
+            return false;
+        }
+
+        writer.requestDrain();
+        return true;
+    }
+
+    /**
+     * Sends the client a credit grant ahead of anything queued, replacing a grant not yet
+     * written, since a later grant covers an earlier one.
+     *
+     * @param limit The frame count the client may reach.
+     * @throws IOException If the client's connection has been closed.
+     */
+    void sendCredit(long limit) throws IOException {
+        if (closed.get()) {
+            throw new IOException("Connection to " + username + " is closed.");
+        }
+
+        outbound.offerControl(MessageCodec.encode(Message.credit(limit), protocolVersion));
+        writer.requestDrain();
+    }
+
+    /**
+     * Records a credit grant from the client and wakes the writer for any frames that
+     * were waiting for it.
+     *
+     * @param limit The frame count the server may reach.
+     */
+    void grantCredit(long limit) {
+        outbound.grantCredit(limit);
+        writer.requestDrain();
+    }
+
+    /**
+     * Tells the client, once per overload, that broadcasts are being dropped.
+     *
+     * @param notice The notice to send as a failed message.
+     */
+    void warnDropping(String notice) {
+        if (dropWarningSent.compareAndSet(false, true)) {
+            sendNotice(notice);
+        }
+    }
+
+    /**
+     * Counts a broadcast skipped while the client is behind, for the summary sent on recovery.
+     */
+    void skipBroadcast() {
+        skippedBroadcasts.incrementAndGet();
+    }
+
+    /**
+     * Replaces everything queued with a final notice and stops accepting frames. The
+     * connection stays open so the notice can still be written until it is closed.
+     *
+     * @param notice The notice to send as a failed message.
+     * @return True if this call evicted the client, false if it was already closed.
+     */
+    boolean evict(String notice) {
+        if (!closed.compareAndSet(false, true)) {
+            return false;
+        }
+
+        outbound.clear();
+        outbound.recordDisconnect();
+        offerNotice(notice);
+        return true;
+    }
+
+    /**
+     * Sends the summary of skipped broadcasts once the client has caught up.
+     * Runs on the thread draining the queue.
+     */
+    private void onRecovered() {
+        dropWarningSent.set(false);
+        int skipped = skippedBroadcasts.getAndSet(0);
+
+        if (skipped > 0 && !closed.get()) {
+            sendNotice(skipped + " broadcast messages were skipped while your connection was behind.");
+        }
+    }
+
+    /**
+     * Queues a failed message for the client, unless it has been closed.
+     *
+     * @param notice The notice text.
+     */
+    private void sendNotice(String notice) {
+        if (!closed.get()) {
+            offerNotice(notice);
+        }
+    }
+
+    /**
+     * Queues a failed message for the client and asks the writer to drain.
+     *
+     * @param notice The notice text.
+     */
+    private void offerNotice(String notice) {
         try {
-            output.close();
-            socket.close();
+            Frame frame = MessageCodec.encode(Message.of(MessageType.FAILED_MESSAGE, notice), protocolVersion);
+
+            if (outbound.offer(frame)) {
+                writer.requestDrain();
+            }
         }
 
         catch (IOException e) {
-            System.err.println("Error closing client resources for " + username);
+            System.err.println("Error sending notice to " + username);
         }
     }
 
+    /**
+     * Writes any queued frames and closes the client's connection.
+     */
+    public void close() {
+        closed.set(true);
+        writer.close();
+    }
+
+    /**
+     * Closes the client's connection straight away, discarding anything not yet written.
+     */
+    void closeNow() {
+        closed.set(true);
+        writer.closeNow();
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -84,4 +482,4 @@ public class ConnectedClient {
                 ", socket=" + socket +
                 '}';
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,81 @@
+package server;
+
+import util.Frame;
+import util.Message;
+import util.MessageCodec;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A message fanned out to many clients, with its frame encoded once per protocol version
+ * the first time a recipient needs it. The live fan-out and the history it is kept in share
+ * the same frames, so replaying it later doesn't encode it again.
+ */
+public class EncodedMessage {
+    private final Message message;
+    private final AtomicReferenceArray<Frame> frames;
+
+    /**
+     * Constructs an EncodedMessage, with no frame encoded yet.
+     *
+     * @param message The message.
+     */
+    public EncodedMessage(Message message) {
+        this.message = message;
+        this.frames = new AtomicReferenceArray<>(MessageCodec.CURRENT_VERSION + 1);
+    }
+
+    /**
+     * Gets the message.
+     *
+     * @return The message.
+     */
+    public Message getMessage() {
+        return message;
+    }
+
+    /**
+     * Gets the message's frame in a protocol version, encoding it on first use.
+     *
+     * @param version The protocol version.
+     * @return The shared frame.
+     * @throws IOException If the version is not supported.
+     */
+    public Frame frame(int version) throws IOException {
+        if (version < 0 || version >= frames.length()) {
+            throw new IOException("Unsupported protocol version: " + version);
+        }
+
+        Frame frame = frames.get(version);
+
+        if (frame == null) {
+            // Two fan-out threads may both encode it; either copy is correct.
+            frame = MessageCodec.encode(message, version);
+
+            if (!frames.compareAndSet(version, null, frame)) {
+                frame = frames.get(version);
+            }
+        }
+
+        return frame;
+    }
+
+    /**
+     * Gets the size of the message's frame in the current protocol version, which is what
+     * history byte limits count.
+     *
+     * @return The frame length in bytes.
+     * @throws IOException If the message cannot be encoded.
+     */
+    public int length() throws IOException {
+        return frame(MessageCodec.CURRENT_VERSION).length();
+    }
+
+    @Override
+    public String toString() {
+        return "EncodedMessage{" +
+                "message=" + message +
+                '}';
+    }
+}
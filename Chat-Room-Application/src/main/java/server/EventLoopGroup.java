@@ -0,0 +1,96 @@
+package server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of worker event loops, each on its own thread, that share the server's connections.
+ */
+public class EventLoopGroup {
+    private final List<NioEventLoop> loops;
+    private final LoopSelection selection;
+    private final AtomicInteger nextIndex;
+
+    /**
+     * Constructs an EventLoopGroup with the given number of worker loops. The loops are not started.
+     *
+     * @param server    The ChatServer whose clients the loops serve.
+     * @param size      The number of worker loops.
+     * @param selection How connections are spread across the loops.
+     * @throws IOException If a loop's selector cannot be opened.
+     */
+    public EventLoopGroup(ChatServer server, int size, LoopSelection selection) throws IOException {
+        if (size < 1) {
+            throw new IllegalArgumentException("An event loop group needs at least one loop.");
+        }
+
+        List<NioEventLoop> created = new ArrayList<>(size);
+
+        for (int i = 0; i < size; i++) {
+            created.add(new NioEventLoop(server, "nio-worker-" + i));
+        }
+
+        this.loops = Collections.unmodifiableList(created);
+        this.selection = selection;
+        this.nextIndex = new AtomicInteger();
+    }
+
+    /**
+     * Starts every loop on its own thread.
+     */
+    public void start() {
+        for (NioEventLoop loop : loops) {
+            new Thread(loop, loop.getName()).start();
+        }
+    }
+
+    /**
+     * Picks the loop that should own a new connection.
+     *
+     * @return The chosen loop.
+     */
+    public NioEventLoop next() {
+        if (selection == LoopSelection.LEAST_LOADED) {
+            NioEventLoop best = loops.get(0);
+
+            for (NioEventLoop loop : loops) {
+                if (loop.getConnectionCount() < best.getConnectionCount()) {
+                    best = loop;
+                }
+            }
+
+            return best;
+        }
+
+        return loops.get(Math.floorMod(nextIndex.getAndIncrement(), loops.size()));
+    }
+
+    /**
+     * Gets the loops in this group.
+     *
+     * @return An unmodifiable list of the loops.
+     */
+    public List<NioEventLoop> getLoops() {
+        return loops;
+    }
+
+    /**
+     * Stops every loop in the group.
+     */
+    public void shutdown() {
+        for (NioEventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "EventLoopGroup{" +
+                "loops=" + loops.size() +
+                ", selection=" + selection +
+                '}';
+    }
+}
@@ -0,0 +1,21 @@
+package server;
+
+/**
+ * Enum representing why a broadcast or a client was given up on by the slow-consumer policy.
+ */
+public enum EvictionReason {
+    /**
+     * The client stayed above its high watermark past the grace period and was disconnected.
+     */
+    FELL_BEHIND,
+
+    /**
+     * A queued broadcast was dropped to make room for a newer one.
+     */
+    DROPPED_OLDEST,
+
+    /**
+     * A broadcast was skipped and folded into a summary notice.
+     */
+    SUMMARIZED
+}
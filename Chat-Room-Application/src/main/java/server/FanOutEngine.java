@@ -0,0 +1,170 @@
+package server;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Runs an action for every client in a {@link SubscriberSet}, splitting large sets into
+ * ranges of slots that a work-stealing pool enqueues to in parallel. Sets below the
+ * threshold are walked on the calling thread, where handing off would cost more than the
+ * walk itself.
+ *
+ * <p>A fan-out returns only once the action has run for every recipient: the calling
+ * thread hands the set to the pool and waits for every range to finish. Ordering holds
+ * per sender only. A sender's next message is fanned out on the same thread after this
+ * call returns, so every recipient sees one sender's messages in the order they were
+ * sent. Fan-outs from different senders run concurrently, and recipients may see them
+ * interleaved in different orders.
+ */
+public class FanOutEngine {
+    /**
+     * The fewest slots one task walks, so small ranges aren't split further.
+     */
+    static final int MIN_GRAIN = 256;
+
+    private final ForkJoinPool pool;
+    private final int parallelism;
+    private final int threshold;
+    private final AtomicLong sequentialFanOuts;
+    private final AtomicLong parallelFanOuts;
+
+    /**
+     * Constructs a FanOutEngine.
+     *
+     * @param parallelism The number of threads to spread a large fan-out over, 1 to always
+     *                    fan out on the calling thread.
+     * @param threshold   The slot count from which a fan-out is split.
+     */
+    public FanOutEngine(int parallelism, int threshold) {
+        this.parallelism = parallelism;
+        this.threshold = threshold;
+        this.pool = parallelism > 1 ? new ForkJoinPool(parallelism, newWorkerFactory(), null, false) : null;
+        this.sequentialFanOuts = new AtomicLong();
+        this.parallelFanOuts = new AtomicLong();
+    }
+
+    /**
+     * Creates a factory for numbered daemon pool threads.
+     *
+     * @return The worker thread factory.
+     */
+    private static ForkJoinPool.ForkJoinWorkerThreadFactory newWorkerFactory() {
+        AtomicInteger counter = new AtomicInteger();
+
+        return pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("fan-out-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Runs an action for every client in a set, returning once it has run for all of them.
+     *
+     * @param recipients The clients to fan out to.
+     * @param action     The action to run for each client. It may run on several threads at
+     *                   once, but only once per client.
+     */
+    public void fanOut(SubscriberSet recipients, Consumer<ConnectedClient> action) {
+        int end = recipients.slotCount();
+
+        if (pool == null || end < threshold || pool.isShutdown()) {
+            sequentialFanOuts.incrementAndGet();
+            recipients.forEachInRange(0, end, action);
+            return;
+        }
+
+        int grain = Math.max(MIN_GRAIN, end / (parallelism * 4));
+
+        try {
+            pool.invoke(new RangeTask(recipients, 0, end, grain, action));
+            parallelFanOuts.incrementAndGet();
+        }
+
+        catch (RejectedExecutionException e) {
+            if (!pool.isShutdown()) {
+                throw e;
+            }
+
+            // The pool shut down after the check; the task never ran, so walk the set here.
+            sequentialFanOuts.incrementAndGet();
+            recipients.forEachInRange(0, end, action);
+        }
+    }
+
+    /**
+     * Gets the number of fan-outs walked on the calling thread.
+     *
+     * @return The sequential fan-out count.
+     */
+    public long getSequentialCount() {
+        return sequentialFanOuts.get();
+    }
+
+    /**
+     * Gets the number of fan-outs split across the pool.
+     *
+     * @return The parallel fan-out count.
+     */
+    public long getParallelCount() {
+        return parallelFanOuts.get();
+    }
+
+    /**
+     * Stops the pool threads. Later fan-outs run on the calling thread.
+     */
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Walks a range of slots, halving it until it is no larger than the grain.
+     */
+    private static class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final SubscriberSet recipients;
+        private final int from;
+        private final int to;
+        private final int grain;
+        private final Consumer<ConnectedClient> action;
+
+        RangeTask(SubscriberSet recipients, int from, int to, int grain, Consumer<ConnectedClient> action) {
+            this.recipients = recipients;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                recipients.forEachInRange(from, to, action);
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(new RangeTask(recipients, from, middle, grain, action),
+                    new RangeTask(recipients, middle, to, grain, action));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FanOutEngine{" +
+                "parallelism=" + parallelism +
+                ", threshold=" + threshold +
+                ", sequential=" + sequentialFanOuts.get() +
+                ", parallel=" + parallelFanOuts.get() +
+                '}';
+    }
+}
@@ -0,0 +1,101 @@
+package server;
+
+/**
+ * Decides how many queued frames a writer gathers into one write. A connection that keeps
+ * filling its batches is backlogged, so its limit doubles to save syscalls; a connection
+ * whose batches stay small gets a limit near its recent average, so one busy connection
+ * cannot hold its writer or event loop for long at the expense of the others. The byte
+ * limit caps a batch of large frames the same way.
+ */
+public class FlushPolicy {
+    private static final double SMOOTHING = 0.25;
+
+    private final int minFrames;
+    private final int maxFrames;
+    private final int maxBytes;
+    private double averageFrames;
+    private int frameLimit;
+
+    /**
+     * Constructs a FlushPolicy with a batch of 1 to 64 frames, and at most 64 KiB per batch.
+     */
+    public FlushPolicy() {
+        this(1, 64, 64 * 1024);
+    }
+
+    /**
+     * Constructs a FlushPolicy.
+     *
+     * @param minFrames The smallest frame limit the policy will choose.
+     * @param maxFrames The largest frame limit the policy will choose.
+     * @param maxBytes  The number of bytes after which a batch is closed.
+     */
+    public FlushPolicy(int minFrames, int maxFrames, int maxBytes) {
+        if (minFrames < 1 || maxFrames < minFrames || maxBytes < 1) {
+            throw new IllegalArgumentException("Limits must satisfy 1 <= minFrames <= maxFrames and maxBytes >= 1.");
+        }
+
+        this.minFrames = minFrames;
+        this.maxFrames = maxFrames;
+        this.maxBytes = maxBytes;
+        this.averageFrames = minFrames;
+        this.frameLimit = minFrames;
+    }
+
+    /**
+     * Gets the number of frames the next batch may hold.
+     *
+     * @return The frame limit.
+     */
+    public int getFrameLimit() {
+        return frameLimit;
+    }
+
+    /**
+     * Gets the number of bytes after which a batch is closed. The frame that crosses the
+     * limit is still included, so a single large frame always makes progress.
+     *
+     * @return The byte limit.
+     */
+    public int getByteLimit() {
+        return maxBytes;
+    }
+
+    /**
+     * Gets the largest frame limit the policy will choose, which writers can size their
+     * batch arrays by.
+     *
+     * @return The maximum frame limit.
+     */
+    public int getMaxFrames() {
+        return maxFrames;
+    }
+
+    /**
+     * Adjusts the frame limit after a batch has been gathered.
+     *
+     * @param frames   The number of frames in the batch.
+     * @param hitLimit Whether the batch was closed by a limit rather than an empty queue.
+     */
+    public void recordBatch(int frames, boolean hitLimit) {
+        averageFrames += SMOOTHING * (frames - averageFrames);
+
+        if (hitLimit) {
+            frameLimit = Math.min(maxFrames, frameLimit * 2);
+        }
+
+        else {
+            frameLimit = Math.max(minFrames, Math.min(maxFrames, (int) Math.round(averageFrames * 2)));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FlushPolicy{" +
+                "frameLimit=" + frameLimit +
+                ", averageFrames=" + String.format("%.1f", averageFrames) +
+                ", maxFrames=" + maxFrames +
+                ", maxBytes=" + maxBytes +
+                '}';
+    }
+}
@@ -0,0 +1,23 @@
+package server;
+
+/**
+ * Writes the frames waiting in a client's outbound queue to the network. Senders only
+ * enqueue and ask for a drain, so a slow reader never blocks the thread that sent to it.
+ */
+public interface FrameWriter {
+
+    /**
+     * Arranges for the outbound queue to be drained. Called after frames are queued.
+     */
+    void requestDrain();
+
+    /**
+     * Writes whatever is still queued, if the connection allows, then closes it.
+     */
+    void close();
+
+    /**
+     * Closes the connection straight away, discarding anything not yet written.
+     */
+    void closeNow();
+}
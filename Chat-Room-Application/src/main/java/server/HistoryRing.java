@@ -0,0 +1,313 @@
+package server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * The most recent messages fanned out to a channel, kept so a client joining it can be
+ * shown what it missed. The ring holds at most a fixed number of messages and a fixed
+ * number of encoded bytes, evicting the oldest to make room.
+ *
+ * <p>Appends are serialised, so there is only ever one writer, but reading takes no lock:
+ * a reader takes the published range of sequence numbers and skips any slot a later
+ * append has overwritten in the meantime.
+ *
+ * <p>A client joining the channel takes a {@link Subscription}, which records the range of
+ * sequence numbers its replay covered. Live delivery skips messages in that range, so each
+ * reaches the new subscriber exactly once, and holds back any that arrive before the replay
+ * is queued, so none overtakes the history. Relays never wait for a subscription.
+ */
+public class HistoryRing {
+    private final AtomicReferenceArray<Entry> slots;
+    private final int capacity;
+    private final long maxBytes;
+    private final ReentrantLock writeLock;
+    private volatile long head;
+    private volatile long tail;
+    private long bytes;
+
+    /**
+     * Constructs an empty HistoryRing.
+     *
+     * @param capacity The most messages kept, 0 to keep none.
+     * @param maxBytes The most encoded bytes kept.
+     */
+    public HistoryRing(int capacity, long maxBytes) {
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.capacity = capacity;
+        this.maxBytes = maxBytes;
+        this.writeLock = new ReentrantLock();
+    }
+
+    /**
+     * Adds a message, evicting the oldest ones until both limits are met. A message larger
+     * than the byte limit on its own is not kept.
+     *
+     * @param message The message to add.
+     * @return True if the message was kept.
+     * @throws IOException If the message cannot be encoded.
+     */
+    public boolean append(EncodedMessage message) throws IOException {
+        return keep(message) >= 0;
+    }
+
+    /**
+     * Adds a message, evicting the oldest ones until both limits are met, and gives its
+     * sequence number for live delivery to check against subscriptions. A message larger
+     * than the byte limit on its own is not kept.
+     *
+     * @param message The message to add.
+     * @return The message's sequence number, or -1 if it was not kept.
+     * @throws IOException If the message cannot be encoded.
+     */
+    public long keep(EncodedMessage message) throws IOException {
+        if (capacity == 0) {
+            return -1;
+        }
+
+        int length = message.length();
+
+        if (length > maxBytes) {
+            return -1;
+        }
+
+        writeLock.lock();
+
+        try {
+            long sequence = head;
+            long oldest = tail;
+
+            while (oldest < sequence && (sequence - oldest >= capacity || bytes + length > maxBytes)) {
+                bytes -= slots.get((int) (oldest % capacity)).length;
+                oldest++;
+            }
+
+            // Readers check each slot's sequence, so overwriting one they are about to read is safe.
+            slots.set((int) (sequence % capacity), new Entry(sequence, message, length));
+            bytes += length;
+            tail = oldest;
+            head = sequence + 1;
+            return sequence;
+        }
+
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Starts a subscription for a client about to be added to the channel. Until its
+     * replay is queued, live messages for the client are held back.
+     *
+     * @return The pending subscription.
+     */
+    public Subscription subscribe() {
+        return new Subscription(this);
+    }
+
+    /**
+     * Lists the messages in the ring, oldest first, without locking. Messages appended
+     * during the call may or may not be included.
+     *
+     * @return The retained messages.
+     */
+    public List<EncodedMessage> snapshot() {
+        List<EncodedMessage> messages = new ArrayList<>();
+
+        for (Entry entry : entries(head)) {
+            messages.add(entry.message);
+        }
+
+        return messages;
+    }
+
+    /**
+     * Lists the entries still in the ring below a sequence number, oldest first, without
+     * locking.
+     *
+     * @param end The first sequence number not to include.
+     * @return The retained entries.
+     */
+    private List<Entry> entries(long end) {
+        long start = Math.max(tail, end - capacity);
+        List<Entry> entries = new ArrayList<>((int) Math.max(0, end - start));
+
+        for (long sequence = start; sequence < end; sequence++) {
+            Entry entry = slots.get((int) (sequence % capacity));
+
+            // A mismatch means the slot was reused by a newer message, so this one is gone.
+            if (entry != null && entry.sequence == sequence) {
+                entries.add(entry);
+            }
+        }
+
+        return entries;
+    }
+
+    /**
+     * Gets the number of messages in the ring.
+     *
+     * @return The message count.
+     */
+    public int size() {
+        long oldest = tail;
+        return (int) (head - oldest);
+    }
+
+    /**
+     * Gets the encoded bytes held in the ring.
+     *
+     * @return The byte count.
+     */
+    public long getBytes() {
+        writeLock.lock();
+
+        try {
+            return bytes;
+        }
+
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HistoryRing{" +
+                "size=" + size() +
+                ", capacity=" + capacity +
+                ", maxBytes=" + maxBytes +
+                '}';
+    }
+
+    /**
+     * A message in the ring, tagged with its sequence number.
+     */
+    private static class Entry {
+        private final long sequence;
+        private final EncodedMessage message;
+        private final int length;
+
+        Entry(long sequence, EncodedMessage message, int length) {
+            this.sequence = sequence;
+            this.message = message;
+            this.length = length;
+        }
+    }
+
+    /**
+     * One client's place in the channel: the sequence numbers its replay covered, which
+     * live delivery skips. Live messages that arrive before the replay is queued are held
+     * and passed on, in arrival order, once it is.
+     */
+    public static class Subscription {
+        private static final long PENDING = -1;
+
+        private final HistoryRing ring;
+        private final ReentrantLock lock;
+        private final List<Held> held;
+        private volatile long from;
+        private volatile long through;
+
+        Subscription(HistoryRing ring) {
+            this.ring = ring;
+            this.lock = new ReentrantLock();
+            this.held = new ArrayList<>();
+            this.through = PENDING;
+        }
+
+        /**
+         * Queues the messages in the ring, oldest first, for the client, then passes on
+         * the live messages held back meanwhile, skipping those the replay included. The
+         * client must already be in the channel, so every message kept after the replay's
+         * range reaches it live.
+         *
+         * @param replay Queues the messages for the client.
+         */
+        public void replay(Consumer<List<EncodedMessage>> replay) {
+            long end = ring.head;
+            List<Entry> entries = ring.entries(end);
+            List<EncodedMessage> messages = new ArrayList<>(entries.size());
+
+            for (Entry entry : entries) {
+                messages.add(entry.message);
+            }
+
+            replay.accept(messages);
+            lock.lock();
+
+            try {
+                long start = entries.isEmpty() ? end : entries.get(0).sequence;
+
+                for (Held message : held) {
+                    if (message.sequence < start || message.sequence >= end) {
+                        message.delivery.run();
+                    }
+                }
+
+                held.clear();
+                from = start;
+                through = end;
+            }
+
+            finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Delivers a live message to the client, unless its replay already included it.
+         * Before the replay is queued, the delivery is held instead of run.
+         *
+         * @param sequence The message's sequence number in the ring, or -1 if it was not kept.
+         * @param delivery Queues the message for the client.
+         */
+        public void deliver(long sequence, Runnable delivery) {
+            if (through == PENDING) {
+                lock.lock();
+
+                try {
+                    if (through == PENDING) {
+                        held.add(new Held(sequence, delivery));
+                        return;
+                    }
+                }
+
+                finally {
+                    lock.unlock();
+                }
+            }
+
+            long end = through;
+
+            if (sequence < from || sequence >= end) {
+                delivery.run();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Subscription{" +
+                    "from=" + from +
+                    ", through=" + through +
+                    '}';
+        }
+    }
+
+    /**
+     * A live message held back until its subscription's replay is queued.
+     */
+    private static class Held {
+        private final long sequence;
+        private final Runnable delivery;
+
+        Held(long sequence, Runnable delivery) {
+            this.sequence = sequence;
+            this.delivery = delivery;
+        }
+    }
+}
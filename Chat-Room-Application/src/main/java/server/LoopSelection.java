@@ -0,0 +1,27 @@
+package server;
+
+/**
+ * Enum representing how the acceptor picks a worker loop for a new connection.
+ */
+public enum LoopSelection {
+    /**
+     * Hand connections to the workers in turn.
+     */
+    ROUND_ROBIN,
+
+    /**
+     * Hand each connection to the worker currently serving the fewest connections.
+     */
+    LEAST_LOADED;
+
+    /**
+     * Parses a selection name, ignoring case and accepting dashes for underscores.
+     *
+     * @param name The selection name, e.g. "least-loaded".
+     * @return The matching LoopSelection.
+     * @throws IllegalArgumentException If the name does not match any selection.
+     */
+    public static LoopSelection parse(String name) {
+        return valueOf(name.trim().replace('-', '_').toUpperCase());
+    }
+}
@@ -0,0 +1,86 @@
+package server;
+
+/**
+ * An immutable snapshot of an event loop's load: its connection count and how its
+ * time has been split between processing and waiting in select.
+ */
+public class LoopStats {
+    private final String name;
+    private final int connections;
+    private final long busyNanos;
+    private final long idleNanos;
+
+    /**
+     * Constructs a LoopStats snapshot.
+     *
+     * @param name        The loop's name.
+     * @param connections The number of connections the loop serves.
+     * @param busyNanos   Total time the loop has spent processing, in nanoseconds.
+     * @param idleNanos   Total time the loop has spent waiting in select, in nanoseconds.
+     */
+    public LoopStats(String name, int connections, long busyNanos, long idleNanos) {
+        this.name = name;
+        this.connections = connections;
+        this.busyNanos = busyNanos;
+        this.idleNanos = idleNanos;
+    }
+
+    /**
+     * Gets the loop's name.
+     *
+     * @return The loop name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the number of connections the loop serves.
+     *
+     * @return The connection count.
+     */
+    public int getConnections() {
+        return connections;
+    }
+
+    /**
+     * Gets the fraction of the loop's lifetime spent processing rather than waiting.
+     *
+     * @return The utilisation, between 0 and 1.
+     */
+    public double getUtilization() {
+        return fraction(busyNanos, busyNanos + idleNanos);
+    }
+
+    /**
+     * Gets the fraction of time spent processing between an earlier snapshot and this one.
+     *
+     * @param previous An earlier snapshot of the same loop.
+     * @return The utilisation over the interval, between 0 and 1.
+     */
+    public double utilizationSince(LoopStats previous) {
+        long busy = busyNanos - previous.busyNanos;
+        long idle = idleNanos - previous.idleNanos;
+        return fraction(busy, busy + idle);
+    }
+
+    /**
+     * Divides two durations, treating an empty interval as idle.
+     *
+     * @param part  The numerator.
+     * @param whole The denominator.
+     * @return The fraction, or 0 if the denominator is not positive.
+     */
+    private static double fraction(long part, long whole) {
+        return whole <= 0 ? 0.0 : (double) part / whole;
+    }
+
+    @Override
+    public String toString() {
+        return "LoopStats{" +
+                "name='" + name + '\'' +
+                ", connections=" + connections +
+                ", utilization=" + String.format("%.1f%%", getUtilization() * 100) +
+                '}';
+    }
+}
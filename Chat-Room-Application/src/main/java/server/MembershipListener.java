@@ -0,0 +1,18 @@
+package server;
+
+/**
+ * Notified by the {@link ClientRegistry} of every join and leave, with the membership
+ * version the change produced.
+ */
+public interface MembershipListener {
+
+    /**
+     * Called after a client has joined or left. Changes may be reported out of version
+     * order when they happen on different threads, but every version is reported once.
+     *
+     * @param version  The membership version the change produced.
+     * @param username The username that joined or left.
+     * @param joined   True for a join, false for a leave.
+     */
+    void membershipChanged(long version, String username, boolean joined);
+}
@@ -0,0 +1,94 @@
+package server;
+
+import util.MessageType;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The server-wide rate limits for the message types that fan out or reach other users,
+ * such as broadcasts, direct messages and insults. Each user checks its messages against
+ * buckets of its own, held in a {@link UserRateLimits}; this class holds the limits those
+ * buckets are built from and counts what happened to the messages over them.
+ *
+ * <p>Limits can be changed while the server runs. A user's bucket for a type is rebuilt,
+ * full, the next time it sends a message of that type.
+ */
+public class MessageRateLimiter {
+    static final int TYPE_SLOTS = maxTypeValue() + 1;
+
+    private final AtomicReferenceArray<RateLimit> limits;
+    private final AtomicLongArray limited;
+
+    /**
+     * Constructs a MessageRateLimiter with no limits.
+     */
+    public MessageRateLimiter() {
+        this.limits = new AtomicReferenceArray<>(TYPE_SLOTS);
+        this.limited = new AtomicLongArray(RateLimitPolicy.values().length);
+    }
+
+    /**
+     * Sets or removes the limit for a message type. Takes effect for each user with the
+     * next message of that type it sends.
+     *
+     * @param type  The message type.
+     * @param limit The limit, or null to remove it.
+     */
+    public void setLimit(MessageType type, RateLimit limit) {
+        limits.set(type.getValue(), limit);
+    }
+
+    /**
+     * Gets the limit for a message type.
+     *
+     * @param type The message type's value.
+     * @return The limit, or null if the type is not limited.
+     */
+    public RateLimit getLimit(int type) {
+        return type >= 0 && type < TYPE_SLOTS ? limits.get(type) : null;
+    }
+
+    /**
+     * Counts a message that was over its limit.
+     *
+     * @param policy What was done with it.
+     */
+    void recordLimited(RateLimitPolicy policy) {
+        limited.incrementAndGet(policy.ordinal());
+    }
+
+    /**
+     * Gets the number of messages over their limit that were handled with a policy.
+     *
+     * @param policy The policy.
+     * @return The message count.
+     */
+    public long getLimitedCount(RateLimitPolicy policy) {
+        return limited.get(policy.ordinal());
+    }
+
+    /**
+     * Finds the largest message type value, which sizes the table of limits.
+     *
+     * @return The largest value.
+     */
+    private static int maxTypeValue() {
+        int max = 0;
+
+        for (MessageType type : MessageType.values()) {
+            max = Math.max(max, type.getValue());
+        }
+
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return "MessageRateLimiter{" +
+                "rejected=" + getLimitedCount(RateLimitPolicy.REJECT) +
+                ", delayed=" + getLimitedCount(RateLimitPolicy.DELAY) +
+                ", dropped=" + getLimitedCount(RateLimitPolicy.DROP) +
+                '}';
+    }
+}
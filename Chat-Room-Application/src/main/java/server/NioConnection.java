@@ -0,0 +1,396 @@
+package server;
+
+import util.Frame;
+import util.FrameTooLargeException;
+import util.Message;
+import util.MessageCodec;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Holds the state of one non-blocking client connection: the bytes read so far, the
+ * client's outbound queue, and the handler that processes its messages. The owning loop
+ * drains the outbound queue whenever the socket is writable, gathering a batch of frames
+ * into each channel write. The read buffer grows for a large frame, never past the frame
+ * limit, and shrinks back once the frame has been decoded.
+ *
+ * <p>A message the rate limits hold back pauses the connection: reads stop until the
+ * message's turn comes, and the messages already buffered behind it wait too.
+ */
+public class NioConnection implements FrameWriter {
+    private static final int INITIAL_READ_BUFFER_SIZE = 8192;
+
+    private final SocketChannel channel;
+    private final NioEventLoop loop;
+    private final OutboundQueue outbound;
+    private final ClientHandler handler;
+    private final ScheduledExecutorService timer;
+    private final MessageCodec codec;
+    private final AtomicBoolean writeScheduled;
+    private final int maxReadBufferSize;
+    private ByteBuffer readBuffer;
+    private final FlushPolicy flushPolicy;
+    private final ByteBuffer[] batch;
+    private int batchStart;
+    private int batchEnd;
+    private SelectionKey key;
+    private Message heldMessage;
+    private int heldVersion;
+    private boolean closing;
+    private boolean closed;
+
+    /**
+     * Constructs an NioConnection for an accepted channel.
+     *
+     * @param channel The accepted client channel, already in non-blocking mode.
+     * @param loop    The event loop that owns this connection.
+     * @param server  The ChatServer instance.
+     */
+    public NioConnection(SocketChannel channel, NioEventLoop loop, ChatServer server) {
+        this(channel, loop, server, null);
+    }
+
+    /**
+     * Constructs an NioConnection for an accepted channel that holds admission slots.
+     *
+     * @param channel   The accepted client channel, already in non-blocking mode.
+     * @param loop      The event loop that owns this connection.
+     * @param server    The ChatServer instance.
+     * @param admission The channel's admission, or null if it was not admitted through the controller.
+     */
+    public NioConnection(SocketChannel channel, NioEventLoop loop, ChatServer server, Admission admission) {
+        this.channel = channel;
+        this.loop = loop;
+        this.outbound = server.newOutboundQueue();
+        this.writeScheduled = new AtomicBoolean();
+        this.readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+        this.flushPolicy = new FlushPolicy();
+        this.batch = new ByteBuffer[flushPolicy.getMaxFrames()];
+        this.codec = new MessageCodec(server.getConfig().getFrameLimits());
+        this.maxReadBufferSize = Math.max(INITIAL_READ_BUFFER_SIZE, codec.getLimits().getMaxFrameBytes());
+        this.handler = new ClientHandler(this, server);
+        this.timer = server.getTimer();
+
+        if (admission != null) {
+            handler.setAdmission(admission);
+        }
+    }
+
+    /**
+     * Registers the channel for reads with the loop's selector. Must run on the loop thread.
+     *
+     * @param selector The selector of the owning loop.
+     * @throws IOException If the channel cannot be registered.
+     */
+    void register(Selector selector) throws IOException {
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    /**
+     * Gets the socket behind the channel.
+     *
+     * @return The client's socket.
+     */
+    public Socket getSocket() {
+        return channel.socket();
+    }
+
+    /**
+     * Gets the queue of frames waiting to be written to this connection.
+     *
+     * @return The outbound queue.
+     */
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+
+    /**
+     * Reads whatever the socket has available and processes every complete message.
+     * Frames that break the frame limits are rejected through the handler.
+     *
+     * @throws IOException If the read fails or a message is malformed.
+     */
+    void onReadable() throws IOException {
+        if (channel.read(readBuffer) < 0) {
+            abort();
+            return;
+        }
+
+        processBuffered();
+
+        if (heldMessage != null) {
+            // Reads are paused; the buffer is dealt with once the held message is released.
+            return;
+        }
+
+        if (!readBuffer.hasRemaining()) {
+            if (readBuffer.capacity() >= maxReadBufferSize) {
+                // The codec rejects frames over the limit before this can happen.
+                throw new IOException("Read buffer limit reached.");
+            }
+
+            // The pending message is larger than the buffer, so make room for the rest of it.
+            resizeReadBuffer(Math.min(readBuffer.capacity() * 2, maxReadBufferSize));
+        }
+
+        else if (readBuffer.capacity() > INITIAL_READ_BUFFER_SIZE && readBuffer.position() < INITIAL_READ_BUFFER_SIZE / 2) {
+            // The large frame has been decoded; don't hold on to its buffer.
+            resizeReadBuffer(INITIAL_READ_BUFFER_SIZE);
+        }
+    }
+
+    /**
+     * Processes every complete message in the read buffer, stopping early if the rate
+     * limits hold one back.
+     *
+     * @throws IOException If a message is malformed or cannot be processed.
+     */
+    private void processBuffered() throws IOException {
+        readBuffer.flip();
+
+        try {
+            while (!closing && heldMessage == null) {
+                Message message;
+
+                try {
+                    message = codec.decode(readBuffer);
+                }
+
+                catch (FrameTooLargeException e) {
+                    handler.rejectFrame(e, codec.getVersion());
+                    continue;
+                }
+
+                if (message == null) {
+                    break;
+                }
+
+                long wait = handler.throttle(message, codec.getVersion());
+
+                if (wait > 0) {
+                    hold(message, codec.getVersion(), wait);
+                }
+
+                else if (wait == 0) {
+                    handler.processMessage(message, codec.getVersion());
+                }
+            }
+        }
+
+        finally {
+            readBuffer.compact();
+        }
+    }
+
+    /**
+     * Holds a message back and stops reading until its wait is over.
+     *
+     * @param message The held message.
+     * @param version The protocol version of the frame it came in.
+     * @param wait    How long to hold it, in nanoseconds.
+     */
+    private void hold(Message message, int version, long wait) {
+        heldMessage = message;
+        heldVersion = version;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        timer.schedule(() -> loop.execute(this, this::release), wait, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Processes the held message and whatever was buffered behind it, then resumes
+     * reading unless another message is held. Runs on the loop thread.
+     */
+    private void release() {
+        if (closing) {
+            return;
+        }
+
+        try {
+            Message message = heldMessage;
+            heldMessage = null;
+            handler.processMessage(message, heldVersion);
+            processBuffered();
+
+            if (heldMessage == null && !closing) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        catch (IOException | RuntimeException e) {
+            abort();
+        }
+    }
+
+    /**
+     * Gets the read interest the connection currently wants.
+     *
+     * @return OP_READ, or 0 while a message is held back.
+     */
+    private int readInterest() {
+        return heldMessage == null ? SelectionKey.OP_READ : 0;
+    }
+
+    /**
+     * Moves the unread bytes into a new read buffer of the given size.
+     *
+     * @param capacity The new capacity, large enough for the unread bytes.
+     */
+    private void resizeReadBuffer(int capacity) {
+        ByteBuffer resized = ByteBuffer.allocate(capacity);
+        readBuffer.flip();
+        resized.put(readBuffer);
+        readBuffer = resized;
+    }
+
+    /**
+     * Writes queued frames until the queue is empty or the socket stops accepting bytes.
+     * Each channel write gathers a whole batch of frames.
+     *
+     * @throws IOException If the write fails.
+     */
+    void onWritable() throws IOException {
+        while (batchStart < batchEnd || gatherBatch() > 0) {
+            channel.write(batch, batchStart, batchEnd - batchStart);
+
+            int completed = 0;
+
+            while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+                batch[batchStart++] = null;
+                completed++;
+            }
+
+            outbound.recordWrite(completed);
+
+            if (batchStart < batchEnd) {
+                return;
+            }
+        }
+
+        if (closing) {
+            abort();
+            return;
+        }
+
+        key.interestOps(readInterest());
+        writeScheduled.set(false);
+
+        // A sender may have queued a frame after the last poll; pick it up now.
+        if (outbound.hasWritable() && writeScheduled.compareAndSet(false, true)) {
+            key.interestOps(readInterest() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Moves up to the flush policy's limit of queued frames into the batch. Only called
+     * once the previous batch has been written in full.
+     *
+     * @return The number of frames gathered.
+     */
+    private int gatherBatch() {
+        int frameLimit = flushPolicy.getFrameLimit();
+        int byteLimit = flushPolicy.getByteLimit();
+        int frames = 0;
+        int bytes = 0;
+        Frame frame;
+
+        while (frames < frameLimit && bytes < byteLimit && (frame = outbound.poll()) != null) {
+            batch[frames++] = frame.buffer();
+            bytes += frame.length();
+        }
+
+        batchStart = 0;
+        batchEnd = frames;
+
+        if (frames > 0) {
+            flushPolicy.recordBatch(frames, frames == frameLimit || bytes >= byteLimit);
+        }
+
+        return frames;
+    }
+
+    @Override
+    public void requestDrain() {
+        if (writeScheduled.compareAndSet(false, true)) {
+            loop.execute(this, this::enableWrites);
+        }
+    }
+
+    /**
+     * Closes the connection once every queued frame has been written.
+     */
+    @Override
+    public void close() {
+        loop.execute(this, () -> {
+            closing = true;
+            // Last words aren't held back for credit.
+            outbound.disableCredit();
+
+            if (batchStart == batchEnd && outbound.isEmpty()) {
+                abort();
+            }
+
+            else {
+                enableWrites();
+            }
+        });
+    }
+
+    @Override
+    public void closeNow() {
+        loop.execute(this, this::abort);
+    }
+
+    /**
+     * Adds write interest to the selection key. Runs on the loop thread.
+     */
+    private void enableWrites() {
+        if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Closes the channel straight away and tells the handler the client has gone.
+     * Runs on the loop thread.
+     */
+    void abort() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        closing = true;
+
+        if (key != null) {
+            key.cancel();
+            loop.connectionClosed();
+        }
+
+        try {
+            channel.close();
+        }
+
+        catch (IOException e) {
+            System.err.println("Error closing client channel.");
+        }
+
+        outbound.clear();
+        handler.connectionClosed();
+    }
+
+    @Override
+    public String toString() {
+        return "NioConnection{" +
+                "channel=" + channel +
+                ", outbound=" + outbound +
+                '}';
+    }
+}
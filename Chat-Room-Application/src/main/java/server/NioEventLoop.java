@@ -0,0 +1,350 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A selector loop running on a single thread. An acceptor loop takes new connections and
+ * hands them to a worker group; a worker loop owns the reads, decodes and writes of its
+ * connections.
+ */
+public class NioEventLoop implements Runnable {
+    private final ChatServer server;
+    private final String name;
+    private final Selector selector;
+    private final Queue<Runnable> tasks;
+    private final AtomicInteger connectionCount;
+    private EventLoopGroup workers;
+    private volatile Thread thread;
+    private volatile boolean running;
+    private volatile long busyNanos;
+    private volatile long idleNanos;
+
+    /**
+     * Constructs an NioEventLoop for the given server.
+     *
+     * @param server The ChatServer whose clients this loop serves.
+     * @param name   The loop's name, also used for its thread.
+     * @throws IOException If the selector cannot be opened.
+     */
+    public NioEventLoop(ChatServer server, String name) throws IOException {
+        this.server = server;
+        this.name = name;
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.connectionCount = new AtomicInteger();
+        this.running = true;
+    }
+
+    /**
+     * Starts accepting connections from a bound server channel on this loop and hands
+     * each accepted connection to one of the workers.
+     *
+     * @param serverChannel The bound server channel.
+     * @param workers       The loops that will serve accepted connections.
+     * @throws IOException If the channel cannot be made non-blocking.
+     */
+    public void registerAcceptor(ServerSocketChannel serverChannel, EventLoopGroup workers) throws IOException {
+        this.workers = workers;
+        serverChannel.configureBlocking(false);
+
+        execute(() -> {
+            try {
+                serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            }
+
+            catch (IOException e) {
+                System.err.println("Error registering server channel.");
+            }
+        });
+    }
+
+    /**
+     * Takes ownership of an accepted channel. The channel is registered on the loop thread.
+     *
+     * @param channel The accepted channel.
+     */
+    public void register(SocketChannel channel) {
+        register(channel, null);
+    }
+
+    /**
+     * Takes ownership of an accepted channel that holds admission slots, which are given
+     * back when the connection closes. The channel is registered on the loop thread.
+     *
+     * @param channel   The accepted channel.
+     * @param admission The channel's admission, or null if it was not admitted through the controller.
+     */
+    public void register(SocketChannel channel, Admission admission) {
+        // Count the connection straight away so least-loaded selection sees it.
+        connectionCount.incrementAndGet();
+
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                new NioConnection(channel, this, server, admission).register(selector);
+            }
+
+            catch (IOException | RuntimeException e) {
+                System.err.println("Error registering client channel.");
+                connectionCount.decrementAndGet();
+                closeQuietly(channel);
+
+                if (admission != null) {
+                    admission.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs a task on the loop thread. Tasks submitted from other threads wake the selector.
+     *
+     * @param task The task to run.
+     */
+    public void execute(Runnable task) {
+        if (Thread.currentThread() == thread) {
+            task.run();
+        }
+
+        else {
+            tasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs a task for one connection on the loop thread. If the task fails, only that
+     * connection is aborted; the loop and its other connections carry on.
+     *
+     * @param connection The connection the task acts on.
+     * @param task       The task to run.
+     */
+    void execute(NioConnection connection, Runnable task) {
+        execute(() -> {
+            try {
+                task.run();
+            }
+
+            catch (RuntimeException e) {
+                connection.abort();
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+
+        try {
+            while (running) {
+                long waitStart = System.nanoTime();
+                selector.select();
+                long workStart = System.nanoTime();
+
+                runTasks();
+                handleSelectedKeys();
+
+                idleNanos += workStart - waitStart;
+                busyNanos += System.nanoTime() - workStart;
+            }
+        }
+
+        catch (IOException e) {
+            System.err.println("Event loop " + name + " stopped: " + e.getMessage());
+        }
+
+        finally {
+            closeAll();
+        }
+    }
+
+    /**
+     * Stops the loop and closes every channel it owns.
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Gets the loop's name.
+     *
+     * @return The loop name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the number of connections this loop currently serves.
+     *
+     * @return The connection count.
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * Takes a snapshot of this loop's connection count and utilisation.
+     *
+     * @return The loop's current stats.
+     */
+    public LoopStats getStats() {
+        return new LoopStats(name, connectionCount.get(), busyNanos, idleNanos);
+    }
+
+    /**
+     * Records that one of this loop's connections has closed. Runs on the loop thread.
+     */
+    void connectionClosed() {
+        connectionCount.decrementAndGet();
+    }
+
+    /**
+     * Runs the tasks queued by other threads. A task that fails is reported and skipped,
+     * so it can't stop the loop.
+     */
+    private void runTasks() {
+        Runnable task;
+
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            }
+
+            catch (RuntimeException e) {
+                System.err.println("Error running task on " + name + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * Handles every key chosen by the last select.
+     */
+    private void handleSelectedKeys() {
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            handleKey(key);
+        }
+    }
+
+    /**
+     * Dispatches a ready key to the acceptor or to its connection.
+     *
+     * @param key The selected key.
+     */
+    private void handleKey(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+
+        if (key.isAcceptable()) {
+            acceptClients((ServerSocketChannel) key.channel());
+            return;
+        }
+
+        NioConnection connection = (NioConnection) key.attachment();
+
+        try {
+            if (key.isReadable()) {
+                connection.onReadable();
+            }
+
+            if (key.isValid() && key.isWritable()) {
+                connection.onWritable();
+            }
+        }
+
+        catch (IOException | RuntimeException e) {
+            connection.abort();
+        }
+    }
+
+    /**
+     * Accepts every pending connection on the server channel and hands each to a worker.
+     *
+     * @param serverChannel The server channel with pending connections.
+     */
+    private void acceptClients(ServerSocketChannel serverChannel) {
+        try {
+            SocketChannel channel;
+
+            while ((channel = serverChannel.accept()) != null) {
+                Admission admission = server.getAdmissionController().admit(channel.socket().getInetAddress());
+
+                if (admission.isAccepted()) {
+                    workers.next().register(channel, admission);
+                }
+
+                else {
+                    System.out.println("Connection refused: " + admission.getRefusal());
+                    AdmissionController.refuse(channel, admission.getRefusal());
+                }
+            }
+        }
+
+        catch (IOException e) {
+            System.err.println("Error accepting client connection.");
+        }
+    }
+
+    /**
+     * Closes every channel registered with the selector, then the selector itself.
+     */
+    private void closeAll() {
+        for (SelectionKey key : new ArrayList<>(selector.keys())) {
+            if (key.attachment() instanceof NioConnection) {
+                ((NioConnection) key.attachment()).abort();
+            }
+
+            else {
+                closeQuietly(key.channel());
+            }
+        }
+
+        try {
+            selector.close();
+        }
+
+        catch (IOException e) {
+            System.err.println("Error closing selector.");
+        }
+    }
+
+    /**
+     * Closes a channel, logging rather than throwing on failure.
+     *
+     * @param channel The channel to close.
+     */
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        }
+
+        catch (IOException e) {
+            System.err.println("Error closing channel.");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "NioEventLoop{" +
+                "name='" + name + '\'' +
+                ", connections=" + connectionCount.get() +
+                ", running=" + running +
+                '}';
+    }
+}
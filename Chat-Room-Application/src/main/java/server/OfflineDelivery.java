@@ -0,0 +1,325 @@
+package server;
+
+import storage.MailboxStore;
+import util.Frame;
+import util.Message;
+import util.MessageCodec;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streams the direct messages stored for a user while they were offline, once they
+ * connect. Each mailbox is delivered in batches no larger than the room left below the
+ * client's high watermark, so a large backlog goes out at the pace the client reads it
+ * and never trips the slow-consumer policy.
+ *
+ * <p>Messages stay in the mailbox until they have left the client's outbound queue, so a
+ * client that disconnects mid-backlog gets whatever it missed when it next connects. A
+ * message that was written just before the connection dropped may come again.
+ *
+ * <p>Deliveries run on one thread of their own, off the connect path. Each batch is a
+ * separate task, so several users' backlogs take turns rather than one waiting behind
+ * another, and a client with no room left is retried from the timer instead of holding
+ * the thread. Each delivery belongs to one connection; a user who reconnects while a
+ * delivery to their old connection is still winding down gets a new one.
+ */
+public class OfflineDelivery {
+    /**
+     * The most messages taken from a mailbox for one batch.
+     */
+    static final int BATCH_SIZE = 256;
+
+    /**
+     * How long to wait before retrying a client whose outbound queue is full.
+     */
+    static final long RETRY_MILLIS = 20;
+
+    private static final long PURGE_INTERVAL_MILLIS = 60 * 1000;
+
+    private final MailboxStore store;
+    private final ScheduledExecutorService timer;
+    private final ExecutorService executor;
+    private final ConcurrentHashMap<String, Delivery> deliveries;
+    private final AtomicLong batches;
+
+    /**
+     * Constructs an OfflineDelivery, and schedules the periodic purge of expired messages.
+     *
+     * @param store The mailboxes to deliver from.
+     * @param timer The timer to retry full clients and purge mailboxes on.
+     */
+    public OfflineDelivery(MailboxStore store, ScheduledExecutorService timer) {
+        this.store = store;
+        this.timer = timer;
+        this.executor = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "offline-delivery");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.deliveries = new ConcurrentHashMap<>();
+        this.batches = new AtomicLong();
+
+        timer.scheduleAtFixedRate(this::purgeExpired, PURGE_INTERVAL_MILLIS, PURGE_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Drops expired messages from every mailbox.
+     */
+    private void purgeExpired() {
+        try {
+            store.purgeExpired();
+        }
+
+        catch (IOException e) {
+            System.err.println("Error purging expired mailbox messages.");
+        }
+    }
+
+    /**
+     * Gets the mailboxes delivered from.
+     *
+     * @return The mailbox store.
+     */
+    public MailboxStore getStore() {
+        return store;
+    }
+
+    /**
+     * Starts streaming a client's stored messages to it, unless they are already being
+     * streamed to this connection. A delivery still running for an earlier connection
+     * with the same username is replaced, and stops at its next step. Returns at once.
+     *
+     * @param client The client, which must have connected.
+     */
+    public void deliver(ConnectedClient client) {
+        String username = client.getUsername();
+
+        if (store.pending(username) == 0) {
+            return;
+        }
+
+        Delivery delivery = new Delivery(client);
+        Delivery current = deliveries.compute(username,
+                (name, existing) -> existing != null && existing.client == client ? existing : delivery);
+
+        if (current == delivery) {
+            submit(delivery);
+        }
+    }
+
+    /**
+     * Checks whether a user has stored messages still to be delivered, so a new direct
+     * message should be stored behind them rather than overtake them.
+     *
+     * @param username The user's username.
+     * @return True if messages are stored or being delivered.
+     */
+    public boolean hasBacklog(String username) {
+        return deliveries.containsKey(username) || store.pending(username) > 0;
+    }
+
+    /**
+     * Gets the number of batches queued to clients.
+     *
+     * @return The batch count.
+     */
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    /**
+     * Runs a delivery step on the delivery thread.
+     *
+     * @param delivery The delivery.
+     */
+    private void submit(Delivery delivery) {
+        try {
+            executor.execute(delivery);
+        }
+
+        catch (RejectedExecutionException e) {
+            // Shutting down; the messages stay stored for the next connect.
+            delivery.end();
+        }
+    }
+
+    /**
+     * Runs a delivery step once a full client has had time to drain.
+     *
+     * @param delivery The delivery.
+     */
+    private void retryLater(Delivery delivery) {
+        try {
+            timer.schedule(() -> submit(delivery), RETRY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        catch (RejectedExecutionException e) {
+            delivery.end();
+        }
+    }
+
+    /**
+     * Stops the delivery thread. Messages not yet delivered stay stored.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * One connection's delivery, run one batch per step. A batch is read from the mailbox,
+     * queued to the client as room allows, and acknowledged once the last frame queued has
+     * left the outbound queue.
+     */
+    private class Delivery implements Runnable {
+        private final ConnectedClient client;
+        private final String username;
+        private MailboxStore.Batch batch;
+        private List<Frame> unsent;
+        private int queued;
+        private Frame lastQueued;
+
+        Delivery(ConnectedClient client) {
+            this.client = client;
+            this.username = client.getUsername();
+            this.unsent = List.of();
+        }
+
+        @Override
+        public void run() {
+            if (deliveries.get(username) != this) {
+                // Replaced by a delivery to a newer connection.
+                return;
+            }
+
+            try {
+                if (lastQueued != null && !acknowledgeWritten()) {
+                    retryLater(this);
+                    return;
+                }
+
+                if (unsent.isEmpty() && !takeBatch()) {
+                    finish();
+                    return;
+                }
+
+                if (unsent.isEmpty()) {
+                    retryLater(this);
+                    return;
+                }
+
+                int sent = client.sendAll(unsent);
+
+                if (sent > 0) {
+                    queued += sent;
+                    lastQueued = unsent.get(sent - 1);
+                    batches.incrementAndGet();
+                }
+
+                unsent = new ArrayList<>(unsent.subList(sent, unsent.size()));
+
+                if (sent > 0) {
+                    // Acknowledged next step, once other users' deliveries have had a turn.
+                    submit(this);
+                }
+
+                else {
+                    retryLater(this);
+                }
+            }
+
+            catch (IOException e) {
+                // The client disconnected; what was not acknowledged stays stored.
+                end();
+            }
+        }
+
+        /**
+         * Acknowledges the messages queued to the client once the last of them has left the
+         * outbound queue.
+         *
+         * @return False if it is still queued.
+         * @throws IOException If the client has closed, or the mailbox cannot be updated.
+         */
+        private boolean acknowledgeWritten() throws IOException {
+            if (!client.isClosed() && client.getOutboundQueue().contains(lastQueued)) {
+                return false;
+            }
+
+            // A close discards the queue, so checked again after the frame was found gone.
+            if (client.isClosed()) {
+                throw new IOException("Connection to " + username + " is closed.");
+            }
+
+            store.acknowledge(username, batch.through(queued));
+            lastQueued = null;
+            return true;
+        }
+
+        /**
+         * Reads as many messages as the client has room for, encoded in its version.
+         *
+         * @return False if the mailbox is empty.
+         * @throws IOException If the mailbox cannot be read or the client has closed.
+         */
+        private boolean takeBatch() throws IOException {
+            if (client.isClosed()) {
+                throw new IOException("Connection to " + username + " is closed.");
+            }
+
+            OutboundQueue queue = client.getOutboundQueue();
+            int room = Math.min(BATCH_SIZE, queue.getHighWatermark() - queue.size());
+
+            if (room <= 0) {
+                return store.pending(username) > 0;
+            }
+
+            batch = store.peek(username, room);
+            queued = 0;
+            List<Frame> frames = new ArrayList<>(batch.size());
+
+            for (Message message : batch.getMessages()) {
+                frames.add(MessageCodec.encode(message, client.getProtocolVersion()));
+            }
+
+            unsent = frames;
+            return !frames.isEmpty();
+        }
+
+        /**
+         * Ends the delivery, starting another if a message was stored in the meantime.
+         */
+        private void finish() {
+            end();
+
+            if (!client.isClosed() && store.pending(username) > 0) {
+                deliver(client);
+            }
+        }
+
+        /**
+         * Stops the delivery, unless it has already been replaced.
+         */
+        private void end() {
+            deliveries.remove(username, this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "OfflineDelivery{" +
+                "deliveries=" + deliveries.size() +
+                ", batches=" + batches.get() +
+                ", store=" + store +
+                '}';
+    }
+}
@@ -0,0 +1,593 @@
+package server;
+
+import util.Frame;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue of frames waiting to be written to one client. Frames that arrive while
+ * the queue is full are dropped. The queue is overloaded from the moment it reaches its
+ * high watermark until it drains back down to its low watermark. Broadcasts are marked so
+ * a slow-consumer policy can drop them ahead of replies meant for this client alone, and
+ * may fill only half the room above the high watermark: the rest is kept for those
+ * replies, so a client flooded with broadcasts still gets its own.
+ *
+ * <p>Once the client takes part in flow control, frames are only handed to the writer
+ * while the client has credit for them; the rest wait in the queue, where the watermarks
+ * and slow-consumer policy still bound them. A control frame, such as the server's own
+ * credit grant, goes ahead of the queue and is never held back, so a stalled client can
+ * always be told it may send again.
+ */
+public class OutboundQueue {
+    private final Frame[] frames;
+    private final boolean[] broadcasts;
+    private final int highWatermark;
+    private final int lowWatermark;
+    private final int broadcastLimit;
+    private final ReentrantLock lock;
+    private Frame control;
+    private long creditLimit;
+    private long creditUsed;
+    private int head;
+    private int size;
+    private long queuedBytes;
+    private boolean overloaded;
+    private long overloadedSince;
+    private volatile Runnable recoveryListener;
+    private volatile long enqueuedCount;
+    private volatile long droppedCount;
+    private volatile long disconnectCount;
+    private volatile long writeCount;
+    private volatile long writtenFrameCount;
+
+    /**
+     * Constructs an OutboundQueue.
+     *
+     * @param capacity      The maximum number of queued frames.
+     * @param highWatermark The depth at which the queue becomes overloaded.
+     * @param lowWatermark  The depth at which an overloaded queue recovers.
+     */
+    public OutboundQueue(int capacity, int highWatermark, int lowWatermark) {
+        if (capacity < 1 || highWatermark > capacity || lowWatermark < 0 || lowWatermark >= highWatermark) {
+            throw new IllegalArgumentException("Watermarks must satisfy 0 <= low < high <= capacity.");
+        }
+
+        this.frames = new Frame[capacity];
+        this.broadcasts = new boolean[capacity];
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.broadcastLimit = capacity - (capacity - highWatermark + 1) / 2;
+        this.lock = new ReentrantLock();
+        this.creditLimit = -1;
+    }
+
+    /**
+     * Sets the task to run, on the polling thread, when an overloaded queue drains back
+     * down to its low watermark.
+     *
+     * @param recoveryListener The task, or null for none.
+     */
+    public void setRecoveryListener(Runnable recoveryListener) {
+        this.recoveryListener = recoveryListener;
+    }
+
+    /**
+     * Adds a frame meant for this client alone to the tail of the queue.
+     *
+     * @param frame The frame to queue.
+     * @return True if the frame was queued, false if the queue was full and it was dropped.
+     */
+    public boolean offer(Frame frame) {
+        return offer(frame, false);
+    }
+
+    /**
+     * Adds a frame to the tail of the queue.
+     *
+     * @param frame     The frame to queue.
+     * @param broadcast Whether the frame is a broadcast that a slow-consumer policy may drop.
+     * @return True if the frame was queued, false if there was no room for it and it was dropped.
+     */
+    public boolean offer(Frame frame, boolean broadcast) {
+        lock.lock();
+
+        try {
+            if (size >= (broadcast ? broadcastLimit : frames.length)) {
+                droppedCount++;
+                return false;
+            }
+
+            int tail = (head + size) % frames.length;
+            frames[tail] = frame;
+            broadcasts[tail] = broadcast;
+            size++;
+            queuedBytes += frame.length();
+            enqueuedCount++;
+
+            if (size >= highWatermark && !overloaded) {
+                overloaded = true;
+                overloadedSince = System.nanoTime();
+            }
+
+            return true;
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds frames to the tail of the queue under one lock, so they are queued together and
+     * can go out in one write. Frames that don't fit are dropped and counted.
+     *
+     * @param batch     The frames to queue, in order.
+     * @param broadcast Whether the frames are broadcasts that a slow-consumer policy may drop.
+     * @return The number of frames queued.
+     */
+    public int offerAll(List<Frame> batch, boolean broadcast) {
+        lock.lock();
+
+        try {
+            int limit = broadcast ? broadcastLimit : frames.length;
+            int queued = 0;
+
+            for (Frame frame : batch) {
+                if (size >= limit) {
+                    droppedCount += batch.size() - queued;
+                    break;
+                }
+
+                int tail = (head + size) % frames.length;
+                frames[tail] = frame;
+                broadcasts[tail] = broadcast;
+                size++;
+                queuedBytes += frame.length();
+                enqueuedCount++;
+                queued++;
+            }
+
+            if (size >= highWatermark && !overloaded) {
+                overloaded = true;
+                overloadedSince = System.nanoTime();
+            }
+
+            return queued;
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes and returns the control frame, if one is waiting, or else the frame at the
+     * head of the queue if the client has credit for it.
+     *
+     * @return The next frame, or null if the queue is empty or the client is out of credit.
+     */
+    public Frame poll() {
+        Frame frame;
+        boolean recovered = false;
+        lock.lock();
+
+        try {
+            if (control != null) {
+                frame = control;
+                control = null;
+                return frame;
+            }
+
+            if (size == 0 || isStalledLocked()) {
+                return null;
+            }
+
+            if (creditLimit >= 0) {
+                creditUsed++;
+            }
+
+            frame = frames[head];
+            frames[head] = null;
+            head = (head + 1) % frames.length;
+            size--;
+            queuedBytes -= frame.length();
+
+            if (overloaded && size <= lowWatermark) {
+                overloaded = false;
+                recovered = true;
+            }
+        }
+
+        finally {
+            lock.unlock();
+        }
+
+        Runnable listener = recoveryListener;
+
+        if (recovered && listener != null) {
+            listener.run();
+        }
+
+        return frame;
+    }
+
+    /**
+     * Sets the control frame to send ahead of the queue, replacing one not yet sent.
+     * Control frames ignore the capacity and the client's credit.
+     *
+     * @param frame The control frame.
+     */
+    public void offerControl(Frame frame) {
+        lock.lock();
+
+        try {
+            control = frame;
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Raises the number of frames the client will have accepted since flow control
+     * started. The first call starts flow control; grants below the current limit are ignored.
+     *
+     * @param limit The frame count the queue may hand out.
+     */
+    public void grantCredit(long limit) {
+        lock.lock();
+
+        try {
+            creditLimit = Math.max(creditLimit, limit);
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops holding frames back for credit, so everything queued can be written, as when
+     * the connection is closing.
+     */
+    public void disableCredit() {
+        lock.lock();
+
+        try {
+            creditLimit = -1;
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks whether the queue has a frame the writer may take now.
+     *
+     * @return True if a control frame is waiting, or a queued frame the client has credit for.
+     */
+    public boolean hasWritable() {
+        lock.lock();
+
+        try {
+            return control != null || (size > 0 && !isStalledLocked());
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks whether frames are waiting for credit.
+     *
+     * @return True if the queue holds frames but the client has no credit for them.
+     */
+    public boolean isStalled() {
+        lock.lock();
+
+        try {
+            return size > 0 && isStalledLocked();
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks whether flow control is holding the queue back. Must hold the lock.
+     *
+     * @return True if the client has used all its credit.
+     */
+    private boolean isStalledLocked() {
+        return creditLimit >= 0 && creditUsed >= creditLimit;
+    }
+
+    /**
+     * Drops the oldest queued broadcast, counting it as dropped.
+     *
+     * @return True if a broadcast was dropped, false if none was queued.
+     */
+    public boolean dropOldestBroadcast() {
+        lock.lock();
+
+        try {
+            for (int i = 0; i < size; i++) {
+                int index = (head + i) % frames.length;
+
+                if (!broadcasts[index]) {
+                    continue;
+                }
+
+                queuedBytes -= frames[index].length();
+
+                // Close the gap by shifting the frames behind it forward one slot.
+                for (int j = i; j < size - 1; j++) {
+                    int to = (head + j) % frames.length;
+                    int from = (head + j + 1) % frames.length;
+                    frames[to] = frames[from];
+                    broadcasts[to] = broadcasts[from];
+                }
+
+                int tail = (head + size - 1) % frames.length;
+                frames[tail] = null;
+                size--;
+                droppedCount++;
+                return true;
+            }
+
+            return false;
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards every queued frame, counting them as dropped.
+     */
+    public void clear() {
+        lock.lock();
+
+        try {
+            while (size > 0) {
+                frames[head] = null;
+                head = (head + 1) % frames.length;
+                size--;
+                droppedCount++;
+            }
+
+            queuedBytes = 0;
+            overloaded = false;
+            control = null;
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records that the client was disconnected because its frames could not be delivered.
+     */
+    public void recordDisconnect() {
+        lock.lock();
+
+        try {
+            disconnectCount++;
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records one write to the socket and the number of frames it completed.
+     *
+     * @param frames The frames completed by the write.
+     */
+    public void recordWrite(int frames) {
+        lock.lock();
+
+        try {
+            writeCount++;
+            writtenFrameCount += frames;
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks whether a frame is still waiting in the queue, by identity.
+     *
+     * @param frame The frame.
+     * @return True if it has not yet been handed to the writer or dropped.
+     */
+    public boolean contains(Frame frame) {
+        lock.lock();
+
+        try {
+            for (int i = 0; i < size; i++) {
+                if (frames[(head + i) % frames.length] == frame) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks whether the queue is empty.
+     *
+     * @return True if no frames are queued.
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Gets the number of queued frames.
+     *
+     * @return The queue depth.
+     */
+    public int size() {
+        lock.lock();
+
+        try {
+            return size;
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the total encoded size of the queued frames.
+     *
+     * @return The queued bytes.
+     */
+    public long getQueuedBytes() {
+        lock.lock();
+
+        try {
+            return queuedBytes;
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks whether the queue has hit its high watermark and not yet drained to its low one.
+     *
+     * @return True if the queue is overloaded.
+     */
+    public boolean isOverloaded() {
+        lock.lock();
+
+        try {
+            return overloaded;
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets how long the queue has been overloaded.
+     *
+     * @return The milliseconds since the queue reached its high watermark, or 0 if it is not overloaded.
+     */
+    public long getOverloadedMillis() {
+        lock.lock();
+
+        try {
+            return overloaded ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - overloadedSince) : 0;
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the maximum number of queued frames.
+     *
+     * @return The capacity.
+     */
+    public int getCapacity() {
+        return frames.length;
+    }
+
+    /**
+     * Gets the depth at which the queue becomes overloaded.
+     *
+     * @return The high watermark.
+     */
+    public int getHighWatermark() {
+        return highWatermark;
+    }
+
+    /**
+     * Gets the depth at which an overloaded queue recovers.
+     *
+     * @return The low watermark.
+     */
+    public int getLowWatermark() {
+        return lowWatermark;
+    }
+
+    /**
+     * Gets the number of frames ever accepted by the queue.
+     *
+     * @return The enqueued count.
+     */
+    public long getEnqueuedCount() {
+        return enqueuedCount;
+    }
+
+    /**
+     * Gets the number of frames dropped because the queue was full or discarded.
+     *
+     * @return The dropped count.
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Gets the number of times the client was disconnected for undeliverable frames.
+     *
+     * @return The disconnect count.
+     */
+    public long getDisconnectCount() {
+        return disconnectCount;
+    }
+
+    /**
+     * Gets the number of writes made to the client's socket.
+     *
+     * @return The write count.
+     */
+    public long getWriteCount() {
+        return writeCount;
+    }
+
+    /**
+     * Gets the number of frames written to the client's socket.
+     *
+     * @return The written frame count.
+     */
+    public long getWrittenFrameCount() {
+        return writtenFrameCount;
+    }
+
+    @Override
+    public String toString() {
+        return "OutboundQueue{" +
+                "depth=" + size() +
+                ", capacity=" + frames.length +
+                ", highWatermark=" + highWatermark +
+                ", lowWatermark=" + lowWatermark +
+                ", stalled=" + isStalled() +
+                ", dropped=" + droppedCount +
+                '}';
+    }
+}
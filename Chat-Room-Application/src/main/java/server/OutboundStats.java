@@ -0,0 +1,134 @@
+package server;
+
+/**
+ * An immutable summary of the server's outbound queues: how much is waiting to be written,
+ * and how many frames and clients have been given up on.
+ */
+public class OutboundStats {
+    private final int clients;
+    private final long queuedFrames;
+    private final int maxDepth;
+    private final int overloadedClients;
+    private final long droppedFrames;
+    private final long disconnects;
+    private final long writes;
+    private final long framesWritten;
+
+    /**
+     * Constructs an OutboundStats summary.
+     *
+     * @param clients           The number of connected clients.
+     * @param queuedFrames      The total number of frames waiting across all clients.
+     * @param maxDepth          The deepest single client queue.
+     * @param overloadedClients The number of clients above their high watermark.
+     * @param droppedFrames     The frames dropped since the server started.
+     * @param disconnects       The clients disconnected for undeliverable frames since the server started.
+     * @param writes            The socket writes made since the server started.
+     * @param framesWritten     The frames written since the server started.
+     */
+    public OutboundStats(int clients, long queuedFrames, int maxDepth, int overloadedClients,
+                         long droppedFrames, long disconnects, long writes, long framesWritten) {
+        this.clients = clients;
+        this.queuedFrames = queuedFrames;
+        this.maxDepth = maxDepth;
+        this.overloadedClients = overloadedClients;
+        this.droppedFrames = droppedFrames;
+        this.disconnects = disconnects;
+        this.writes = writes;
+        this.framesWritten = framesWritten;
+    }
+
+    /**
+     * Gets the number of connected clients.
+     *
+     * @return The client count.
+     */
+    public int getClients() {
+        return clients;
+    }
+
+    /**
+     * Gets the total number of frames waiting across all clients.
+     *
+     * @return The queued frame count.
+     */
+    public long getQueuedFrames() {
+        return queuedFrames;
+    }
+
+    /**
+     * Gets the deepest single client queue.
+     *
+     * @return The maximum queue depth.
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Gets the number of clients above their high watermark.
+     *
+     * @return The overloaded client count.
+     */
+    public int getOverloadedClients() {
+        return overloadedClients;
+    }
+
+    /**
+     * Gets the frames dropped since the server started.
+     *
+     * @return The dropped frame count.
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Gets the clients disconnected for undeliverable frames since the server started.
+     *
+     * @return The disconnect count.
+     */
+    public long getDisconnects() {
+        return disconnects;
+    }
+
+    /**
+     * Gets the socket writes made since the server started.
+     *
+     * @return The write count.
+     */
+    public long getWrites() {
+        return writes;
+    }
+
+    /**
+     * Gets the frames written since the server started.
+     *
+     * @return The written frame count.
+     */
+    public long getFramesWritten() {
+        return framesWritten;
+    }
+
+    /**
+     * Gets the average number of frames each socket write carried.
+     *
+     * @return The frames per write, or 0 if nothing has been written.
+     */
+    public double getFramesPerWrite() {
+        return writes == 0 ? 0 : (double) framesWritten / writes;
+    }
+
+    @Override
+    public String toString() {
+        return "OutboundStats{" +
+                "clients=" + clients +
+                ", queuedFrames=" + queuedFrames +
+                ", maxDepth=" + maxDepth +
+                ", overloadedClients=" + overloadedClients +
+                ", droppedFrames=" + droppedFrames +
+                ", disconnects=" + disconnects +
+                ", framesPerWrite=" + String.format("%.2f", getFramesPerWrite()) +
+                '}';
+    }
+}
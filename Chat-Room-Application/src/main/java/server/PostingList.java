@@ -0,0 +1,238 @@
+package server;
+
+import java.util.Arrays;
+
+/**
+ * The ascending document numbers of the messages holding one token, delta-encoded in
+ * blocks. Each block keeps its first number in a primitive array and the gaps to the rest
+ * as variable-length bytes, so a common token costs a byte or two per message, and a
+ * number is found by a binary search over the blocks and a decode of one of them.
+ *
+ * <p>Every block but the last is full. Numbers are only ever added at the end and dropped
+ * from the front, a whole block at a time. Not thread-safe; the {@link SearchIndex} locks.
+ */
+class PostingList {
+    /**
+     * The most document numbers in one block.
+     */
+    static final int BLOCK_SIZE = 128;
+
+    private byte[] data;
+    private int length;
+    private int[] blockFirsts;
+    private int[] blockOffsets;
+    private int blocks;
+    private int lastBlockSize;
+    private int last;
+    private int size;
+
+    /**
+     * Constructs an empty PostingList.
+     */
+    PostingList() {
+        this.data = new byte[8];
+        this.blockFirsts = new int[1];
+        this.blockOffsets = new int[1];
+    }
+
+    /**
+     * Adds a document number, which must be greater than every number already added.
+     *
+     * @param document The document number.
+     */
+    void add(int document) {
+        if (blocks == 0 || lastBlockSize == BLOCK_SIZE) {
+            if (blocks == blockFirsts.length) {
+                blockFirsts = Arrays.copyOf(blockFirsts, blocks * 2);
+                blockOffsets = Arrays.copyOf(blockOffsets, blocks * 2);
+            }
+
+            blockFirsts[blocks] = document;
+            blockOffsets[blocks] = length;
+            blocks++;
+            lastBlockSize = 1;
+        }
+
+        else {
+            writeGap(document - last);
+            lastBlockSize++;
+        }
+
+        last = document;
+        size++;
+    }
+
+    /**
+     * Appends the gap to the previous number, seven bits to a byte, low bits first.
+     *
+     * @param gap The gap, at least 1.
+     */
+    private void writeGap(int gap) {
+        if (data.length - length < 5) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, length + 5));
+        }
+
+        while ((gap & ~0x7F) != 0) {
+            data[length++] = (byte) ((gap & 0x7F) | 0x80);
+            gap >>>= 7;
+        }
+
+        data[length++] = (byte) gap;
+    }
+
+    /**
+     * Decodes one block.
+     *
+     * @param block The block's position, from 0.
+     * @param into  Where to put its numbers, at least {@link #BLOCK_SIZE} long.
+     * @return The number of numbers decoded.
+     */
+    int decode(int block, int[] into) {
+        int position = blockOffsets[block];
+        int end = block + 1 < blocks ? blockOffsets[block + 1] : length;
+        int document = blockFirsts[block];
+        int count = 0;
+        into[count++] = document;
+
+        while (position < end) {
+            int gap = 0;
+            int shift = 0;
+            byte b;
+
+            do {
+                b = data[position++];
+                gap |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+
+            document += gap;
+            into[count++] = document;
+        }
+
+        return count;
+    }
+
+    /**
+     * Finds the block that would hold a document number.
+     *
+     * @param document The document number.
+     * @return The last block starting at or below it, or -1 if it is below every block.
+     */
+    int findBlock(int document) {
+        int low = 0;
+        int high = blocks - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+
+            if (blockFirsts[middle] <= document) {
+                low = middle + 1;
+            }
+
+            else {
+                high = middle - 1;
+            }
+        }
+
+        return high;
+    }
+
+    /**
+     * Drops the blocks holding only numbers below a document number. A block holding
+     * numbers on both sides of it is kept whole.
+     *
+     * @param firstDocument The lowest number still wanted.
+     */
+    void dropBefore(int firstDocument) {
+        if (blocks == 0) {
+            return;
+        }
+
+        if (last < firstDocument) {
+            clear();
+            return;
+        }
+
+        int dead = 0;
+
+        // The next block's first number bounds a block from above.
+        while (dead + 1 < blocks && blockFirsts[dead + 1] <= firstDocument) {
+            dead++;
+        }
+
+        if (dead == 0) {
+            return;
+        }
+
+        int dropped = blockOffsets[dead];
+        length -= dropped;
+        blocks -= dead;
+        size -= dead * BLOCK_SIZE;
+
+        if (data.length > 64 && length < data.length / 4) {
+            byte[] smaller = new byte[length * 2];
+            System.arraycopy(data, dropped, smaller, 0, length);
+            data = smaller;
+        }
+
+        else {
+            System.arraycopy(data, dropped, data, 0, length);
+        }
+
+        System.arraycopy(blockFirsts, dead, blockFirsts, 0, blocks);
+
+        for (int i = 0; i < blocks; i++) {
+            blockOffsets[i] = blockOffsets[i + dead] - dropped;
+        }
+    }
+
+    /**
+     * Removes every number.
+     */
+    private void clear() {
+        data = new byte[8];
+        blockFirsts = new int[1];
+        blockOffsets = new int[1];
+        length = 0;
+        blocks = 0;
+        lastBlockSize = 0;
+        last = 0;
+        size = 0;
+    }
+
+    /**
+     * Gets the number of blocks.
+     *
+     * @return The block count.
+     */
+    int getBlockCount() {
+        return blocks;
+    }
+
+    /**
+     * Gets the number of document numbers held.
+     *
+     * @return The size.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Checks whether the list holds no numbers.
+     *
+     * @return True if it is empty.
+     */
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public String toString() {
+        return "PostingList{" +
+                "size=" + size +
+                ", blocks=" + blocks +
+                ", bytes=" + length +
+                '}';
+    }
+}
@@ -0,0 +1,204 @@
+package server;
+
+import util.Frame;
+import util.Message;
+import util.MessageCodec;
+import util.PresenceEvent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Pushes joins and leaves to the clients that subscribed to presence, instead of having
+ * them poll the whole user list. A subscriber first gets a snapshot of the roster, tagged
+ * with its membership version, and then deltas whose events carry the versions that
+ * follow. The version is the presence sequence number: a client that sees a delta start
+ * past the version it holds has missed one and subscribes again for a fresh snapshot.
+ *
+ * <p>Changes are collected for a short batch window and fanned out together, so a burst
+ * of joins reaches each subscriber as a few deltas rather than one frame per join. Only
+ * a gap-free run of versions is sent; a change reported late by its thread holds back the
+ * ones after it until it arrives. Subscribing and flushing share a lock, so a subscriber's
+ * snapshot is always queued before any delta sent after it.
+ */
+public class PresenceFeed implements MembershipListener {
+    /**
+     * The most events one delta frame carries.
+     */
+    public static final int MAX_EVENTS_PER_DELTA = 256;
+
+    private final SubscriberSet subscribers;
+    private final Supplier<Roster> roster;
+    private final ScheduledExecutorService scheduler;
+    private final long batchMillis;
+    private final ReentrantLock lock;
+    private final TreeMap<Long, String> pending;
+    private final AtomicLong deltasSent;
+    private final AtomicLong eventsSent;
+    private long lastSent;
+    private boolean flushScheduled;
+
+    /**
+     * Constructs a PresenceFeed.
+     *
+     * @param subscribers The connected clients, of which the subscribed ones get deltas.
+     * @param roster      Supplies the current roster for snapshots.
+     * @param scheduler   The executor that runs delayed flushes.
+     * @param batchMillis How long to collect changes before sending them, 0 to send each
+     *                    change at once on the thread that made it.
+     */
+    public PresenceFeed(SubscriberSet subscribers, Supplier<Roster> roster, ScheduledExecutorService scheduler,
+                        long batchMillis) {
+        this.subscribers = subscribers;
+        this.roster = roster;
+        this.scheduler = scheduler;
+        this.batchMillis = batchMillis;
+        this.lock = new ReentrantLock();
+        this.pending = new TreeMap<>();
+        this.deltasSent = new AtomicLong();
+        this.eventsSent = new AtomicLong();
+    }
+
+    @Override
+    public void membershipChanged(long version, String username, boolean joined) {
+        lock.lock();
+
+        try {
+            pending.put(version, joined ? PresenceEvent.joined(username) : PresenceEvent.left(username));
+
+            if (batchMillis == 0) {
+                flushLocked();
+            }
+
+            else if (!flushScheduled) {
+                flushScheduled = true;
+                scheduler.schedule(this::flush, batchMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Subscribes a client to presence and queues the current snapshot for it. Calling this
+     * again resynchronises a client that has missed a delta.
+     *
+     * @param client The client to subscribe.
+     * @throws IOException If the client's connection has been closed.
+     */
+    public void subscribe(ConnectedClient client) throws IOException {
+        lock.lock();
+
+        try {
+            client.setPresenceSubscribed(true);
+            client.send(roster.get().presenceSnapshotFrame(client.getProtocolVersion()));
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends every change collected so far that follows on from the last one sent.
+     */
+    public void flush() {
+        lock.lock();
+
+        try {
+            flushScheduled = false;
+            flushLocked();
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends the gap-free run of pending changes as deltas of at most
+     * {@link #MAX_EVENTS_PER_DELTA} events. Must hold the lock.
+     */
+    private void flushLocked() {
+        while (!pending.isEmpty() && pending.firstKey() == lastSent + 1) {
+            long first = lastSent + 1;
+            List<String> events = new ArrayList<>();
+
+            while (events.size() < MAX_EVENTS_PER_DELTA && !pending.isEmpty() && pending.firstKey() == lastSent + 1) {
+                events.add(pending.pollFirstEntry().getValue());
+                lastSent++;
+            }
+
+            fanOut(Message.presenceDelta(first, events));
+            deltasSent.incrementAndGet();
+            eventsSent.addAndGet(events.size());
+        }
+    }
+
+    /**
+     * Queues a delta for every subscribed client, encoding it once per protocol version.
+     *
+     * @param delta The delta to send.
+     */
+    private void fanOut(Message delta) {
+        Frame[] frames = new Frame[MessageCodec.CURRENT_VERSION + 1];
+
+        subscribers.forEach(client -> {
+            if (!client.isPresenceSubscribed()) {
+                return;
+            }
+
+            try {
+                int version = client.getProtocolVersion();
+
+                if (frames[version] == null) {
+                    frames[version] = MessageCodec.encode(delta, version);
+                }
+
+                // Deltas may be dropped for a slow client like any broadcast; the gap
+                // in sequence numbers tells the client to resubscribe.
+                client.sendBroadcast(frames[version]);
+            }
+
+            catch (IOException e) {
+                // The client is closing and will be removed by its handler.
+            }
+        });
+    }
+
+    /**
+     * Gets the number of delta frames sent, each counted once however many subscribers got it.
+     *
+     * @return The delta count.
+     */
+    public long getDeltaCount() {
+        return deltasSent.get();
+    }
+
+    /**
+     * Gets the number of membership changes sent in deltas.
+     *
+     * @return The event count.
+     */
+    public long getEventCount() {
+        return eventsSent.get();
+    }
+
+    @Override
+    public String toString() {
+        return "PresenceFeed{" +
+                "deltas=" + deltasSent.get() +
+                ", events=" + eventsSent.get() +
+                ", batchMillis=" + batchMillis +
+                '}';
+    }
+}
@@ -0,0 +1,95 @@
+package server;
+
+import java.util.Objects;
+
+/**
+ * An immutable rate limit for one message type: how many messages a second each user may
+ * send, how many at once, and what happens to the ones over the limit.
+ */
+public class RateLimit {
+    private final double ratePerSecond;
+    private final int burst;
+    private final RateLimitPolicy policy;
+
+    /**
+     * Constructs a RateLimit.
+     *
+     * @param ratePerSecond The messages a second each user may send, above 0.
+     * @param burst         The messages a user may send at once, at least 1.
+     * @param policy        What to do with messages over the limit.
+     */
+    public RateLimit(double ratePerSecond, int burst, RateLimitPolicy policy) {
+        if (ratePerSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be positive.");
+        }
+
+        if (burst < 1) {
+            throw new IllegalArgumentException("Burst must be at least 1.");
+        }
+
+        this.ratePerSecond = ratePerSecond;
+        this.burst = burst;
+        this.policy = Objects.requireNonNull(policy);
+    }
+
+    /**
+     * Gets the messages a second each user may send.
+     *
+     * @return The rate.
+     */
+    public double getRatePerSecond() {
+        return ratePerSecond;
+    }
+
+    /**
+     * Gets the messages a user may send at once.
+     *
+     * @return The burst.
+     */
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * Gets what happens to messages over the limit.
+     *
+     * @return The policy.
+     */
+    public RateLimitPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Creates a full bucket that enforces this limit.
+     *
+     * @param nowNanos The current time, from {@link System#nanoTime()}.
+     * @return The bucket.
+     */
+    TokenBucket newBucket(long nowNanos) {
+        return new TokenBucket(ratePerSecond, burst, nowNanos);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        RateLimit that = (RateLimit) o;
+
+        return Double.compare(ratePerSecond, that.ratePerSecond) == 0 && burst == that.burst && policy == that.policy;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(ratePerSecond, burst, policy);
+    }
+
+    @Override
+    public String toString() {
+        return "RateLimit{" +
+                "ratePerSecond=" + ratePerSecond +
+                ", burst=" + burst +
+                ", policy=" + policy +
+                '}';
+    }
+}
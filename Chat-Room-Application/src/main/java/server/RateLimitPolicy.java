@@ -0,0 +1,33 @@
+package server;
+
+/**
+ * Enum representing what the server does with a message a client sends faster than its
+ * rate limit allows.
+ */
+public enum RateLimitPolicy {
+    /**
+     * Refuse the message and tell the client with a failed message.
+     */
+    REJECT,
+
+    /**
+     * Hold the message, and stop reading from the client, until the limit allows it.
+     */
+    DELAY,
+
+    /**
+     * Discard the message without telling the client.
+     */
+    DROP;
+
+    /**
+     * Parses a policy name, ignoring case and accepting dashes for underscores.
+     *
+     * @param name The policy name, e.g. "delay".
+     * @return The matching RateLimitPolicy.
+     * @throws IllegalArgumentException If the name does not match any policy.
+     */
+    public static RateLimitPolicy parse(String name) {
+        return valueOf(name.trim().replace('-', '_').toUpperCase());
+    }
+}
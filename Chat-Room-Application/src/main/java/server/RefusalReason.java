@@ -0,0 +1,56 @@
+package server;
+
+/**
+ * Enum representing why the admission controller turned a connection away. The reason is
+ * sent to the client in a failed connect response before the connection is closed.
+ */
+public enum RefusalReason {
+    /**
+     * The server already holds as many connections as it allows.
+     */
+    SERVER_FULL("The server is full."),
+
+    /**
+     * Too many connections are waiting to complete their handshake.
+     */
+    TOO_MANY_HANDSHAKES("Too many connections are being set up. Try again shortly."),
+
+    /**
+     * The client's address has opened connections faster than its accept rate allows.
+     */
+    RATE_LIMITED("Too many connection attempts from your address. Try again shortly."),
+
+    /**
+     * The client did not complete its handshake in time.
+     */
+    HANDSHAKE_TIMEOUT("No successful connect message was received in time.");
+
+    private final String description;
+
+    /**
+     * Constructs a RefusalReason.
+     *
+     * @param description The explanation shown to the client.
+     */
+    RefusalReason(String description) {
+        this.description = description;
+    }
+
+    /**
+     * Gets the explanation shown to the client.
+     *
+     * @return The description.
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * Builds the text of the failed connect response: the reason code, then the description.
+     *
+     * @return The refusal message.
+     */
+    public String toMessage() {
+        return "Connection refused (" + name() + "): " + description;
+    }
+}
@@ -0,0 +1,80 @@
+package server;
+
+/**
+ * A named room and the clients in it. Messages posted to the room fan out to its members
+ * only, so their cost follows the size of the room rather than the whole server. The room
+ * keeps its recent messages to replay to clients that join it.
+ */
+public class Room {
+    private static final int MEMBER_CHUNK_SHIFT = 6;
+
+    private final String name;
+    private final SubscriberSet members;
+    private final HistoryRing history;
+
+    /**
+     * Constructs an empty Room that keeps no history.
+     *
+     * @param name The room's name.
+     */
+    public Room(String name) {
+        this(name, 0, 0);
+    }
+
+    /**
+     * Constructs an empty Room.
+     *
+     * @param name            The room's name.
+     * @param historyCapacity The most recent messages kept for joiners.
+     * @param historyBytes    The most encoded bytes of recent messages kept.
+     */
+    public Room(String name, int historyCapacity, long historyBytes) {
+        this.name = name;
+        this.members = new SubscriberSet(MEMBER_CHUNK_SHIFT);
+        this.history = new HistoryRing(historyCapacity, historyBytes);
+    }
+
+    /**
+     * Gets the room's name.
+     *
+     * @return The name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the clients in the room, which a room message fans out to.
+     *
+     * @return The members.
+     */
+    public SubscriberSet getMembers() {
+        return members;
+    }
+
+    /**
+     * Gets the room's recent messages, replayed to clients as they join.
+     *
+     * @return The room's history.
+     */
+    public HistoryRing getHistory() {
+        return history;
+    }
+
+    /**
+     * Gets the number of clients in the room.
+     *
+     * @return The member count.
+     */
+    public int size() {
+        return members.size();
+    }
+
+    @Override
+    public String toString() {
+        return "Room{" +
+                "name='" + name + '\'' +
+                ", members=" + members.size() +
+                '}';
+    }
+}
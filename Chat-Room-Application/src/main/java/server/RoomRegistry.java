@@ -0,0 +1,189 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * The rooms that exist on the server, by name. A room is created by its first join and
+ * removed when its last member leaves. Every change to a room's membership runs inside
+ * the map's atomic compute for that name, so a join racing the last leave either keeps
+ * the room alive or creates a fresh one, and never adds a member to a room that has
+ * already been removed. Each client also keeps the names of its rooms, so it can be
+ * taken out of all of them when it disconnects.
+ */
+public class RoomRegistry {
+    /**
+     * The most rooms one client may be in at once.
+     */
+    public static final int MAX_ROOMS_PER_CLIENT = 32;
+
+    private static final Pattern VALID_NAME = Pattern.compile("[A-Za-z0-9_-]{1,32}");
+
+    private final ConcurrentHashMap<String, Room> rooms;
+    private final int historyCapacity;
+    private final long historyBytes;
+
+    /**
+     * Constructs an empty RoomRegistry whose rooms keep no history.
+     */
+    public RoomRegistry() {
+        this(0, 0);
+    }
+
+    /**
+     * Constructs an empty RoomRegistry.
+     *
+     * @param historyCapacity The most recent messages each room keeps for joiners.
+     * @param historyBytes    The most encoded bytes of recent messages each room keeps.
+     */
+    public RoomRegistry(int historyCapacity, long historyBytes) {
+        this.rooms = new ConcurrentHashMap<>();
+        this.historyCapacity = historyCapacity;
+        this.historyBytes = historyBytes;
+    }
+
+    /**
+     * Checks whether a room name is allowed: 1 to 32 letters, digits, dashes or underscores.
+     *
+     * @param name The room name.
+     * @return True if the name is valid.
+     */
+    public static boolean isValidName(String name) {
+        return name != null && VALID_NAME.matcher(name).matches();
+    }
+
+    /**
+     * Adds a client to a room, creating the room if it does not exist.
+     *
+     * @param name   The room name, which must be valid.
+     * @param client The client joining.
+     * @return The room, or null if the client was already in it.
+     */
+    public Room join(String name, ConnectedClient client) {
+        return join(name, client, messages -> { });
+    }
+
+    /**
+     * Adds a client to a room, creating the room if it does not exist, and hands the
+     * room's recent messages to a replay once the client is added. Only adding the client
+     * happens in the room's entry; the replay is queued after, while live messages for the
+     * client are held back.
+     *
+     * @param name   The room name, which must be valid.
+     * @param client The client joining.
+     * @param replay Queues the recent messages, oldest first, for the client. Runs only if
+     *               the client was added.
+     * @return The room, or null if the client was already in it.
+     */
+    public Room join(String name, ConnectedClient client, Consumer<List<EncodedMessage>> replay) {
+        HistoryRing.Subscription[] joined = new HistoryRing.Subscription[1];
+
+        Room room = rooms.compute(name, (key, existing) -> {
+            Room target = existing != null ? existing : new Room(key, historyCapacity, historyBytes);
+
+            if (client.getRooms().contains(key)) {
+                return target;
+            }
+
+            // Recorded before the client is added, so no live message reaches it unchecked.
+            HistoryRing.Subscription subscription = target.getHistory().subscribe();
+            client.subscribed(target.getHistory(), subscription);
+            target.getMembers().add(client);
+            client.joinedRoom(key);
+            joined[0] = subscription;
+            return target;
+        });
+
+        if (joined[0] == null) {
+            return null;
+        }
+
+        joined[0].replay(replay);
+        return room;
+    }
+
+    /**
+     * Removes a client from a room, removing the room once it is empty.
+     *
+     * @param name   The room name.
+     * @param client The client leaving.
+     * @return The room the client left, or null if it was not in the room.
+     */
+    public Room leave(String name, ConnectedClient client) {
+        Room[] left = new Room[1];
+
+        rooms.computeIfPresent(name, (key, room) -> {
+            if (room.getMembers().remove(client)) {
+                client.leftRoom(key);
+                client.unsubscribed(room.getHistory());
+                left[0] = room;
+            }
+
+            return room.size() == 0 ? null : room;
+        });
+
+        return left[0];
+    }
+
+    /**
+     * Removes a client from every room it is in.
+     *
+     * @param client The client leaving.
+     * @return The rooms the client left.
+     */
+    public List<Room> leaveAll(ConnectedClient client) {
+        List<Room> left = new ArrayList<>();
+
+        for (String name : client.getRooms()) {
+            Room room = leave(name, client);
+
+            if (room != null) {
+                left.add(room);
+            }
+        }
+
+        return left;
+    }
+
+    /**
+     * Gets a room by name.
+     *
+     * @param name The room name.
+     * @return The room, or null if it does not exist.
+     */
+    public Room get(String name) {
+        return rooms.get(name);
+    }
+
+    /**
+     * Gets the number of rooms.
+     *
+     * @return The room count.
+     */
+    public int size() {
+        return rooms.size();
+    }
+
+    /**
+     * Lists the rooms and their member counts, in name order.
+     *
+     * @return The room names mapped to member counts.
+     */
+    public Map<String, Integer> listing() {
+        Map<String, Integer> listing = new TreeMap<>();
+        rooms.forEach((name, room) -> listing.put(name, room.size()));
+        return listing;
+    }
+
+    @Override
+    public String toString() {
+        return "RoomRegistry{" +
+                "rooms=" + rooms.size() +
+                '}';
+    }
+}
@@ -0,0 +1,153 @@
+package server;
+
+import util.Frame;
+import util.Message;
+import util.MessageCodec;
+import util.UserListFrame;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An immutable snapshot of the connected usernames, tagged with the membership version it
+ * was taken at. The registry builds a new one only after a client joins or leaves, so
+ * every query in between shares it, along with the user list and presence snapshot frames
+ * encoded for each protocol version on first use.
+ */
+public class Roster {
+    private final long version;
+    private final List<String> usernames;
+    private final Map<String, Integer> positions;
+    private final AtomicReferenceArray<UserListFrame> frames;
+    private final AtomicReferenceArray<Frame> snapshotFrames;
+
+    /**
+     * Constructs a Roster.
+     *
+     * @param version   The membership version the names were read at.
+     * @param usernames The connected usernames.
+     */
+    public Roster(long version, List<String> usernames) {
+        this.version = version;
+        this.usernames = List.copyOf(usernames);
+        this.positions = new HashMap<>();
+        this.frames = new AtomicReferenceArray<>(MessageCodec.CURRENT_VERSION + 1);
+        this.snapshotFrames = new AtomicReferenceArray<>(MessageCodec.CURRENT_VERSION + 1);
+
+        for (int i = 0; i < this.usernames.size(); i++) {
+            positions.put(this.usernames.get(i), i);
+        }
+    }
+
+    /**
+     * Gets the membership version the snapshot was taken at.
+     *
+     * @return The version.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Gets the number of usernames in the snapshot.
+     *
+     * @return The username count.
+     */
+    public int size() {
+        return usernames.size();
+    }
+
+    /**
+     * Gets the usernames in the snapshot.
+     *
+     * @return An unmodifiable list of usernames.
+     */
+    public List<String> getUsernames() {
+        return usernames;
+    }
+
+    /**
+     * Lists the usernames in the snapshot, except one.
+     *
+     * @param excludeUsername The username to leave out.
+     * @return The other usernames.
+     */
+    public List<String> usernames(String excludeUsername) {
+        Integer excluded = excludeUsername != null ? positions.get(excludeUsername) : null;
+
+        if (excluded == null) {
+            return usernames;
+        }
+
+        List<String> others = new ArrayList<>(usernames.size() - 1);
+        others.addAll(usernames.subList(0, excluded));
+        others.addAll(usernames.subList(excluded + 1, usernames.size()));
+        return others;
+    }
+
+    /**
+     * Gets the query user response for a client, listing every username but its own.
+     *
+     * @param excludeUsername The requesting client's username.
+     * @param version         The protocol version to encode with.
+     * @return The encoded response.
+     * @throws IOException If the version is not supported.
+     */
+    public Frame userListFrame(String excludeUsername, int version) throws IOException {
+        checkVersion(version);
+        UserListFrame encoded = frames.get(version);
+
+        if (encoded == null) {
+            // Two threads may both encode it; either copy is correct.
+            encoded = UserListFrame.encode(usernames, version);
+            frames.compareAndSet(version, null, encoded);
+        }
+
+        Integer excluded = excludeUsername != null ? positions.get(excludeUsername) : null;
+        return encoded.without(excluded != null ? excluded : -1);
+    }
+
+    /**
+     * Gets the presence snapshot of this roster, listing every username under the roster's
+     * version. It is encoded once per protocol version and shared by every subscriber.
+     *
+     * @param version The protocol version to encode with.
+     * @return The encoded snapshot.
+     * @throws IOException If the version is not supported.
+     */
+    public Frame presenceSnapshotFrame(int version) throws IOException {
+        checkVersion(version);
+        Frame encoded = snapshotFrames.get(version);
+
+        if (encoded == null) {
+            encoded = MessageCodec.encode(Message.presenceSnapshot(this.version, usernames), version);
+            snapshotFrames.compareAndSet(version, null, encoded);
+        }
+
+        return encoded;
+    }
+
+    /**
+     * Rejects protocol versions there is no cached frame slot for.
+     *
+     * @param version The protocol version.
+     * @throws IOException If the version is not supported.
+     */
+    private void checkVersion(int version) throws IOException {
+        if (version < 0 || version >= frames.length()) {
+            throw new IOException("Unsupported protocol version: " + version);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Roster{" +
+                "version=" + version +
+                ", usernames=" + usernames.size() +
+                '}';
+    }
+}
@@ -0,0 +1,471 @@
+package server;
+
+import util.Message;
+import util.MessageType;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+/**
+ * An in-memory inverted index over the most recent relayed messages, for full-text search.
+ * Each message is numbered as it is added, and each token maps to a {@link PostingList} of
+ * the numbers of the messages holding it, so a search reads only the lists of its own
+ * tokens, never the messages themselves.
+ *
+ * <p>The index keeps at most a fixed number of messages, evicting the oldest. An evicted
+ * message's number stays in the posting lists until a sweep drops it; searches skip it
+ * meanwhile. Sweeping is spread over the adds: each one sweeps the next few lists in a
+ * rotation of every token, twice as many as it has tokens, so every list is swept about
+ * once per full turn of the index and no add walks them all.
+ *
+ * <p>Messages are tokenized before the lock is taken, so an add holds the write lock only
+ * to append a number to each of its tokens' lists and sweep a few more. Searches share a
+ * read lock. Relayed messages reach the index through a {@link SearchIndexer}, so relaying
+ * threads never wait for the lock.
+ */
+public class SearchIndex {
+    /**
+     * The fewest characters a token is indexed with.
+     */
+    static final int MIN_TOKEN_LENGTH = 2;
+
+    /**
+     * The most characters of a token indexed; the rest are ignored.
+     */
+    static final int MAX_TOKEN_LENGTH = 32;
+
+    private final Message[] messages;
+    private final long[] timestamps;
+    private final Map<String, PostingList> postings;
+    private final ArrayDeque<String> sweepOrder;
+    private final ReentrantReadWriteLock lock;
+    private final int capacity;
+    private final int maxDocument;
+    private int firstDocument;
+    private int nextDocument;
+
+    /**
+     * Constructs an empty SearchIndex.
+     *
+     * @param capacity The most messages kept, 0 to keep none.
+     */
+    public SearchIndex(int capacity) {
+        this(capacity, Integer.MAX_VALUE - 1);
+    }
+
+    /**
+     * Constructs an empty SearchIndex that renumbers its messages once the numbers reach a
+     * limit.
+     *
+     * @param capacity    The most messages kept, 0 to keep none.
+     * @param maxDocument The highest message number, at least the capacity.
+     */
+    SearchIndex(int capacity, int maxDocument) {
+        this.messages = new Message[capacity];
+        this.timestamps = new long[capacity];
+        this.postings = new HashMap<>();
+        this.sweepOrder = new ArrayDeque<>();
+        this.lock = new ReentrantReadWriteLock();
+        this.capacity = capacity;
+        this.maxDocument = maxDocument;
+    }
+
+    /**
+     * Splits text into the distinct tokens it is indexed and searched by: runs of letters
+     * and digits, lower-cased, at least {@link #MIN_TOKEN_LENGTH} long and cut at
+     * {@link #MAX_TOKEN_LENGTH}.
+     *
+     * @param text The text.
+     * @return The tokens, in the order they first appear.
+     */
+    static Set<String> tokenize(String text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        StringBuilder token = new StringBuilder(MAX_TOKEN_LENGTH);
+
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+
+            if (Character.isLetterOrDigit(c)) {
+                if (token.length() < MAX_TOKEN_LENGTH) {
+                    token.append(Character.toLowerCase(c));
+                }
+            }
+
+            else if (token.length() > 0) {
+                if (token.length() >= MIN_TOKEN_LENGTH) {
+                    tokens.add(token.toString());
+                }
+
+                token.setLength(0);
+            }
+        }
+
+        return tokens;
+    }
+
+    /**
+     * Gets the text of a message that is indexed.
+     *
+     * @param message A broadcast, room message or direct message.
+     * @return The message text.
+     */
+    private static String textOf(Message message) {
+        return message.is(MessageType.BROADCAST_MESSAGE) ? message.getField(1) : message.getField(2);
+    }
+
+    /**
+     * Adds a relayed message, evicting the oldest if the index is full.
+     *
+     * @param message         A broadcast, room message or direct message.
+     * @param timestampMillis When it was relayed.
+     */
+    public void add(Message message, long timestampMillis) {
+        if (capacity == 0) {
+            return;
+        }
+
+        Set<String> tokens = tokenize(textOf(message));
+        lock.writeLock().lock();
+
+        try {
+            if (nextDocument > maxDocument) {
+                renumber();
+            }
+
+            int document = nextDocument;
+
+            if (document - firstDocument == capacity) {
+                messages[firstDocument % capacity] = null;
+                firstDocument++;
+            }
+
+            messages[document % capacity] = message;
+            timestamps[document % capacity] = timestampMillis;
+
+            for (String token : tokens) {
+                posting(token).add(document);
+            }
+
+            nextDocument = document + 1;
+            sweep(2 * tokens.size());
+        }
+
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets a token's posting list, creating it, and adding the token to the sweep rotation,
+     * if the token is new. Must hold the write lock.
+     *
+     * @param token The token.
+     * @return The token's posting list.
+     */
+    private PostingList posting(String token) {
+        PostingList list = postings.get(token);
+
+        if (list == null) {
+            list = new PostingList();
+            postings.put(token, list);
+            sweepOrder.addLast(token);
+        }
+
+        return list;
+    }
+
+    /**
+     * Drops evicted messages' numbers from the next posting lists in the rotation, and
+     * removes the lists left empty. Must hold the write lock.
+     *
+     * @param count The most lists to sweep.
+     */
+    private void sweep(int count) {
+        for (int i = Math.min(count, sweepOrder.size()); i > 0; i--) {
+            String token = sweepOrder.pollFirst();
+            PostingList list = postings.get(token);
+            list.dropBefore(firstDocument);
+
+            if (list.isEmpty()) {
+                postings.remove(token);
+            }
+
+            else {
+                sweepOrder.addLast(token);
+            }
+        }
+    }
+
+    /**
+     * Numbers the kept messages again from 0, so numbers never overflow. Runs once every
+     * couple of billion messages, at the cost of indexing the kept messages again.
+     */
+    private void renumber() {
+        int count = nextDocument - firstDocument;
+        Message[] kept = new Message[count];
+        long[] keptTimestamps = new long[count];
+
+        for (int i = 0; i < count; i++) {
+            kept[i] = messages[(firstDocument + i) % capacity];
+            keptTimestamps[i] = timestamps[(firstDocument + i) % capacity];
+        }
+
+        postings.clear();
+        sweepOrder.clear();
+        Arrays.fill(messages, null);
+
+        for (int document = 0; document < count; document++) {
+            messages[document] = kept[document];
+            timestamps[document] = keptTimestamps[document];
+
+            for (String token : tokenize(textOf(kept[document]))) {
+                posting(token).add(document);
+            }
+        }
+
+        firstDocument = 0;
+        nextDocument = count;
+    }
+
+    /**
+     * Finds the newest messages holding every token of a query.
+     *
+     * @param query   The words to search for.
+     * @param limit   The most matches to return.
+     * @param visible Which messages the searcher may see.
+     * @return The matches, newest first.
+     */
+    public List<Match> search(String query, int limit, Predicate<Message> visible) {
+        Set<String> tokens = tokenize(query);
+        List<Match> matches = new ArrayList<>();
+
+        if (tokens.isEmpty() || limit < 1) {
+            return matches;
+        }
+
+        lock.readLock().lock();
+
+        try {
+            List<PostingList> lists = new ArrayList<>(tokens.size());
+
+            for (String token : tokens) {
+                PostingList list = postings.get(token);
+
+                if (list == null) {
+                    return matches;
+                }
+
+                lists.add(list);
+            }
+
+            // Walk the rarest token's list and probe the others for each of its messages.
+            lists.sort(Comparator.comparingInt(PostingList::size));
+            PostingList rarest = lists.get(0);
+            List<Probe> probes = new ArrayList<>(lists.size() - 1);
+
+            for (PostingList list : lists.subList(1, lists.size())) {
+                probes.add(new Probe(list));
+            }
+
+            int[] documents = new int[PostingList.BLOCK_SIZE];
+
+            for (int block = rarest.getBlockCount() - 1; block >= 0; block--) {
+                int count = rarest.decode(block, documents);
+
+                for (int i = count - 1; i >= 0; i--) {
+                    int document = documents[i];
+
+                    if (document < firstDocument) {
+                        return matches;
+                    }
+
+                    if (containedInAll(probes, document) && visible.test(messages[document % capacity])) {
+                        matches.add(new Match(messages[document % capacity], timestamps[document % capacity]));
+
+                        if (matches.size() == limit) {
+                            return matches;
+                        }
+                    }
+                }
+            }
+
+            return matches;
+        }
+
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Checks whether every probed list holds a message number.
+     *
+     * @param probes   The probes.
+     * @param document The message number.
+     * @return True if all hold it.
+     */
+    private static boolean containedInAll(List<Probe> probes, int document) {
+        for (Probe probe : probes) {
+            if (!probe.contains(document)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Gets the most messages kept.
+     *
+     * @return The capacity.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets the number of messages kept.
+     *
+     * @return The message count.
+     */
+    public int size() {
+        lock.readLock().lock();
+
+        try {
+            return nextDocument - firstDocument;
+        }
+
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the number of distinct tokens indexed, including some held only by evicted
+     * messages until the next sweep.
+     *
+     * @return The token count.
+     */
+    public int getTokenCount() {
+        lock.readLock().lock();
+
+        try {
+            return postings.size();
+        }
+
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SearchIndex{" +
+                "capacity=" + capacity +
+                ", messages=" + size() +
+                ", tokens=" + getTokenCount() +
+                '}';
+    }
+
+    /**
+     * A posting list being searched from its newest numbers down, with the block last
+     * decoded kept, so successive probes of nearby numbers decode each block once.
+     */
+    private static class Probe {
+        private final PostingList list;
+        private final int[] documents;
+        private int block;
+        private int count;
+
+        Probe(PostingList list) {
+            this.list = list;
+            this.documents = new int[PostingList.BLOCK_SIZE];
+            this.block = -1;
+        }
+
+        boolean contains(int document) {
+            int target = list.findBlock(document);
+
+            if (target < 0) {
+                return false;
+            }
+
+            if (target != block) {
+                count = list.decode(target, documents);
+                block = target;
+            }
+
+            return Arrays.binarySearch(documents, 0, count, document) >= 0;
+        }
+    }
+
+    /**
+     * A message found by a search, with when it was relayed.
+     */
+    public static class Match {
+        private final Message message;
+        private final long timestampMillis;
+
+        /**
+         * Constructs a Match.
+         *
+         * @param message         The message.
+         * @param timestampMillis When it was relayed.
+         */
+        public Match(Message message, long timestampMillis) {
+            this.message = message;
+            this.timestampMillis = timestampMillis;
+        }
+
+        /**
+         * Gets the message.
+         *
+         * @return The broadcast, room message or direct message.
+         */
+        public Message getMessage() {
+            return message;
+        }
+
+        /**
+         * Gets when the message was relayed.
+         *
+         * @return The time in milliseconds since the epoch.
+         */
+        public long getTimestampMillis() {
+            return timestampMillis;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Match match = (Match) o;
+
+            return timestampMillis == match.timestampMillis && message.equals(match.message);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(message, timestampMillis);
+        }
+
+        @Override
+        public String toString() {
+            return "Match{" +
+                    "message=" + message +
+                    ", timestampMillis=" + timestampMillis +
+                    '}';
+        }
+    }
+}
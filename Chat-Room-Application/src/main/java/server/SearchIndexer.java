@@ -0,0 +1,125 @@
+package server;
+
+import util.Message;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Feeds relayed messages to a {@link SearchIndex} from a single indexer thread. Relaying
+ * threads, the event loops among them, only queue a message and never wait for the index's
+ * lock. If the indexer falls a whole queue behind, further messages are left out of search
+ * and counted.
+ */
+public class SearchIndexer {
+    /**
+     * The most messages that may wait for the indexer thread; messages beyond it are dropped.
+     */
+    public static final int QUEUE_CAPACITY = 65536;
+
+    private final SearchIndex index;
+    private final BlockingQueue<SearchIndex.Match> queue;
+    private final Thread thread;
+    private final AtomicLong indexed;
+    private final AtomicLong dropped;
+
+    /**
+     * Constructs a SearchIndexer and starts its thread.
+     *
+     * @param index The index to add messages to.
+     */
+    public SearchIndexer(SearchIndex index) {
+        this.index = index;
+        this.queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        this.indexed = new AtomicLong();
+        this.dropped = new AtomicLong();
+        this.thread = new Thread(this::run, "search-indexer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a relayed message to be indexed, without waiting.
+     *
+     * @param message         A broadcast, room message or direct message.
+     * @param timestampMillis When it was relayed.
+     */
+    public void submit(Message message, long timestampMillis) {
+        if (index.getCapacity() == 0) {
+            return;
+        }
+
+        if (!queue.offer(new SearchIndex.Match(message, timestampMillis))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Takes queued messages and adds them to the index until the thread is interrupted.
+     */
+    private void run() {
+        try {
+            while (true) {
+                SearchIndex.Match next = queue.take();
+
+                try {
+                    index.add(next.getMessage(), next.getTimestampMillis());
+                    indexed.incrementAndGet();
+                }
+
+                catch (RuntimeException e) {
+                    // One message that can't be indexed must not stop the indexer.
+                    System.err.println("Error indexing message: " + e);
+                }
+            }
+        }
+
+        catch (InterruptedException e) {
+            // Shut down.
+        }
+    }
+
+    /**
+     * Gets the search index messages are added to.
+     *
+     * @return The index.
+     */
+    public SearchIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Gets the number of messages added to the index.
+     *
+     * @return The indexed count.
+     */
+    public long getIndexedCount() {
+        return indexed.get();
+    }
+
+    /**
+     * Gets the number of messages dropped because the indexer was a whole queue behind.
+     *
+     * @return The dropped count.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Stops the indexer thread. Messages still queued are not indexed.
+     */
+    public void shutdown() {
+        thread.interrupt();
+    }
+
+    @Override
+    public String toString() {
+        return "SearchIndexer{" +
+                "queued=" + queue.size() +
+                ", indexed=" + indexed.get() +
+                ", dropped=" + dropped.get() +
+                '}';
+    }
+}
@@ -0,0 +1,885 @@
+package server;
+
+import storage.FsyncPolicy;
+import util.FrameLimits;
+import util.MessageType;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Startup options for the chat server.
+ */
+public class ServerConfig {
+    private ServerMode mode;
+    private int workerThreads;
+    private LoopSelection loopSelection;
+    private long statsIntervalMillis;
+    private int maxClients;
+    private int outboundCapacity;
+    private int outboundHighWatermark;
+    private int outboundLowWatermark;
+    private SlowConsumerPolicy slowConsumerPolicy;
+    private long slowConsumerGraceMillis;
+    private FrameLimits frameLimits;
+    private int abuseThreshold;
+    private long presenceBatchMillis;
+    private int maxPendingHandshakes;
+    private double acceptRatePerSecond;
+    private int acceptBurst;
+    private long handshakeTimeoutMillis;
+    private final Map<MessageType, RateLimit> messageRateLimits;
+    private int creditWindow;
+    private int fanOutParallelism;
+    private int parallelFanOutThreshold;
+    private int historyCapacity;
+    private long historyBytes;
+    private Path messageLogDirectory;
+    private int logSegmentBytes;
+    private FsyncPolicy logFsyncPolicy;
+    private long logGroupCommitMillis;
+    private long logRetentionMillis;
+    private long logRetentionBytes;
+    private Path mailboxDirectory;
+    private int mailboxMaxMessages;
+    private long mailboxMaxBytes;
+    private long mailboxTtlMillis;
+    private int searchCapacity;
+
+    /**
+     * Constructs a ServerConfig with the default options: blocking mode, at most 1000
+     * connections of which 64 may be mid-handshake, 20 new connections a second per source
+     * address with bursts of 40, a 10 second handshake timeout, each user limited to 10
+     * broadcasts and room messages, 20 direct messages and 2 insults a second with bursts of
+     * twice that, 2 room joins and 5 history queries and searches a second with bursts of 10,
+     * a credit window of 64 frames for clients that use flow control, outbound queues of
+     * 1024 frames with watermarks at 768 and 256, slow clients disconnected after 10 seconds
+     * above the high watermark, the default frame limits with clients disconnected on their
+     * third oversized frame, presence changes batched for 50 milliseconds, fan-outs to 8192
+     * or more recipients spread over one thread per available processor, the last 50
+     * broadcasts and room messages up to 64 KiB replayed to clients that connect or join,
+     * the last 100000 relayed messages searchable, no message log (once on, keeping
+     * messages for 30 days up to 10 GiB), no mailboxes for offline users, and for nio mode
+     * one worker loop per available processor chosen round-robin, with no stats reporting.
+     * Once mailboxes are on, each holds up to 10000 messages or 4 MiB, kept for 7 days.
+     */
+    public ServerConfig() {
+        this.mode = ServerMode.BLOCKING;
+        this.workerThreads = Runtime.getRuntime().availableProcessors();
+        this.loopSelection = LoopSelection.ROUND_ROBIN;
+        this.statsIntervalMillis = 0;
+        this.maxClients = 1000;
+        this.outboundCapacity = 1024;
+        this.outboundHighWatermark = 768;
+        this.outboundLowWatermark = 256;
+        this.slowConsumerPolicy = SlowConsumerPolicy.DISCONNECT;
+        this.slowConsumerGraceMillis = 10000;
+        this.frameLimits = FrameLimits.DEFAULT;
+        this.abuseThreshold = 3;
+        this.presenceBatchMillis = 50;
+        this.maxPendingHandshakes = 64;
+        this.acceptRatePerSecond = 20;
+        this.acceptBurst = 40;
+        this.handshakeTimeoutMillis = 10000;
+        this.messageRateLimits = new EnumMap<>(MessageType.class);
+        messageRateLimits.put(MessageType.BROADCAST_MESSAGE, new RateLimit(10, 20, RateLimitPolicy.REJECT));
+        messageRateLimits.put(MessageType.DIRECT_MESSAGE, new RateLimit(20, 40, RateLimitPolicy.REJECT));
+        messageRateLimits.put(MessageType.SEND_INSULT, new RateLimit(2, 4, RateLimitPolicy.REJECT));
+        messageRateLimits.put(MessageType.ROOM_MESSAGE, new RateLimit(10, 20, RateLimitPolicy.REJECT));
+        messageRateLimits.put(MessageType.JOIN_ROOM, new RateLimit(2, 10, RateLimitPolicy.REJECT));
+        messageRateLimits.put(MessageType.QUERY_HISTORY, new RateLimit(5, 10, RateLimitPolicy.REJECT));
+        messageRateLimits.put(MessageType.SEARCH, new RateLimit(5, 10, RateLimitPolicy.REJECT));
+        this.creditWindow = 64;
+        this.fanOutParallelism = Runtime.getRuntime().availableProcessors();
+        this.parallelFanOutThreshold = 8192;
+        this.historyCapacity = 50;
+        this.historyBytes = 64 * 1024;
+        this.logSegmentBytes = 64 * 1024 * 1024;
+        this.logFsyncPolicy = FsyncPolicy.GROUP_COMMIT;
+        this.logGroupCommitMillis = 10;
+        this.logRetentionMillis = 30L * 24 * 60 * 60 * 1000;
+        this.logRetentionBytes = 10L * 1024 * 1024 * 1024;
+        this.mailboxMaxMessages = 10000;
+        this.mailboxMaxBytes = 4 * 1024 * 1024;
+        this.mailboxTtlMillis = 7L * 24 * 60 * 60 * 1000;
+        this.searchCapacity = 100000;
+    }
+
+    /**
+     * Gets the I/O model the server runs with.
+     *
+     * @return The server mode.
+     */
+    public ServerMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Sets the I/O model the server runs with.
+     *
+     * @param mode The server mode.
+     * @return This config, for chaining.
+     */
+    public ServerConfig setMode(ServerMode mode) {
+        this.mode = Objects.requireNonNull(mode);
+        return this;
+    }
+
+    /**
+     * Gets the number of worker event loops used in nio mode.
+     *
+     * @return The worker loop count.
+     */
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    /**
+     * Sets the number of worker event loops used in nio mode.
+     *
+     * @param workerThreads The worker loop count, at least 1.
+     * @return This config, for chaining.
+     */
+    public ServerConfig setWorkerThreads(int workerThreads) {
+        if (workerThreads < 1) {
+            throw new IllegalArgumentException("Worker thread count must be at least 1.");
+        }
+
+        this.workerThreads = workerThreads;
+        return this;
+    }
+
+    /**
+     * Gets how new connections are assigned to worker loops.
+     *
+     * @return The loop selection strategy.
+     */
+    public LoopSelection getLoopSelection() {
+        return loopSelection;
+    }
+
+    /**
+     * Sets how new connections are assigned to worker loops.
+     *
+     * @param loopSelection The loop selection strategy.
+     * @return This config, for chaining.
+     */
+    public ServerConfig setLoopSelection(LoopSelection loopSelection) {
+        this.loopSelection = Objects.requireNonNull(loopSelection);
+        return this;
+    }
+
+    /**
+     * Gets how often the server prints its event loop stats.
+     *
+     * @return The reporting interval in milliseconds, or 0 if reporting is off.
+     */
+    public long getStatsIntervalMillis() {
+        return statsIntervalMillis;
+    }
+
+    /**
+     * Sets how often the server prints its event loop stats.
+     *
+     * @param statsIntervalMillis The reporting interval in milliseconds, or 0 to turn reporting off.
+     * @return This config, for chaining.
+     */
+    public ServerConfig setStatsIntervalMillis(long statsIntervalMillis) {
+        this.statsIntervalMillis = Math.max(0, statsIntervalMillis);
+        return this;
+    }
+
+    /**
+     * Gets the maximum number of clients that may be connected at once, counting
+     * connections still completing their handshake.
+     *
+     * @return The client limit.
+     */
+    public int getMaxClients() {
+        return maxClients;
+    }
+
+    /**
+     * Sets the maximum number of clients that may be connected at once.
+     *
+     * @param maxClients The client limit, at least 1.
+     * @return This config, for chaining.
+     */
+    public ServerConfig setMaxClients(int maxClients) {
+        if (maxClients < 1) {
+            throw new IllegalArgumentException("Client limit must be at least 1.");
+        }
+
+        this.maxClients = maxClients;
+        return this;
+    }
+
+    /**
+     * Gets the maximum number of frames queued for one client.
+     *
+     * @return The outbound queue capacity.
+     */
+    public int getOutboundCapacity() {
+        return outboundCapacity;
+    }
+
+    /**
+     * Gets the queue depth at which a client counts as falling behind.
+     *
+     * @return The outbound high watermark.
+     */
+    public int getOutboundHighWatermark() {
+        return outboundHighWatermark;
+    }
+
+    /**
+     * Gets the queue depth at which a client that fell behind counts as caught up.
+     *
+     * @return The outbound low watermark.
+     */
+    public int getOutboundLowWatermark() {
+        return outboundLowWatermark;
+    }
+
+    /**
+     * Sets the size and watermarks of each client's outbound queue.
+     *
+     * @param capacity      The maximum number of frames queued for one client.
+     * @param highWatermark The depth at which a client counts as falling behind.
+     * @param lowWatermark  The depth at which a client that fell behind counts as caught up.
+     * @return This config, for chaining.
+     */
+    public ServerConfig setOutboundQueue(int capacity, int highWatermark, int lowWatermark) {
+        if (capacity < 1 || highWatermark > capacity || lowWatermark < 0 || lowWatermark >= highWatermark) {
+            throw new IllegalArgumentException("Watermarks must satisfy 0 <= low < high <= capacity.");
+        }
+
+        this.outboundCapacity = capacity;
+        this.outboundHighWatermark = highWatermark;
+        this.outboundLowWatermark = lowWatermark;
+        return this;
+    }
+
+    /**
+     * Gets what the server does with broadcasts for a client that has fallen behind.
+     *
+     * @return The slow-consumer policy.
+     */
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    /**
+     * Sets what the server does with broadcasts for a client that has fallen behind.
+     *
+     * @param slowConsumerPolicy The slow-consumer policy.
+     * @return This config, for chaining.
+     */
+    public ServerConfig setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+        this.slowConsumerPolicy = Objects.requireNonNull(slowConsumerPolicy);
+        return this;
+    }
+
+    /**
+     * Gets how long a client may stay above its high watermark before the disconnect
+     * policy evicts it.
+     *
+     * @return The grace period in milliseconds.
+     */
+    public long getSlowConsumerGraceMillis() {
+        return slowConsumerGraceMillis;
+    }
+
+    /**
+     * Sets how long a client may stay above its high watermark before the disconnect
+     * policy evicts it.
+     *
+     * @param slowConsumerGraceMillis The grace period in milliseconds, 0 to evict at once.
+     * @return This config, for chaining.
+     */
+    public ServerConfig setSlowConsumerGraceMillis(long slowConsumerGraceMillis) {
+        if (slowConsumerGraceMillis < 0) {
+            throw new IllegalArgumentException("Grace period must not be negative.");
+        }
+
+        this.slowConsumerGraceMillis = slowConsumerGraceMillis;
+        return this;
+    }
+
+    /**
+     * Gets the largest field and frame the server accepts from a client.
+     *
+     * @return The frame limits.
+     */
+    public FrameLimits getFrameLimits() {
+        return frameLimits;
+    }
+
+    /**
+     * Sets the largest field and frame the server accepts from a client.
+     *
+     * @param maxFieldBytes The maximum size of one string field, in bytes.
+     * @param maxFrameBytes The maximum size of a whole frame, header included, in bytes.
+     * @return This config, for chaining.
+     */
+    public ServerConfig setFrameLimits(int maxFieldBytes, int maxFrameBytes) {
+        this.frameLimits = new FrameLimits(maxFieldBytes, maxFrameBytes);
+        return this;
+    }
+
+    /**
+     * Gets the abuse score at which a client is disconnected. Each frame rejected for
+     * breaking the frame limits scores one point.
+     *
+     * @return The abuse threshold.
+     */
+    public int getAbuseThreshold() {
+        return abuseThreshold;
+    }
+
+    /**
+     * Sets the abuse score at which a client is disconnected.
+     *
+     * @param abuseThreshold The abuse threshold, at least 1.
+     * @return This config, for chaining.
+     */
+    public ServerConfig setAbuseThreshold(int abuseThreshold) {
+        if (abuseThreshold < 1) {
+            throw new IllegalArgumentException("Abuse threshold must be at least 1.");
+        }
+
+        this.abuseThreshold = abuseThreshold;
+        return this;
+    }
+
+    /**
+     * Gets how long joins and leaves are collected before being pushed to presence
+     * subscribers as one batch of deltas.
+     *
+     * @return The batch window in milliseconds.
+     */
+    public long getPresenceBatchMillis() {
+        return presenceBatchMillis;
+    }
+
+    /**
+     * Sets how long joins and leaves are collected before being pushed to presence subscribers.
+     *
+     * @param presenceBatchMillis The batch window in milliseconds, 0 to push each change at once.
+     * @return This config, for chaining.
+     */
+    public ServerConfig setPresenceBatchMillis(long presenceBatchMillis) {
+        if (presenceBatchMillis < 0) {
+            throw new IllegalArgumentException("Presence batch window must not be negative.");
+        }
+
+        this.presenceBatchMillis = presenceBatchMillis;
+        return this;
+    }
+
+    /**
+     * Gets the maximum number of connections that may be waiting to complete their handshake.
+     *
+     * @return The pending handshake limit.
+     */
+    public int getMaxPendingHandshakes() {
+        return maxPendingHandshakes;
+    }
+
+    /**
+     * Sets the maximum number of connections that may be waiting to complete their handshake.
+     *
+     * @param maxPendingHandshakes The pending handshake limit, at least 1.
+     * @return This config, for chaining.
+     */
+    public ServerConfig setMaxPendingHandshakes(int maxPendingHandshakes) {
+        if (maxPendingHandshakes < 1) {
+            throw new IllegalArgumentException("Pending handshake limit must be at least 1.");
+        }
+
+        this.maxPendingHandshakes = maxPendingHandshakes;
+        return this;
+    }
+
+    /**
+     * Gets how many new connections a second one source address may open.
+     *
+     * @return The accept rate, or 0 if unlimited.
+     */
+    public double getAcceptRatePerSecond() {
+        return acceptRatePerSecond;
+    }
+
+    /**
+     * Gets how many connections one source address may open at once before its accept
+     * rate applies.
+     *
+     * @return The accept burst.
+     */
+    public int getAcceptBurst() {
+        return acceptBurst;
+    }
+
+    /**
+     * Sets the per-address token bucket that limits how fast new connections are accepted.
+     *
+     * @param acceptRatePerSecond The connections a second each address may open, 0 for no limit.
+     * @param acceptBurst         The connections an address may open at once, at least 1.
+     * @return This config, for chaining.
+     */
+    public ServerConfig setAcceptRate(double acceptRatePerSecond, int acceptBurst) {
+        if (acceptRatePerSecond < 0) {
+            throw new IllegalArgumentException("Accept rate must not be negative.");
+        }
+
+        if (acceptBurst < 1) {
+            throw new IllegalArgumentException("Accept burst must be at least 1.");
+        }
+
+        this.acceptRatePerSecond = acceptRatePerSecond;
+        this.acceptBurst = acceptBurst;
+        return this;
+    }
+
+    /**
+     * Gets how long a connection has to send a successful connect message.
+     *
+     * @return The handshake timeout in milliseconds, or 0 for none.
+     */
+    public long getHandshakeTimeoutMillis() {
+        return handshakeTimeoutMillis;
+    }
+
+    /**
+     * Sets how long a connection has to send a successful connect message before it is
+     * refused and closed.
+     *
+     * @param handshakeTimeoutMillis The timeout in milliseconds, 0 for none.
+     * @return This config, for chaining.
+     */
+    public ServerConfig setHandshakeTimeoutMillis(long handshakeTimeoutMillis) {
+        if (handshakeTimeoutMillis < 0) {
+            throw new IllegalArgumentException("Handshake timeout must not be negative.");
+        }
+
+        this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * Gets the per-user rate limits the server starts with, by message type.
+     *
+     * @return An unmodifiable view of the limits.
+     */
+    public Map<MessageType, RateLimit> getMessageRateLimits() {
+        return Collections.unmodifiableMap(messageRateLimits);
+    }
+
+    /**
+     * Sets or removes the per-user rate limit the server starts with for a message type.
+     * Limits can also be changed while the server runs, through
+     * {@link ChatServer#getRateLimiter()}.
+     *
+     * @param type  The message type.
+     * @param limit The limit, or null to leave the type unlimited.
+     * @return This config, for chaining.
+     */
+    public ServerConfig setMessageRateLimit(MessageType type, RateLimit limit) {
+        Objects.requireNonNull(type);
+
+        if (limit == null) {
+            messageRateLimits.remove(type);
+        }
+
+        else {
+            messageRateLimits.put(type, limit);
+        }
+
+        return this;
+    }
+
+    /**
+     * Removes every per-user message rate limit.
+     *
+     * @return This config, for chaining.
+     */
+    public ServerConfig clearMessageRateLimits() {
+        messageRateLimits.clear();
+        return this;
+    }
+
+    /**
+     * Gets how many frames a client taking part in flow control may send ahead of the
+     * server processing them.
+     *
+     * @return The credit window in frames.
+     */
+    public int getCreditWindow() {
+        return creditWindow;
+    }
+
+    /**
+     * Sets how many frames a client taking part in flow control may send ahead of the
+     * server processing them. The server grants more once half the window is used.
+     *
+     * @param creditWindow The credit window in frames, at least 2.
+     * @return This config, for chaining.
+     */
+    public ServerConfig setCreditWindow(int creditWindow) {
+        if (creditWindow < 2) {
+            throw new IllegalArgumentException("Credit window must be at least 2 frames.");
+        }
+
+        this.creditWindow = creditWindow;
+        return this;
+    }
+
+    /**
+     * Gets how many threads a large fan-out is spread over.
+     *
+     * @return The fan-out parallelism.
+     */
+    public int getFanOutParallelism() {
+        return fanOutParallelism;
+    }
+
+    /**
+     * Sets how many threads a large fan-out is spread over, 1 to always fan out on the
+     * sending thread.
+     *
+     * @param fanOutParallelism The fan-out parallelism, at least 1.
+     * @return This config, for chaining.
+     */
+    public ServerConfig setFanOutParallelism(int fanOutParallelism) {
+        if (fanOutParallelism < 1) {
+            throw new IllegalArgumentException("Fan-out parallelism must be at least 1.");
+        }
+
+        this.fanOutParallelism = fanOutParallelism;
+        return this;
+    }
+
+    /**
+     * Gets the recipient count from which a fan-out is split across threads.
+     *
+     * @return The parallel fan-out threshold.
+     */
+    public int getParallelFanOutThreshold() {
+        return parallelFanOutThreshold;
+    }
+
+    /**
+     * Sets the recipient count from which a fan-out is split across threads. Smaller
+     * fan-outs stay on the sending thread, where handing off would cost more than it saves.
+     *
+     * @param parallelFanOutThreshold The threshold in recipients, at least 1.
+     * @return This config, for chaining.
+     */
+    public ServerConfig setParallelFanOutThreshold(int parallelFanOutThreshold) {
+        if (parallelFanOutThreshold < 1) {
+            throw new IllegalArgumentException("Parallel fan-out threshold must be at least 1.");
+        }
+
+        this.parallelFanOutThreshold = parallelFanOutThreshold;
+        return this;
+    }
+
+    /**
+     * Gets the most recent broadcasts, and the most recent messages in each room, kept to
+     * replay to clients that connect or join.
+     *
+     * @return The history capacity in messages.
+     */
+    public int getHistoryCapacity() {
+        return historyCapacity;
+    }
+
+    /**
+     * Gets the most encoded bytes of recent messages kept for each history.
+     *
+     * @return The history size limit in bytes.
+     */
+    public long getHistoryBytes() {
+        return historyBytes;
+    }
+
+    /**
+     * Sets how much recent history is kept to replay to clients that connect, for
+     * broadcasts, or join a room, for its messages. The oldest messages are evicted once
+     * either limit is reached.
+     *
+     * @param capacity The most messages kept per history, 0 to keep no history.
+     * @param bytes    The most encoded bytes kept per history, at least 1.
+     * @return This config, for chaining.
+     */
+    public ServerConfig setHistoryLimits(int capacity, long bytes) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("History capacity must not be negative.");
+        }
+
+        if (bytes < 1) {
+            throw new IllegalArgumentException("History byte limit must be at least 1.");
+        }
+
+        this.historyCapacity = capacity;
+        this.historyBytes = bytes;
+        return this;
+    }
+
+    /**
+     * Gets the directory the durable message log is kept in.
+     *
+     * @return The log directory, or null if relayed messages are not logged.
+     */
+    public Path getMessageLogDirectory() {
+        return messageLogDirectory;
+    }
+
+    /**
+     * Sets the directory to keep a durable log of every relayed message in.
+     *
+     * @param messageLogDirectory The log directory, or null to log nothing.
+     * @return This config, for chaining.
+     */
+    public ServerConfig setMessageLogDirectory(Path messageLogDirectory) {
+        this.messageLogDirectory = messageLogDirectory;
+        return this;
+    }
+
+    /**
+     * Gets the size of each message log segment file.
+     *
+     * @return The segment size in bytes.
+     */
+    public int getLogSegmentBytes() {
+        return logSegmentBytes;
+    }
+
+    /**
+     * Sets the size of each message log segment file. A message too large for a segment
+     * gets a segment of its own.
+     *
+     * @param logSegmentBytes The segment size in bytes, at least 4096.
+     * @return This config, for chaining.
+     */
+    public ServerConfig setLogSegmentBytes(int logSegmentBytes) {
+        if (logSegmentBytes < 4096) {
+            throw new IllegalArgumentException("Log segment size must be at least 4096 bytes.");
+        }
+
+        this.logSegmentBytes = logSegmentBytes;
+        return this;
+    }
+
+    /**
+     * Gets when the message log forces what it has written to disk.
+     *
+     * @return The fsync policy.
+     */
+    public FsyncPolicy getLogFsyncPolicy() {
+        return logFsyncPolicy;
+    }
+
+    /**
+     * Gets how often the message log forces writes under group commit.
+     *
+     * @return The commit interval in milliseconds.
+     */
+    public long getLogGroupCommitMillis() {
+        return logGroupCommitMillis;
+    }
+
+    /**
+     * Sets when the message log forces what it has written to disk.
+     *
+     * @param policy            The fsync policy.
+     * @param groupCommitMillis How often to force under group commit, at least 1.
+     * @return This config, for chaining.
+     */
+    public ServerConfig setLogFsyncPolicy(FsyncPolicy policy, long groupCommitMillis) {
+        if (groupCommitMillis < 1) {
+            throw new IllegalArgumentException("Group commit interval must be at least 1 millisecond.");
+        }
+
+        this.logFsyncPolicy = Objects.requireNonNull(policy);
+        this.logGroupCommitMillis = groupCommitMillis;
+        return this;
+    }
+
+    /**
+     * Gets how long the message log keeps messages.
+     *
+     * @return The retention age in milliseconds.
+     */
+    public long getLogRetentionMillis() {
+        return logRetentionMillis;
+    }
+
+    /**
+     * Gets the most bytes of segments the message log keeps.
+     *
+     * @return The retention size in bytes.
+     */
+    public long getLogRetentionBytes() {
+        return logRetentionBytes;
+    }
+
+    /**
+     * Sets how much the message log keeps. Older messages are deleted, or compacted away,
+     * in the background.
+     *
+     * @param millis How long messages are kept, at least 1.
+     * @param bytes  The most bytes of segments kept, at least 1.
+     * @return This config, for chaining.
+     */
+    public ServerConfig setLogRetention(long millis, long bytes) {
+        if (millis < 1) {
+            throw new IllegalArgumentException("Log retention age must be at least 1 millisecond.");
+        }
+
+        if (bytes < 1) {
+            throw new IllegalArgumentException("Log retention size must be at least 1 byte.");
+        }
+
+        this.logRetentionMillis = millis;
+        this.logRetentionBytes = bytes;
+        return this;
+    }
+
+    /**
+     * Gets the directory direct messages for offline users are kept in.
+     *
+     * @return The mailbox directory, or null if direct messages to offline users are refused.
+     */
+    public Path getMailboxDirectory() {
+        return mailboxDirectory;
+    }
+
+    /**
+     * Sets the directory to keep direct messages for offline users in, one mailbox per
+     * recipient, until they connect.
+     *
+     * @param mailboxDirectory The mailbox directory, or null to refuse direct messages to
+     *                         offline users.
+     * @return This config, for chaining.
+     */
+    public ServerConfig setMailboxDirectory(Path mailboxDirectory) {
+        this.mailboxDirectory = mailboxDirectory;
+        return this;
+    }
+
+    /**
+     * Gets the most messages one offline user's mailbox may hold.
+     *
+     * @return The mailbox quota in messages.
+     */
+    public int getMailboxMaxMessages() {
+        return mailboxMaxMessages;
+    }
+
+    /**
+     * Gets the most bytes of messages one offline user's mailbox may hold.
+     *
+     * @return The mailbox quota in bytes.
+     */
+    public long getMailboxMaxBytes() {
+        return mailboxMaxBytes;
+    }
+
+    /**
+     * Sets the quota of each offline user's mailbox. Direct messages to a full mailbox are
+     * refused.
+     *
+     * @param messages The most messages per mailbox, at least 1.
+     * @param bytes    The most bytes of messages per mailbox, at least 1.
+     * @return This config, for chaining.
+     */
+    public ServerConfig setMailboxLimits(int messages, long bytes) {
+        if (messages < 1) {
+            throw new IllegalArgumentException("Mailbox message limit must be at least 1.");
+        }
+
+        if (bytes < 1) {
+            throw new IllegalArgumentException("Mailbox byte limit must be at least 1.");
+        }
+
+        this.mailboxMaxMessages = messages;
+        this.mailboxMaxBytes = bytes;
+        return this;
+    }
+
+    /**
+     * Gets how long a direct message waits in a mailbox before it is dropped unread.
+     *
+     * @return The time to live in milliseconds.
+     */
+    public long getMailboxTtlMillis() {
+        return mailboxTtlMillis;
+    }
+
+    /**
+     * Sets how long a direct message waits in a mailbox before it is dropped unread.
+     *
+     * @param mailboxTtlMillis The time to live in milliseconds, at least 1.
+     * @return This config, for chaining.
+     */
+    public ServerConfig setMailboxTtlMillis(long mailboxTtlMillis) {
+        if (mailboxTtlMillis < 1) {
+            throw new IllegalArgumentException("Mailbox time to live must be at least 1 millisecond.");
+        }
+
+        this.mailboxTtlMillis = mailboxTtlMillis;
+        return this;
+    }
+
+    /**
+     * Gets the most recent relayed messages kept in the search index.
+     *
+     * @return The search capacity in messages.
+     */
+    public int getSearchCapacity() {
+        return searchCapacity;
+    }
+
+    /**
+     * Sets how many of the most recent broadcasts, room messages and direct messages are
+     * kept searchable in memory. The oldest are evicted once the index is full.
+     *
+     * @param capacity The most messages kept, 0 to turn search off.
+     * @return This config, for chaining.
+     */
+    public ServerConfig setSearchCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Search capacity must not be negative.");
+        }
+
+        this.searchCapacity = capacity;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "ServerConfig{" +
+                "mode=" + mode +
+                ", workerThreads=" + workerThreads +
+                ", loopSelection=" + loopSelection +
+                ", maxClients=" + maxClients +
+                ", maxPendingHandshakes=" + maxPendingHandshakes +
+                ", acceptRatePerSecond=" + acceptRatePerSecond +
+                ", messageRateLimits=" + messageRateLimits +
+                ", creditWindow=" + creditWindow +
+                ", fanOutParallelism=" + fanOutParallelism +
+                ", historyCapacity=" + historyCapacity +
+                ", messageLogDirectory=" + messageLogDirectory +
+                ", logFsyncPolicy=" + logFsyncPolicy +
+                ", mailboxDirectory=" + mailboxDirectory +
+                ", searchCapacity=" + searchCapacity +
+                ", outboundCapacity=" + outboundCapacity +
+                ", slowConsumerPolicy=" + slowConsumerPolicy +
+                ", frameLimits=" + frameLimits +
+                '}';
+    }
+}
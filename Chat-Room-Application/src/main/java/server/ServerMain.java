@@ -1,9 +1,47 @@
 package server;
 
+import storage.FsyncPolicy;
+
+import java.nio.file.Path;
+
 public class ServerMain {
     public static void main(String[] args) {
         int port = 8000;
-        ChatServer server = new ChatServer(port);
+        ServerConfig config = new ServerConfig();
+
+        if (args.length >= 1) {
+            port = Integer.parseInt(args[0]);
+        }
+
+        if (args.length >= 2) {
+            config.setMode(ServerMode.parse(args[1]));
+        }
+
+        if (args.length >= 3) {
+            config.setWorkerThreads(Integer.parseInt(args[2]));
+        }
+
+        if (args.length >= 4) {
+            config.setLoopSelection(LoopSelection.parse(args[3]));
+        }
+
+        if (args.length >= 5) {
+            config.setSlowConsumerPolicy(SlowConsumerPolicy.parse(args[4]));
+        }
+
+        if (args.length >= 6) {
+            config.setMessageLogDirectory(Path.of(args[5]));
+        }
+
+        if (args.length >= 7) {
+            config.setLogFsyncPolicy(FsyncPolicy.parse(args[6]), config.getLogGroupCommitMillis());
+        }
+
+        if (args.length >= 8) {
+            config.setMailboxDirectory(Path.of(args[7]));
+        }
+
+        ChatServer server = new ChatServer(port, config);
         server.start();
     }
-}
\ No newline at end of file
+}
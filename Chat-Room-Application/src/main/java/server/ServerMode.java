@@ -0,0 +1,32 @@
+package server;
+
+/**
+ * Enum representing the I/O models the chat server can run with.
+ */
+public enum ServerMode {
+    /**
+     * One blocking thread per connected client (the original model).
+     */
+    BLOCKING,
+
+    /**
+     * One blocking virtual thread per connected client (platform threads on JDKs without them).
+     */
+    VIRTUAL,
+
+    /**
+     * Non-blocking selector loops: one acceptor plus a group of worker loops.
+     */
+    NIO;
+
+    /**
+     * Parses a mode name, ignoring case.
+     *
+     * @param name The mode name, e.g. "nio".
+     * @return The matching ServerMode.
+     * @throws IllegalArgumentException If the name does not match any mode.
+     */
+    public static ServerMode parse(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+}
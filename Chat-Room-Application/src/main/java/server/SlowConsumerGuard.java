@@ -0,0 +1,151 @@
+package server;
+
+import util.Frame;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Applies the server's slow-consumer policy to broadcasts and counts what it gives up on.
+ * Clients below their high watermark get every broadcast queued as usual.
+ */
+public class SlowConsumerGuard {
+    private static final long EVICTION_LINGER_MILLIS = 1000;
+
+    private final SlowConsumerPolicy policy;
+    private final long graceMillis;
+    private final Map<EvictionReason, AtomicLong> evictions;
+    private final ScheduledExecutorService closer;
+
+    /**
+     * Constructs a SlowConsumerGuard.
+     *
+     * @param policy      The policy for clients that fall behind.
+     * @param graceMillis How long a client may stay above its high watermark before the
+     *                    disconnect policy evicts it.
+     */
+    public SlowConsumerGuard(SlowConsumerPolicy policy, long graceMillis) {
+        this.policy = policy;
+        this.graceMillis = graceMillis;
+        this.evictions = new EnumMap<>(EvictionReason.class);
+
+        for (EvictionReason reason : EvictionReason.values()) {
+            evictions.put(reason, new AtomicLong());
+        }
+
+        this.closer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "slow-consumer-closer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues a broadcast for a client, or applies the policy if the client is behind.
+     *
+     * @param client The recipient.
+     * @param frame  The encoded broadcast.
+     * @throws IOException If the client's connection has been closed.
+     */
+    public void deliver(ConnectedClient client, Frame frame) throws IOException {
+        OutboundQueue outbound = client.getOutboundQueue();
+
+        if (!outbound.isOverloaded()) {
+            client.sendBroadcast(frame);
+            return;
+        }
+
+        switch (policy) {
+            case DISCONNECT:
+                if (outbound.getOverloadedMillis() < graceMillis) {
+                    client.sendBroadcast(frame);
+                }
+
+                else if (client.evict("You were disconnected because your connection fell too far behind.")) {
+                    record(EvictionReason.FELL_BEHIND);
+                    closer.schedule(client::closeNow, EVICTION_LINGER_MILLIS, TimeUnit.MILLISECONDS);
+                }
+
+                break;
+
+            case DROP_OLDEST:
+                if (outbound.dropOldestBroadcast()) {
+                    record(EvictionReason.DROPPED_OLDEST);
+                    client.warnDropping("Older messages are being dropped because your connection is falling behind.");
+                }
+
+                client.sendBroadcast(frame);
+                break;
+
+            case SUMMARIZE:
+                client.skipBroadcast();
+                record(EvictionReason.SUMMARIZED);
+                break;
+        }
+    }
+
+    /**
+     * Gets the policy this guard applies.
+     *
+     * @return The slow-consumer policy.
+     */
+    public SlowConsumerPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Gets the number of evictions recorded for a reason.
+     *
+     * @param reason The eviction reason.
+     * @return The eviction count.
+     */
+    public long getEvictionCount(EvictionReason reason) {
+        return evictions.get(reason).get();
+    }
+
+    /**
+     * Gets a snapshot of the eviction counts for every reason.
+     *
+     * @return The eviction counts, by reason.
+     */
+    public Map<EvictionReason, Long> getEvictionCounts() {
+        Map<EvictionReason, Long> counts = new EnumMap<>(EvictionReason.class);
+
+        for (Map.Entry<EvictionReason, AtomicLong> entry : evictions.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+
+        return Collections.unmodifiableMap(counts);
+    }
+
+    /**
+     * Stops the thread that closes evicted clients.
+     */
+    public void shutdown() {
+        closer.shutdownNow();
+    }
+
+    /**
+     * Counts one eviction.
+     *
+     * @param reason The eviction reason.
+     */
+    private void record(EvictionReason reason) {
+        evictions.get(reason).incrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+        return "SlowConsumerGuard{" +
+                "policy=" + policy +
+                ", graceMillis=" + graceMillis +
+                ", evictions=" + getEvictionCounts() +
+                '}';
+    }
+}
@@ -0,0 +1,35 @@
+package server;
+
+/**
+ * Enum representing what the server does with broadcasts for a client whose outbound
+ * queue has reached its high watermark.
+ */
+public enum SlowConsumerPolicy {
+    /**
+     * Keep queueing, but disconnect the client once it has stayed above the high watermark
+     * for longer than the grace period.
+     */
+    DISCONNECT,
+
+    /**
+     * Drop the oldest queued broadcast to make room for each new one.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Skip broadcasts while the client is behind and send a summary of what was skipped
+     * once it catches up.
+     */
+    SUMMARIZE;
+
+    /**
+     * Parses a policy name, ignoring case and accepting dashes for underscores.
+     *
+     * @param name The policy name, e.g. "drop-oldest".
+     * @return The matching SlowConsumerPolicy.
+     * @throws IllegalArgumentException If the name does not match any policy.
+     */
+    public static SlowConsumerPolicy parse(String name) {
+        return valueOf(name.trim().replace('-', '_').toUpperCase());
+    }
+}
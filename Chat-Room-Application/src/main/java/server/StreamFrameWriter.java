@@ -0,0 +1,267 @@
+package server;
+
+import util.Frame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Drains a blocking client's outbound queue to its socket stream. Drains run on a writer
+ * executor, at most one at a time per client, so a stalled socket only holds up that client.
+ * Queued frames are copied into one batch and written with a single write and flush, the
+ * stream equivalent of a gathering write, with the batch size chosen by a FlushPolicy.
+ */
+public class StreamFrameWriter implements FrameWriter {
+    /**
+     * How long a closing client gets to take its last frames before its socket is closed.
+     */
+    static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    private static final ScheduledThreadPoolExecutor CLOSE_TIMER = newCloseTimer();
+
+    private final OutboundQueue outbound;
+    private final DataOutputStream output;
+    private final Socket socket;
+    private final Executor executor;
+    private final AtomicBoolean drainScheduled;
+    private final ReentrantLock writeLock;
+    private final FlushPolicy flushPolicy;
+    private ByteArrayOutputStream batch;
+    private final AtomicBoolean closing;
+    private final AtomicBoolean closed;
+
+    /**
+     * Constructs a StreamFrameWriter.
+     *
+     * @param outbound The queue to drain.
+     * @param output   The client's output stream.
+     * @param socket   The client's socket, closed when the writer closes or fails.
+     * @param executor The executor that runs drains; {@code Runnable::run} writes on the sender's thread.
+     */
+    public StreamFrameWriter(OutboundQueue outbound, DataOutputStream output, Socket socket, Executor executor) {
+        this.outbound = outbound;
+        this.output = output;
+        this.socket = socket;
+        this.executor = executor;
+        this.drainScheduled = new AtomicBoolean();
+        this.writeLock = new ReentrantLock();
+        this.flushPolicy = new FlushPolicy();
+        this.batch = new ByteArrayOutputStream();
+        this.closing = new AtomicBoolean();
+        this.closed = new AtomicBoolean();
+    }
+
+    /**
+     * Creates the timer shared by every writer's close deadline. Deadlines are cancelled
+     * as soon as the last drain ends, so they are removed from the queue then.
+     *
+     * @return The timer.
+     */
+    private static ScheduledThreadPoolExecutor newCloseTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, task -> {
+            Thread thread = new Thread(task, "writer-close-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    @Override
+    public void requestDrain() {
+        if (!closed.get() && drainScheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::drain);
+            }
+
+            catch (RejectedExecutionException e) {
+                drainScheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * Writes queued frames until the queue is empty, then hands back the drain slot.
+     */
+    private void drain() {
+        do {
+            writeLock.lock();
+
+            try {
+                writePending();
+            }
+
+            catch (IOException e) {
+                fail();
+            }
+
+            finally {
+                writeLock.unlock();
+            }
+
+            drainScheduled.set(false);
+
+            // Frames queued after the last poll would otherwise wait for the next send.
+        } while (!closed.get() && outbound.hasWritable() && drainScheduled.compareAndSet(false, true));
+    }
+
+    /**
+     * Writes every queued frame, one batch per write and flush. Must hold the write lock.
+     *
+     * @throws IOException If the socket write fails.
+     */
+    private void writePending() throws IOException {
+        int frames;
+
+        while (!closed.get() && (frames = gatherBatch()) > 0) {
+            batch.writeTo(output);
+            output.flush();
+            outbound.recordWrite(frames);
+        }
+    }
+
+    /**
+     * Moves up to the flush policy's limit of queued frames into the batch buffer.
+     * Must hold the write lock.
+     *
+     * @return The number of frames gathered.
+     * @throws IOException If a frame cannot be copied.
+     */
+    private int gatherBatch() throws IOException {
+        int byteLimit = flushPolicy.getByteLimit();
+
+        // Don't keep a buffer that one oversized frame blew up.
+        if (batch.size() > byteLimit * 2) {
+            batch = new ByteArrayOutputStream();
+        }
+
+        batch.reset();
+
+        int frameLimit = flushPolicy.getFrameLimit();
+        int frames = 0;
+        Frame frame;
+
+        while (frames < frameLimit && batch.size() < byteLimit && (frame = outbound.poll()) != null) {
+            frame.writeTo(batch);
+            frames++;
+        }
+
+        if (frames > 0) {
+            flushPolicy.recordBatch(frames, frames == frameLimit || batch.size() >= byteLimit);
+        }
+
+        return frames;
+    }
+
+    /**
+     * Gives up on the client after a failed write. Closing the socket wakes its reader,
+     * which removes the client from the server.
+     */
+    private void fail() {
+        outbound.recordDisconnect();
+        outbound.clear();
+        closeResources();
+    }
+
+    /**
+     * Writes what is still queued and then closes the connection. A peer that has stopped
+     * reading would block that last drain, so it gets {@link #CLOSE_TIMEOUT_MILLIS} before
+     * its socket is closed under the drain, and the closing thread is let go.
+     */
+    @Override
+    public void close() {
+        if (closed.get() || !closing.compareAndSet(false, true)) {
+            return;
+        }
+
+        ScheduledFuture<?> deadline;
+
+        try {
+            deadline = CLOSE_TIMER.schedule(this::closeResources, CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        catch (RejectedExecutionException e) {
+            outbound.clear();
+            closeResources();
+            return;
+        }
+
+        finish(deadline);
+    }
+
+    /**
+     * Writes the last queued frames and closes the stream and socket.
+     *
+     * @param deadline The timeout that closes the socket if the drain stalls.
+     */
+    private void finish(ScheduledFuture<?> deadline) {
+        writeLock.lock();
+
+        try {
+            if (!closed.get() && output != null) {
+                // Last words aren't held back for credit.
+                outbound.disableCredit();
+                writePending();
+            }
+        }
+
+        catch (IOException e) {
+            outbound.clear();
+        }
+
+        finally {
+            deadline.cancel(false);
+            closeResources();
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Closes the socket without waiting for the write lock, which also unblocks a drain
+     * stuck on a client that has stopped reading.
+     */
+    @Override
+    public void closeNow() {
+        closeResources();
+    }
+
+    /**
+     * Closes the stream and socket once. Takes no lock, so it never waits on a drain.
+     */
+    private void closeResources() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            // The socket goes first: closing the stream flushes it, which would block on a
+            // peer that has stopped reading.
+            socket.close();
+
+            if (output != null) {
+                output.close();
+            }
+        }
+
+        catch (IOException e) {
+            System.err.println("Error closing client resources.");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StreamFrameWriter{" +
+                "socket=" + socket +
+                ", closed=" + closed.get() +
+                '}';
+    }
+}
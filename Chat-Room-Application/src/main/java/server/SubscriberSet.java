@@ -0,0 +1,204 @@
+package server;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * The clients a broadcast fans out to, kept in fixed-size chunks of slots. Adding a client
+ * fills a free slot, or a new one at the end; removing it empties its slot and puts the
+ * slot on a free list. Neither copies the other clients, so joins and leaves stay O(1)
+ * amortised however many clients there are. Only the small directory of chunks is copied,
+ * once per chunk added.
+ *
+ * <p>Iteration takes no lock and never fails. It sees every client present for the whole
+ * iteration; a client added or removed during it may or may not be seen. Iteration cost
+ * follows the highest slot ever used, since slots freed by a reconnect storm are reused
+ * rather than compacted.
+ */
+public class SubscriberSet {
+    private static final int DEFAULT_CHUNK_SHIFT = 10;
+
+    private final int chunkShift;
+    private final int chunkMask;
+    private final ReentrantLock lock;
+    private final Map<ConnectedClient, Integer> slots;
+    private volatile AtomicReferenceArray<ConnectedClient>[] chunks;
+    private volatile int highWater;
+    private int[] freeSlots;
+    private int freeCount;
+
+    /**
+     * Constructs an empty SubscriberSet with chunks of 1024 slots.
+     */
+    public SubscriberSet() {
+        this(DEFAULT_CHUNK_SHIFT);
+    }
+
+    /**
+     * Constructs an empty SubscriberSet with chunks of the given size, so that sets
+     * expected to stay small don't each hold a large chunk.
+     *
+     * @param chunkShift The chunk size as a power of two, from 1 to 20.
+     */
+    public SubscriberSet(int chunkShift) {
+        if (chunkShift < 1 || chunkShift > 20) {
+            throw new IllegalArgumentException("Chunk shift must be between 1 and 20.");
+        }
+
+        this.chunkShift = chunkShift;
+        this.chunkMask = (1 << chunkShift) - 1;
+        this.lock = new ReentrantLock();
+        this.slots = new IdentityHashMap<>();
+        @SuppressWarnings("unchecked")
+        AtomicReferenceArray<ConnectedClient>[] empty =
+                (AtomicReferenceArray<ConnectedClient>[]) new AtomicReferenceArray<?>[0];
+        this.chunks = empty;
+        this.freeSlots = new int[16];
+    }
+
+    /**
+     * Adds a client, unless this exact client is already present.
+     *
+     * @param client The client to add.
+     * @return True if the client was added.
+     */
+    public boolean add(ConnectedClient client) {
+        lock.lock();
+
+        try {
+            if (slots.containsKey(client)) {
+                return false;
+            }
+
+            int slot = freeCount > 0 ? freeSlots[--freeCount] : newSlot();
+            slots.put(client, slot);
+            chunks[slot >>> chunkShift].set(slot & chunkMask, client);
+            return true;
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a client, matched by identity.
+     *
+     * @param client The client to remove.
+     * @return True if the client was present.
+     */
+    public boolean remove(ConnectedClient client) {
+        lock.lock();
+
+        try {
+            Integer slot = slots.remove(client);
+
+            if (slot == null) {
+                return false;
+            }
+
+            chunks[slot >>> chunkShift].set(slot & chunkMask, null);
+
+            if (freeCount == freeSlots.length) {
+                int[] larger = new int[freeSlots.length * 2];
+                System.arraycopy(freeSlots, 0, larger, 0, freeCount);
+                freeSlots = larger;
+            }
+
+            freeSlots[freeCount++] = slot;
+            return true;
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Passes every client to an action, without locking.
+     *
+     * @param action The action to run for each client.
+     */
+    public void forEach(Consumer<ConnectedClient> action) {
+        forEachInRange(0, slotCount(), action);
+    }
+
+    /**
+     * Gets the number of slots ever used, which bounds the slot indexes an iteration visits.
+     * Unlike {@link #size()} it takes no lock.
+     *
+     * @return The slot count.
+     */
+    public int slotCount() {
+        return highWater;
+    }
+
+    /**
+     * Passes every client in a range of slots to an action, without locking. Disjoint
+     * ranges can be walked by different threads at once.
+     *
+     * @param from   The first slot, inclusive.
+     * @param to     The last slot, exclusive.
+     * @param action The action to run for each client.
+     */
+    public void forEachInRange(int from, int to, Consumer<ConnectedClient> action) {
+        AtomicReferenceArray<ConnectedClient>[] directory = chunks;
+        int end = Math.min(to, directory.length << chunkShift);
+
+        for (int slot = from; slot < end; slot++) {
+            ConnectedClient client = directory[slot >>> chunkShift].get(slot & chunkMask);
+
+            if (client != null) {
+                action.accept(client);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of clients.
+     *
+     * @return The client count.
+     */
+    public int size() {
+        lock.lock();
+
+        try {
+            return slots.size();
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Claims the next unused slot, adding a chunk when the last one is full. Must hold the lock.
+     *
+     * @return The slot index.
+     */
+    private int newSlot() {
+        int slot = highWater;
+
+        if (slot >>> chunkShift == chunks.length) {
+            AtomicReferenceArray<ConnectedClient>[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+            grown[chunks.length] = new AtomicReferenceArray<>(1 << chunkShift);
+            chunks = grown;
+        }
+
+        // Publish the chunk before iterators can reach the slot.
+        highWater = slot + 1;
+        return slot;
+    }
+
+    @Override
+    public String toString() {
+        return "SubscriberSet{" +
+                "size=" + size() +
+                ", highWater=" + highWater +
+                '}';
+    }
+}
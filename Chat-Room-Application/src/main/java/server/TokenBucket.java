@@ -0,0 +1,111 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket: tokens refill at a steady rate up to a burst size, and each permitted
+ * action spends one. The caller passes the time in, so one clock read can serve many
+ * buckets and tests can drive time directly.
+ *
+ * <p>The bucket is kept as the single time at which it will be full again, which is
+ * equivalent to counting tokens: each token spent pushes that time one refill interval
+ * later, and the bucket is empty once it lies a whole burst of intervals ahead. Spending
+ * a token is one compare-and-set on that time, so the bucket never locks.
+ */
+public class TokenBucket {
+    private static final double NANOS_PER_SECOND = 1_000_000_000.0;
+
+    private final long intervalNanos;
+    private final long capacityNanos;
+    private final AtomicLong fullAtNanos;
+
+    /**
+     * Constructs a full TokenBucket.
+     *
+     * @param ratePerSecond The number of tokens added per second, above 0.
+     * @param burst         The most tokens the bucket holds, at least 1.
+     * @param nowNanos      The current time, from {@link System#nanoTime()}.
+     */
+    public TokenBucket(double ratePerSecond, int burst, long nowNanos) {
+        if (ratePerSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be positive.");
+        }
+
+        if (burst < 1) {
+            throw new IllegalArgumentException("Burst must be at least 1.");
+        }
+
+        this.intervalNanos = Math.max(1, Math.round(NANOS_PER_SECOND / ratePerSecond));
+        this.capacityNanos = intervalNanos * burst;
+        this.fullAtNanos = new AtomicLong(nowNanos);
+    }
+
+    /**
+     * Spends a token if one is available.
+     *
+     * @param nowNanos The current time, from {@link System#nanoTime()}.
+     * @return True if a token was spent, false if the bucket is empty.
+     */
+    public boolean tryAcquire(long nowNanos) {
+        while (true) {
+            long fullAt = fullAtNanos.get();
+            long next = Math.max(fullAt - nowNanos, 0) + intervalNanos;
+
+            if (next > capacityNanos) {
+                return false;
+            }
+
+            if (fullAtNanos.compareAndSet(fullAt, nowNanos + next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Spends a token whether or not one is available, borrowing against the refill.
+     *
+     * @param nowNanos The current time, from {@link System#nanoTime()}.
+     * @return How long to wait, in nanoseconds, until the token would have been available;
+     *         0 if it was available now.
+     */
+    public long reserve(long nowNanos) {
+        while (true) {
+            long fullAt = fullAtNanos.get();
+            long next = Math.max(fullAt - nowNanos, 0) + intervalNanos;
+
+            if (fullAtNanos.compareAndSet(fullAt, nowNanos + next)) {
+                return Math.max(next - capacityNanos, 0);
+            }
+        }
+    }
+
+    /**
+     * Checks whether the bucket has refilled completely, meaning it has been idle long
+     * enough to be forgotten.
+     *
+     * @param nowNanos The current time, from {@link System#nanoTime()}.
+     * @return True if the bucket is full.
+     */
+    public boolean isFull(long nowNanos) {
+        return fullAtNanos.get() - nowNanos <= 0;
+    }
+
+    /**
+     * Gets the number of whole tokens the bucket holds.
+     *
+     * @param nowNanos The current time, from {@link System#nanoTime()}.
+     * @return The available tokens, 0 if the bucket is empty or in debt.
+     */
+    public long available(long nowNanos) {
+        long debt = Math.max(fullAtNanos.get() - nowNanos, 0);
+        return Math.max(capacityNanos - debt, 0) / intervalNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "TokenBucket{" +
+                "tokens=" + available(System.nanoTime()) +
+                ", burst=" + capacityNanos / intervalNanos +
+                '}';
+    }
+}
@@ -0,0 +1,74 @@
+package server;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * One page of a prefix query over the connected usernames, with the cursor that fetches
+ * the page after it.
+ */
+public class UserPage {
+    private final List<String> usernames;
+    private final String nextCursor;
+
+    /**
+     * Constructs a UserPage.
+     *
+     * @param usernames  The usernames on the page, in order.
+     * @param nextCursor The cursor for the next page, or empty if this is the last one.
+     */
+    public UserPage(List<String> usernames, String nextCursor) {
+        this.usernames = List.copyOf(usernames);
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * Gets the usernames on the page.
+     *
+     * @return An unmodifiable list of usernames.
+     */
+    public List<String> getUsernames() {
+        return usernames;
+    }
+
+    /**
+     * Gets the cursor to pass to fetch the next page.
+     *
+     * @return The cursor, or empty if there are no more names.
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * Checks whether more names follow this page.
+     *
+     * @return True if there is a next page.
+     */
+    public boolean hasMore() {
+        return !nextCursor.isEmpty();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        UserPage that = (UserPage) o;
+
+        return usernames.equals(that.usernames) && nextCursor.equals(that.nextCursor);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(usernames, nextCursor);
+    }
+
+    @Override
+    public String toString() {
+        return "UserPage{" +
+                "usernames=" + usernames.size() +
+                ", nextCursor='" + nextCursor + '\'' +
+                '}';
+    }
+}
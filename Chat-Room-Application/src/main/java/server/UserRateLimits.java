@@ -0,0 +1,84 @@
+package server;
+
+/**
+ * One user's token buckets, one per limited message type, checked on every message the
+ * user sends. A bucket is built the first time the user sends its type, and rebuilt if
+ * the server's limit for the type has changed since.
+ *
+ * <p>A user's messages are processed one at a time, by its handler thread or its event
+ * loop, so the table itself is not shared; the buckets it holds never lock.
+ */
+public class UserRateLimits {
+    /**
+     * Returned by {@link #acquire(int, long)} when a message is over its limit and is to
+     * be rejected or dropped.
+     */
+    public static final long OVER_LIMIT = -1;
+
+    private final MessageRateLimiter limiter;
+    private final RateLimit[] limits;
+    private final TokenBucket[] buckets;
+
+    /**
+     * Constructs a UserRateLimits with no buckets yet.
+     *
+     * @param limiter The server-wide limits.
+     */
+    public UserRateLimits(MessageRateLimiter limiter) {
+        this.limiter = limiter;
+        this.limits = new RateLimit[MessageRateLimiter.TYPE_SLOTS];
+        this.buckets = new TokenBucket[MessageRateLimiter.TYPE_SLOTS];
+    }
+
+    /**
+     * Spends a token for a message of the given type. A message over a limit with the
+     * {@link RateLimitPolicy#DELAY} policy spends its token in advance, and the caller
+     * holds it back for the returned time; any other message over its limit is counted
+     * and spends nothing.
+     *
+     * @param type     The message type's value.
+     * @param nowNanos The current time, from {@link System#nanoTime()}.
+     * @return 0 if the message may be processed now, the nanoseconds to hold it back
+     *         for, or {@link #OVER_LIMIT}.
+     */
+    public long acquire(int type, long nowNanos) {
+        RateLimit limit = limiter.getLimit(type);
+
+        if (limit == null) {
+            return 0;
+        }
+
+        if (limits[type] != limit) {
+            limits[type] = limit;
+            buckets[type] = limit.newBucket(nowNanos);
+        }
+
+        if (limit.getPolicy() == RateLimitPolicy.DELAY) {
+            long wait = buckets[type].reserve(nowNanos);
+
+            if (wait > 0) {
+                limiter.recordLimited(RateLimitPolicy.DELAY);
+            }
+
+            return wait;
+        }
+
+        if (buckets[type].tryAcquire(nowNanos)) {
+            return 0;
+        }
+
+        limiter.recordLimited(limit.getPolicy());
+        return OVER_LIMIT;
+    }
+
+    /**
+     * Gets the policy for messages of a type over their limit.
+     *
+     * @param type The message type's value.
+     * @return The policy, or null if the type is not limited.
+     */
+    public RateLimitPolicy getPolicy(int type) {
+        RateLimit limit = limits[type];
+        return limit != null ? limit.getPolicy() : null;
+    }
+}
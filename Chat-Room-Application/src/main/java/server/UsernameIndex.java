@@ -0,0 +1,92 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * The connected usernames in sorted order, for answering prefix queries a page at a time.
+ * Backed by a concurrent skip list, so finding where a page starts costs O(log n) however
+ * many users are connected, and reading a page never locks or copies the roster.
+ */
+public class UsernameIndex {
+    private final ConcurrentSkipListSet<String> usernames;
+
+    /**
+     * Constructs an empty UsernameIndex.
+     */
+    public UsernameIndex() {
+        this.usernames = new ConcurrentSkipListSet<>();
+    }
+
+    /**
+     * Adds a username.
+     *
+     * @param username The username.
+     */
+    public void add(String username) {
+        usernames.add(username);
+    }
+
+    /**
+     * Removes a username.
+     *
+     * @param username The username.
+     */
+    public void remove(String username) {
+        usernames.remove(username);
+    }
+
+    /**
+     * Gets one page of the usernames that start with a prefix, in order.
+     *
+     * @param prefix          The prefix every listed name starts with; empty for all names.
+     * @param cursor          The last name of the previous page, or empty for the first page.
+     * @param limit           The most names to list, at least 1.
+     * @param excludeUsername A username to leave out, such as the requester's, or null.
+     * @return The page, with the cursor for the next page if there are more names.
+     */
+    public UserPage page(String prefix, String cursor, int limit, String excludeUsername) {
+        NavigableSet<String> tail = cursor.isEmpty() || cursor.compareTo(prefix) < 0
+                ? usernames.tailSet(prefix, true)
+                : usernames.tailSet(cursor, false);
+        List<String> names = new ArrayList<>(Math.min(limit, 64));
+
+        for (String username : tail) {
+            if (!username.startsWith(prefix)) {
+                break;
+            }
+
+            if (username.equals(excludeUsername)) {
+                continue;
+            }
+
+            if (names.size() == limit) {
+                // One more name matches, so there is a next page.
+                return new UserPage(names, names.get(names.size() - 1));
+            }
+
+            names.add(username);
+        }
+
+        return new UserPage(names, "");
+    }
+
+    /**
+     * Gets the number of indexed usernames. Counting is O(n), so this is meant for tests
+     * and stats rather than the query path.
+     *
+     * @return The username count.
+     */
+    public int size() {
+        return usernames.size();
+    }
+
+    @Override
+    public String toString() {
+        return "UsernameIndex{" +
+                "usernames=" + usernames.size() +
+                '}';
+    }
+}
@@ -0,0 +1,53 @@
+package storage;
+
+import util.Message;
+import util.MessageType;
+
+/**
+ * Names the conversations the message log indexes by time: each room, and each pair of
+ * users exchanging direct messages. Broadcasts belong to no conversation.
+ */
+public final class Conversations {
+    private Conversations() {
+    }
+
+    /**
+     * Names a room's conversation.
+     *
+     * @param room The room name.
+     * @return The conversation key.
+     */
+    public static String room(String room) {
+        return "#" + room;
+    }
+
+    /**
+     * Names the conversation between two users. Either may come first.
+     *
+     * @param user  One user's username.
+     * @param other The other user's username.
+     * @return The conversation key.
+     */
+    public static String direct(String user, String other) {
+        // Room names never hold a newline, so these can't collide with room keys.
+        return user.compareTo(other) <= 0 ? user + '\n' + other : other + '\n' + user;
+    }
+
+    /**
+     * Finds the conversation a logged message belongs to.
+     *
+     * @param message The message.
+     * @return The conversation key, or null for a message in none.
+     */
+    public static String of(Message message) {
+        if (message.is(MessageType.ROOM_MESSAGE)) {
+            return room(message.getField(1));
+        }
+
+        else if (message.is(MessageType.DIRECT_MESSAGE)) {
+            return direct(message.getField(0), message.getField(1));
+        }
+
+        return null;
+    }
+}
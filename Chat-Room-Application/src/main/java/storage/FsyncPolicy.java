@@ -0,0 +1,34 @@
+package storage;
+
+/**
+ * Enum representing when the message log forces what it has written to disk.
+ */
+public enum FsyncPolicy {
+    /**
+     * Force after every message, so nothing written is lost to a crash.
+     */
+    EVERY_MESSAGE,
+
+    /**
+     * Force at most once per commit interval, covering every message written since the
+     * last one, so a crash loses at most one interval of messages.
+     */
+    GROUP_COMMIT,
+
+    /**
+     * Leave flushing to the operating system, forcing only when a segment fills or the log
+     * closes. A process crash loses nothing, but a machine crash may.
+     */
+    OS_MANAGED;
+
+    /**
+     * Parses a policy name, ignoring case and accepting dashes for underscores.
+     *
+     * @param name The policy name, e.g. "group-commit".
+     * @return The matching FsyncPolicy.
+     * @throws IllegalArgumentException If the name does not match any policy.
+     */
+    public static FsyncPolicy parse(String name) {
+        return valueOf(name.trim().replace('-', '_').toUpperCase());
+    }
+}
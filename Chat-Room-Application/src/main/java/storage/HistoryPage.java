@@ -0,0 +1,75 @@
+package storage;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * One page of a conversation's history from the message log, with the cursor that
+ * fetches the page after it.
+ */
+public class HistoryPage {
+    private final List<LogRecord> records;
+    private final long nextCursor;
+
+    /**
+     * Constructs a HistoryPage.
+     *
+     * @param records    The messages on the page, oldest first.
+     * @param nextCursor The cursor for the next page, or -1 if this is the last one.
+     */
+    public HistoryPage(List<LogRecord> records, long nextCursor) {
+        this.records = List.copyOf(records);
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * Gets the messages on the page.
+     *
+     * @return An unmodifiable list of records, oldest first.
+     */
+    public List<LogRecord> getRecords() {
+        return records;
+    }
+
+    /**
+     * Gets the cursor to pass to fetch the next page: the sequence number of the last
+     * message this page covered.
+     *
+     * @return The cursor, or -1 if no more messages in the range follow.
+     */
+    public long getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * Checks whether more messages in the range follow this page.
+     *
+     * @return True if there is a next page.
+     */
+    public boolean hasMore() {
+        return nextCursor >= 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        HistoryPage that = (HistoryPage) o;
+
+        return nextCursor == that.nextCursor && records.equals(that.records);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(records, nextCursor);
+    }
+
+    @Override
+    public String toString() {
+        return "HistoryPage{" +
+                "records=" + records.size() +
+                ", nextCursor=" + nextCursor +
+                '}';
+    }
+}
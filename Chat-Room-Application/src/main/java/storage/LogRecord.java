@@ -0,0 +1,80 @@
+package storage;
+
+import util.Message;
+
+import java.util.Objects;
+
+/**
+ * A message read back from the message log, with the sequence number and timestamp it
+ * was logged under.
+ */
+public class LogRecord {
+    private final long sequence;
+    private final long timestampMillis;
+    private final Message message;
+
+    /**
+     * Constructs a LogRecord.
+     *
+     * @param sequence        The record's sequence number.
+     * @param timestampMillis When the message was logged, in milliseconds since the epoch.
+     * @param message         The message.
+     */
+    public LogRecord(long sequence, long timestampMillis, Message message) {
+        this.sequence = sequence;
+        this.timestampMillis = timestampMillis;
+        this.message = message;
+    }
+
+    /**
+     * Gets the record's sequence number.
+     *
+     * @return The sequence number.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Gets when the message was logged.
+     *
+     * @return The timestamp in milliseconds since the epoch.
+     */
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    /**
+     * Gets the message.
+     *
+     * @return The message.
+     */
+    public Message getMessage() {
+        return message;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        LogRecord that = (LogRecord) o;
+
+        return sequence == that.sequence && timestampMillis == that.timestampMillis
+                && Objects.equals(message, that.message);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(sequence, timestampMillis, message);
+    }
+
+    @Override
+    public String toString() {
+        return "LogRecord{" +
+                "sequence=" + sequence +
+                ", timestampMillis=" + timestampMillis +
+                ", message=" + message +
+                '}';
+    }
+}
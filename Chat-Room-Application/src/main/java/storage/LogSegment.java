@@ -0,0 +1,504 @@
+package storage;
+
+import util.Frame;
+import util.FrameLimits;
+import util.Message;
+import util.MessageCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.zip.CRC32;
+
+/**
+ * One fixed-size file of the message log, memory-mapped whole. Records are appended back
+ * to back, each a header followed by the message's version 1 frame:
+ *
+ * <pre>
+ *   int  frame length
+ *   int  CRC-32 of everything after it
+ *   long sequence number
+ *   long timestamp in milliseconds
+ *   byte[] frame
+ * </pre>
+ *
+ * A zero length, or the end of the file, marks the end of the records. On opening, the
+ * records are checked in order and the first one with a bad checksum or a sequence number
+ * out of order, such as a write torn by a crash, ends the segment. Sequence numbers may
+ * skip, once compaction has dropped records from a finished segment.
+ *
+ * <p>One thread appends while any number read. The write position is published after
+ * each record is complete, and readers never look past it.
+ */
+class LogSegment {
+    /**
+     * The bytes of each record's header.
+     */
+    static final int RECORD_HEADER_BYTES = 24;
+
+    /**
+     * How many bytes of records each sparse index entry covers.
+     */
+    static final int INDEX_INTERVAL_BYTES = 4096;
+
+    private static final String SUFFIX = ".log";
+    private static final FrameLimits READ_LIMITS = new FrameLimits(Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+    private final Path path;
+    private final long baseSequence;
+    private final FileChannel channel;
+    private final MappedByteBuffer mapped;
+    private final ByteBuffer writeView;
+    private final SparseIndex index;
+    private final CRC32 crc;
+    private volatile int limit;
+    private volatile long nextSequence;
+    private volatile long firstTimestamp;
+    private volatile long lastTimestamp;
+    private int lastIndexed;
+
+    /**
+     * Maps a segment file.
+     *
+     * @param path         The segment file.
+     * @param baseSequence The sequence number of its first record.
+     * @param channel      The open file.
+     * @param size         The size to map.
+     * @throws IOException If the file cannot be mapped.
+     */
+    private LogSegment(Path path, long baseSequence, FileChannel channel, int size) throws IOException {
+        this.path = path;
+        this.baseSequence = baseSequence;
+        this.channel = channel;
+        this.mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        this.writeView = mapped.duplicate();
+        this.index = new SparseIndex();
+        this.crc = new CRC32();
+        this.nextSequence = baseSequence;
+        this.firstTimestamp = Long.MAX_VALUE;
+        this.lastTimestamp = Long.MIN_VALUE;
+        this.lastIndexed = -INDEX_INTERVAL_BYTES;
+    }
+
+    /**
+     * Creates a new, empty segment file.
+     *
+     * @param directory    The log directory.
+     * @param baseSequence The sequence number of its first record.
+     * @param size         The file size in bytes.
+     * @return The segment.
+     * @throws IOException If the file exists or cannot be created.
+     */
+    static LogSegment create(Path directory, long baseSequence, int size) throws IOException {
+        Path path = directory.resolve(fileName(baseSequence));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new LogSegment(path, baseSequence, channel, size);
+    }
+
+    /**
+     * Opens an existing segment file and recovers its records, rebuilding the index.
+     *
+     * @param path The segment file.
+     * @return The segment, positioned to append after its last good record.
+     * @throws IOException If the file cannot be read.
+     */
+    static LogSegment open(Path path) throws IOException {
+        long baseSequence = baseSequenceOf(path);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        LogSegment segment = new LogSegment(path, baseSequence, channel, (int) channel.size());
+        segment.recover();
+        return segment;
+    }
+
+    /**
+     * Names the file for a segment so that names sort in sequence order.
+     *
+     * @param baseSequence The sequence number of the segment's first record.
+     * @return The file name.
+     */
+    static String fileName(long baseSequence) {
+        return String.format("%020d%s", baseSequence, SUFFIX);
+    }
+
+    /**
+     * Checks whether a file is a segment, by its name.
+     *
+     * @param path The file.
+     * @return True if the file is a segment.
+     */
+    static boolean isSegment(Path path) {
+        String name = path.getFileName().toString();
+        return name.endsWith(SUFFIX) && name.length() == 20 + SUFFIX.length();
+    }
+
+    /**
+     * Reads the base sequence number from a segment's file name.
+     *
+     * @param path The segment file.
+     * @return The sequence number of its first record.
+     */
+    static long baseSequenceOf(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * Gets the space a frame takes as a record.
+     *
+     * @param frame The frame.
+     * @return The record size in bytes.
+     */
+    static int recordBytes(Frame frame) {
+        return RECORD_HEADER_BYTES + frame.length();
+    }
+
+    /**
+     * Walks the records from the start, stopping at the first one that is missing, torn or
+     * out of order, and indexes every good one.
+     */
+    private void recover() {
+        int position = 0;
+        long expected = baseSequence;
+
+        while (position + RECORD_HEADER_BYTES <= mapped.capacity()) {
+            int length = mapped.getInt(position);
+
+            if (length <= 0 || position + RECORD_HEADER_BYTES + length > mapped.capacity()) {
+                break;
+            }
+
+            long sequence = mapped.getLong(position + 8);
+            long timestamp = mapped.getLong(position + 16);
+
+            if (sequence < expected || mapped.getInt(position + 4) != checksum(position, length)) {
+                break;
+            }
+
+            track(sequence, timestamp, position);
+            position += RECORD_HEADER_BYTES + length;
+            expected = sequence + 1;
+        }
+
+        writeView.position(position);
+        nextSequence = expected;
+        limit = position;
+    }
+
+    /**
+     * Computes the checksum of a record: its sequence number, timestamp and frame.
+     *
+     * @param position The record's position.
+     * @param length   The frame length.
+     * @return The CRC-32.
+     */
+    private int checksum(int position, int length) {
+        crc.reset();
+        crc.update(mapped.slice(position + 8, 16 + length));
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Records a record's timestamp and indexes it if it starts a new stretch of the segment.
+     *
+     * @param sequence  The record's sequence number.
+     * @param timestamp The record's timestamp.
+     * @param position  The record's position.
+     */
+    private void track(long sequence, long timestamp, int position) {
+        if (position - lastIndexed >= INDEX_INTERVAL_BYTES) {
+            index.add(sequence, timestamp, position);
+            lastIndexed = position;
+        }
+
+        if (firstTimestamp == Long.MAX_VALUE) {
+            firstTimestamp = timestamp;
+        }
+
+        lastTimestamp = timestamp;
+    }
+
+    /**
+     * Appends a record, if there is room for it.
+     *
+     * @param sequence  The record's sequence number, which must be the segment's next.
+     * @param timestamp The record's timestamp, no earlier than the last record's.
+     * @param frame     The message's version 1 frame.
+     * @return False if the segment is too full to take the record.
+     */
+    boolean append(long sequence, long timestamp, Frame frame) {
+        int position = writeView.position();
+        int length = frame.length();
+
+        if (position + RECORD_HEADER_BYTES + length > mapped.capacity()) {
+            return false;
+        }
+
+        writeView.putInt(length).putInt(0).putLong(sequence).putLong(timestamp).put(frame.buffer());
+        mapped.putInt(position + 4, checksum(position, length));
+
+        if (writeView.remaining() >= Integer.BYTES) {
+            // Mark the end, in case the file is reused with stale bytes past it.
+            mapped.putInt(writeView.position(), 0);
+        }
+
+        track(sequence, timestamp, position);
+        nextSequence = sequence + 1;
+        limit = writeView.position();
+        return true;
+    }
+
+    /**
+     * Forces the segment's written records to disk.
+     */
+    void force() {
+        mapped.force();
+    }
+
+    /**
+     * Reads the record with a sequence number.
+     *
+     * @param sequence The sequence number.
+     * @return The record, or null if the segment does not hold it.
+     * @throws IOException If the record cannot be decoded.
+     */
+    LogRecord read(long sequence) throws IOException {
+        List<LogRecord> records = read(sequence, 1);
+
+        if (records.isEmpty() || records.get(0).getSequence() != sequence) {
+            // Compaction dropped it; the record found is a later one.
+            return null;
+        }
+
+        return records.get(0);
+    }
+
+    /**
+     * Reads consecutive records starting at a sequence number.
+     *
+     * @param fromSequence The first sequence number to read.
+     * @param maxRecords   The most records to read.
+     * @return The records, in order; empty if the segment does not hold the first one.
+     * @throws IOException If a record cannot be decoded.
+     */
+    List<LogRecord> read(long fromSequence, int maxRecords) throws IOException {
+        List<LogRecord> records = new ArrayList<>();
+        int end = limit;
+
+        if (fromSequence < baseSequence || fromSequence >= nextSequence) {
+            return records;
+        }
+
+        int position = Math.max(0, index.floorBySequence(fromSequence));
+
+        while (position < end && records.size() < maxRecords) {
+            int length = mapped.getInt(position);
+            long sequence = mapped.getLong(position + 8);
+
+            if (sequence >= fromSequence) {
+                records.add(decode(position, length, sequence));
+            }
+
+            position += RECORD_HEADER_BYTES + length;
+        }
+
+        return records;
+    }
+
+    /**
+     * Finds the first record logged at or after a time.
+     *
+     * @param timestampMillis The time.
+     * @return The record's sequence number, or -1 if every record is earlier.
+     */
+    long findSequence(long timestampMillis) {
+        int end = limit;
+
+        if (end == 0 || lastTimestamp < timestampMillis) {
+            return -1;
+        }
+
+        int position = Math.max(0, index.floorBeforeTimestamp(timestampMillis));
+
+        while (position < end) {
+            int length = mapped.getInt(position);
+
+            if (mapped.getLong(position + 16) >= timestampMillis) {
+                return mapped.getLong(position + 8);
+            }
+
+            position += RECORD_HEADER_BYTES + length;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Rewrites the segment without its expired and deleted records. The records kept are
+     * copied as they are to a new file, which then replaces this one in a single rename,
+     * so a crash leaves one or the other whole. This segment stays readable throughout,
+     * and must no longer be appended to.
+     *
+     * @param expiredBefore Records logged before this time are dropped.
+     * @param deleted       The sequence numbers of deleted records, which are dropped.
+     * @return The compacted segment, or null if no record was kept and the file is gone.
+     * @throws IOException If the new file cannot be written.
+     */
+    LogSegment compact(long expiredBefore, NavigableSet<Long> deleted) throws IOException {
+        Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+        int end = limit;
+        int position = 0;
+        boolean kept = false;
+
+        try (FileChannel output = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (position < end) {
+                int length = mapped.getInt(position);
+                long sequence = mapped.getLong(position + 8);
+
+                if (mapped.getLong(position + 16) >= expiredBefore && !deleted.contains(sequence)) {
+                    ByteBuffer record = mapped.slice(position, RECORD_HEADER_BYTES + length);
+
+                    while (record.hasRemaining()) {
+                        output.write(record);
+                    }
+
+                    kept = true;
+                }
+
+                position += RECORD_HEADER_BYTES + length;
+            }
+
+            output.force(true);
+        }
+
+        if (!kept) {
+            Files.delete(compacted);
+            Files.deleteIfExists(path);
+            return null;
+        }
+
+        Files.move(compacted, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return open(path);
+    }
+
+    /**
+     * Closes and deletes the segment file. Readers already in the segment finish on the
+     * mapping, which outlives the file.
+     *
+     * @throws IOException If the file cannot be deleted.
+     */
+    void delete() throws IOException {
+        channel.close();
+        Files.deleteIfExists(path);
+    }
+
+    /**
+     * Decodes the record at a position.
+     *
+     * @param position The record's position.
+     * @param length   The frame length.
+     * @param sequence The record's sequence number.
+     * @return The record.
+     * @throws IOException If the frame cannot be decoded.
+     */
+    private LogRecord decode(int position, int length, long sequence) throws IOException {
+        ByteBuffer frame = mapped.slice(position + RECORD_HEADER_BYTES, length);
+        Message message = new MessageCodec(READ_LIMITS).decode(frame);
+
+        if (message == null) {
+            throw new IOException("Truncated record " + sequence + " in " + path);
+        }
+
+        return new LogRecord(sequence, mapped.getLong(position + 16), message);
+    }
+
+    /**
+     * Gets the segment file.
+     *
+     * @return The path.
+     */
+    Path getPath() {
+        return path;
+    }
+
+    /**
+     * Gets the sequence number of the segment's first record.
+     *
+     * @return The base sequence number.
+     */
+    long getBaseSequence() {
+        return baseSequence;
+    }
+
+    /**
+     * Gets the sequence number the segment's next record would take.
+     *
+     * @return The next sequence number.
+     */
+    long getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * Gets the timestamp of the segment's first record.
+     *
+     * @return The timestamp, or Long.MAX_VALUE if the segment is empty.
+     */
+    long getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    /**
+     * Gets the timestamp of the segment's last record.
+     *
+     * @return The timestamp, or Long.MIN_VALUE if the segment is empty.
+     */
+    long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    /**
+     * Gets the bytes of records written.
+     *
+     * @return The written size in bytes.
+     */
+    int getWrittenBytes() {
+        return limit;
+    }
+
+    /**
+     * Gets the number of sparse index entries.
+     *
+     * @return The index size.
+     */
+    int getIndexSize() {
+        return index.size();
+    }
+
+    /**
+     * Closes the file. The mapping stays valid until it is garbage collected.
+     *
+     * @throws IOException If the file cannot be closed.
+     */
+    void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return "LogSegment{" +
+                "baseSequence=" + baseSequence +
+                ", nextSequence=" + nextSequence +
+                ", bytes=" + limit +
+                '}';
+    }
+}
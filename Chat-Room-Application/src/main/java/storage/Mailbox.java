@@ -0,0 +1,533 @@
+package storage;
+
+import util.Frame;
+import util.FrameLimits;
+import util.Message;
+import util.MessageCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * One recipient's undelivered messages, in an append-only file. The file starts with the
+ * offset of the first message not yet delivered, followed by the messages in the order
+ * they arrived:
+ *
+ * <pre>
+ *   long read offset
+ *   then per message:
+ *     int  frame length
+ *     int  CRC-32 of the timestamp and frame
+ *     long timestamp in milliseconds
+ *     byte[] frame
+ * </pre>
+ *
+ * Delivered messages are not rewritten one by one; the read offset moves past them, and
+ * the file is deleted once everything in it is delivered. A recipient who never catches
+ * up would leave the file growing, so once the delivered prefix is more than half the
+ * file, or {@link #COMPACT_BYTES} however large the file, the pending messages are copied
+ * to a fresh file that replaces it. A compact index of each pending
+ * message's position and timestamp, kept in primitive arrays, answers quota checks and
+ * finds where expired messages end without reading the file.
+ *
+ * <p>Messages can be read without being removed and acknowledged once they have reached
+ * the recipient, so a connection lost mid-delivery leaves them stored. Each message has
+ * an id, counting up in arrival order, that acknowledgements name it by; ids stay the
+ * same when the file is compacted.
+ */
+class Mailbox {
+    /**
+     * The delivered prefix, in bytes, past which the file is always compacted.
+     */
+    static final long COMPACT_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * The least delivered prefix, in bytes, worth compacting when it is over half the file.
+     */
+    static final long MIN_COMPACT_BYTES = 64 * 1024;
+
+    private static final String COMPACT_SUFFIX = ".compact";
+    private static final int FILE_HEADER_BYTES = Long.BYTES;
+    private static final int RECORD_HEADER_BYTES = 16;
+    private static final FrameLimits READ_LIMITS = new FrameLimits(Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+    private final Path path;
+    private FileChannel channel;
+    private long[] positions;
+    private long[] timestamps;
+    private int first;
+    private int count;
+    private long discarded;
+    private long end;
+    private long pendingBytes;
+
+    /**
+     * Opens a mailbox file, creating it if it does not exist, and indexes its pending
+     * messages. A torn message at the end, left by a crash, is cut off.
+     *
+     * @param path The mailbox file.
+     * @throws IOException If the file cannot be opened.
+     */
+    Mailbox(Path path) throws IOException {
+        this.path = path;
+        this.positions = new long[16];
+        this.timestamps = new long[16];
+
+        // A compaction interrupted before its rename; the original is intact.
+        Files.deleteIfExists(compactPath());
+        open();
+    }
+
+    /**
+     * Names the file a compaction writes before it replaces the mailbox file.
+     *
+     * @return The path of the compacted copy.
+     */
+    private Path compactPath() {
+        return path.resolveSibling(path.getFileName() + COMPACT_SUFFIX);
+    }
+
+    /**
+     * Opens the file and scans it from the read offset.
+     *
+     * @throws IOException If the file cannot be read.
+     */
+    private void open() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = channel.size();
+
+        if (size < FILE_HEADER_BYTES) {
+            writeReadOffset(FILE_HEADER_BYTES);
+            end = FILE_HEADER_BYTES;
+            return;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        readFully(header, 0);
+        long position = Math.max(FILE_HEADER_BYTES, header.getLong(0));
+
+        while (position + RECORD_HEADER_BYTES <= size) {
+            header.clear();
+            readFully(header, position);
+            int length = header.getInt(0);
+
+            if (length <= 0 || position + RECORD_HEADER_BYTES + length > size) {
+                break;
+            }
+
+            ByteBuffer body = ByteBuffer.allocate(Long.BYTES + length);
+            readFully(body, position + 8);
+
+            if (header.getInt(4) != checksum(body.flip())) {
+                break;
+            }
+
+            add(position, header.getLong(8), RECORD_HEADER_BYTES + length);
+            position += RECORD_HEADER_BYTES + length;
+        }
+
+        end = position;
+
+        if (end < size) {
+            channel.truncate(end);
+        }
+    }
+
+    /**
+     * Reads from the file until a buffer is full or the file ends.
+     *
+     * @param buffer   The buffer to fill.
+     * @param position The file position to read from.
+     * @throws IOException If the file cannot be read.
+     */
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Computes the checksum of a message's timestamp and frame.
+     *
+     * @param body The timestamp followed by the frame.
+     * @return The CRC-32.
+     */
+    private static int checksum(ByteBuffer body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Adds a message to the index.
+     *
+     * @param position  The message's position in the file.
+     * @param timestamp When it arrived.
+     * @param bytes     Its size in the file.
+     */
+    private void add(long position, long timestamp, int bytes) {
+        if (count == positions.length) {
+            if (first > 0) {
+                // Reclaim the delivered prefix before growing.
+                System.arraycopy(positions, first, positions, 0, count - first);
+                System.arraycopy(timestamps, first, timestamps, 0, count - first);
+                count -= first;
+                discarded += first;
+                first = 0;
+            }
+
+            if (count == positions.length) {
+                positions = Arrays.copyOf(positions, count * 2);
+                timestamps = Arrays.copyOf(timestamps, count * 2);
+            }
+        }
+
+        positions[count] = position;
+        timestamps[count] = timestamp;
+        count++;
+        pendingBytes += bytes;
+    }
+
+    /**
+     * Appends a message, unless it would take the mailbox over either quota.
+     *
+     * @param frame           The message's frame.
+     * @param timestampMillis When it arrived.
+     * @param maxMessages     The most messages the mailbox may hold.
+     * @param maxBytes        The most bytes of messages the mailbox may hold.
+     * @return False if the mailbox is full.
+     * @throws IOException If the message cannot be written.
+     */
+    synchronized boolean append(Frame frame, long timestampMillis, int maxMessages, long maxBytes)
+            throws IOException {
+        int bytes = RECORD_HEADER_BYTES + frame.length();
+
+        if (size() >= maxMessages || pendingBytes + bytes > maxBytes) {
+            return false;
+        }
+
+        ensureOpen();
+
+        if (count > first) {
+            // Keep arrival times in order, so expiry can binary-search them.
+            timestampMillis = Math.max(timestampMillis, timestamps[count - 1]);
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(bytes);
+        record.putInt(frame.length()).putInt(0).putLong(timestampMillis).put(frame.buffer());
+        record.putInt(4, checksum(record.duplicate().position(8).limit(bytes)));
+        record.flip();
+
+        while (record.hasRemaining()) {
+            channel.write(record, end + record.position());
+        }
+
+        add(end, timestampMillis, bytes);
+        end += bytes;
+        return true;
+    }
+
+    /**
+     * Takes the next pending messages, skipping expired ones, and moves the read offset
+     * past them.
+     *
+     * @param max           The most messages to take.
+     * @param expiredBefore Messages that arrived before this time are dropped instead.
+     * @return The messages, oldest first.
+     * @throws IOException If the file cannot be read.
+     */
+    synchronized List<Message> take(int max, long expiredBefore) throws IOException {
+        MailboxStore.Batch batch = peek(max, expiredBefore);
+        acknowledge(batch.through(batch.size()));
+        return batch.getMessages();
+    }
+
+    /**
+     * Reads the next pending messages, dropping expired ones, without removing them.
+     *
+     * @param max           The most messages to read.
+     * @param expiredBefore Messages that arrived before this time are dropped instead.
+     * @return The messages, oldest first, with the id of the first.
+     * @throws IOException If the file cannot be read.
+     */
+    synchronized MailboxStore.Batch peek(int max, long expiredBefore) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        purge(expiredBefore);
+        MessageCodec codec = new MessageCodec(READ_LIMITS);
+
+        for (int i = first; i < count && messages.size() < max; i++) {
+            ByteBuffer record = ByteBuffer.allocate((int) recordBytes(i));
+            readFully(record, positions[i]);
+            record.position(RECORD_HEADER_BYTES);
+            messages.add(codec.decode(record));
+        }
+
+        return new MailboxStore.Batch(messages, discarded + first);
+    }
+
+    /**
+     * Removes the pending messages with ids below an id, once they have been delivered,
+     * and moves the read offset past them. Messages already dropped are skipped.
+     *
+     * @param through The id just past the last delivered message.
+     * @return The number of messages removed.
+     * @throws IOException If the read offset cannot be written.
+     */
+    synchronized int acknowledge(long through) throws IOException {
+        int acknowledged = 0;
+
+        while (first < count && discarded + first < through) {
+            pendingBytes -= recordBytes(first);
+            first++;
+            acknowledged++;
+        }
+
+        if (acknowledged > 0) {
+            writeReadOffset(readOffset());
+            reclaim();
+        }
+
+        return acknowledged;
+    }
+
+    /**
+     * Gets the size in the file of an indexed message.
+     *
+     * @param slot The message's slot in the index.
+     * @return Its header and frame bytes.
+     */
+    private long recordBytes(int slot) {
+        return (slot + 1 < count ? positions[slot + 1] : end) - positions[slot];
+    }
+
+    /**
+     * Drops the messages that arrived before a time, compacting the file if that leaves
+     * enough of it delivered.
+     *
+     * @param expiredBefore The expiry time.
+     * @return The number of messages dropped.
+     * @throws IOException If the read offset cannot be written.
+     */
+    synchronized int purge(long expiredBefore) throws IOException {
+        int dropped = drop(expiredBefore);
+
+        if (dropped > 0) {
+            reclaim();
+        }
+
+        return dropped;
+    }
+
+    /**
+     * Drops the messages that arrived before a time. Messages are in arrival order, so the
+     * expired ones are a prefix, found by binary search.
+     *
+     * @param expiredBefore The expiry time.
+     * @return The number of messages dropped.
+     * @throws IOException If the read offset cannot be written.
+     */
+    private int drop(long expiredBefore) throws IOException {
+        int live = Arrays.binarySearch(timestamps, first, count, expiredBefore);
+
+        if (live < 0) {
+            live = -live - 1;
+        }
+
+        else {
+            // Step back over equal timestamps, which are not expired.
+            while (live > first && timestamps[live - 1] == expiredBefore) {
+                live--;
+            }
+        }
+
+        int dropped = live - first;
+
+        if (dropped > 0) {
+            long next = live < count ? positions[live] : end;
+            pendingBytes -= next - positions[first];
+            first = live;
+            writeReadOffset(next);
+        }
+
+        return dropped;
+    }
+
+    /**
+     * Gets the offset of the first pending message, or of the end of the file if there is
+     * none.
+     *
+     * @return The read offset.
+     */
+    private long readOffset() {
+        return first < count ? positions[first] : end;
+    }
+
+    /**
+     * Compacts the file if its delivered prefix is more than half of it and at least
+     * {@link #MIN_COMPACT_BYTES}, or at least {@link #COMPACT_BYTES}. The read offset is
+     * already written, so a failed compaction loses nothing and is tried again next time.
+     */
+    private void reclaim() {
+        if (channel == null) {
+            return;
+        }
+
+        long dead = readOffset() - FILE_HEADER_BYTES;
+
+        if (dead < COMPACT_BYTES && (dead < MIN_COMPACT_BYTES || dead <= end - readOffset())) {
+            return;
+        }
+
+        try {
+            compact();
+        }
+
+        catch (IOException e) {
+            System.err.println("Error compacting mailbox " + path.getFileName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Copies the pending messages to a fresh file, forces it to disk and renames it over
+     * the mailbox file, then indexes the new file. A crash before the rename leaves the
+     * original, which is complete.
+     *
+     * @throws IOException If the copy cannot be written or renamed.
+     */
+    private void compact() throws IOException {
+        Path compacted = compactPath();
+        long offset = readOffset();
+
+        try (FileChannel copy = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES).putLong(0, FILE_HEADER_BYTES);
+
+            while (header.hasRemaining()) {
+                copy.write(header);
+            }
+
+            for (long position = offset; position < end; ) {
+                position += channel.transferTo(position, end - position, copy);
+            }
+
+            copy.force(true);
+        }
+
+        catch (IOException e) {
+            Files.deleteIfExists(compacted);
+            throw e;
+        }
+
+        channel.close();
+        channel = null;
+
+        try {
+            Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        finally {
+            // The new file if the rename went through, the original if it did not.
+            discarded += first;
+            first = 0;
+            count = 0;
+            pendingBytes = 0;
+            open();
+        }
+    }
+
+    /**
+     * Deletes the file if every message in it has been delivered or expired.
+     *
+     * @return True if the mailbox was empty and its file is gone.
+     * @throws IOException If the file cannot be deleted.
+     */
+    synchronized boolean deleteIfEmpty() throws IOException {
+        if (size() > 0) {
+            return false;
+        }
+
+        if (channel != null) {
+            channel.close();
+            channel = null;
+            Files.deleteIfExists(path);
+        }
+
+        return true;
+    }
+
+    /**
+     * Reopens the file after the mailbox was emptied and deleted, so it can take new mail.
+     *
+     * @throws IOException If the file cannot be created.
+     */
+    private void ensureOpen() throws IOException {
+        if (channel == null) {
+            discarded += count;
+            first = 0;
+            count = 0;
+            pendingBytes = 0;
+            open();
+        }
+    }
+
+    /**
+     * Writes the offset of the first pending message to the file's header.
+     *
+     * @param offset The offset.
+     * @throws IOException If it cannot be written.
+     */
+    private void writeReadOffset(long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES).putLong(0, offset);
+        channel.write(header, 0);
+    }
+
+    /**
+     * Gets the number of pending messages.
+     *
+     * @return The message count.
+     */
+    synchronized int size() {
+        return count - first;
+    }
+
+    /**
+     * Gets the bytes of pending messages.
+     *
+     * @return The byte count.
+     */
+    synchronized long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * Closes the file.
+     *
+     * @throws IOException If it cannot be closed.
+     */
+    synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Mailbox{" +
+                "path=" + path.getFileName() +
+                ", pending=" + (count - first) +
+                ", bytes=" + pendingBytes +
+                '}';
+    }
+}
@@ -0,0 +1,365 @@
+package storage;
+
+import util.Frame;
+import util.Message;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Direct messages waiting for recipients who are offline, kept on disk in one append-only
+ * {@link Mailbox} file per recipient. Each mailbox has a quota of messages and bytes, and
+ * messages older than the time to live are dropped unread.
+ *
+ * <p>Mailboxes are independent: storing to or taking from one locks only that one, so a
+ * recipient working through a large backlog doesn't hold up anyone else's mail.
+ */
+public class MailboxStore implements Closeable {
+    private static final String SUFFIX = ".mbox";
+
+    private final Path directory;
+    private final int maxMessages;
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final ConcurrentHashMap<String, Mailbox> mailboxes;
+    private final AtomicLong stored;
+    private final AtomicLong delivered;
+    private final AtomicLong expired;
+    private final AtomicLong rejected;
+
+    /**
+     * Opens the store in a directory, indexing every mailbox already there.
+     *
+     * @param directory   The directory to keep mailboxes in, created if needed.
+     * @param maxMessages The most messages one mailbox may hold.
+     * @param maxBytes    The most bytes of messages one mailbox may hold.
+     * @param ttlMillis   How long a message waits before it is dropped unread.
+     * @throws IOException If the directory or a mailbox cannot be opened.
+     */
+    public MailboxStore(Path directory, int maxMessages, long maxBytes, long ttlMillis) throws IOException {
+        this.directory = directory;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+        this.mailboxes = new ConcurrentHashMap<>();
+        this.stored = new AtomicLong();
+        this.delivered = new AtomicLong();
+        this.expired = new AtomicLong();
+        this.rejected = new AtomicLong();
+
+        Files.createDirectories(directory);
+
+        try (Stream<Path> listing = Files.list(directory)) {
+            for (Path file : listing.filter(path -> path.toString().endsWith(SUFFIX)).toList()) {
+                mailboxes.put(recipientOf(file), new Mailbox(file));
+            }
+        }
+    }
+
+    /**
+     * Names a recipient's mailbox file. Usernames are hex-encoded, so any name makes a
+     * safe file name.
+     *
+     * @param recipient The recipient's username.
+     * @return The file name.
+     */
+    private static String fileName(String recipient) {
+        return HexFormat.of().formatHex(recipient.getBytes(StandardCharsets.UTF_8)) + SUFFIX;
+    }
+
+    /**
+     * Reads the recipient's username back from a mailbox file name.
+     *
+     * @param file The mailbox file.
+     * @return The recipient's username.
+     */
+    private static String recipientOf(Path file) {
+        String name = file.getFileName().toString();
+        byte[] bytes = HexFormat.of().parseHex(name.substring(0, name.length() - SUFFIX.length()));
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Stores a message for a recipient.
+     *
+     * @param recipient The recipient's username.
+     * @param frame     The message's frame, in the current protocol version.
+     * @return False if the recipient's mailbox is full.
+     * @throws IOException If the message cannot be written.
+     */
+    public boolean store(String recipient, Frame frame) throws IOException {
+        return store(recipient, frame, System.currentTimeMillis());
+    }
+
+    /**
+     * Stores a message for a recipient, as if it arrived at a given time.
+     *
+     * @param recipient       The recipient's username.
+     * @param frame           The message's frame, in the current protocol version.
+     * @param timestampMillis When the message arrived.
+     * @return False if the recipient's mailbox is full.
+     * @throws IOException If the message cannot be written.
+     */
+    public boolean store(String recipient, Frame frame, long timestampMillis) throws IOException {
+        Mailbox mailbox = mailbox(recipient);
+        expired.addAndGet(mailbox.purge(timestampMillis - ttlMillis));
+
+        if (!mailbox.append(frame, timestampMillis, maxMessages, maxBytes)) {
+            rejected.incrementAndGet();
+            return false;
+        }
+
+        stored.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Gets a recipient's mailbox, opening it on first use.
+     *
+     * @param recipient The recipient's username.
+     * @return The mailbox.
+     * @throws IOException If the mailbox cannot be opened.
+     */
+    private Mailbox mailbox(String recipient) throws IOException {
+        Mailbox mailbox = mailboxes.get(recipient);
+
+        if (mailbox != null) {
+            return mailbox;
+        }
+
+        Mailbox opened = new Mailbox(directory.resolve(fileName(recipient)));
+        Mailbox existing = mailboxes.putIfAbsent(recipient, opened);
+
+        if (existing != null) {
+            opened.close();
+            return existing;
+        }
+
+        return opened;
+    }
+
+    /**
+     * Takes a recipient's next pending messages, oldest first, dropping expired ones. Once
+     * the mailbox is empty its file is deleted.
+     *
+     * @param recipient The recipient's username.
+     * @param max       The most messages to take.
+     * @return The messages; fewer than the maximum only if the mailbox is now empty.
+     * @throws IOException If the mailbox cannot be read.
+     */
+    public List<Message> take(String recipient, int max) throws IOException {
+        Mailbox mailbox = mailboxes.get(recipient);
+
+        if (mailbox == null) {
+            return List.of();
+        }
+
+        int before = mailbox.size();
+        List<Message> taken = mailbox.take(max, System.currentTimeMillis() - ttlMillis);
+        delivered.addAndGet(taken.size());
+        expired.addAndGet(Math.max(0, before - mailbox.size() - taken.size()));
+
+        if (taken.size() < max) {
+            mailbox.deleteIfEmpty();
+        }
+
+        return taken;
+    }
+
+    /**
+     * Reads a recipient's next pending messages, oldest first, dropping expired ones,
+     * without removing them. They stay stored until they are acknowledged.
+     *
+     * @param recipient The recipient's username.
+     * @param max       The most messages to read.
+     * @return The messages; fewer than the maximum only if no more are stored.
+     * @throws IOException If the mailbox cannot be read.
+     */
+    public Batch peek(String recipient, int max) throws IOException {
+        Mailbox mailbox = mailboxes.get(recipient);
+
+        if (mailbox == null) {
+            return new Batch(List.of(), 0);
+        }
+
+        int before = mailbox.size();
+        Batch batch = mailbox.peek(max, System.currentTimeMillis() - ttlMillis);
+        expired.addAndGet(Math.max(0, before - mailbox.size()));
+        return batch;
+    }
+
+    /**
+     * Removes a recipient's messages once they have been delivered. Once the mailbox is
+     * empty its file is deleted.
+     *
+     * @param recipient The recipient's username.
+     * @param through   The receipt for the delivered messages, from {@link Batch#through(int)}.
+     * @return The number of messages removed; messages that expired meanwhile are not counted.
+     * @throws IOException If the mailbox cannot be updated.
+     */
+    public int acknowledge(String recipient, long through) throws IOException {
+        Mailbox mailbox = mailboxes.get(recipient);
+
+        if (mailbox == null) {
+            return 0;
+        }
+
+        int acknowledged = mailbox.acknowledge(through);
+        delivered.addAndGet(acknowledged);
+        mailbox.deleteIfEmpty();
+        return acknowledged;
+    }
+
+    /**
+     * Drops expired messages from every mailbox and deletes the mailboxes left empty.
+     *
+     * @return The number of messages dropped.
+     * @throws IOException If a mailbox cannot be updated.
+     */
+    public int purgeExpired() throws IOException {
+        long expiredBefore = System.currentTimeMillis() - ttlMillis;
+        int dropped = 0;
+
+        for (Mailbox mailbox : mailboxes.values()) {
+            dropped += mailbox.purge(expiredBefore);
+            mailbox.deleteIfEmpty();
+        }
+
+        expired.addAndGet(dropped);
+        return dropped;
+    }
+
+    /**
+     * Gets the number of messages waiting for a recipient.
+     *
+     * @param recipient The recipient's username.
+     * @return The pending message count.
+     */
+    public int pending(String recipient) {
+        Mailbox mailbox = mailboxes.get(recipient);
+        return mailbox != null ? mailbox.size() : 0;
+    }
+
+    /**
+     * Gets the number of messages stored.
+     *
+     * @return The stored count.
+     */
+    public long getStoredCount() {
+        return stored.get();
+    }
+
+    /**
+     * Gets the number of messages taken for delivery.
+     *
+     * @return The delivered count.
+     */
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    /**
+     * Gets the number of messages dropped unread once they expired.
+     *
+     * @return The expired count.
+     */
+    public long getExpiredCount() {
+        return expired.get();
+    }
+
+    /**
+     * Gets the number of messages refused because a mailbox was full.
+     *
+     * @return The rejected count.
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Closes every mailbox file.
+     *
+     * @throws IOException If a file cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        for (Mailbox mailbox : mailboxes.values()) {
+            mailbox.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MailboxStore{" +
+                "mailboxes=" + mailboxes.size() +
+                ", stored=" + stored.get() +
+                ", delivered=" + delivered.get() +
+                ", expired=" + expired.get() +
+                ", rejected=" + rejected.get() +
+                '}';
+    }
+
+    /**
+     * Messages read from a mailbox but not yet removed, with the id of the first, so that
+     * any number of them from the start can be acknowledged once delivered.
+     */
+    public static class Batch {
+        private final List<Message> messages;
+        private final long firstId;
+
+        /**
+         * Constructs a Batch.
+         *
+         * @param messages The messages, oldest first.
+         * @param firstId  The id of the first message.
+         */
+        Batch(List<Message> messages, long firstId) {
+            this.messages = messages;
+            this.firstId = firstId;
+        }
+
+        /**
+         * Gets the messages.
+         *
+         * @return The messages, oldest first.
+         */
+        public List<Message> getMessages() {
+            return messages;
+        }
+
+        /**
+         * Gets the number of messages.
+         *
+         * @return The message count.
+         */
+        public int size() {
+            return messages.size();
+        }
+
+        /**
+         * Gets the receipt that acknowledges the first messages of the batch.
+         *
+         * @param count How many messages, from the start, were delivered.
+         * @return The receipt to pass to {@link MailboxStore#acknowledge(String, long)}.
+         */
+        public long through(int count) {
+            return firstId + count;
+        }
+
+        @Override
+        public String toString() {
+            return "Batch{" +
+                    "messages=" + messages.size() +
+                    ", firstId=" + firstId +
+                    '}';
+        }
+    }
+}
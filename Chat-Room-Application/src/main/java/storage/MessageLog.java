@@ -0,0 +1,971 @@
+package storage;
+
+import util.Frame;
+import util.FrameLimits;
+import util.Message;
+import util.MessageCodec;
+import util.MessageType;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * A durable, append-only log of the messages the server relays, kept as a directory of
+ * memory-mapped segment files. Each message gets the next sequence number and the time it
+ * was handed to the log, and a full segment rolls over to a new one.
+ *
+ * <p>Appending only queues the message's already-encoded frame; a single writer thread
+ * copies it into the current segment and forces the segment to disk as the
+ * {@link FsyncPolicy} requires, so the fan-out never waits on the disk. If the writer
+ * falls a whole queue behind, further appends are dropped and counted rather than hold
+ * up the relaying thread, which may be an event loop.
+ *
+ * <p>Reads take no lock and see every record the writer has finished. Each segment keeps a
+ * sparse index of sequence numbers and timestamps, so a lookup by either scans at most one
+ * stretch of one segment. Each room and each pair of users exchanging direct messages
+ * also has a {@link TimeIndex} of its messages, so a page of a conversation's history is
+ * found by binary search and read record by record, never by scanning segments.
+ *
+ * <p>A cleaner thread enforces retention in the background: finished segments entirely
+ * older than the retention age, or the oldest ones while the log is over its size limit,
+ * are deleted whole. A finished segment holding expired or deleted records is compacted,
+ * rewritten without them and swapped in. The writer never waits for the cleaner, which
+ * leaves the segment being written alone.
+ */
+public class MessageLog implements Closeable {
+    /**
+     * The most appends that may wait for the writer thread; appends beyond it are dropped.
+     */
+    public static final int QUEUE_CAPACITY = 65536;
+
+    /**
+     * How often the cleaner enforces retention and compacts segments.
+     */
+    public static final long CLEANUP_INTERVAL_MILLIS = 60 * 1000;
+
+    private static final Pending CLOSE = new Pending(null, 0, null);
+    private static final String TOMBSTONES = "deleted.idx";
+    private static final FrameLimits READ_LIMITS = new FrameLimits(Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final FsyncPolicy fsyncPolicy;
+    private final long groupCommitNanos;
+    private final long retentionMillis;
+    private final long retentionBytes;
+    private final ConcurrentSkipListMap<Long, LogSegment> segments;
+    private final ConcurrentHashMap<String, TimeIndex> timelines;
+    private final ConcurrentSkipListSet<Long> deleted;
+    private final BlockingQueue<Pending> queue;
+    private final Thread writer;
+    private final ScheduledExecutorService cleaner;
+    private final MessageCodec codec;
+    private final AtomicLong appended;
+    private final AtomicLong syncs;
+    private final AtomicLong failures;
+    private final AtomicLong dropped;
+    private final AtomicLong removedSegments;
+    private final AtomicLong compactedSegments;
+    private volatile boolean closed;
+    private FileChannel tombstones;
+    private LogSegment active;
+    private long lastTimestamp;
+    private boolean dirty;
+    private long lastSyncNanos;
+
+    /**
+     * Opens the log in a directory, recovering any segments already there, and starts its
+     * writer thread. Messages are kept until the log is closed.
+     *
+     * @param directory         The directory to keep segments in, created if needed.
+     * @param segmentBytes      The size of each segment file.
+     * @param fsyncPolicy       When to force written messages to disk.
+     * @param groupCommitMillis How often to force under {@link FsyncPolicy#GROUP_COMMIT}.
+     * @throws IOException If the directory or its segments cannot be opened.
+     */
+    public MessageLog(Path directory, int segmentBytes, FsyncPolicy fsyncPolicy, long groupCommitMillis)
+            throws IOException {
+        this(directory, segmentBytes, fsyncPolicy, groupCommitMillis, Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Opens the log in a directory, recovering any segments already there, and starts its
+     * writer and cleaner threads.
+     *
+     * @param directory         The directory to keep segments in, created if needed.
+     * @param segmentBytes      The size of each segment file.
+     * @param fsyncPolicy       When to force written messages to disk.
+     * @param groupCommitMillis How often to force under {@link FsyncPolicy#GROUP_COMMIT}.
+     * @param retentionMillis   How long messages are kept.
+     * @param retentionBytes    The most bytes of segments kept. The segment being written
+     *                          is always kept, so the log may briefly exceed this by one.
+     * @throws IOException If the directory or its segments cannot be opened.
+     */
+    public MessageLog(Path directory, int segmentBytes, FsyncPolicy fsyncPolicy, long groupCommitMillis,
+                      long retentionMillis, long retentionBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.fsyncPolicy = fsyncPolicy;
+        this.groupCommitNanos = TimeUnit.MILLISECONDS.toNanos(groupCommitMillis);
+        this.retentionMillis = retentionMillis;
+        this.retentionBytes = retentionBytes;
+        this.segments = new ConcurrentSkipListMap<>();
+        this.timelines = new ConcurrentHashMap<>();
+        this.deleted = new ConcurrentSkipListSet<>();
+        this.queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        this.codec = new MessageCodec(READ_LIMITS);
+        this.appended = new AtomicLong();
+        this.syncs = new AtomicLong();
+        this.failures = new AtomicLong();
+        this.dropped = new AtomicLong();
+        this.removedSegments = new AtomicLong();
+        this.compactedSegments = new AtomicLong();
+
+        Files.createDirectories(directory);
+        recover();
+
+        this.writer = new Thread(this::runWriter, "message-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        this.cleaner = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "message-log-cleaner");
+            thread.setDaemon(true);
+            return thread;
+        });
+        cleaner.scheduleWithFixedDelay(this::runCleaner, CLEANUP_INTERVAL_MILLIS, CLEANUP_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens every segment in the directory, in order, makes the last one current, and
+     * rebuilds the deleted records and the conversation indexes.
+     *
+     * @throws IOException If a segment cannot be opened.
+     */
+    private void recover() throws IOException {
+        List<Path> files;
+
+        try (Stream<Path> listing = Files.list(directory)) {
+            files = listing.sorted().toList();
+        }
+
+        for (Path file : files) {
+            if (file.getFileName().toString().endsWith(".compact")) {
+                // A compaction interrupted before its rename; the original is intact.
+                Files.delete(file);
+            }
+
+            else if (LogSegment.isSegment(file)) {
+                LogSegment segment = LogSegment.open(file);
+                segments.put(segment.getBaseSequence(), segment);
+                active = segment;
+            }
+        }
+
+        if (active == null) {
+            active = LogSegment.create(directory, 0, segmentBytes);
+            segments.put(0L, active);
+        }
+
+        lastTimestamp = Long.MIN_VALUE;
+
+        for (LogSegment segment : segments.values()) {
+            lastTimestamp = Math.max(lastTimestamp, segment.getLastTimestamp());
+        }
+
+        recoverTombstones();
+
+        for (LogSegment segment : segments.values()) {
+            long next = segment.getBaseSequence();
+
+            for (List<LogRecord> batch = segment.read(next, 1024); !batch.isEmpty(); batch = segment.read(next, 1024)) {
+                for (LogRecord record : batch) {
+                    index(Conversations.of(record.getMessage()), record.getTimestampMillis(), record.getSequence());
+                }
+
+                next = batch.get(batch.size() - 1).getSequence() + 1;
+            }
+        }
+    }
+
+    /**
+     * Reads the sequence numbers of deleted records, ignoring a torn last entry, and
+     * opens the file to add more.
+     *
+     * @throws IOException If the file cannot be read.
+     */
+    private void recoverTombstones() throws IOException {
+        Path path = directory.resolve(TOMBSTONES);
+
+        if (Files.exists(path)) {
+            ByteBuffer entries = ByteBuffer.wrap(Files.readAllBytes(path));
+
+            while (entries.remaining() >= Long.BYTES) {
+                deleted.add(entries.getLong());
+            }
+        }
+
+        tombstones = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Adds a just-written room or direct message to its conversation's time index. Other
+     * frames are not decoded at all.
+     *
+     * @param frame           The message's frame.
+     * @param timestampMillis When the message was logged.
+     * @param sequence        Its sequence number.
+     */
+    private void index(Frame frame, long timestampMillis, long sequence) {
+        if (frame.getType() != MessageType.ROOM_MESSAGE.getValue()
+                && frame.getType() != MessageType.DIRECT_MESSAGE.getValue()) {
+            return;
+        }
+
+        try {
+            index(Conversations.of(codec.decode(frame.buffer())), timestampMillis, sequence);
+        }
+
+        catch (IOException e) {
+            // The record is written; it just can't be found by conversation.
+            System.err.println("Unable to index message log record " + sequence);
+        }
+    }
+
+    /**
+     * Adds a message to its conversation's time index.
+     *
+     * @param conversation    The conversation, or null if the message is in none.
+     * @param timestampMillis When the message was logged.
+     * @param sequence        Its sequence number.
+     */
+    private void index(String conversation, long timestampMillis, long sequence) {
+        if (conversation == null) {
+            return;
+        }
+
+        timelines.compute(conversation, (key, timeline) -> {
+            TimeIndex index = timeline != null ? timeline : new TimeIndex();
+            index.add(timestampMillis, sequence);
+            return index;
+        });
+    }
+
+    /**
+     * Queues a message to be logged now.
+     *
+     * @param message The message.
+     * @throws IOException If the message cannot be encoded.
+     */
+    public void append(Message message) throws IOException {
+        append(MessageCodec.encode(message, MessageCodec.CURRENT_VERSION));
+    }
+
+    /**
+     * Queues an encoded message to be logged now.
+     *
+     * @param frame The message's frame, which must be in the current protocol version.
+     */
+    public void append(Frame frame) {
+        append(frame, System.currentTimeMillis());
+    }
+
+    /**
+     * Queues an encoded message to be logged under a timestamp. Timestamps earlier than the
+     * last one logged are raised to it, so the log stays in time order.
+     *
+     * @param frame           The message's frame, which must be in the current protocol version.
+     * @param timestampMillis The time to log it under.
+     */
+    public void append(Frame frame, long timestampMillis) {
+        Pending pending = new Pending(frame, timestampMillis, null);
+
+        if (closed) {
+            discard(pending);
+        }
+
+        else if (!queue.offer(pending)) {
+            // Never wait here: appends come from relay threads and the event loops.
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Waits until every message queued so far is written and forced to disk, whatever
+     * the fsync policy. Returns at once if the log is closed.
+     *
+     * @throws IOException If the wait is interrupted.
+     */
+    public void flush() throws IOException {
+        CountDownLatch done = new CountDownLatch(1);
+        enqueue(new Pending(null, 0, done));
+
+        try {
+            done.await();
+        }
+
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the message log.");
+        }
+    }
+
+    /**
+     * Hands a flush request to the writer, waiting for room if the queue is full. Its
+     * caller is about to wait for the disk anyway, so it may wait for the queue too.
+     *
+     * @param pending The entry.
+     */
+    private void enqueue(Pending pending) {
+        if (closed) {
+            discard(pending);
+            return;
+        }
+
+        try {
+            queue.put(pending);
+        }
+
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failures.incrementAndGet();
+        }
+    }
+
+    /**
+     * Releases an entry that will not be written: a flush's waiter is let go, and a
+     * message is counted as a failure.
+     *
+     * @param pending The entry.
+     */
+    private void discard(Pending pending) {
+        if (pending.done != null) {
+            pending.done.countDown();
+        }
+
+        else if (pending != CLOSE) {
+            failures.incrementAndGet();
+        }
+    }
+
+    /**
+     * Takes queued entries and writes them, forcing as the fsync policy requires, until
+     * the log is closed. A failure costs only the entry it happened on; the writer goes on
+     * with the next one.
+     */
+    private void runWriter() {
+        List<Pending> batch = new ArrayList<>();
+        boolean closing = false;
+
+        while (!closing) {
+            Pending first;
+
+            try {
+                first = nextEntry();
+            }
+
+            catch (InterruptedException e) {
+                return;
+            }
+
+            if (first == null) {
+                process(null);
+                continue;
+            }
+
+            batch.add(first);
+            queue.drainTo(batch);
+
+            for (Pending pending : batch) {
+                if (closing) {
+                    // Raced in behind the close, like anything close finds still queued.
+                    discard(pending);
+                }
+
+                else {
+                    closing = pending == CLOSE;
+                    process(pending);
+                }
+            }
+
+            batch.clear();
+
+            if (fsyncPolicy == FsyncPolicy.GROUP_COMMIT && System.nanoTime() - lastSyncNanos >= groupCommitNanos) {
+                process(null);
+            }
+        }
+    }
+
+    /**
+     * Handles one entry: writes a message, or forces the segment for a flush, the close
+     * or a due group commit. A failure is counted and reported, and a flush's waiter is
+     * let go whether or not it succeeded.
+     *
+     * @param pending The entry, or null for a group commit.
+     */
+    private void process(Pending pending) {
+        try {
+            if (pending == null || pending == CLOSE || pending.done != null) {
+                sync();
+            }
+
+            else {
+                write(pending);
+            }
+        }
+
+        catch (IOException | RuntimeException e) {
+            failures.incrementAndGet();
+            System.err.println("Error writing message log: " + e.getMessage());
+        }
+
+        finally {
+            if (pending != null && pending.done != null) {
+                pending.done.countDown();
+            }
+        }
+    }
+
+    /**
+     * Waits for the next entry, or under group commit only until the next commit is due.
+     *
+     * @return The entry, or null if a commit is due first.
+     * @throws InterruptedException If the writer is interrupted.
+     */
+    private Pending nextEntry() throws InterruptedException {
+        if (fsyncPolicy != FsyncPolicy.GROUP_COMMIT || !dirty) {
+            return queue.take();
+        }
+
+        long wait = lastSyncNanos + groupCommitNanos - System.nanoTime();
+        return wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : null;
+    }
+
+    /**
+     * Writes one message to the current segment, rolling over to a new one if it is full.
+     *
+     * @param pending The message and its timestamp.
+     * @throws IOException If a new segment cannot be created.
+     */
+    private void write(Pending pending) throws IOException {
+        long timestamp = Math.max(pending.timestampMillis, lastTimestamp);
+        long sequence = active.getNextSequence();
+
+        if (!active.append(sequence, timestamp, pending.frame)) {
+            roll(sequence, LogSegment.recordBytes(pending.frame));
+
+            if (!active.append(sequence, timestamp, pending.frame)) {
+                throw new IOException("Record " + sequence + " does not fit a new segment.");
+            }
+        }
+
+        lastTimestamp = timestamp;
+        appended.incrementAndGet();
+        dirty = true;
+
+        index(pending.frame, timestamp, sequence);
+
+        if (fsyncPolicy == FsyncPolicy.EVERY_MESSAGE) {
+            sync();
+        }
+    }
+
+    /**
+     * Finishes the current segment and starts a new one. A record larger than a segment
+     * gets a segment sized to fit it.
+     *
+     * @param baseSequence The sequence number of the new segment's first record.
+     * @param recordBytes  The size of the record that did not fit.
+     * @throws IOException If the new segment cannot be created.
+     */
+    private void roll(long baseSequence, int recordBytes) throws IOException {
+        active.force();
+
+        if (active.getNextSequence() == active.getBaseSequence()) {
+            // An empty segment too small for the record gives its name to the new one.
+            segments.remove(baseSequence);
+            active.close();
+            Files.delete(active.getPath());
+        }
+
+        active = LogSegment.create(directory, baseSequence, Math.max(segmentBytes, recordBytes + Integer.BYTES));
+        segments.put(baseSequence, active);
+    }
+
+    /**
+     * Forces the current segment to disk if anything was written since the last time. A
+     * failed force is retried at the next sync, not at once.
+     */
+    private void sync() {
+        lastSyncNanos = System.nanoTime();
+
+        if (dirty) {
+            active.force();
+            syncs.incrementAndGet();
+            dirty = false;
+        }
+    }
+
+    /**
+     * Reads the record with a sequence number.
+     *
+     * @param sequence The sequence number.
+     * @return The record, or null if the log does not hold it.
+     * @throws IOException If the record cannot be decoded.
+     */
+    public LogRecord read(long sequence) throws IOException {
+        Map.Entry<Long, LogSegment> entry = segments.floorEntry(sequence);
+        return entry != null && !deleted.contains(sequence) ? entry.getValue().read(sequence) : null;
+    }
+
+    /**
+     * Reads consecutive records, following on into later segments as needed. Deleted
+     * records are skipped.
+     *
+     * @param fromSequence The first sequence number to read.
+     * @param maxRecords   The most records to read.
+     * @return The records, in order.
+     * @throws IOException If a record cannot be decoded.
+     */
+    public List<LogRecord> read(long fromSequence, int maxRecords) throws IOException {
+        List<LogRecord> records = new ArrayList<>();
+        Long base = segments.floorKey(fromSequence);
+
+        if (base == null) {
+            base = segments.isEmpty() ? null : segments.firstKey();
+        }
+
+        long next = fromSequence;
+
+        for (LogSegment segment : base != null ? segments.tailMap(base).values() : List.<LogSegment>of()) {
+            next = Math.max(next, segment.getBaseSequence());
+
+            // Deleted records are filtered out, so a segment may take several reads.
+            while (records.size() < maxRecords) {
+                List<LogRecord> read = segment.read(next, maxRecords - records.size());
+
+                if (read.isEmpty()) {
+                    break;
+                }
+
+                next = read.get(read.size() - 1).getSequence() + 1;
+
+                for (LogRecord record : read) {
+                    if (!deleted.contains(record.getSequence())) {
+                        records.add(record);
+                    }
+                }
+            }
+
+            if (records.size() >= maxRecords) {
+                break;
+            }
+        }
+
+        return records;
+    }
+
+    /**
+     * Finds the first record logged at or after a time.
+     *
+     * @param timestampMillis The time, in milliseconds since the epoch.
+     * @return The record's sequence number, or {@link #getNextSequence()} if every record
+     *         is earlier.
+     */
+    public long findSequence(long timestampMillis) {
+        for (LogSegment segment : segments.values()) {
+            if (segment.getLastTimestamp() >= timestampMillis) {
+                long sequence = segment.findSequence(timestampMillis);
+
+                if (sequence >= 0) {
+                    return sequence;
+                }
+            }
+        }
+
+        return getNextSequence();
+    }
+
+    /**
+     * Reads a page of a conversation's history: the messages logged in a time range, in
+     * order, after a cursor. The messages are found in the conversation's time index and
+     * read one by one, so a page costs the same however large the log is.
+     *
+     * @param conversation  The conversation, named by {@link Conversations}.
+     * @param fromMillis    The start of the range, inclusive.
+     * @param toMillis      The end of the range, exclusive.
+     * @param afterSequence The cursor from the previous page, or -1 for the first page.
+     * @param limit         The most messages on the page, at least 1.
+     * @return The page.
+     * @throws IOException If a record cannot be decoded.
+     */
+    public HistoryPage history(String conversation, long fromMillis, long toMillis, long afterSequence, int limit)
+            throws IOException {
+        TimeIndex timeline = timelines.get(conversation);
+
+        if (timeline == null || limit < 1) {
+            return new HistoryPage(List.of(), -1);
+        }
+
+        // One extra tells whether another page follows.
+        long[] sequences = timeline.find(fromMillis, toMillis, afterSequence, limit + 1);
+        int count = Math.min(sequences.length, limit);
+        List<LogRecord> records = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+            LogRecord record = read(sequences[i]);
+
+            // Records deleted or dropped since the index was trimmed are skipped.
+            if (record != null) {
+                records.add(record);
+            }
+        }
+
+        long nextCursor = sequences.length > limit ? sequences[limit - 1] : -1;
+        return new HistoryPage(records, nextCursor);
+    }
+
+    /**
+     * Deletes a record. It is hidden from reads at once and removed from disk when its
+     * segment is next compacted. The deletion is recorded on disk, so it survives a restart.
+     *
+     * @param sequence The record's sequence number.
+     * @return False if the log does not hold the record or it was already deleted.
+     * @throws IOException If the deletion cannot be recorded.
+     */
+    public boolean delete(long sequence) throws IOException {
+        if (read(sequence) == null) {
+            return false;
+        }
+
+        synchronized (deleted) {
+            if (!deleted.add(sequence)) {
+                return false;
+            }
+
+            ByteBuffer entry = ByteBuffer.allocate(Long.BYTES).putLong(0, sequence);
+
+            while (entry.hasRemaining()) {
+                tombstones.write(entry);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Runs a cleanup from the cleaner thread, reporting rather than throwing errors.
+     */
+    private void runCleaner() {
+        try {
+            cleanUp();
+        }
+
+        catch (IOException e) {
+            failures.incrementAndGet();
+            System.err.println("Error cleaning message log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Enforces retention and compacts segments now, rather than waiting for the cleaner.
+     *
+     * @throws IOException If a segment cannot be deleted or compacted.
+     */
+    public void cleanUp() throws IOException {
+        cleanUp(System.currentTimeMillis());
+    }
+
+    /**
+     * Enforces retention and compacts segments as of a time. Only finished segments are
+     * touched, so this runs alongside the writer without holding it up.
+     *
+     * @param nowMillis The current time.
+     * @throws IOException If a segment cannot be deleted or compacted.
+     */
+    synchronized void cleanUp(long nowMillis) throws IOException {
+        if (closed) {
+            return;
+        }
+
+        long expiredBefore = nowMillis - retentionMillis;
+        List<LogSegment> finished = new ArrayList<>(segments.headMap(segments.lastKey()).values());
+        long totalBytes = 0;
+
+        for (LogSegment segment : segments.values()) {
+            totalBytes += segment.getWrittenBytes();
+        }
+
+        int removed = 0;
+
+        // Oldest first: whole segments go while they are expired or the log is too large.
+        while (removed < finished.size()) {
+            LogSegment segment = finished.get(removed);
+
+            if (segment.getLastTimestamp() >= expiredBefore && totalBytes <= retentionBytes) {
+                break;
+            }
+
+            segments.remove(segment.getBaseSequence());
+            segment.delete();
+            totalBytes -= segment.getWrittenBytes();
+            removedSegments.incrementAndGet();
+            removed++;
+        }
+
+        boolean tombstonesDropped = false;
+
+        for (LogSegment segment : finished.subList(removed, finished.size())) {
+            NavigableSet<Long> dropping = new TreeSet<>(deleted.subSet(segment.getBaseSequence(), segment.getNextSequence()));
+
+            if (segment.getFirstTimestamp() >= expiredBefore && dropping.isEmpty()) {
+                continue;
+            }
+
+            LogSegment compacted = segment.compact(expiredBefore, dropping);
+
+            if (compacted != null) {
+                segments.put(segment.getBaseSequence(), compacted);
+            }
+
+            else {
+                segments.remove(segment.getBaseSequence());
+            }
+
+            segment.close();
+            compactedSegments.incrementAndGet();
+            deleted.removeAll(dropping);
+            tombstonesDropped |= !dropping.isEmpty();
+        }
+
+        if (tombstonesDropped || (!deleted.isEmpty() && deleted.first() < getFirstSequence())) {
+            rewriteTombstones();
+        }
+
+        long firstSequence = getFirstSequence();
+
+        for (String conversation : timelines.keySet()) {
+            timelines.computeIfPresent(conversation, (key, timeline) -> {
+                timeline.trim(firstSequence, expiredBefore);
+                return timeline.isEmpty() ? null : timeline;
+            });
+        }
+    }
+
+    /**
+     * Replaces the file of deleted records with one holding only those the log still has.
+     *
+     * @throws IOException If the file cannot be written.
+     */
+    private void rewriteTombstones() throws IOException {
+        synchronized (deleted) {
+            deleted.headSet(getFirstSequence()).clear();
+            Path path = directory.resolve(TOMBSTONES);
+            Path rewritten = directory.resolve(TOMBSTONES + ".compact");
+            ByteBuffer entries = ByteBuffer.allocate(deleted.size() * Long.BYTES);
+
+            for (long sequence : deleted) {
+                entries.putLong(sequence);
+            }
+
+            Files.write(rewritten, entries.array());
+            tombstones.close();
+            Files.move(rewritten, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            tombstones = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+    }
+
+    /**
+     * Gets the sequence number of the oldest record held.
+     *
+     * @return The first sequence number.
+     */
+    public long getFirstSequence() {
+        return segments.firstKey();
+    }
+
+    /**
+     * Gets the sequence number the next record written will take.
+     *
+     * @return The next sequence number.
+     */
+    public long getNextSequence() {
+        return segments.lastEntry().getValue().getNextSequence();
+    }
+
+    /**
+     * Gets the number of segment files.
+     *
+     * @return The segment count.
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Gets the number of messages written since the log was opened.
+     *
+     * @return The appended count.
+     */
+    public long getAppendedCount() {
+        return appended.get();
+    }
+
+    /**
+     * Gets the number of appends dropped because the writer was a whole queue behind.
+     *
+     * @return The dropped count.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Gets the number of times written messages were forced to disk.
+     *
+     * @return The sync count.
+     */
+    public long getSyncCount() {
+        return syncs.get();
+    }
+
+    /**
+     * Gets the number of appends lost, to a closed log or a write error.
+     *
+     * @return The failure count.
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * Gets the number of segments deleted whole by retention.
+     *
+     * @return The removed segment count.
+     */
+    public long getRemovedSegmentCount() {
+        return removedSegments.get();
+    }
+
+    /**
+     * Gets the number of segments compacted.
+     *
+     * @return The compaction count.
+     */
+    public long getCompactionCount() {
+        return compactedSegments.get();
+    }
+
+    /**
+     * Gets the number of conversations with messages in the log.
+     *
+     * @return The conversation count.
+     */
+    public int getConversationCount() {
+        return timelines.size();
+    }
+
+    /**
+     * Gets the fsync policy.
+     *
+     * @return The policy.
+     */
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    /**
+     * Writes and forces everything queued, stops the writer and closes every segment.
+     *
+     * @throws IOException If a segment cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        cleaner.shutdownNow();
+
+        try {
+            queue.put(CLOSE);
+            writer.join();
+        }
+
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Anything that raced in behind the close is not written; release its waiters.
+        for (Pending pending = queue.poll(); pending != null; pending = queue.poll()) {
+            discard(pending);
+        }
+
+        synchronized (this) {
+            // Wait out a cleanup in progress before closing what it works on.
+            for (LogSegment segment : segments.values()) {
+                segment.close();
+            }
+        }
+
+        synchronized (deleted) {
+            tombstones.close();
+        }
+    }
+
+    /**
+     * A message waiting for the writer, or with a latch instead, a request to flush.
+     */
+    private static class Pending {
+        private final Frame frame;
+        private final long timestampMillis;
+        private final CountDownLatch done;
+
+        Pending(Frame frame, long timestampMillis, CountDownLatch done) {
+            this.frame = frame;
+            this.timestampMillis = timestampMillis;
+            this.done = done;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MessageLog{" +
+                "segments=" + segments.size() +
+                ", nextSequence=" + getNextSequence() +
+                ", appended=" + appended.get() +
+                ", syncs=" + syncs.get() +
+                ", conversations=" + timelines.size() +
+                ", removedSegments=" + removedSegments.get() +
+                ", compactions=" + compactedSegments.get() +
+                ", failures=" + failures.get() +
+                ", dropped=" + dropped.get() +
+                ", fsyncPolicy=" + fsyncPolicy +
+                '}';
+    }
+}
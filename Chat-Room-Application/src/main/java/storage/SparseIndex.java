@@ -0,0 +1,143 @@
+package storage;
+
+/**
+ * A sparse index over the records of one segment: the sequence number, timestamp and
+ * file position of every record that starts a new stretch of the segment. A lookup
+ * binary-searches the index and scans forward from the entry it finds, so it reads at
+ * most one stretch of records however large the segment is.
+ *
+ * <p>One thread adds entries while any number read. Entries are written before the count
+ * that covers them is published, and arrays are replaced rather than resized in place, so
+ * a reader that sees a count also sees every entry below it.
+ */
+class SparseIndex {
+    private volatile Entries entries;
+    private volatile int count;
+
+    /**
+     * Constructs an empty SparseIndex.
+     */
+    SparseIndex() {
+        this.entries = new Entries(16);
+    }
+
+    /**
+     * Adds an entry. Entries must be added in sequence and timestamp order.
+     *
+     * @param sequence        The record's sequence number.
+     * @param timestampMillis The record's timestamp.
+     * @param position        The record's position in the segment.
+     */
+    void add(long sequence, long timestampMillis, int position) {
+        Entries current = entries;
+        int size = count;
+
+        if (size == current.sequences.length) {
+            current = current.grow();
+            entries = current;
+        }
+
+        current.sequences[size] = sequence;
+        current.timestamps[size] = timestampMillis;
+        current.positions[size] = position;
+        count = size + 1;
+    }
+
+    /**
+     * Finds where to start scanning for a sequence number.
+     *
+     * @param sequence The sequence number.
+     * @return The position of the last entry at or before it, or -1 if it precedes them all.
+     */
+    int floorBySequence(long sequence) {
+        int size = count;
+        Entries current = entries;
+        int low = 0;
+        int high = size - 1;
+        int found = -1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+
+            if (current.sequences[middle] <= sequence) {
+                found = middle;
+                low = middle + 1;
+            }
+
+            else {
+                high = middle - 1;
+            }
+        }
+
+        return found < 0 ? -1 : current.positions[found];
+    }
+
+    /**
+     * Finds where to start scanning for the first record at or after a time. Since several
+     * records can share a timestamp, this is the last entry strictly before it.
+     *
+     * @param timestampMillis The time.
+     * @return The position to scan from, or -1 if no entry precedes the time.
+     */
+    int floorBeforeTimestamp(long timestampMillis) {
+        int size = count;
+        Entries current = entries;
+        int low = 0;
+        int high = size - 1;
+        int found = -1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+
+            if (current.timestamps[middle] < timestampMillis) {
+                found = middle;
+                low = middle + 1;
+            }
+
+            else {
+                high = middle - 1;
+            }
+        }
+
+        return found < 0 ? -1 : current.positions[found];
+    }
+
+    /**
+     * Gets the number of entries.
+     *
+     * @return The entry count.
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * The entry arrays, replaced as a whole when they fill.
+     */
+    private static class Entries {
+        private final long[] sequences;
+        private final long[] timestamps;
+        private final int[] positions;
+
+        Entries(int capacity) {
+            this.sequences = new long[capacity];
+            this.timestamps = new long[capacity];
+            this.positions = new int[capacity];
+        }
+
+        Entries grow() {
+            Entries grown = new Entries(sequences.length * 2);
+            System.arraycopy(sequences, 0, grown.sequences, 0, sequences.length);
+            System.arraycopy(timestamps, 0, grown.timestamps, 0, timestamps.length);
+            System.arraycopy(positions, 0, grown.positions, 0, positions.length);
+            return grown;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SparseIndex{" +
+                "entries=" + count +
+                '}';
+    }
+}
@@ -0,0 +1,138 @@
+package storage;
+
+import java.util.Arrays;
+
+/**
+ * The timestamps and sequence numbers of one conversation's messages in the log, in
+ * primitive arrays in log order. Both columns only ever grow, so a time range or a cursor
+ * is found by binary search, and a page of history costs the same however long the log
+ * or the conversation is.
+ *
+ * <p>Entries are added by the log's writer and trimmed from the front by its cleaner, so
+ * every method locks; each holds the lock only for a search and a copy.
+ */
+class TimeIndex {
+    private long[] timestamps;
+    private long[] sequences;
+    private int first;
+    private int count;
+
+    /**
+     * Constructs an empty TimeIndex.
+     */
+    TimeIndex() {
+        this.timestamps = new long[8];
+        this.sequences = new long[8];
+    }
+
+    /**
+     * Adds a message. Messages must be added in log order.
+     *
+     * @param timestampMillis When the message was logged.
+     * @param sequence        Its sequence number.
+     */
+    synchronized void add(long timestampMillis, long sequence) {
+        if (count == sequences.length) {
+            if (first > sequences.length / 2) {
+                // Reclaim the trimmed front rather than grow.
+                System.arraycopy(timestamps, first, timestamps, 0, count - first);
+                System.arraycopy(sequences, first, sequences, 0, count - first);
+                count -= first;
+                first = 0;
+            }
+
+            else {
+                timestamps = Arrays.copyOf(timestamps, count * 2);
+                sequences = Arrays.copyOf(sequences, count * 2);
+            }
+        }
+
+        timestamps[count] = timestampMillis;
+        sequences[count] = sequence;
+        count++;
+    }
+
+    /**
+     * Drops the messages the log no longer holds: those below its first sequence number
+     * or logged before a time. Both are a prefix, since the log is in time order.
+     *
+     * @param firstSequence The log's first sequence number.
+     * @param beforeMillis  The time before which messages have expired.
+     */
+    synchronized void trim(long firstSequence, long beforeMillis) {
+        int bySequence = lowerBound(sequences, firstSequence);
+        int byTime = lowerBound(timestamps, beforeMillis);
+        first = Math.max(bySequence, byTime);
+
+        if (first == count) {
+            first = 0;
+            count = 0;
+        }
+    }
+
+    /**
+     * Finds the messages of a page: those logged in a time range, after a cursor.
+     *
+     * @param fromMillis    The start of the range, inclusive.
+     * @param toMillis      The end of the range, exclusive.
+     * @param afterSequence The sequence number of the last message already seen, or -1.
+     * @param limit         The most messages to find.
+     * @return The sequence numbers, in order.
+     */
+    synchronized long[] find(long fromMillis, long toMillis, long afterSequence, int limit) {
+        int start = Math.max(lowerBound(timestamps, fromMillis), lowerBound(sequences, afterSequence + 1));
+        int end = (int) Math.min(lowerBound(timestamps, toMillis), (long) start + limit);
+        return start < end ? Arrays.copyOfRange(sequences, start, end) : new long[0];
+    }
+
+    /**
+     * Finds the first live entry at or above a value.
+     *
+     * @param column The column to search, sorted over the live entries.
+     * @param value  The value.
+     * @return The entry's index, or the count if every entry is below the value.
+     */
+    private int lowerBound(long[] column, long value) {
+        int low = first;
+        int high = count;
+
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+
+            if (column[middle] < value) {
+                low = middle + 1;
+            }
+
+            else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Checks whether the index holds no messages.
+     *
+     * @return True if it is empty.
+     */
+    synchronized boolean isEmpty() {
+        return first == count;
+    }
+
+    /**
+     * Gets the number of messages indexed.
+     *
+     * @return The entry count.
+     */
+    synchronized int size() {
+        return count - first;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TimeIndex{" +
+                "entries=" + (count - first) +
+                '}';
+    }
+}
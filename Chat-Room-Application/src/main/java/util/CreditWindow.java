@@ -0,0 +1,79 @@
+package util;
+
+/**
+ * The receiving side of credit-based flow control. The receiver advertises how many
+ * frames in total the sender may have sent, counts each frame as it takes it for
+ * processing, and moves the limit on by a whole window once half of it has been used, so
+ * the sender is never more than one window ahead of what has been drained. Credit frames
+ * themselves are never counted.
+ *
+ * <p>Each side of a connection processes its peer's frames on one thread, so a window is
+ * not shared between threads.
+ */
+public class CreditWindow {
+    private final int size;
+    private long limit;
+    private long consumed;
+
+    /**
+     * Constructs a CreditWindow whose first grant is one whole window.
+     *
+     * @param size The most frames the sender may be ahead by, at least 2.
+     */
+    public CreditWindow(int size) {
+        if (size < 2) {
+            throw new IllegalArgumentException("Credit window must be at least 2 frames.");
+        }
+
+        this.size = size;
+        this.limit = size;
+    }
+
+    /**
+     * Gets the frame count the sender may currently reach, which is what a grant advertises.
+     *
+     * @return The limit.
+     */
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * Gets the number of frames taken so far.
+     *
+     * @return The consumed count.
+     */
+    public long getConsumed() {
+        return consumed;
+    }
+
+    /**
+     * Counts a frame taken from the sender.
+     */
+    public void consume() {
+        consumed++;
+    }
+
+    /**
+     * Moves the limit on if half the window has been used.
+     *
+     * @return The new limit to advertise, or -1 if no grant is due.
+     */
+    public long replenish() {
+        if (limit - consumed > size / 2) {
+            return -1;
+        }
+
+        limit = consumed + size;
+        return limit;
+    }
+
+    @Override
+    public String toString() {
+        return "CreditWindow{" +
+                "size=" + size +
+                ", limit=" + limit +
+                ", consumed=" + consumed +
+                '}';
+    }
+}
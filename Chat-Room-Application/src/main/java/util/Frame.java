@@ -0,0 +1,137 @@
+package util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * An encoded protocol message, ready to be written: its header, the payload length for
+ * version 1 frames, and its payload. Frames are immutable, so one frame can be queued for
+ * many clients.
+ */
+public class Frame {
+    private static final int TYPE_BYTES = 4;
+
+    private final int type;
+    private final byte[] bytes;
+    private final ByteBuffer shared;
+
+    /**
+     * Constructs a Frame from already-encoded bytes.
+     *
+     * @param type  The message type.
+     * @param bytes The full encoded frame, starting with the type.
+     */
+    private Frame(int type, byte[] bytes) {
+        this.type = type;
+        this.bytes = bytes;
+        this.shared = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    /**
+     * Encodes a legacy frame from a message type and its payload.
+     *
+     * @param type    The message type.
+     * @param payload The message data that follows the type.
+     * @return The encoded frame.
+     */
+    public static Frame of(int type, byte[] payload) {
+        return of(MessageCodec.LEGACY_VERSION, type, payload);
+    }
+
+    /**
+     * Encodes a frame of the given protocol version from a message type and its payload.
+     *
+     * @param version The protocol version.
+     * @param type    The message type.
+     * @param payload The message data.
+     * @return The encoded frame.
+     */
+    public static Frame of(int version, int type, byte[] payload) {
+        if (version == MessageCodec.LEGACY_VERSION) {
+            byte[] bytes = new byte[TYPE_BYTES + payload.length];
+            ByteBuffer.wrap(bytes).putInt(type).put(payload);
+            return new Frame(type, bytes);
+        }
+
+        byte[] bytes = new byte[MessageCodec.ENVELOPE_BYTES + payload.length];
+        ByteBuffer.wrap(bytes).putInt(MessageCodec.header(version, type)).putInt(payload.length).put(payload);
+        return new Frame(type, bytes);
+    }
+
+    /**
+     * Wraps bytes that already hold a complete encoded frame. The caller must not modify
+     * them afterwards.
+     *
+     * @param type  The message type.
+     * @param bytes The full encoded frame.
+     * @return The frame.
+     */
+    static Frame wrap(int type, byte[] bytes) {
+        return new Frame(type, bytes);
+    }
+
+    /**
+     * Gets the message type.
+     *
+     * @return The message type.
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * Gets the encoded length of the frame.
+     *
+     * @return The frame length in bytes.
+     */
+    public int length() {
+        return bytes.length;
+    }
+
+    /**
+     * Writes the whole frame to a stream.
+     *
+     * @param output The stream to write to.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void writeTo(OutputStream output) throws IOException {
+        output.write(bytes);
+    }
+
+    /**
+     * Returns a new read-only view of the frame, positioned at its start. Every view shares
+     * the frame's bytes; only the position is per view, so each writer can track its own
+     * progress without copying the frame.
+     *
+     * @return A buffer over the encoded frame.
+     */
+    public ByteBuffer buffer() {
+        return shared.duplicate();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        Frame that = (Frame) o;
+
+        return type == that.type && Arrays.equals(bytes, that.bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(type, Arrays.hashCode(bytes));
+    }
+
+    @Override
+    public String toString() {
+        return "Frame{" +
+                "type=" + type +
+                ", length=" + bytes.length +
+                '}';
+    }
+}
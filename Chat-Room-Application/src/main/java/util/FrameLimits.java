@@ -0,0 +1,112 @@
+package util;
+
+import java.util.Objects;
+
+/**
+ * The largest string field and the largest frame a decoder accepts. Both are checked
+ * against the lengths a frame declares, before anything is allocated for it.
+ */
+public class FrameLimits {
+    /**
+     * The default maximum size of one string field: 64 KiB.
+     */
+    public static final int DEFAULT_MAX_FIELD_BYTES = 64 * 1024;
+
+    /**
+     * The default maximum size of a whole frame, header included: 1 MiB.
+     */
+    public static final int DEFAULT_MAX_FRAME_BYTES = 1024 * 1024;
+
+    /**
+     * The default limits.
+     */
+    public static final FrameLimits DEFAULT = new FrameLimits(DEFAULT_MAX_FIELD_BYTES, DEFAULT_MAX_FRAME_BYTES);
+
+    private final int maxFieldBytes;
+    private final int maxFrameBytes;
+
+    /**
+     * Constructs FrameLimits.
+     *
+     * @param maxFieldBytes The maximum size of one string field, in bytes.
+     * @param maxFrameBytes The maximum size of a whole frame, header included, in bytes.
+     * @throws IllegalArgumentException If a limit is not positive or a field may exceed a frame.
+     */
+    public FrameLimits(int maxFieldBytes, int maxFrameBytes) {
+        if (maxFieldBytes < 1 || maxFrameBytes < maxFieldBytes) {
+            throw new IllegalArgumentException("Limits must satisfy 1 <= field <= frame.");
+        }
+
+        this.maxFieldBytes = maxFieldBytes;
+        this.maxFrameBytes = maxFrameBytes;
+    }
+
+    /**
+     * Gets the maximum size of one string field.
+     *
+     * @return The field limit in bytes.
+     */
+    public int getMaxFieldBytes() {
+        return maxFieldBytes;
+    }
+
+    /**
+     * Gets the maximum size of a whole frame, header included.
+     *
+     * @return The frame limit in bytes.
+     */
+    public int getMaxFrameBytes() {
+        return maxFrameBytes;
+    }
+
+    /**
+     * Rejects a string field longer than the field limit.
+     *
+     * @param length      The declared field length.
+     * @param recoverable Whether the caller will skip the rest of the frame.
+     * @throws FrameTooLargeException If the field is too long.
+     */
+    public void checkField(long length, boolean recoverable) throws FrameTooLargeException {
+        if (length > maxFieldBytes) {
+            throw new FrameTooLargeException("Field of " + length + " bytes exceeds the limit of "
+                    + maxFieldBytes + " bytes.", recoverable);
+        }
+    }
+
+    /**
+     * Rejects a frame longer than the frame limit.
+     *
+     * @param length      The frame length, or as much of it as is known so far.
+     * @param recoverable Whether the caller will skip the rest of the frame.
+     * @throws FrameTooLargeException If the frame is too long.
+     */
+    public void checkFrame(long length, boolean recoverable) throws FrameTooLargeException {
+        if (length > maxFrameBytes) {
+            throw new FrameTooLargeException("Frame of " + length + " bytes exceeds the limit of "
+                    + maxFrameBytes + " bytes.", recoverable);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        FrameLimits that = (FrameLimits) o;
+
+        return maxFieldBytes == that.maxFieldBytes && maxFrameBytes == that.maxFrameBytes;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(maxFieldBytes, maxFrameBytes);
+    }
+
+    @Override
+    public String toString() {
+        return "FrameLimits{" +
+                "maxFieldBytes=" + maxFieldBytes +
+                ", maxFrameBytes=" + maxFrameBytes +
+                '}';
+    }
+}
@@ -0,0 +1,223 @@
+package util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Utility class that finds message boundaries in a buffer of raw protocol bytes.
+ * Version 1 frames carry their length in the envelope. Legacy frames have no length,
+ * so their size is worked out by walking the fields their type defines. Declared lengths
+ * are checked against {@link FrameLimits} as they are found, so a frame that could never
+ * be accepted is rejected before the bytes for it are buffered.
+ */
+public class FrameScanner {
+    private static final int INT_BYTES = 4;
+    private static final int BOOLEAN_BYTES = 1;
+    private static final int INCOMPLETE = -1;
+
+    /**
+     * Returns the length of the complete message at the start of the buffer, under the
+     * default limits. The buffer's position and limit are left untouched.
+     *
+     * @param buffer The buffer to scan, positioned at the start of a message.
+     * @return The message length in bytes, or -1 if the message is not complete yet.
+     * @throws IOException If the buffer holds a malformed or oversized message.
+     */
+    public static int frameLength(ByteBuffer buffer) throws IOException {
+        return frameLength(buffer, FrameLimits.DEFAULT);
+    }
+
+    /**
+     * Returns the length of the complete message at the start of the buffer.
+     * The buffer's position and limit are left untouched.
+     *
+     * @param buffer The buffer to scan, positioned at the start of a message.
+     * @param limits The limits the message must fit.
+     * @return The message length in bytes, or -1 if the message is not complete yet.
+     * @throws IOException If the buffer holds a malformed message, or a FrameTooLargeException
+     *                     if it declares a field or frame over the limits.
+     */
+    public static int frameLength(ByteBuffer buffer, FrameLimits limits) throws IOException {
+        int start = buffer.position();
+        int limit = buffer.limit();
+
+        if (limit - start < INT_BYTES) {
+            return INCOMPLETE;
+        }
+
+        int header = buffer.getInt(start);
+
+        if (MessageCodec.versionOf(header) != MessageCodec.LEGACY_VERSION) {
+            return envelopeLength(buffer, header, start, limit, limits);
+        }
+
+        int messageType = header;
+        int offset = start + INT_BYTES;
+
+        if (messageType == MessageType.CONNECT_RESPONSE.getValue()) {
+            offset = skipBoolean(offset, limit);
+            offset = skipString(buffer, start, offset, limit, limits);
+        }
+
+        else if (MessageType.isList(messageType)) {
+            offset = skipStringList(buffer, start, offset, limit, limits);
+        }
+
+        else if (messageType == MessageType.CONNECT_MESSAGE.getValue()
+                || messageType == MessageType.DISCONNECT_MESSAGE.getValue()
+                || messageType == MessageType.QUERY_CONNECTED_USERS.getValue()
+                || messageType == MessageType.FAILED_MESSAGE.getValue()
+                || messageType == MessageType.PRESENCE_SUBSCRIBE.getValue()
+                || messageType == MessageType.CREDIT.getValue()
+                || messageType == MessageType.LIST_ROOMS.getValue()) {
+            offset = skipString(buffer, start, offset, limit, limits);
+        }
+
+        else if (messageType == MessageType.BROADCAST_MESSAGE.getValue()
+                || messageType == MessageType.SEND_INSULT.getValue()
+                || messageType == MessageType.JOIN_ROOM.getValue()
+                || messageType == MessageType.LEAVE_ROOM.getValue()) {
+            offset = skipString(buffer, start, offset, limit, limits);
+            offset = skipString(buffer, start, offset, limit, limits);
+        }
+
+        else if (messageType == MessageType.DIRECT_MESSAGE.getValue()
+                || messageType == MessageType.ROOM_MESSAGE.getValue()
+                || messageType == MessageType.SEARCH.getValue()) {
+            offset = skipString(buffer, start, offset, limit, limits);
+            offset = skipString(buffer, start, offset, limit, limits);
+            offset = skipString(buffer, start, offset, limit, limits);
+        }
+
+        else if (messageType == MessageType.QUERY_USERS_PAGE.getValue()) {
+            for (int i = 0; i < 4; i++) {
+                offset = skipString(buffer, start, offset, limit, limits);
+            }
+        }
+
+        else if (messageType == MessageType.QUERY_HISTORY.getValue()) {
+            for (int i = 0; i < 6; i++) {
+                offset = skipString(buffer, start, offset, limit, limits);
+            }
+        }
+
+        // Unknown types carry no fields, matching how the handlers read them.
+        return offset == INCOMPLETE ? INCOMPLETE : offset - start;
+    }
+
+    /**
+     * Returns the length of a version 1 frame from its envelope.
+     *
+     * @param buffer The buffer being scanned.
+     * @param header The frame header.
+     * @param start  The offset of the frame.
+     * @param limit  The end of the readable bytes.
+     * @param limits The limits the frame must fit.
+     * @return The frame length, or -1 if the frame is not complete yet.
+     * @throws IOException If the version is unsupported, or the length is negative or too long.
+     */
+    private static int envelopeLength(ByteBuffer buffer, int header, int start, int limit, FrameLimits limits)
+            throws IOException {
+        MessageCodec.checkVersion(MessageCodec.versionOf(header));
+
+        if (limit - start < MessageCodec.ENVELOPE_BYTES) {
+            return INCOMPLETE;
+        }
+
+        int length = buffer.getInt(start + INT_BYTES);
+
+        if (length < 0) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+
+        limits.checkFrame(MessageCodec.ENVELOPE_BYTES + (long) length, false);
+
+        if (limit - start - MessageCodec.ENVELOPE_BYTES < length) {
+            return INCOMPLETE;
+        }
+
+        return MessageCodec.ENVELOPE_BYTES + length;
+    }
+
+    /**
+     * Skips a boolean field.
+     *
+     * @param offset The offset of the field, or -1 if an earlier field was incomplete.
+     * @param limit  The end of the readable bytes.
+     * @return The offset after the field, or -1 if it is incomplete.
+     */
+    private static int skipBoolean(int offset, int limit) {
+        if (offset == INCOMPLETE || limit - offset < BOOLEAN_BYTES) {
+            return INCOMPLETE;
+        }
+
+        return offset + BOOLEAN_BYTES;
+    }
+
+    /**
+     * Skips a length-prefixed string field.
+     *
+     * @param buffer The buffer being scanned.
+     * @param start  The offset of the frame.
+     * @param offset The offset of the field, or -1 if an earlier field was incomplete.
+     * @param limit  The end of the readable bytes.
+     * @param limits The limits the frame must fit.
+     * @return The offset after the field, or -1 if it is incomplete.
+     * @throws IOException If the length prefix is negative, or the field or frame too long.
+     */
+    private static int skipString(ByteBuffer buffer, int start, int offset, int limit, FrameLimits limits)
+            throws IOException {
+        if (offset == INCOMPLETE || limit - offset < INT_BYTES) {
+            return INCOMPLETE;
+        }
+
+        int length = buffer.getInt(offset);
+
+        if (length < 0) {
+            throw new IOException("Invalid string length: " + length);
+        }
+
+        limits.checkField(length, false);
+        limits.checkFrame((long) offset + INT_BYTES + length - start, false);
+
+        if (limit - offset - INT_BYTES < length) {
+            return INCOMPLETE;
+        }
+
+        return offset + INT_BYTES + length;
+    }
+
+    /**
+     * Skips a count-prefixed list of strings.
+     *
+     * @param buffer The buffer being scanned.
+     * @param start  The offset of the frame.
+     * @param offset The offset of the field, or -1 if an earlier field was incomplete.
+     * @param limit  The end of the readable bytes.
+     * @param limits The limits the frame must fit.
+     * @return The offset after the field, or -1 if it is incomplete.
+     * @throws IOException If the count or a string length is negative, or the list too long.
+     */
+    private static int skipStringList(ByteBuffer buffer, int start, int offset, int limit, FrameLimits limits)
+            throws IOException {
+        if (offset == INCOMPLETE || limit - offset < INT_BYTES) {
+            return INCOMPLETE;
+        }
+
+        int count = buffer.getInt(offset);
+
+        if (count < 0) {
+            throw new IOException("Invalid list size: " + count);
+        }
+
+        // Every entry takes at least its length prefix.
+        limits.checkFrame((long) offset + INT_BYTES + (long) count * INT_BYTES - start, false);
+        offset += INT_BYTES;
+
+        for (int i = 0; i < count && offset != INCOMPLETE; i++) {
+            offset = skipString(buffer, start, offset, limit, limits);
+        }
+
+        return offset;
+    }
+}
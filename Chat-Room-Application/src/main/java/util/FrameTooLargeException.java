@@ -0,0 +1,34 @@
+package util;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a frame or one of its fields declares a length beyond the decoder's
+ * {@link FrameLimits}. The error is recoverable when the decoder has skipped, or will
+ * skip, the rest of the offending frame, so the next frame can still be read.
+ */
+public class FrameTooLargeException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final boolean recoverable;
+
+    /**
+     * Constructs a FrameTooLargeException.
+     *
+     * @param message     The description of the violation, suitable to show the client.
+     * @param recoverable Whether the stream is still in step after the violation.
+     */
+    public FrameTooLargeException(String message, boolean recoverable) {
+        super(message);
+        this.recoverable = recoverable;
+    }
+
+    /**
+     * Checks whether the decoder can carry on with the next frame.
+     *
+     * @return True if the rest of the frame is skipped, false if the stream is out of step.
+     */
+    public boolean isRecoverable() {
+        return recoverable;
+    }
+}
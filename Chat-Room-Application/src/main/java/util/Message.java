@@ -0,0 +1,289 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A decoded protocol message: its type, plus the success flag of a connect response and
+ * the message's string fields in wire order. Messages are immutable.
+ */
+public class Message {
+    private final int type;
+    private final boolean success;
+    private final List<String> fields;
+
+    /**
+     * Constructs a Message.
+     *
+     * @param type    The message type value.
+     * @param success The success flag, only meaningful for a connect response.
+     * @param fields  The string fields in wire order.
+     */
+    private Message(int type, boolean success, List<String> fields) {
+        this.type = type;
+        this.success = success;
+        this.fields = Collections.unmodifiableList(fields);
+    }
+
+    /**
+     * Creates a message made only of string fields.
+     *
+     * @param type   The message type.
+     * @param fields The string fields in wire order.
+     * @return The message.
+     */
+    public static Message of(MessageType type, String... fields) {
+        return new Message(type.getValue(), false, Arrays.asList(fields.clone()));
+    }
+
+    /**
+     * Creates a connect response.
+     *
+     * @param success Whether the request succeeded.
+     * @param message The message to show the user.
+     * @return The message.
+     */
+    public static Message connectResponse(boolean success, String message) {
+        return new Message(MessageType.CONNECT_RESPONSE.getValue(), success, List.of(message));
+    }
+
+    /**
+     * Creates a query user response.
+     *
+     * @param usernames The usernames to list.
+     * @return The message.
+     */
+    public static Message userList(List<String> usernames) {
+        return new Message(MessageType.QUERY_USER_RESPONSE.getValue(), false, List.copyOf(usernames));
+    }
+
+    /**
+     * Creates a query for one page of the usernames that start with a prefix.
+     *
+     * @param username The requesting user.
+     * @param prefix   The prefix; empty for all names.
+     * @param cursor   The cursor from the previous page, or empty for the first page.
+     * @param limit    The most names to list.
+     * @return The message.
+     */
+    public static Message usersPageQuery(String username, String prefix, String cursor, int limit) {
+        return of(MessageType.QUERY_USERS_PAGE, username, prefix, cursor, Integer.toString(limit));
+    }
+
+    /**
+     * Creates a response listing one page of usernames.
+     *
+     * @param usernames  The usernames on the page.
+     * @param nextCursor The cursor for the next page, or empty if this is the last one.
+     * @return The message.
+     */
+    public static Message usersPage(List<String> usernames, String nextCursor) {
+        List<String> fields = new ArrayList<>(usernames.size() + 1);
+        fields.add(nextCursor);
+        fields.addAll(usernames);
+        return new Message(MessageType.USERS_PAGE_RESPONSE.getValue(), false, fields);
+    }
+
+    /**
+     * Creates a query for one page of a conversation's history.
+     *
+     * @param username The querying user's username.
+     * @param target   The conversation: '#' and a room name, or the other user's username.
+     * @param from     The start of the time range, in milliseconds since the epoch.
+     * @param to       The end of the time range, exclusive.
+     * @param cursor   The cursor from the previous page, or empty for the first page.
+     * @param limit    The most messages to return.
+     * @return The message.
+     */
+    public static Message historyQuery(String username, String target, long from, long to, String cursor, int limit) {
+        return of(MessageType.QUERY_HISTORY, username, target, Long.toString(from), Long.toString(to), cursor,
+                Integer.toString(limit));
+    }
+
+    /**
+     * Creates a response holding one page of a conversation's history: the cursor for the
+     * next page, then each message's timestamp, sender and text.
+     *
+     * @param entries    Each message's timestamp, sender and text, one after another.
+     * @param nextCursor The cursor for the next page, or empty if this is the last one.
+     * @return The message.
+     */
+    public static Message historyPage(List<String> entries, String nextCursor) {
+        List<String> fields = new ArrayList<>(entries.size() + 1);
+        fields.add(nextCursor);
+        fields.addAll(entries);
+        return new Message(MessageType.HISTORY_RESPONSE.getValue(), false, fields);
+    }
+
+    /**
+     * Creates a full-text search of the messages the user may see.
+     *
+     * @param username The searching user's username.
+     * @param query    The words to search for.
+     * @param limit    The most matches to return.
+     * @return The message.
+     */
+    public static Message search(String username, String query, int limit) {
+        return of(MessageType.SEARCH, username, query, Integer.toString(limit));
+    }
+
+    /**
+     * Creates a response holding the matches of a search, newest first: each message's
+     * timestamp, sender, where it was sent and text.
+     *
+     * @param entries Each match's timestamp, sender, '#' and a room name, the recipient or
+     *                empty for a broadcast, and text, one after another.
+     * @return The message.
+     */
+    public static Message searchResults(List<String> entries) {
+        return new Message(MessageType.SEARCH_RESPONSE.getValue(), false, new ArrayList<>(entries));
+    }
+
+    /**
+     * Creates a presence snapshot: every connected username, as of a presence sequence
+     * number.
+     *
+     * @param sequence  The sequence number of the last membership change included.
+     * @param usernames The connected usernames.
+     * @return The message.
+     */
+    public static Message presenceSnapshot(long sequence, List<String> usernames) {
+        List<String> fields = new ArrayList<>(usernames.size() + 1);
+        fields.add(Long.toString(sequence));
+        fields.addAll(usernames);
+        return new Message(MessageType.PRESENCE_SNAPSHOT.getValue(), false, fields);
+    }
+
+    /**
+     * Creates a presence delta: a run of consecutive membership changes, the first of
+     * which has the given sequence number.
+     *
+     * @param firstSequence The sequence number of the first event.
+     * @param events        The events, from {@link PresenceEvent}, in sequence order.
+     * @return The message.
+     */
+    public static Message presenceDelta(long firstSequence, List<String> events) {
+        List<String> fields = new ArrayList<>(events.size() + 1);
+        fields.add(Long.toString(firstSequence));
+        fields.addAll(events);
+        return new Message(MessageType.PRESENCE_DELTA.getValue(), false, fields);
+    }
+
+    /**
+     * Creates a room list response: each room's name followed by its member count.
+     *
+     * @param rooms The room names and member counts, in the order they are listed.
+     * @return The message.
+     */
+    public static Message roomList(Map<String, Integer> rooms) {
+        List<String> fields = new ArrayList<>(rooms.size() * 2);
+
+        rooms.forEach((name, members) -> {
+            fields.add(name);
+            fields.add(Integer.toString(members));
+        });
+
+        return new Message(MessageType.ROOM_LIST_RESPONSE.getValue(), false, fields);
+    }
+
+    /**
+     * Creates a credit grant: the total number of frames the receiver will have accepted
+     * from the sender, counted since flow control started. Grants are absolute, so a
+     * later one supersedes any that were not yet sent.
+     *
+     * @param limit The frame count the sender may reach.
+     * @return The message.
+     */
+    public static Message credit(long limit) {
+        return of(MessageType.CREDIT, Long.toString(limit));
+    }
+
+    /**
+     * Creates a message from decoded parts. Used by the codec, including for types it
+     * does not know, which carry no fields.
+     *
+     * @param type    The message type value.
+     * @param success The success flag.
+     * @param fields  The string fields in wire order.
+     * @return The message.
+     */
+    static Message decoded(int type, boolean success, List<String> fields) {
+        return new Message(type, success, fields);
+    }
+
+    /**
+     * Gets the message type value.
+     *
+     * @return The message type value.
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * Checks whether the message has the given type.
+     *
+     * @param messageType The type to check for.
+     * @return True if the message has that type.
+     */
+    public boolean is(MessageType messageType) {
+        return type == messageType.getValue();
+    }
+
+    /**
+     * Gets the success flag of a connect response.
+     *
+     * @return True if the request succeeded.
+     */
+    public boolean isSuccess() {
+        return success;
+    }
+
+    /**
+     * Gets a string field.
+     *
+     * @param index The field's position, counting from 0.
+     * @return The field value.
+     * @throws IndexOutOfBoundsException If the message has no such field.
+     */
+    public String getField(int index) {
+        return fields.get(index);
+    }
+
+    /**
+     * Gets every string field in wire order.
+     *
+     * @return The fields, unmodifiable.
+     */
+    public List<String> getFields() {
+        return fields;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        Message that = (Message) o;
+
+        return type == that.type && success == that.success && fields.equals(that.fields);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(type, success, fields);
+    }
+
+    @Override
+    public String toString() {
+        return "Message{" +
+                "type=" + type +
+                ", success=" + success +
+                ", fields=" + fields +
+                '}';
+    }
+}
@@ -0,0 +1,781 @@
+package util;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns protocol frames into {@link Message}s and back, on top of the field-level
+ * {@link MessageProtocol}.
+ *
+ * <p>Every frame starts with an int header whose top byte is the protocol version and whose
+ * low bytes are the message type. Version 0 is the original format, where the fields follow
+ * the type directly and a frame's end can only be found by walking its fields. Version 1
+ * adds an envelope: {@code [int header][int payload length][payload]}, so a frame can be
+ * buffered, skipped or handed off without knowing its type. Legacy type values all have a
+ * zero top byte, so old clients keep working unchanged.
+ *
+ * <p>A codec instance remembers the version of the last frame it decoded, which is the
+ * version the peer should be answered in. It also owns the connection's reusable decode
+ * buffers and username cache, so it must only be used by one thread at a time. Encoding
+ * sizes each frame up front and writes it straight into its final array.
+ *
+ * <p>Decoding enforces the codec's {@link FrameLimits} on every declared length before
+ * allocating for it. Version 1 payloads up to {@value #BUFFERED_PAYLOAD_BYTES} bytes are
+ * buffered whole; larger ones are decoded a field at a time as they arrive, so memory is
+ * bounded by the field limit rather than the frame limit. A version 1 frame that breaks a
+ * limit is skipped, so the connection can carry on; a legacy frame has no length to skip
+ * by, so a violation there leaves the stream out of step.
+ */
+public class MessageCodec {
+    /**
+     * The original, unframed protocol.
+     */
+    public static final int LEGACY_VERSION = 0;
+
+    /**
+     * The length-prefixed envelope.
+     */
+    public static final int CURRENT_VERSION = 1;
+
+    /**
+     * The size of a version 1 envelope: the header plus the payload length.
+     */
+    public static final int ENVELOPE_BYTES = 8;
+
+    private static final int VERSION_SHIFT = 24;
+    private static final int TYPE_MASK = (1 << VERSION_SHIFT) - 1;
+
+    /**
+     * The largest version 1 payload that is buffered whole before decoding.
+     */
+    public static final int BUFFERED_PAYLOAD_BYTES = 16 * 1024;
+
+    private final FrameLimits limits;
+    private final StringCodec strings;
+    private final PayloadStream payloadStream;
+    private final StreamFields streamFields;
+    private final BufferFields bufferFields;
+    private final byte[] payload;
+    private final ByteBuffer payloadBuffer;
+    private PartialFrame partial;
+    private long discarding;
+    private int version;
+
+    /**
+     * Constructs a MessageCodec with the default limits.
+     */
+    public MessageCodec() {
+        this(FrameLimits.DEFAULT);
+    }
+
+    /**
+     * Constructs a MessageCodec that has not decoded anything yet, so it reports the legacy version.
+     *
+     * @param limits The limits decoded frames must fit.
+     */
+    public MessageCodec(FrameLimits limits) {
+        this.limits = limits;
+        this.strings = new StringCodec(limits);
+        this.payloadStream = new PayloadStream();
+        this.streamFields = new StreamFields(new DataInputStream(payloadStream));
+        this.bufferFields = new BufferFields();
+        this.payload = new byte[BUFFERED_PAYLOAD_BYTES];
+        this.payloadBuffer = ByteBuffer.wrap(payload);
+        this.version = LEGACY_VERSION;
+    }
+
+    /**
+     * Builds a frame header.
+     *
+     * @param version The protocol version.
+     * @param type    The message type value.
+     * @return The header.
+     */
+    public static int header(int version, int type) {
+        return (version << VERSION_SHIFT) | (type & TYPE_MASK);
+    }
+
+    /**
+     * Extracts the protocol version from a frame header.
+     *
+     * @param header The header.
+     * @return The protocol version.
+     */
+    public static int versionOf(int header) {
+        return header >>> VERSION_SHIFT;
+    }
+
+    /**
+     * Extracts the message type from a frame header.
+     *
+     * @param header The header.
+     * @return The message type value.
+     */
+    public static int typeOf(int header) {
+        return header & TYPE_MASK;
+    }
+
+    /**
+     * Gets the version of the last frame this codec decoded.
+     *
+     * @return The protocol version.
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Gets the limits decoded frames must fit.
+     *
+     * @return The frame limits.
+     */
+    public FrameLimits getLimits() {
+        return limits;
+    }
+
+    /**
+     * Reads one complete message from a blocking stream.
+     *
+     * @param input The stream to read from.
+     * @return The message.
+     * @throws IOException If the stream ends, or the frame is malformed or of an unknown
+     *                     version, or a FrameTooLargeException if it breaks the limits.
+     */
+    public Message read(DataInputStream input) throws IOException {
+        int header = input.readInt();
+        version = checkVersion(versionOf(header));
+        int type = typeOf(header);
+
+        if (version == LEGACY_VERSION) {
+            // Without a length to check up front, the frame limit is enforced as fields are read.
+            payloadStream.reset(input, limits.getMaxFrameBytes() - Integer.BYTES, false);
+            return decodeFields(type, streamFields);
+        }
+
+        int length = input.readInt();
+
+        if (length < 0) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+
+        if (ENVELOPE_BYTES + (long) length > limits.getMaxFrameBytes()) {
+            input.skipNBytes(length);
+            limits.checkFrame(ENVELOPE_BYTES + (long) length, true);
+        }
+
+        try {
+            if (length <= BUFFERED_PAYLOAD_BYTES) {
+                input.readFully(payload, 0, length);
+                payloadBuffer.limit(length).position(0);
+                bufferFields.payload = payloadBuffer;
+                return decodeFields(type, bufferFields);
+            }
+
+            payloadStream.reset(input, length, true);
+
+            try {
+                return decodeFields(type, streamFields);
+            }
+
+            finally {
+                // Skip whatever the fields left, including the rest of a rejected frame.
+                payloadStream.skipRemaining();
+            }
+        }
+
+        catch (FrameTooLargeException e) {
+            throw new FrameTooLargeException(e.getMessage(), true);
+        }
+    }
+
+    /**
+     * Decodes the next message from a buffer of bytes read so far. If the buffer holds a
+     * complete frame, the buffer's position moves past it. A version 1 frame too large to
+     * buffer whole is consumed a field at a time, across calls, until it is complete.
+     *
+     * @param buffer The buffer, positioned at the start of a frame or where the last call stopped.
+     * @return The message, or null if the frame is not complete yet.
+     * @throws IOException If the frame is malformed or of an unknown version, or a
+     *                     FrameTooLargeException if it breaks the limits.
+     */
+    public Message decode(ByteBuffer buffer) throws IOException {
+        if (!discard(buffer)) {
+            return null;
+        }
+
+        if (partial != null) {
+            return decodePartial(buffer);
+        }
+
+        int start = buffer.position();
+
+        if (buffer.remaining() >= ENVELOPE_BYTES && versionOf(buffer.getInt(start)) != LEGACY_VERSION) {
+            int header = buffer.getInt(start);
+            version = checkVersion(versionOf(header));
+            int payloadLength = buffer.getInt(start + Integer.BYTES);
+
+            if (payloadLength < 0) {
+                throw new IOException("Invalid frame length: " + payloadLength);
+            }
+
+            if (ENVELOPE_BYTES + (long) payloadLength > limits.getMaxFrameBytes()) {
+                discarding = ENVELOPE_BYTES + (long) payloadLength;
+                discard(buffer);
+                limits.checkFrame(ENVELOPE_BYTES + (long) payloadLength, true);
+            }
+
+            if (payloadLength > BUFFERED_PAYLOAD_BYTES && buffer.remaining() - ENVELOPE_BYTES < payloadLength) {
+                buffer.position(start + ENVELOPE_BYTES);
+                partial = new PartialFrame(typeOf(header), payloadLength);
+                return decodePartial(buffer);
+            }
+        }
+
+        int length = FrameScanner.frameLength(buffer, limits);
+
+        if (length < 0) {
+            return null;
+        }
+
+        int header = buffer.getInt(start);
+        int frameVersion = versionOf(header);
+        int payloadStart = start + (frameVersion == LEGACY_VERSION ? Integer.BYTES : ENVELOPE_BYTES);
+
+        // Narrow the buffer to the payload while decoding, rather than allocate a view of it.
+        int limit = buffer.limit();
+        buffer.limit(start + length).position(payloadStart);
+        bufferFields.payload = buffer;
+        version = frameVersion;
+
+        try {
+            return decodeFields(typeOf(header), bufferFields);
+        }
+
+        catch (FrameTooLargeException e) {
+            if (frameVersion == LEGACY_VERSION) {
+                throw e;
+            }
+
+            throw new FrameTooLargeException(e.getMessage(), true);
+        }
+
+        finally {
+            buffer.limit(limit).position(start + length);
+        }
+    }
+
+    /**
+     * Skips bytes left over from a rejected or partly read frame.
+     *
+     * @param buffer The buffer of bytes read so far.
+     * @return True once there is nothing left to skip.
+     */
+    private boolean discard(ByteBuffer buffer) {
+        if (discarding > 0) {
+            int skipped = (int) Math.min(discarding, buffer.remaining());
+            buffer.position(buffer.position() + skipped);
+            discarding -= skipped;
+        }
+
+        return discarding == 0;
+    }
+
+    /**
+     * Decodes as many fields of the frame in progress as the buffer holds.
+     *
+     * @param buffer The buffer of bytes read so far.
+     * @return The message once every field has arrived, otherwise null.
+     * @throws IOException If the frame is malformed, or a FrameTooLargeException if a field is too long.
+     */
+    private Message decodePartial(ByteBuffer buffer) throws IOException {
+        PartialFrame frame = partial;
+
+        if (frame.expected < 0 && !readLayout(frame, buffer)) {
+            return null;
+        }
+
+        int names = nameFieldCount(frame.type);
+
+        while (frame.fields.size() < frame.expected) {
+            if (buffer.remaining() < Integer.BYTES) {
+                return null;
+            }
+
+            int length = buffer.getInt(buffer.position());
+
+            if (length < 0 || Integer.BYTES + (long) length > frame.remaining) {
+                throw new IOException("Invalid string length: " + length);
+            }
+
+            if (length > limits.getMaxFieldBytes()) {
+                partial = null;
+                discarding = frame.remaining;
+                discard(buffer);
+                limits.checkField(length, true);
+            }
+
+            if (buffer.remaining() < Integer.BYTES + length) {
+                return null;
+            }
+
+            boolean name = frame.fields.size() < names;
+            frame.fields.add(name ? MessageProtocol.readName(buffer, strings) : MessageProtocol.readString(buffer, strings));
+            frame.remaining -= Integer.BYTES + length;
+        }
+
+        // Anything after the known fields is ignored, as it is for buffered frames.
+        partial = null;
+        discarding = frame.remaining;
+        discard(buffer);
+        return Message.decoded(frame.type, frame.success, frame.fields);
+    }
+
+    /**
+     * Reads what comes before the string fields of a frame in progress: the success flag
+     * of a connect response, or the entry count of a list type.
+     *
+     * @param frame  The frame in progress.
+     * @param buffer The buffer of bytes read so far.
+     * @return True once the field count is known, false if more bytes are needed.
+     * @throws IOException If the frame is malformed.
+     */
+    private boolean readLayout(PartialFrame frame, ByteBuffer buffer) throws IOException {
+        if (frame.type == MessageType.CONNECT_RESPONSE.getValue()) {
+            if (!buffer.hasRemaining()) {
+                return false;
+            }
+
+            frame.success = buffer.get() != 0;
+            frame.remaining -= 1;
+            frame.expected = 1;
+        }
+
+        else if (MessageType.isList(frame.type)) {
+            if (buffer.remaining() < Integer.BYTES) {
+                return false;
+            }
+
+            int count = buffer.getInt();
+
+            if (count < 0) {
+                throw new IOException("Invalid list size: " + count);
+            }
+
+            frame.remaining -= Integer.BYTES;
+            frame.expected = count;
+        }
+
+        else {
+            frame.expected = fieldCount(frame.type);
+        }
+
+        return true;
+    }
+
+    /**
+     * Encodes the fields of a message, without any header.
+     *
+     * @param message The message.
+     * @return The payload bytes.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static byte[] encodePayload(Message message) throws IOException {
+        byte[] bytes = new byte[payloadLength(message)];
+        writePayload(message, ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    /**
+     * Encodes a message as a frame of the given version.
+     *
+     * @param message The message.
+     * @param version The protocol version to encode with.
+     * @return The frame.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static Frame encode(Message message, int version) throws IOException {
+        int payloadLength = payloadLength(message);
+        byte[] bytes;
+        ByteBuffer target;
+
+        if (version == LEGACY_VERSION) {
+            bytes = new byte[Integer.BYTES + payloadLength];
+            target = ByteBuffer.wrap(bytes).putInt(message.getType());
+        }
+
+        else {
+            bytes = new byte[ENVELOPE_BYTES + payloadLength];
+            target = ByteBuffer.wrap(bytes).putInt(header(version, message.getType())).putInt(payloadLength);
+        }
+
+        writePayload(message, target);
+        return Frame.wrap(message.getType(), bytes);
+    }
+
+    /**
+     * Computes the encoded size of a message's fields.
+     *
+     * @param message The message.
+     * @return The payload length in bytes.
+     */
+    private static int payloadLength(Message message) {
+        int length = 0;
+
+        if (message.is(MessageType.CONNECT_RESPONSE)) {
+            length += 1;
+        }
+
+        else if (MessageType.isList(message.getType())) {
+            length += Integer.BYTES;
+        }
+
+        for (String field : message.getFields()) {
+            length += Integer.BYTES + StringCodec.encodedLength(field);
+        }
+
+        return length;
+    }
+
+    /**
+     * Writes a message's fields to a buffer sized by {@link #payloadLength(Message)}.
+     *
+     * @param message The message.
+     * @param target  The buffer to write to.
+     */
+    private static void writePayload(Message message, ByteBuffer target) {
+        StringCodec strings = StringCodec.local();
+
+        if (message.is(MessageType.CONNECT_RESPONSE)) {
+            target.put((byte) (message.isSuccess() ? 1 : 0));
+        }
+
+        else if (MessageType.isList(message.getType())) {
+            target.putInt(message.getFields().size());
+        }
+
+        for (String field : message.getFields()) {
+            strings.encode(target, field, StringCodec.encodedLength(field));
+        }
+    }
+
+    /**
+     * Rejects versions newer than this codec understands.
+     *
+     * @param frameVersion The version from a frame header.
+     * @return The version, if supported.
+     * @throws IOException If the version is not supported.
+     */
+    static int checkVersion(int frameVersion) throws IOException {
+        if (frameVersion > CURRENT_VERSION) {
+            throw new IOException("Unsupported protocol version: " + frameVersion);
+        }
+
+        return frameVersion;
+    }
+
+    /**
+     * Gets the number of string fields a message type carries, apart from the connect
+     * response and the list types, which have their own layouts.
+     *
+     * @param type The message type value.
+     * @return The field count; 0 for unknown types.
+     */
+    private static int fieldCount(int type) {
+        if (type == MessageType.CONNECT_MESSAGE.getValue()
+                || type == MessageType.DISCONNECT_MESSAGE.getValue()
+                || type == MessageType.QUERY_CONNECTED_USERS.getValue()
+                || type == MessageType.FAILED_MESSAGE.getValue()
+                || type == MessageType.PRESENCE_SUBSCRIBE.getValue()
+                || type == MessageType.CREDIT.getValue()
+                || type == MessageType.LIST_ROOMS.getValue()) {
+            return 1;
+        }
+
+        else if (type == MessageType.BROADCAST_MESSAGE.getValue()
+                || type == MessageType.SEND_INSULT.getValue()
+                || type == MessageType.JOIN_ROOM.getValue()
+                || type == MessageType.LEAVE_ROOM.getValue()) {
+            return 2;
+        }
+
+        else if (type == MessageType.DIRECT_MESSAGE.getValue()
+                || type == MessageType.ROOM_MESSAGE.getValue()
+                || type == MessageType.SEARCH.getValue()) {
+            return 3;
+        }
+
+        else if (type == MessageType.QUERY_USERS_PAGE.getValue()) {
+            return 4;
+        }
+
+        else if (type == MessageType.QUERY_HISTORY.getValue()) {
+            return 6;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Gets the number of leading fields of a message type that are usernames, which are
+     * decoded through the username cache.
+     *
+     * @param type The message type value.
+     * @return The number of username fields.
+     */
+    private static int nameFieldCount(int type) {
+        if (type == MessageType.QUERY_USER_RESPONSE.getValue()
+                || type == MessageType.PRESENCE_SNAPSHOT.getValue()
+                || type == MessageType.USERS_PAGE_RESPONSE.getValue()) {
+            return Integer.MAX_VALUE;
+        }
+
+        else if (type == MessageType.PRESENCE_DELTA.getValue()) {
+            return 0;
+        }
+
+        else if (type == MessageType.DIRECT_MESSAGE.getValue()
+                || type == MessageType.SEND_INSULT.getValue()
+                || type == MessageType.JOIN_ROOM.getValue()
+                || type == MessageType.LEAVE_ROOM.getValue()
+                || type == MessageType.ROOM_MESSAGE.getValue()) {
+            // Room names repeat as much as usernames do, so they share the cache.
+            return 2;
+        }
+
+        else if (type == MessageType.FAILED_MESSAGE.getValue()
+                || type == MessageType.CONNECT_RESPONSE.getValue()
+                || type == MessageType.CREDIT.getValue()
+                || type == MessageType.ROOM_LIST_RESPONSE.getValue()
+                || type == MessageType.HISTORY_RESPONSE.getValue()
+                || type == MessageType.SEARCH_RESPONSE.getValue()) {
+            return 0;
+        }
+
+        return 1;
+    }
+
+    /**
+     * Reads the fields of a message of the given type.
+     *
+     * @param type   The message type value.
+     * @param reader The source of the fields.
+     * @return The message.
+     * @throws IOException If a field is malformed or missing.
+     */
+    private Message decodeFields(int type, FieldReader reader) throws IOException {
+        boolean success = false;
+        int count = fieldCount(type);
+
+        if (type == MessageType.CONNECT_RESPONSE.getValue()) {
+            success = reader.readBoolean();
+            count = 1;
+        }
+
+        else if (MessageType.isList(type)) {
+            count = reader.readInt();
+
+            if (count < 0) {
+                throw new IOException("Invalid list size: " + count);
+            }
+        }
+
+        List<String> fields = new ArrayList<>(Math.min(count, 16));
+        int names = nameFieldCount(type);
+
+        for (int i = 0; i < count; i++) {
+            fields.add(i < names ? reader.readName() : reader.readString());
+        }
+
+        return Message.decoded(type, success, fields);
+    }
+
+    /**
+     * Reads fields straight off a blocking stream, through the payload stream that bounds
+     * the frame.
+     */
+    private final class StreamFields implements FieldReader {
+        private final DataInputStream input;
+
+        private StreamFields(DataInputStream input) {
+            this.input = input;
+        }
+
+        @Override
+        public String readString() throws IOException {
+            return MessageProtocol.readString(input, strings);
+        }
+
+        @Override
+        public String readName() throws IOException {
+            return MessageProtocol.readName(input, strings);
+        }
+
+        @Override
+        public boolean readBoolean() throws IOException {
+            return MessageProtocol.readBoolean(input);
+        }
+
+        @Override
+        public int readInt() throws IOException {
+            return MessageProtocol.readInt(input);
+        }
+    }
+
+    /**
+     * Reads fields from a buffer limited to a complete payload.
+     */
+    private final class BufferFields implements FieldReader {
+        private ByteBuffer payload;
+
+        @Override
+        public String readString() throws IOException {
+            return MessageProtocol.readString(payload, strings);
+        }
+
+        @Override
+        public String readName() throws IOException {
+            return MessageProtocol.readName(payload, strings);
+        }
+
+        @Override
+        public boolean readBoolean() throws IOException {
+            return MessageProtocol.readBoolean(payload);
+        }
+
+        @Override
+        public int readInt() throws IOException {
+            return MessageProtocol.readInt(payload);
+        }
+    }
+
+    /**
+     * Passes through at most one frame's worth of a blocking stream. A version 1 frame ends
+     * at its declared length; a legacy frame, which has no length, fails once it outgrows
+     * the frame limit.
+     */
+    private final class PayloadStream extends InputStream {
+        private InputStream source;
+        private long remaining;
+        private boolean declared;
+
+        /**
+         * Starts a new frame.
+         *
+         * @param source    The stream the frame is read from.
+         * @param remaining The number of bytes the frame may still take.
+         * @param declared  Whether the length was declared by the frame, rather than the limit.
+         */
+        private void reset(InputStream source, long remaining, boolean declared) {
+            this.source = source;
+            this.remaining = remaining;
+            this.declared = declared;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining == 0) {
+                return exhausted();
+            }
+
+            int value = source.read();
+
+            if (value >= 0) {
+                remaining--;
+            }
+
+            return value;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+
+            if (remaining == 0) {
+                return exhausted();
+            }
+
+            int read = source.read(bytes, offset, (int) Math.min(length, remaining));
+
+            if (read > 0) {
+                remaining -= read;
+            }
+
+            return read;
+        }
+
+        /**
+         * Ends the frame: a declared frame reports end of stream, since its fields ran past
+         * its length, and a legacy frame has broken the frame limit.
+         *
+         * @return -1 for a declared frame.
+         * @throws FrameTooLargeException For a legacy frame.
+         */
+        private int exhausted() throws FrameTooLargeException {
+            if (declared) {
+                return -1;
+            }
+
+            throw new FrameTooLargeException("Frame exceeds the limit of " + limits.getMaxFrameBytes() + " bytes.", false);
+        }
+
+        /**
+         * Skips the rest of a declared frame without buffering it.
+         *
+         * @throws IOException If the stream ends first.
+         */
+        private void skipRemaining() throws IOException {
+            source.skipNBytes(remaining);
+            remaining = 0;
+        }
+    }
+
+    /**
+     * A version 1 frame whose fields are being decoded as they arrive.
+     */
+    private static final class PartialFrame {
+        private final int type;
+        private final List<String> fields;
+        private int remaining;
+        private int expected;
+        private boolean success;
+
+        /**
+         * Constructs a PartialFrame.
+         *
+         * @param type      The message type value.
+         * @param remaining The payload length.
+         */
+        private PartialFrame(int type, int remaining) {
+            this.type = type;
+            this.fields = new ArrayList<>();
+            this.remaining = remaining;
+            this.expected = -1;
+        }
+    }
+
+    /**
+     * A source of message fields, so the same layout code serves streams and buffers.
+     */
+    private interface FieldReader {
+        String readString() throws IOException;
+
+        String readName() throws IOException;
+
+        boolean readBoolean() throws IOException;
+
+        int readInt() throws IOException;
+    }
+
+    @Override
+    public String toString() {
+        return "MessageCodec{" +
+                "version=" + version +
+                '}';
+    }
+}
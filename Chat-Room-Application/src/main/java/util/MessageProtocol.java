@@ -3,10 +3,15 @@ package util;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 
 /**
- * Utility class providing methods to encode and decode messages according to the protocol.
+ * Utility class providing methods to encode and decode the fields of protocol messages,
+ * from streams or from buffers holding a complete message. {@link MessageCodec} builds
+ * whole messages out of these fields.
+ *
+ * <p>Strings are coded through a {@link StringCodec}, which reuses its buffers between
+ * calls. The variants that take no codec use the calling thread's.
  */
 public class MessageProtocol {
 
@@ -18,9 +23,7 @@ public class MessageProtocol {
      * @throws IOException If an I/O error occurs.
      */
     public static void writeString(DataOutputStream output, String data) throws IOException {
-        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
-        output.writeInt(bytes.length);
-        output.write(bytes);
+        StringCodec.local().write(output, data);
     }
 
     /**
@@ -31,10 +34,33 @@ public class MessageProtocol {
      * @throws IOException If an I/O error occurs.
      */
     public static String readString(DataInputStream input) throws IOException {
-        int length = input.readInt();
-        byte[] bytes = new byte[length];
-        input.readFully(bytes);
-        return new String(bytes, StandardCharsets.UTF_8);
+        return readString(input, StringCodec.local());
+    }
+
+    /**
+     * Reads a string from the input stream into the codec's reusable buffer.
+     *
+     * @param input   The DataInputStream to read from.
+     * @param strings The codec to decode with.
+     * @return The string read from the input stream.
+     * @throws IOException If an I/O error occurs or the length is negative or over the codec's limit.
+     */
+    public static String readString(DataInputStream input, StringCodec strings) throws IOException {
+        int length = strings.readBytes(input);
+        return strings.decode(strings.scratch(), 0, length);
+    }
+
+    /**
+     * Reads a username from the input stream, reusing the String of a name seen before.
+     *
+     * @param input   The DataInputStream to read from.
+     * @param strings The codec to decode with.
+     * @return The username read from the input stream.
+     * @throws IOException If an I/O error occurs or the length is negative or over the codec's limit.
+     */
+    public static String readName(DataInputStream input, StringCodec strings) throws IOException {
+        int length = strings.readBytes(input);
+        return strings.decodeName(strings.scratch(), 0, length);
     }
 
     /**
@@ -80,4 +106,104 @@ public class MessageProtocol {
     public static boolean readBoolean(DataInputStream input) throws IOException {
         return input.readBoolean();
     }
-}
\ No newline at end of file
+
+    /**
+     * Reads a length-prefixed string from a buffer.
+     *
+     * @param buffer The buffer to read from.
+     * @return The string read from the buffer.
+     * @throws IOException If the length is negative or runs past the end of the buffer.
+     */
+    public static String readString(ByteBuffer buffer) throws IOException {
+        return readString(buffer, StringCodec.local());
+    }
+
+    /**
+     * Reads a length-prefixed string from a buffer, decoding in place when the buffer is
+     * backed by an accessible array.
+     *
+     * @param buffer  The buffer to read from.
+     * @param strings The codec to decode with.
+     * @return The string read from the buffer.
+     * @throws IOException If the length is negative, over the codec's limit, or runs past the end of the buffer.
+     */
+    public static String readString(ByteBuffer buffer, StringCodec strings) throws IOException {
+        return readString(buffer, strings, false);
+    }
+
+    /**
+     * Reads a length-prefixed username from a buffer, reusing the String of a name seen before.
+     *
+     * @param buffer  The buffer to read from.
+     * @param strings The codec to decode with.
+     * @return The username read from the buffer.
+     * @throws IOException If the length is negative, over the codec's limit, or runs past the end of the buffer.
+     */
+    public static String readName(ByteBuffer buffer, StringCodec strings) throws IOException {
+        return readString(buffer, strings, true);
+    }
+
+    /**
+     * Reads a length-prefixed string or username from a buffer.
+     *
+     * @param buffer  The buffer to read from.
+     * @param strings The codec to decode with.
+     * @param name    Whether to decode through the username cache.
+     * @return The string read from the buffer.
+     * @throws IOException If the length is negative, over the codec's limit, or runs past the end of the buffer.
+     */
+    private static String readString(ByteBuffer buffer, StringCodec strings, boolean name) throws IOException {
+        int length = readInt(buffer);
+        strings.checkLength(length);
+
+        if (length > buffer.remaining()) {
+            throw new IOException("Invalid string length: " + length);
+        }
+
+        byte[] bytes;
+        int offset;
+
+        if (buffer.hasArray()) {
+            bytes = buffer.array();
+            offset = buffer.arrayOffset() + buffer.position();
+            buffer.position(buffer.position() + length);
+        }
+
+        else {
+            bytes = strings.copyToScratch(buffer, length);
+            offset = 0;
+        }
+
+        return name ? strings.decodeName(bytes, offset, length) : strings.decode(bytes, offset, length);
+    }
+
+    /**
+     * Reads an integer value from a buffer.
+     *
+     * @param buffer The buffer to read from.
+     * @return The integer value read from the buffer.
+     * @throws IOException If fewer than four bytes remain.
+     */
+    public static int readInt(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < Integer.BYTES) {
+            throw new IOException("Truncated integer field.");
+        }
+
+        return buffer.getInt();
+    }
+
+    /**
+     * Reads a boolean value from a buffer.
+     *
+     * @param buffer The buffer to read from.
+     * @return The boolean value read from the buffer.
+     * @throws IOException If no bytes remain.
+     */
+    public static boolean readBoolean(ByteBuffer buffer) throws IOException {
+        if (!buffer.hasRemaining()) {
+            throw new IOException("Truncated boolean field.");
+        }
+
+        return buffer.get() != 0;
+    }
+}
@@ -12,7 +12,22 @@ public enum MessageType {
     BROADCAST_MESSAGE(24),
     DIRECT_MESSAGE(25),
     FAILED_MESSAGE(26),
-    SEND_INSULT(27);
+    SEND_INSULT(27),
+    PRESENCE_SUBSCRIBE(28),
+    PRESENCE_SNAPSHOT(29),
+    PRESENCE_DELTA(30),
+    QUERY_USERS_PAGE(31),
+    USERS_PAGE_RESPONSE(32),
+    CREDIT(33),
+    JOIN_ROOM(34),
+    LEAVE_ROOM(35),
+    LIST_ROOMS(36),
+    ROOM_LIST_RESPONSE(37),
+    ROOM_MESSAGE(38),
+    QUERY_HISTORY(39),
+    HISTORY_RESPONSE(40),
+    SEARCH(41),
+    SEARCH_RESPONSE(42);
 
     private final int value;
 
@@ -34,6 +49,24 @@ public enum MessageType {
         return value;
     }
 
+    /**
+     * Checks whether a message type's fields are a counted list of strings rather than a
+     * fixed number of them.
+     *
+     * @param type The message type value.
+     * @return True for the user list and page, the presence snapshot and delta, the room
+     *         list, a page of history, and search results.
+     */
+    public static boolean isList(int type) {
+        return type == QUERY_USER_RESPONSE.value
+                || type == PRESENCE_SNAPSHOT.value
+                || type == PRESENCE_DELTA.value
+                || type == USERS_PAGE_RESPONSE.value
+                || type == ROOM_LIST_RESPONSE.value
+                || type == HISTORY_RESPONSE.value
+                || type == SEARCH_RESPONSE.value;
+    }
+
     @Override
     public String toString() {
         return "MessageType{" +
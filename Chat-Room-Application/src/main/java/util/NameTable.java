@@ -0,0 +1,133 @@
+package util;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A small cache from encoded usernames to their String, so a name that shows up in frame
+ * after frame is decoded once and then found by its bytes without allocating. Each slot
+ * holds one name and a colliding name simply replaces it. Names are also interned in a
+ * table shared by every connection, so all connections hold the same String for a user.
+ *
+ * <p>Name fields come from clients before anything checks them, so both tables are
+ * bounded whatever is sent: only names up to {@link #MAX_NAME_BYTES} are cached, and the
+ * shared table is a fixed array of slots that evict on collision, like the per-connection
+ * one, rather than a map that fills up and stays full.
+ *
+ * <p>Instances are not thread-safe; each connection's codec has its own.
+ */
+public class NameTable {
+    /**
+     * The longest encoded name cached and interned; longer ones are decoded every time.
+     */
+    public static final int MAX_NAME_BYTES = 64;
+
+    private static final int SHARED_SLOTS = 1 << 12;
+    private static final AtomicReferenceArray<String> SHARED = new AtomicReferenceArray<>(SHARED_SLOTS);
+
+    private final byte[][] keys;
+    private final String[] names;
+    private final int mask;
+
+    /**
+     * Constructs a NameTable.
+     *
+     * @param slots The number of slots, rounded up to a power of two.
+     */
+    public NameTable(int slots) {
+        int capacity = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+        this.keys = new byte[capacity][];
+        this.names = new String[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Finds the name cached for the given bytes.
+     *
+     * @param bytes  The array holding the encoded name.
+     * @param offset The offset of the name.
+     * @param length The length of the name in bytes.
+     * @return The cached name, or null if it is not cached.
+     */
+    public String lookup(byte[] bytes, int offset, int length) {
+        if (length > MAX_NAME_BYTES) {
+            return null;
+        }
+
+        int slot = hash(bytes, offset, length) & mask;
+        byte[] key = keys[slot];
+
+        if (key != null && Arrays.equals(key, 0, key.length, bytes, offset, offset + length)) {
+            return names[slot];
+        }
+
+        return null;
+    }
+
+    /**
+     * Caches a decoded name under its bytes, interning it across connections. Names over
+     * {@link #MAX_NAME_BYTES} are neither cached nor interned.
+     *
+     * @param bytes  The array holding the encoded name.
+     * @param offset The offset of the name.
+     * @param length The length of the name in bytes.
+     * @param name   The decoded name.
+     * @return The interned name, or the name itself if it is too long.
+     */
+    public String put(byte[] bytes, int offset, int length, String name) {
+        if (length > MAX_NAME_BYTES) {
+            return name;
+        }
+
+        String interned = intern(name);
+        int slot = hash(bytes, offset, length) & mask;
+        keys[slot] = Arrays.copyOfRange(bytes, offset, offset + length);
+        names[slot] = interned;
+        return interned;
+    }
+
+    /**
+     * Returns the shared instance of a name. A name not in the table takes its slot,
+     * evicting whichever name held it.
+     *
+     * @param name The name.
+     * @return The shared instance, or the name itself.
+     */
+    public static String intern(String name) {
+        int hash = name.hashCode();
+        int slot = (hash ^ (hash >>> 16)) & (SHARED_SLOTS - 1);
+        String existing = SHARED.get(slot);
+
+        if (name.equals(existing)) {
+            return existing;
+        }
+
+        SHARED.set(slot, name);
+        return name;
+    }
+
+    /**
+     * Hashes a range of bytes.
+     *
+     * @param bytes  The array.
+     * @param offset The start of the range.
+     * @param length The length of the range.
+     * @return The hash.
+     */
+    private static int hash(byte[] bytes, int offset, int length) {
+        int hash = 1;
+
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+
+        return hash ^ (hash >>> 16);
+    }
+
+    @Override
+    public String toString() {
+        return "NameTable{" +
+                "slots=" + keys.length +
+                '}';
+    }
+}
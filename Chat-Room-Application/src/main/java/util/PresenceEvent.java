@@ -0,0 +1,61 @@
+package util;
+
+/**
+ * Encodes the events of a presence delta. Each event is one string field: a marker for a
+ * join or a leave, followed by the username.
+ */
+public class PresenceEvent {
+    private static final char JOINED = '+';
+    private static final char LEFT = '-';
+
+    /**
+     * Prevents instantiation of this utility class.
+     */
+    private PresenceEvent() {
+    }
+
+    /**
+     * Encodes a join.
+     *
+     * @param username The user who joined.
+     * @return The event field.
+     */
+    public static String joined(String username) {
+        return JOINED + username;
+    }
+
+    /**
+     * Encodes a leave.
+     *
+     * @param username The user who left.
+     * @return The event field.
+     */
+    public static String left(String username) {
+        return LEFT + username;
+    }
+
+    /**
+     * Checks whether an event is a join.
+     *
+     * @param event The event field.
+     * @return True for a join, false for a leave.
+     * @throws IllegalArgumentException If the field is not an event.
+     */
+    public static boolean isJoin(String event) {
+        if (event.isEmpty() || (event.charAt(0) != JOINED && event.charAt(0) != LEFT)) {
+            throw new IllegalArgumentException("Invalid presence event: " + event);
+        }
+
+        return event.charAt(0) == JOINED;
+    }
+
+    /**
+     * Gets the username an event is about.
+     *
+     * @param event The event field.
+     * @return The username.
+     */
+    public static String username(String event) {
+        return event.substring(1);
+    }
+}
@@ -0,0 +1,282 @@
+package util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes and decodes UTF-8 strings against reusable buffers, with a cached encoder and
+ * decoder and a fast path for pure-ASCII text, which is most chat traffic. Decoding a
+ * string allocates only the String itself; decoding a cached username allocates nothing.
+ *
+ * <p>Every decoded string is checked against a field limit before anything is allocated
+ * for it. Instances are not thread-safe. Each connection's codec owns one, and
+ * {@link #local()} gives every other thread its own, with the default limits.
+ */
+public class StringCodec {
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int NAME_SLOTS = 64;
+    private static final ThreadLocal<StringCodec> LOCAL = ThreadLocal.withInitial(StringCodec::new);
+
+    private final CharsetEncoder encoder;
+    private final CharsetDecoder decoder;
+    private final NameTable names;
+    private final FrameLimits limits;
+    private byte[] scratch;
+    private ByteBuffer scratchBuffer;
+    private CharBuffer chars;
+
+    /**
+     * Constructs a StringCodec with the default limits.
+     */
+    public StringCodec() {
+        this(FrameLimits.DEFAULT);
+    }
+
+    /**
+     * Constructs a StringCodec with empty buffers and its own username cache.
+     *
+     * @param limits The limits decoded strings are checked against.
+     */
+    public StringCodec(FrameLimits limits) {
+        this.encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.names = new NameTable(NAME_SLOTS);
+        this.limits = limits;
+        this.scratch = new byte[INITIAL_CAPACITY];
+        this.scratchBuffer = ByteBuffer.wrap(scratch);
+        this.chars = CharBuffer.allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Gets the calling thread's StringCodec.
+     *
+     * @return The thread's codec.
+     */
+    public static StringCodec local() {
+        return LOCAL.get();
+    }
+
+    /**
+     * Counts the bytes a string takes in UTF-8, without encoding it. Unpaired surrogates
+     * count as the one-byte replacement the encoder writes for them.
+     *
+     * @param data The string.
+     * @return The encoded length in bytes.
+     */
+    public static int encodedLength(String data) {
+        int length = data.length();
+        int bytes = length;
+
+        for (int i = 0; i < length; i++) {
+            char c = data.charAt(i);
+
+            if (c < 0x80) {
+                continue;
+            }
+
+            if (c < 0x800) {
+                bytes += 1;
+            }
+
+            else if (!Character.isSurrogate(c)) {
+                bytes += 2;
+            }
+
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(data.charAt(i + 1))) {
+                // Two chars become four bytes.
+                bytes += 2;
+                i++;
+            }
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Decodes a UTF-8 string from a range of bytes.
+     *
+     * @param bytes  The array holding the string.
+     * @param offset The offset of the string.
+     * @param length The length of the string in bytes.
+     * @return The decoded string.
+     */
+    public String decode(byte[] bytes, int offset, int length) {
+        if (isAscii(bytes, offset, length)) {
+            // ASCII is a subset of Latin-1, which the JDK copies straight into a compact String.
+            return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+        }
+
+        if (chars.capacity() < length) {
+            chars = CharBuffer.allocate(Math.max(length, chars.capacity() * 2));
+        }
+
+        chars.clear();
+        decoder.reset();
+        decoder.decode(ByteBuffer.wrap(bytes, offset, length), chars, true);
+        decoder.flush(chars);
+        return new String(chars.array(), 0, chars.position());
+    }
+
+    /**
+     * Decodes a username from a range of bytes, reusing the cached String when the same
+     * bytes have been seen before.
+     *
+     * @param bytes  The array holding the name.
+     * @param offset The offset of the name.
+     * @param length The length of the name in bytes.
+     * @return The decoded, interned name.
+     */
+    public String decodeName(byte[] bytes, int offset, int length) {
+        String name = names.lookup(bytes, offset, length);
+        return name != null ? name : names.put(bytes, offset, length, decode(bytes, offset, length));
+    }
+
+    /**
+     * Rejects a declared string length that is negative or over the field limit.
+     *
+     * @param length The declared length.
+     * @throws IOException If the length is negative, or a FrameTooLargeException if it is too long.
+     */
+    public void checkLength(int length) throws IOException {
+        if (length < 0) {
+            throw new IOException("Invalid string length: " + length);
+        }
+
+        limits.checkField(length, false);
+    }
+
+    /**
+     * Reads the bytes of a length-prefixed string into this codec's scratch buffer.
+     *
+     * @param input The stream to read from.
+     * @return The number of bytes read into {@link #scratch()}.
+     * @throws IOException If the length is invalid or too long, or the stream ends.
+     */
+    public int readBytes(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        checkLength(length);
+        input.readFully(ensureScratch(length), 0, length);
+        return length;
+    }
+
+    /**
+     * Copies a range of a buffer into this codec's scratch buffer, for buffers without an
+     * accessible array.
+     *
+     * @param buffer The buffer to copy from; its position moves past the bytes.
+     * @param length The number of bytes to copy.
+     * @return The scratch array holding the bytes at offset 0.
+     */
+    public byte[] copyToScratch(ByteBuffer buffer, int length) {
+        buffer.get(ensureScratch(length), 0, length);
+        return scratch;
+    }
+
+    /**
+     * Gets the scratch array the last {@link #readBytes(DataInputStream)} filled.
+     *
+     * @return The scratch array.
+     */
+    public byte[] scratch() {
+        return scratch;
+    }
+
+    /**
+     * Writes a string, preceded by its length, to a buffer with room for it.
+     *
+     * @param target The buffer to write to.
+     * @param data   The string.
+     * @param length The string's encoded length, from {@link #encodedLength(String)}.
+     */
+    public void encode(ByteBuffer target, String data, int length) {
+        target.putInt(length);
+
+        if (length == data.length()) {
+            // Most likely pure ASCII, where each char is its own byte. An unpaired surrogate
+            // also encodes to one byte, so fall back to the encoder if one turns up.
+            int start = target.position();
+            int i = 0;
+
+            while (i < length && data.charAt(i) < 0x80) {
+                target.put((byte) data.charAt(i++));
+            }
+
+            if (i == length) {
+                return;
+            }
+
+            target.position(start);
+        }
+
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(data), target, true);
+        encoder.flush(target);
+    }
+
+    /**
+     * Writes a string, preceded by its length, to a stream with a single array write.
+     *
+     * @param output The stream to write to.
+     * @param data   The string.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void write(DataOutputStream output, String data) throws IOException {
+        int length = encodedLength(data);
+        ensureScratch(Integer.BYTES + length);
+        scratchBuffer.clear();
+        encode(scratchBuffer, data, length);
+        output.write(scratch, 0, scratchBuffer.position());
+    }
+
+    /**
+     * Checks whether a range of bytes is pure ASCII.
+     *
+     * @param bytes  The array.
+     * @param offset The start of the range.
+     * @param length The length of the range.
+     * @return True if no byte has its high bit set.
+     */
+    public static boolean isAscii(byte[] bytes, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (bytes[i] < 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Grows the scratch buffer to hold at least the given number of bytes.
+     *
+     * @param length The number of bytes needed.
+     * @return The scratch array.
+     */
+    private byte[] ensureScratch(int length) {
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+            scratchBuffer = ByteBuffer.wrap(scratch);
+        }
+
+        return scratch;
+    }
+
+    @Override
+    public String toString() {
+        return "StringCodec{" +
+                "scratch=" + scratch.length +
+                ", names=" + names +
+                '}';
+    }
+}
@@ -0,0 +1,133 @@
+package util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * An encoded query user response listing every name in a roster, with the offset of each
+ * name in the frame. The full list is one shared frame; the list without one name, which
+ * is what a client asking "who" gets, is spliced from the encoded bytes with two copies
+ * instead of encoding every name again.
+ */
+public class UserListFrame {
+    private static final int TYPE = MessageType.QUERY_USER_RESPONSE.getValue();
+
+    private final int version;
+    private final byte[] bytes;
+    private final int[] offsets;
+    private final Frame full;
+
+    /**
+     * Constructs a UserListFrame from an encoded frame.
+     *
+     * @param version The protocol version of the frame.
+     * @param bytes   The full encoded frame.
+     * @param offsets The offset of each name's entry, followed by the end of the frame.
+     */
+    private UserListFrame(int version, byte[] bytes, int[] offsets) {
+        this.version = version;
+        this.bytes = bytes;
+        this.offsets = offsets;
+        this.full = Frame.wrap(TYPE, bytes);
+    }
+
+    /**
+     * Encodes a list of usernames as a query user response.
+     *
+     * @param usernames The usernames, in the order they are listed.
+     * @param version   The protocol version to encode with.
+     * @return The encoded list.
+     * @throws IOException If the version is not supported.
+     */
+    public static UserListFrame encode(List<String> usernames, int version) throws IOException {
+        Frame frame = MessageCodec.encode(Message.userList(usernames), version);
+        byte[] bytes = new byte[frame.length()];
+        frame.buffer().get(bytes);
+
+        int[] offsets = new int[usernames.size() + 1];
+        int offset = countOffset(version) + Integer.BYTES;
+
+        for (int i = 0; i < usernames.size(); i++) {
+            offsets[i] = offset;
+            offset += Integer.BYTES + StringCodec.encodedLength(usernames.get(i));
+        }
+
+        offsets[usernames.size()] = offset;
+        return new UserListFrame(version, bytes, offsets);
+    }
+
+    /**
+     * Gets the protocol version the list is encoded in.
+     *
+     * @return The protocol version.
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Gets the number of names in the list.
+     *
+     * @return The name count.
+     */
+    public int size() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * Gets the frame listing every name. The same frame is returned on every call.
+     *
+     * @return The shared frame.
+     */
+    public Frame full() {
+        return full;
+    }
+
+    /**
+     * Builds the frame listing every name except one.
+     *
+     * @param index The position of the name to leave out, or -1 to leave out none.
+     * @return The frame.
+     */
+    public Frame without(int index) {
+        if (index < 0) {
+            return full;
+        }
+
+        int start = offsets[index];
+        int end = offsets[index + 1];
+        byte[] spliced = new byte[bytes.length - (end - start)];
+        System.arraycopy(bytes, 0, spliced, 0, start);
+        System.arraycopy(bytes, end, spliced, start, bytes.length - end);
+
+        ByteBuffer target = ByteBuffer.wrap(spliced);
+        int countOffset = countOffset(version);
+        target.putInt(countOffset, size() - 1);
+
+        if (version != MessageCodec.LEGACY_VERSION) {
+            target.putInt(Integer.BYTES, spliced.length - MessageCodec.ENVELOPE_BYTES);
+        }
+
+        return Frame.wrap(TYPE, spliced);
+    }
+
+    /**
+     * Gets the offset of the name count, which follows the header.
+     *
+     * @param version The protocol version.
+     * @return The offset in bytes.
+     */
+    private static int countOffset(int version) {
+        return version == MessageCodec.LEGACY_VERSION ? Integer.BYTES : MessageCodec.ENVELOPE_BYTES;
+    }
+
+    @Override
+    public String toString() {
+        return "UserListFrame{" +
+                "version=" + version +
+                ", names=" + size() +
+                ", length=" + bytes.length +
+                '}';
+    }
+}
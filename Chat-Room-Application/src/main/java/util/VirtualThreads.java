@@ -0,0 +1,115 @@
+package util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Utility class for starting tasks on virtual threads when the running JDK has them
+ * (Java 21 and later), falling back to platform threads otherwise. The build targets
+ * Java 17, so the virtual-thread API is looked up reflectively.
+ */
+public class VirtualThreads {
+    private static final Method NEW_PER_TASK_EXECUTOR = findNewPerTaskExecutor();
+    private static final Method OF_VIRTUAL = findOfVirtual();
+    private static final Method BUILDER_START = findBuilderStart();
+
+    /**
+     * Checks whether the running JDK can create virtual threads.
+     *
+     * @return True if virtual threads are available.
+     */
+    public static boolean isSupported() {
+        return NEW_PER_TASK_EXECUTOR != null && OF_VIRTUAL != null && BUILDER_START != null;
+    }
+
+    /**
+     * Creates an executor that runs every submitted task on a new virtual thread,
+     * or on a cached pool of platform threads if virtual threads are unavailable.
+     *
+     * @return The executor.
+     */
+    public static ExecutorService newPerTaskExecutor() {
+        if (isSupported()) {
+            try {
+                return (ExecutorService) NEW_PER_TASK_EXECUTOR.invoke(null);
+            }
+
+            catch (IllegalAccessException | InvocationTargetException | UnsupportedOperationException e) {
+                System.err.println("Virtual threads unavailable, using platform threads.");
+            }
+        }
+
+        return Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Starts a task on a new thread.
+     *
+     * @param task    The task to run.
+     * @param virtual Whether to use a virtual thread, if the JDK has them.
+     * @return The started thread.
+     */
+    public static Thread start(Runnable task, boolean virtual) {
+        if (virtual && isSupported()) {
+            try {
+                return (Thread) BUILDER_START.invoke(OF_VIRTUAL.invoke(null), task);
+            }
+
+            catch (IllegalAccessException | InvocationTargetException | UnsupportedOperationException e) {
+                System.err.println("Virtual threads unavailable, using platform threads.");
+            }
+        }
+
+        Thread thread = new Thread(task);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Looks up {@code Executors.newVirtualThreadPerTaskExecutor()}.
+     *
+     * @return The method, or null if the JDK does not have it.
+     */
+    private static Method findNewPerTaskExecutor() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        }
+
+        catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Looks up {@code Thread.ofVirtual()}.
+     *
+     * @return The method, or null if the JDK does not have it.
+     */
+    private static Method findOfVirtual() {
+        try {
+            return Thread.class.getMethod("ofVirtual");
+        }
+
+        catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Looks up {@code Thread.Builder.start(Runnable)} on the public interface, so it can be
+     * invoked on the JDK's non-public builder implementation.
+     *
+     * @return The method, or null if the JDK does not have it.
+     */
+    private static Method findBuilderStart() {
+        try {
+            return Class.forName("java.lang.Thread$Builder").getMethod("start", Runnable.class);
+        }
+
+        catch (ClassNotFoundException | NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import server.ChatServer;
+import server.ConnectedClient;
+import server.FrameWriter;
+import server.OutboundQueue;
+import server.ServerConfig;
+import server.SlowConsumerPolicy;
+import util.Frame;
+import util.MessageProtocol;
+import util.MessageType;
+
+/**
+ * Measures the heap allocated by one broadcast as the room grows, comparing the server's
+ * encode-once fan-out with encoding the frame again for every recipient. Writers are
+ * stubbed out, so only the fan-out itself is measured.
+ *
+ * <p>Run with {@code gradle benchmark -Pbench=BroadcastAllocationBenchmark --args="100,1000,10000"}.
+ * Needs a JVM that reports per-thread allocation (HotSpot does).
+ */
+public class BroadcastAllocationBenchmark {
+  private static final int PORT = 9300;
+  private static final int WARMUP_ROUNDS = 200;
+  private static final int ROUNDS = 50;
+  private static final String SENDER = "sender";
+  private static final String MESSAGE = "an ordinary chat message of a typical length";
+
+  private static final FrameWriter NO_OP_WRITER = new FrameWriter() {
+    @Override
+    public void requestDrain() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void closeNow() {
+    }
+  };
+
+  public static void main(String[] args) throws IOException {
+    int[] counts = args.length > 0
+        ? Arrays.stream(args[0].split(",")).mapToInt(Integer::parseInt).toArray()
+        : new int[] {100, 1000, 10000};
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    System.out.printf("%8s %20s %20s %16s%n",
+        "clients", "per-recipient B/msg", "encode-once B/msg", "encode-once B/rcpt");
+
+    for (int count : counts) {
+      ChatServer server = new ChatServer(PORT,
+          new ServerConfig().setSlowConsumerPolicy(SlowConsumerPolicy.DROP_OLDEST));
+      List<ConnectedClient> clients = addClients(server, count);
+
+      long perRecipient = measure(threads, clients, () -> encodePerRecipient(clients));
+      long encodeOnce = measure(threads, clients, () -> server.broadcastMessage(MESSAGE, SENDER));
+
+      System.out.printf("%8d %20d %20d %16.1f%n",
+          count, perRecipient, encodeOnce, (double) encodeOnce / count);
+      server.stop();
+    }
+  }
+
+  private static List<ConnectedClient> addClients(ChatServer server, int count) {
+    List<ConnectedClient> clients = new ArrayList<>(count);
+    PrintStream out = System.out;
+    System.setOut(new PrintStream(new ByteArrayOutputStream()));
+
+    try {
+      for (int i = 0; i < count; i++) {
+        ConnectedClient client = new ConnectedClient("bot" + i, new Socket(),
+            new OutboundQueue(4, 2, 1), NO_OP_WRITER);
+        server.addClient(client);
+        clients.add(client);
+      }
+    }
+
+    finally {
+      System.setOut(out);
+    }
+
+    return clients;
+  }
+
+  private static long measure(com.sun.management.ThreadMXBean threads, List<ConnectedClient> clients,
+      Runnable broadcast) {
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      broadcast.run();
+      drain(clients);
+    }
+
+    long id = Thread.currentThread().getId();
+    long total = 0;
+
+    for (int i = 0; i < ROUNDS; i++) {
+      long before = threads.getThreadAllocatedBytes(id);
+      broadcast.run();
+      total += threads.getThreadAllocatedBytes(id) - before;
+      drain(clients);
+    }
+
+    return total / ROUNDS;
+  }
+
+  private static void drain(List<ConnectedClient> clients) {
+    for (ConnectedClient client : clients) {
+      while (client.getOutboundQueue().poll() != null) {
+        // Discard; the benchmark only measures fan-out.
+      }
+    }
+  }
+
+  /**
+   * The fan-out as it was before frames were shared: a fresh stream and encoding per recipient.
+   */
+  private static void encodePerRecipient(List<ConnectedClient> clients) {
+    for (ConnectedClient client : clients) {
+      try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+          DataOutputStream dataOutput = new DataOutputStream(baos)) {
+        MessageProtocol.writeString(dataOutput, SENDER);
+        MessageProtocol.writeString(dataOutput, MESSAGE);
+        client.send(Frame.of(MessageType.BROADCAST_MESSAGE.getValue(), baos.toByteArray()));
+      }
+
+      catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+}
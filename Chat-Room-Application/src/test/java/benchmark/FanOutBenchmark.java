@@ -0,0 +1,123 @@
+package benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import server.ChatServer;
+import server.ConnectedClient;
+import server.FrameWriter;
+import server.OutboundQueue;
+import server.ServerConfig;
+import server.SlowConsumerPolicy;
+
+/**
+ * Measures how long one broadcast takes to reach every recipient's outbound queue as the
+ * room grows, for each fan-out parallelism. Parallelism 1 is the sequential path. Writers
+ * are stubbed out, so only the fan-out itself is measured.
+ *
+ * <p>Run with {@code gradle benchmark -Pbench=FanOutBenchmark --args="1000,10000,50000 1,2,4"}.
+ * The first argument lists room sizes and the second the parallelism levels; the default
+ * levels go up to the number of available processors.
+ */
+public class FanOutBenchmark {
+  private static final int PORT = 9300;
+  private static final int WARMUP_ROUNDS = 100;
+  private static final int ROUNDS = 50;
+  private static final String SENDER = "sender";
+  private static final String MESSAGE = "an ordinary chat message of a typical length";
+
+  private static final FrameWriter NO_OP_WRITER = new FrameWriter() {
+    @Override
+    public void requestDrain() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void closeNow() {
+    }
+  };
+
+  public static void main(String[] args) {
+    int[] counts = args.length > 0
+        ? Arrays.stream(args[0].split(",")).mapToInt(Integer::parseInt).toArray()
+        : new int[] {1000, 10000, 50000};
+    int processors = Runtime.getRuntime().availableProcessors();
+    int[] levels = args.length > 1
+        ? Arrays.stream(args[1].split(",")).mapToInt(Integer::parseInt).toArray()
+        : new int[] {1, Math.min(2, processors), Math.min(4, processors), processors};
+    levels = Arrays.stream(levels).distinct().toArray();
+
+    System.out.println("Available processors: " + processors);
+    System.out.printf("%8s %12s %14s %14s %12s%n", "clients", "parallelism", "median us", "p99 us", "ns/rcpt");
+
+    for (int count : counts) {
+      for (int parallelism : levels) {
+        ChatServer server = new ChatServer(PORT, new ServerConfig()
+            .setSlowConsumerPolicy(SlowConsumerPolicy.DROP_OLDEST)
+            .setFanOutParallelism(parallelism)
+            .clearMessageRateLimits());
+        List<ConnectedClient> clients = addClients(server, count);
+        long[] nanos = measure(server, clients);
+        long median = nanos[nanos.length / 2];
+
+        System.out.printf("%8d %12d %14.1f %14.1f %12.1f%n", count, parallelism, median / 1000.0,
+            nanos[(int) (nanos.length * 0.99)] / 1000.0, (double) median / count);
+        server.stop();
+      }
+    }
+  }
+
+  private static List<ConnectedClient> addClients(ChatServer server, int count) {
+    List<ConnectedClient> clients = new ArrayList<>(count);
+    PrintStream out = System.out;
+    System.setOut(new PrintStream(new ByteArrayOutputStream()));
+
+    try {
+      for (int i = 0; i < count; i++) {
+        ConnectedClient client = new ConnectedClient("bot" + i, new Socket(),
+            new OutboundQueue(4, 2, 1), NO_OP_WRITER);
+        server.addClient(client);
+        clients.add(client);
+      }
+    }
+
+    finally {
+      System.setOut(out);
+    }
+
+    return clients;
+  }
+
+  private static long[] measure(ChatServer server, List<ConnectedClient> clients) {
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      server.broadcastMessage(MESSAGE, SENDER);
+      drain(clients);
+    }
+
+    long[] nanos = new long[ROUNDS];
+
+    for (int i = 0; i < ROUNDS; i++) {
+      long start = System.nanoTime();
+      server.broadcastMessage(MESSAGE, SENDER);
+      nanos[i] = System.nanoTime() - start;
+      drain(clients);
+    }
+
+    Arrays.sort(nanos);
+    return nanos;
+  }
+
+  private static void drain(List<ConnectedClient> clients) {
+    for (ConnectedClient client : clients) {
+      while (client.getOutboundQueue().poll() != null) {
+        // Discard; the benchmark only measures fan-out.
+      }
+    }
+  }
+}
@@ -0,0 +1,82 @@
+package benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import storage.FsyncPolicy;
+import storage.MessageLog;
+import util.Frame;
+import util.Message;
+import util.MessageCodec;
+import util.MessageType;
+
+/**
+ * Measures message log throughput under each fsync policy: how fast senders can hand
+ * messages to the log, and how fast the writer gets them durably to disk. Several sender
+ * threads append at once, as handler threads do.
+ *
+ * <p>Run with {@code gradle benchmark -Pbench=MessageLogBenchmark --args="200000 4"}. The
+ * arguments are the message count and the sender thread count. Messages are logged
+ * under a temporary directory that is deleted afterwards.
+ */
+public class MessageLogBenchmark {
+  private static final int SEGMENT_BYTES = 64 * 1024 * 1024;
+  private static final long GROUP_COMMIT_MILLIS = 10;
+
+  public static void main(String[] args) throws Exception {
+    int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+    int senders = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+    Frame frame = MessageCodec.encode(
+        Message.of(MessageType.BROADCAST_MESSAGE, "sender", "an ordinary chat message of a typical length"),
+        MessageCodec.CURRENT_VERSION);
+
+    System.out.printf("%d messages of %d bytes from %d senders%n", messages, frame.length(), senders);
+    System.out.printf("%-14s %16s %16s %10s%n", "policy", "append msg/s", "durable msg/s", "syncs");
+
+    for (FsyncPolicy policy : FsyncPolicy.values()) {
+      // Forcing every message is orders of magnitude slower; keep its run short.
+      int count = policy == FsyncPolicy.EVERY_MESSAGE ? Math.min(messages, 5_000) : messages;
+      Path directory = Files.createTempDirectory("message-log-benchmark");
+
+      try (MessageLog log = new MessageLog(directory, SEGMENT_BYTES, policy, GROUP_COMMIT_MILLIS)) {
+        long start = System.nanoTime();
+        Thread[] threads = new Thread[senders];
+
+        for (int t = 0; t < senders; t++) {
+          int share = count / senders + (t < count % senders ? 1 : 0);
+          threads[t] = new Thread(() -> {
+            for (int i = 0; i < share; i++) {
+              log.append(frame);
+            }
+          });
+          threads[t].start();
+        }
+
+        for (Thread thread : threads) {
+          thread.join();
+        }
+
+        long appended = System.nanoTime() - start;
+        log.flush();
+        long durable = System.nanoTime() - start;
+
+        System.out.printf("%-14s %16.0f %16.0f %10d%n", policy, count * 1e9 / appended,
+            count * 1e9 / durable, log.getSyncCount());
+      }
+
+      finally {
+        delete(directory);
+      }
+    }
+  }
+
+  private static void delete(Path directory) throws IOException {
+    try (Stream<Path> files = Files.walk(directory)) {
+      for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+        Files.delete(file);
+      }
+    }
+  }
+}
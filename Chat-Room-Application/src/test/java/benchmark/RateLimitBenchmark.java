@@ -0,0 +1,110 @@
+package benchmark;
+
+import java.util.concurrent.atomic.AtomicLong;
+import server.MessageRateLimiter;
+import server.RateLimit;
+import server.RateLimitPolicy;
+import server.TokenBucket;
+import server.UserRateLimits;
+import util.MessageType;
+
+/**
+ * Measures the cost of the per-message rate limit check, as done on every frame a client
+ * sends: a user's own limits with the bucket mostly full, a user hammering an empty bucket,
+ * and one bucket shared by several threads, against a bucket guarded by a lock.
+ *
+ * <p>Run with {@code gradle benchmark -Pbench=RateLimitBenchmark --args="4 2000"}
+ * (threads for the shared bucket, milliseconds per run).
+ */
+public class RateLimitBenchmark {
+  private static final int BROADCAST = MessageType.BROADCAST_MESSAGE.getValue();
+
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+    long millis = args.length > 1 ? Long.parseLong(args[1]) : 2000;
+
+    System.out.printf("%-24s %8s %14s %10s%n", "check", "threads", "checks/s", "avg ns");
+
+    MessageRateLimiter limiter = new MessageRateLimiter();
+    limiter.setLimit(MessageType.BROADCAST_MESSAGE, new RateLimit(1e9, 1_000_000, RateLimitPolicy.REJECT));
+    UserRateLimits within = new UserRateLimits(limiter);
+    run("user, within limit", 1, millis, () -> within.acquire(BROADCAST, System.nanoTime()) == 0);
+
+    MessageRateLimiter strict = new MessageRateLimiter();
+    strict.setLimit(MessageType.BROADCAST_MESSAGE, new RateLimit(10, 20, RateLimitPolicy.DROP));
+    UserRateLimits over = new UserRateLimits(strict);
+    run("user, over limit", 1, millis, () -> over.acquire(BROADCAST, System.nanoTime()) == 0);
+
+    TokenBucket shared = new TokenBucket(1e9, 1_000_000, System.nanoTime());
+    run("shared, lock-free", threads, millis, () -> shared.tryAcquire(System.nanoTime()));
+
+    LockedBucket locked = new LockedBucket(1e9, 1_000_000, System.nanoTime());
+    run("shared, locked", threads, millis, () -> locked.tryAcquire(System.nanoTime()));
+  }
+
+  private interface Check {
+    boolean run();
+  }
+
+  private static void run(String name, int threads, long millis, Check check) throws Exception {
+    AtomicLong checks = new AtomicLong();
+    Thread[] workers = new Thread[threads];
+    long start = System.nanoTime();
+    long deadline = start + millis * 1_000_000;
+
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Thread(() -> {
+        long count = 0;
+
+        while (System.nanoTime() < deadline) {
+          check.run();
+          count++;
+        }
+
+        checks.addAndGet(count);
+      });
+      workers[i].start();
+    }
+
+    for (Thread worker : workers) {
+      worker.join();
+    }
+
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.printf("%-24s %8d %14.0f %10.1f%n", name, threads, checks.get() / seconds,
+        seconds * 1e9 * threads / checks.get());
+  }
+
+  /**
+   * The token-counting bucket this benchmark compares against, guarded by its monitor.
+   */
+  private static class LockedBucket {
+    private final double ratePerNano;
+    private final double burst;
+    private double tokens;
+    private long lastRefillNanos;
+
+    LockedBucket(double ratePerSecond, int burst, long nowNanos) {
+      this.ratePerNano = ratePerSecond / 1e9;
+      this.burst = burst;
+      this.tokens = burst;
+      this.lastRefillNanos = nowNanos;
+    }
+
+    synchronized boolean tryAcquire(long nowNanos) {
+      long elapsed = nowNanos - lastRefillNanos;
+
+      if (elapsed > 0) {
+        tokens = Math.min(burst, tokens + elapsed * ratePerNano);
+        lastRefillNanos = nowNanos;
+      }
+
+      if (tokens < 1) {
+        return false;
+      }
+
+      tokens -= 1;
+      return true;
+    }
+  }
+}
@@ -0,0 +1,159 @@
+package benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import server.ClientRegistry;
+import server.ConnectedClient;
+import server.FrameWriter;
+import server.OutboundQueue;
+
+/**
+ * Measures username lookups and connect/disconnect churn against a large population of
+ * registered users, comparing the ConcurrentHashMap-backed ClientRegistry with the old
+ * synchronized scan of a CopyOnWriteArrayList. Each operation is a lookup of a random
+ * user, except one in every {@code churnEvery}, which connects and disconnects a user.
+ *
+ * <p>Run with {@code gradle benchmark -Pbench=RegistryContentionBenchmark --args="100000 1,4,8 2000"}
+ * (registered users, thread counts, milliseconds per run).
+ */
+public class RegistryContentionBenchmark {
+  private static final int CHURN_EVERY = 100;
+
+  private static final FrameWriter NO_OP_WRITER = new FrameWriter() {
+    @Override
+    public void requestDrain() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void closeNow() {
+    }
+  };
+
+  public static void main(String[] args) throws InterruptedException {
+    int users = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+    int[] threadCounts = args.length > 1
+        ? Arrays.stream(args[1].split(",")).mapToInt(Integer::parseInt).toArray()
+        : new int[] {1, 4, 8};
+    long millis = args.length > 2 ? Long.parseLong(args[2]) : 2000;
+
+    System.out.printf("%-10s %8s %8s %16s%n", "registry", "users", "threads", "ops/s");
+
+    for (int threads : threadCounts) {
+      run("list", new ListRegistry(), users, threads, millis);
+      run("map", new MapRegistry(), users, threads, millis);
+    }
+  }
+
+  private static void run(String name, Registry registry, int users, int threads, long millis)
+      throws InterruptedException {
+    for (int i = 0; i < users; i++) {
+      registry.add(client("user" + i));
+    }
+
+    AtomicLong operations = new AtomicLong();
+    long deadline = System.nanoTime() + millis * 1_000_000;
+    List<Thread> workers = new ArrayList<>();
+
+    for (int t = 0; t < threads; t++) {
+      int id = t;
+
+      workers.add(new Thread(() -> {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long count = 0;
+
+        while (System.nanoTime() < deadline) {
+          if (count % CHURN_EVERY == 0) {
+            ConnectedClient client = client("churn" + id + "-" + count);
+            registry.add(client);
+            registry.remove(client);
+          }
+
+          else if (registry.get("user" + random.nextInt(users)) == null) {
+            throw new IllegalStateException("Registered user missing.");
+          }
+
+          count++;
+        }
+
+        operations.addAndGet(count);
+      }));
+    }
+
+    long start = System.nanoTime();
+    workers.forEach(Thread::start);
+
+    for (Thread worker : workers) {
+      worker.join();
+    }
+
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.printf("%-10s %8d %8d %16.0f%n", name, users, threads, operations.get() / seconds);
+  }
+
+  private static ConnectedClient client(String username) {
+    return new ConnectedClient(username, null, new OutboundQueue(4, 3, 1), NO_OP_WRITER);
+  }
+
+  private interface Registry {
+    void add(ConnectedClient client);
+
+    void remove(ConnectedClient client);
+
+    ConnectedClient get(String username);
+  }
+
+  /**
+   * The registry as it was: a copy-on-write list scanned under the server's monitor.
+   */
+  private static class ListRegistry implements Registry {
+    private final List<ConnectedClient> clients = new CopyOnWriteArrayList<>();
+
+    @Override
+    public synchronized void add(ConnectedClient client) {
+      clients.add(client);
+    }
+
+    @Override
+    public synchronized void remove(ConnectedClient client) {
+      clients.remove(client);
+    }
+
+    @Override
+    public synchronized ConnectedClient get(String username) {
+      for (ConnectedClient client : clients) {
+        if (client.getUsername().equals(username)) {
+          return client;
+        }
+      }
+
+      return null;
+    }
+  }
+
+  private static class MapRegistry implements Registry {
+    private final ClientRegistry clients = new ClientRegistry();
+
+    @Override
+    public void add(ConnectedClient client) {
+      clients.register(client);
+    }
+
+    @Override
+    public void remove(ConnectedClient client) {
+      clients.unregister(client);
+    }
+
+    @Override
+    public ConnectedClient get(String username) {
+      return clients.get(username);
+    }
+  }
+}
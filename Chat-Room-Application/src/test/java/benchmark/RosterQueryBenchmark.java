@@ -0,0 +1,93 @@
+package benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import server.ClientRegistry;
+import server.ConnectedClient;
+import server.FrameWriter;
+import server.OutboundQueue;
+import server.Roster;
+import util.Frame;
+import util.Message;
+import util.MessageCodec;
+
+/**
+ * Measures answering "who" by listing and encoding the usernames on every query, against
+ * splicing the reply from the roster snapshot's cached frame, and against handing out a
+ * reply already cached for the requesting client.
+ *
+ * <p>Run with {@code gradle benchmark -Pbench=RosterQueryBenchmark --args="100,1000,10000 2000"}
+ * (room sizes, milliseconds per run).
+ */
+public class RosterQueryBenchmark {
+  private static final FrameWriter NO_OP_WRITER = new FrameWriter() {
+    @Override
+    public void requestDrain() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void closeNow() {
+    }
+  };
+
+  private interface Query {
+    Frame run(String requester) throws IOException;
+  }
+
+  public static void main(String[] args) throws IOException {
+    String[] sizes = (args.length > 0 ? args[0] : "100,1000,10000").split(",");
+    long millis = args.length > 1 ? Long.parseLong(args[1]) : 2000;
+
+    System.out.printf("%-10s %8s %14s%n", "query", "clients", "queries/s");
+
+    for (String size : sizes) {
+      int clients = Integer.parseInt(size);
+      ClientRegistry registry = new ClientRegistry();
+      List<String> names = new ArrayList<>();
+
+      for (int i = 0; i < clients; i++) {
+        names.add("user" + i);
+        registry.register(new ConnectedClient("user" + i, null, new OutboundQueue(4, 3, 1), NO_OP_WRITER));
+      }
+
+      Frame[] cached = new Frame[1];
+
+      run("rebuild", clients, millis, names, requester ->
+          MessageCodec.encode(Message.userList(registry.clients().stream()
+              .map(ConnectedClient::getUsername).filter(name -> !name.equals(requester)).toList()),
+              MessageCodec.CURRENT_VERSION));
+      run("splice", clients, millis, names, requester ->
+          registry.roster().userListFrame(requester, MessageCodec.CURRENT_VERSION));
+      run("cached", clients, millis, names, requester -> {
+        Roster roster = registry.roster();
+
+        if (cached[0] == null) {
+          cached[0] = roster.userListFrame(requester, MessageCodec.CURRENT_VERSION);
+        }
+
+        return cached[0];
+      });
+    }
+  }
+
+  private static void run(String name, int clients, long millis, List<String> names, Query query)
+      throws IOException {
+    long deadline = System.nanoTime() + millis * 1_000_000;
+    long start = System.nanoTime();
+    long queries = 0;
+    long bytes = 0;
+
+    while (System.nanoTime() < deadline) {
+      bytes += query.run(names.get((int) (queries % names.size()))).length();
+      queries++;
+    }
+
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.printf("%-10s %8d %14.0f%s%n", name, clients, queries / seconds, bytes == 0 ? "?" : "");
+  }
+}
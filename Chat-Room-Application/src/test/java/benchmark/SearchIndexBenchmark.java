@@ -0,0 +1,137 @@
+package benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+import server.SearchIndex;
+import util.Message;
+import util.MessageType;
+
+/**
+ * Measures the heap the search index takes per million messages, apart from the messages
+ * themselves, and the latency of searches for a common word, a rare word and a pair of
+ * words, against scanning the messages for the rare word. Message text is drawn from a
+ * Zipf-distributed vocabulary, as natural language roughly is.
+ *
+ * <p>Run with {@code gradle benchmark -Pbench=SearchIndexBenchmark --args="100000,1000000 2000"}
+ * (message counts, queries per kind).
+ */
+public class SearchIndexBenchmark {
+  private static final int VOCABULARY = 50_000;
+  private static final int PAGE_SIZE = 20;
+
+  private interface Query {
+    int run();
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    int[] counts = args.length > 0
+        ? Arrays.stream(args[0].split(",")).mapToInt(Integer::parseInt).toArray()
+        : new int[] {100_000, 1_000_000};
+    int queries = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+    double[] cumulative = zipf(VOCABULARY);
+
+    System.out.printf("%-10s %10s %14s %14s %14s%n", "query", "messages", "MiB/M msgs", "p50 us", "p99 us");
+
+    for (int count : counts) {
+      Random random = new Random(count);
+      long before = usedHeap();
+      Message[] messages = new Message[count];
+
+      for (int i = 0; i < count; i++) {
+        messages[i] = Message.of(MessageType.BROADCAST_MESSAGE, "user" + random.nextInt(1000),
+            text(random, cumulative));
+      }
+
+      long withMessages = usedHeap();
+      SearchIndex index = new SearchIndex(count);
+
+      for (int i = 0; i < count; i++) {
+        index.add(messages[i], i);
+      }
+
+      long withIndex = usedHeap();
+      double perMillion = 1e6 / count / (1024 * 1024);
+      System.out.printf("%-10s %10d %14.1f%n", "messages", count, (withMessages - before) * perMillion);
+      System.out.printf("%-10s %10d %14.1f%n", "index", count, (withIndex - withMessages) * perMillion);
+
+      String common = word(1);
+      String rare = word(10_000);
+      String pair = word(2) + " " + word(200);
+
+      run("common", count, queries, () -> index.search(common, PAGE_SIZE, message -> true).size());
+      run("rare", count, queries, () -> index.search(rare, PAGE_SIZE, message -> true).size());
+      run("pair", count, queries, () -> index.search(pair, PAGE_SIZE, message -> true).size());
+      run("scan", count, Math.max(1, queries / 100), () -> scan(messages, rare));
+    }
+  }
+
+  private static void run(String name, int count, int queries, Query query) {
+    long[] nanos = new long[queries];
+    long found = 0;
+
+    for (int i = 0; i < queries; i++) {
+      long start = System.nanoTime();
+      found += query.run();
+      nanos[i] = System.nanoTime() - start;
+    }
+
+    Arrays.sort(nanos);
+    System.out.printf("%-10s %10d %14s %14.1f %14.1f%s%n", name, count, "", nanos[queries / 2] / 1e3,
+        nanos[Math.min(queries - 1, (int) (queries * 0.99))] / 1e3, found == 0 ? " (no matches)" : "");
+  }
+
+  private static int scan(Message[] messages, String word) {
+    int found = 0;
+
+    for (int i = messages.length - 1; i >= 0 && found < PAGE_SIZE; i--) {
+      if (messages[i].getField(1).toLowerCase().contains(word)) {
+        found++;
+      }
+    }
+
+    return found;
+  }
+
+  private static double[] zipf(int size) {
+    double[] cumulative = new double[size];
+    double sum = 0;
+
+    for (int rank = 1; rank <= size; rank++) {
+      sum += 1.0 / rank;
+      cumulative[rank - 1] = sum;
+    }
+
+    for (int i = 0; i < size; i++) {
+      cumulative[i] /= sum;
+    }
+
+    return cumulative;
+  }
+
+  private static String text(Random random, double[] cumulative) {
+    StringBuilder text = new StringBuilder();
+    int words = 5 + random.nextInt(11);
+
+    for (int i = 0; i < words; i++) {
+      int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+      text.append(i == 0 ? "" : " ").append(word((rank < 0 ? -rank - 1 : rank) + 1));
+    }
+
+    return text.toString();
+  }
+
+  private static String word(int rank) {
+    return "w" + Integer.toString(rank, 36);
+  }
+
+  private static long usedHeap() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
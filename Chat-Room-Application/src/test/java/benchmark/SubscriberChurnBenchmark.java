@@ -0,0 +1,165 @@
+package benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import server.ConnectedClient;
+import server.FrameWriter;
+import server.OutboundQueue;
+import server.SubscriberSet;
+
+/**
+ * Runs broadcasts over a room while other threads make clients leave and rejoin, and
+ * reports the churn rate and broadcast latency for the old CopyOnWriteArrayList and the
+ * chunked SubscriberSet. A broadcast here only visits each recipient, so the numbers
+ * isolate the subscriber structure from encoding and writing.
+ *
+ * <p>Run with {@code gradle benchmark -Pbench=SubscriberChurnBenchmark --args="10000,50000 2 2000"}
+ * (room sizes, churn threads, milliseconds per run).
+ */
+public class SubscriberChurnBenchmark {
+  private static final FrameWriter NO_OP_WRITER = new FrameWriter() {
+    @Override
+    public void requestDrain() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void closeNow() {
+    }
+  };
+
+  public static void main(String[] args) throws InterruptedException {
+    int[] sizes = args.length > 0
+        ? Arrays.stream(args[0].split(",")).mapToInt(Integer::parseInt).toArray()
+        : new int[] {10_000, 50_000};
+    int churnThreads = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+    long millis = args.length > 2 ? Long.parseLong(args[2]) : 2000;
+
+    System.out.printf("%-10s %8s %14s %12s %14s %14s%n",
+        "set", "clients", "churn ops/s", "broadcasts", "p50 us", "p99 us");
+
+    for (int size : sizes) {
+      run("list", new ListSubscribers(), size, churnThreads, millis);
+      run("chunked", new ChunkedSubscribers(), size, churnThreads, millis);
+    }
+  }
+
+  private static void run(String name, Subscribers subscribers, int size, int churnThreads, long millis)
+      throws InterruptedException {
+    List<ConnectedClient> clients = new ArrayList<>(size);
+
+    for (int i = 0; i < size; i++) {
+      ConnectedClient client = client("user" + i);
+      clients.add(client);
+      subscribers.add(client);
+    }
+
+    AtomicBoolean running = new AtomicBoolean(true);
+    long[] churnCounts = new long[churnThreads];
+    List<Thread> churners = new ArrayList<>();
+
+    for (int t = 0; t < churnThreads; t++) {
+      int id = t;
+
+      churners.add(new Thread(() -> {
+        // Each thread cycles its own share of the room through leave and rejoin.
+        int index = id;
+
+        while (running.get()) {
+          ConnectedClient client = clients.get(index);
+          subscribers.remove(client);
+          subscribers.add(client);
+          churnCounts[id] += 2;
+          index = (index + churnThreads) % size;
+        }
+      }));
+    }
+
+    long start = System.nanoTime();
+    churners.forEach(Thread::start);
+
+    List<Long> latencies = new ArrayList<>();
+    long deadline = start + millis * 1_000_000;
+    long[] visited = new long[1];
+
+    while (System.nanoTime() < deadline) {
+      long broadcastStart = System.nanoTime();
+      subscribers.forEach(client -> visited[0] += client.getProtocolVersion() + 1);
+      latencies.add(System.nanoTime() - broadcastStart);
+    }
+
+    running.set(false);
+
+    for (Thread churner : churners) {
+      churner.join();
+    }
+
+    double seconds = (System.nanoTime() - start) / 1e9;
+    long churnOps = Arrays.stream(churnCounts).sum();
+    latencies.sort(null);
+
+    System.out.printf("%-10s %8d %14.0f %12d %14.1f %14.1f%n", name, size, churnOps / seconds,
+        latencies.size(), percentile(latencies, 0.50) / 1e3, percentile(latencies, 0.99) / 1e3);
+  }
+
+  private static long percentile(List<Long> sorted, double fraction) {
+    return sorted.get(Math.min(sorted.size() - 1, (int) (sorted.size() * fraction)));
+  }
+
+  private static ConnectedClient client(String username) {
+    return new ConnectedClient(username, null, new OutboundQueue(4, 3, 1), NO_OP_WRITER);
+  }
+
+  private interface Subscribers {
+    void add(ConnectedClient client);
+
+    void remove(ConnectedClient client);
+
+    void forEach(Consumer<ConnectedClient> action);
+  }
+
+  private static class ListSubscribers implements Subscribers {
+    private final List<ConnectedClient> clients = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void add(ConnectedClient client) {
+      clients.add(client);
+    }
+
+    @Override
+    public void remove(ConnectedClient client) {
+      clients.remove(client);
+    }
+
+    @Override
+    public void forEach(Consumer<ConnectedClient> action) {
+      clients.forEach(action);
+    }
+  }
+
+  private static class ChunkedSubscribers implements Subscribers {
+    private final SubscriberSet clients = new SubscriberSet();
+
+    @Override
+    public void add(ConnectedClient client) {
+      clients.add(client);
+    }
+
+    @Override
+    public void remove(ConnectedClient client) {
+      clients.remove(client);
+    }
+
+    @Override
+    public void forEach(Consumer<ConnectedClient> action) {
+      clients.forEach(action);
+    }
+  }
+}
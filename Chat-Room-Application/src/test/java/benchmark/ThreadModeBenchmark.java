@@ -0,0 +1,126 @@
+package benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import server.ChatServer;
+import server.ServerConfig;
+import server.ServerMode;
+import util.MessageProtocol;
+import util.MessageType;
+import util.VirtualThreads;
+
+/**
+ * Compares the blocking server on platform threads against virtual threads (and nio for
+ * reference): how long it takes to connect N clients, how many JVM threads that costs,
+ * and how long one broadcast takes to reach every client.
+ *
+ * <p>Run with {@code gradle benchmark -Pbench=ThreadModeBenchmark --args="100,1000,5000"}.
+ * Large counts need a raised open-file limit ({@code ulimit -n}).
+ */
+public class ThreadModeBenchmark {
+  private static final String LOCALHOST = "localhost";
+  private static final int BASE_PORT = 9200;
+  private static final int BROADCAST_ROUNDS = 20;
+  private static final String MESSAGE = "benchmark broadcast";
+
+  public static void main(String[] args) throws Exception {
+    int[] counts = args.length > 0
+        ? Arrays.stream(args[0].split(",")).mapToInt(Integer::parseInt).toArray()
+        : new int[] {100, 1000};
+    ServerMode[] modes = {ServerMode.BLOCKING, ServerMode.VIRTUAL, ServerMode.NIO};
+
+    System.out.println("Virtual threads supported: " + VirtualThreads.isSupported());
+    System.out.printf("%-9s %8s %12s %10s %14s %14s%n",
+        "mode", "clients", "connect ms", "threads", "p50 bcast us", "p99 bcast us");
+
+    int port = BASE_PORT;
+
+    for (int count : counts) {
+      for (ServerMode mode : modes) {
+        run(mode, count, port++);
+      }
+    }
+  }
+
+  private static void run(ServerMode mode, int count, int port) throws Exception {
+    ChatServer server = new ChatServer(port, new ServerConfig().setMode(mode).setMaxClients(count + 1)
+        .setMaxPendingHandshakes(count + 1).setAcceptRate(0, 1).clearMessageRateLimits());
+    Thread serverThread = new Thread(server::start);
+    serverThread.start();
+    Thread.sleep(300);
+
+    int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+    List<Socket> sockets = new ArrayList<>(count);
+    List<DataInputStream> inputs = new ArrayList<>(count);
+
+    try {
+      long connectStart = System.nanoTime();
+
+      for (int i = 0; i < count; i++) {
+        Socket socket = new Socket(LOCALHOST, port);
+        socket.setTcpNoDelay(true);
+        DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+        output.writeInt(MessageType.CONNECT_MESSAGE.getValue());
+        MessageProtocol.writeString(output, "bot" + i);
+
+        DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        input.readInt();
+        input.readBoolean();
+        MessageProtocol.readString(input);
+
+        sockets.add(socket);
+        inputs.add(input);
+      }
+
+      long connectMillis = (System.nanoTime() - connectStart) / 1_000_000;
+      int threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+
+      long[] latencies = new long[BROADCAST_ROUNDS];
+      DataOutputStream sender = new DataOutputStream(sockets.get(0).getOutputStream());
+
+      for (int round = 0; round < BROADCAST_ROUNDS; round++) {
+        long start = System.nanoTime();
+        sender.writeInt(MessageType.BROADCAST_MESSAGE.getValue());
+        MessageProtocol.writeString(sender, "bot0");
+        MessageProtocol.writeString(sender, MESSAGE);
+
+        // Reading every socket in turn finishes once the last recipient has its copy.
+        for (DataInputStream input : inputs) {
+          input.readInt();
+          MessageProtocol.readString(input);
+          MessageProtocol.readString(input);
+        }
+
+        latencies[round] = (System.nanoTime() - start) / 1_000;
+      }
+
+      Arrays.sort(latencies);
+      System.out.printf("%-9s %8d %12d %10d %14d %14d%n", mode, count, connectMillis, threads,
+          latencies[BROADCAST_ROUNDS / 2], latencies[BROADCAST_ROUNDS * 99 / 100]);
+    }
+
+    finally {
+      for (Socket socket : sockets) {
+        closeQuietly(socket);
+      }
+
+      server.stop();
+      serverThread.join(5000);
+    }
+  }
+
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // Already closed by the server.
+    }
+  }
+}
@@ -0,0 +1,87 @@
+package benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import server.UsernameIndex;
+
+/**
+ * Measures answering a prefix query for one page of usernames from the sorted index,
+ * against the old approach of filtering and sorting every connected name, at growing
+ * roster sizes. Each query picks a random two-letter prefix.
+ *
+ * <p>Run with {@code gradle benchmark -Pbench=UserPageBenchmark --args="1000,100000,1000000 20 2000"}
+ * (roster sizes, page size, milliseconds per run).
+ */
+public class UserPageBenchmark {
+
+  public static void main(String[] args) {
+    int[] sizes = args.length > 0
+        ? Arrays.stream(args[0].split(",")).mapToInt(Integer::parseInt).toArray()
+        : new int[] {1_000, 100_000, 1_000_000};
+    int pageSize = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    long millis = args.length > 2 ? Long.parseLong(args[2]) : 2000;
+
+    System.out.printf("%-8s %10s %14s %14s%n", "query", "names", "queries/s", "avg us");
+
+    for (int size : sizes) {
+      ConcurrentHashMap<String, Boolean> roster = new ConcurrentHashMap<>();
+      UsernameIndex index = new UsernameIndex();
+      Random random = new Random(size);
+
+      while (roster.size() < size) {
+        String name = randomName(random);
+
+        if (roster.putIfAbsent(name, Boolean.TRUE) == null) {
+          index.add(name);
+        }
+      }
+
+      run("scan", size, millis, random, prefix -> {
+        List<String> matches = new ArrayList<>();
+
+        for (String name : roster.keySet()) {
+          if (name.startsWith(prefix)) {
+            matches.add(name);
+          }
+        }
+
+        matches.sort(null);
+        return matches.subList(0, Math.min(pageSize, matches.size())).size();
+      });
+      run("index", size, millis, random, prefix -> index.page(prefix, "", pageSize, null).getUsernames().size());
+    }
+  }
+
+  private interface Query {
+    int run(String prefix);
+  }
+
+  private static void run(String name, int size, long millis, Random random, Query query) {
+    long start = System.nanoTime();
+    long deadline = start + millis * 1_000_000;
+    long queries = 0;
+    long listed = 0;
+
+    while (System.nanoTime() < deadline) {
+      listed += query.run("" + (char) ('a' + random.nextInt(26)) + (char) ('a' + random.nextInt(26)));
+      queries++;
+    }
+
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.printf("%-8s %10d %14.0f %14.1f%s%n", name, size, queries / seconds,
+        seconds * 1e6 / queries, listed == 0 ? " (no matches)" : "");
+  }
+
+  private static String randomName(Random random) {
+    char[] name = new char[8];
+
+    for (int i = 0; i < name.length; i++) {
+      name[i] = (char) ('a' + random.nextInt(26));
+    }
+
+    return new String(name);
+  }
+}
@@ -0,0 +1,130 @@
+package benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import server.ChatServer;
+import server.OutboundStats;
+import server.ServerConfig;
+import server.ServerMode;
+import server.SlowConsumerPolicy;
+import util.MessageProtocol;
+import util.MessageType;
+
+/**
+ * Floods a room with broadcasts and reports how many frames each socket write carried,
+ * along with the delivery rate, for each server mode. With write coalescing a backlogged
+ * recipient gets many frames per write instead of one.
+ *
+ * <p>Run with {@code gradle benchmark -Pbench=WriteCoalescingBenchmark --args="50 20000"}
+ * (clients, then broadcasts).
+ */
+public class WriteCoalescingBenchmark {
+  private static final String LOCALHOST = "localhost";
+  private static final int BASE_PORT = 9400;
+  private static final String MESSAGE = "benchmark broadcast";
+
+  public static void main(String[] args) throws Exception {
+    int clients = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+    int broadcasts = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+    ServerMode[] modes = {ServerMode.BLOCKING, ServerMode.NIO};
+
+    System.out.printf("%-9s %8s %11s %14s %14s%n", "mode", "clients", "broadcasts", "frames/write", "frames/s");
+    int port = BASE_PORT;
+
+    for (ServerMode mode : modes) {
+      run(mode, clients, broadcasts, port++);
+    }
+  }
+
+  private static void run(ServerMode mode, int count, int broadcasts, int port) throws Exception {
+    PrintStream out = System.out;
+    ServerConfig config = new ServerConfig().setMode(mode).setMaxClients(count + 1)
+        .setMaxPendingHandshakes(count + 1).setAcceptRate(0, 1).clearMessageRateLimits()
+        .setOutboundQueue(broadcasts + 16, broadcasts + 8, 1)
+        .setSlowConsumerPolicy(SlowConsumerPolicy.DROP_OLDEST);
+    ChatServer server = new ChatServer(port, config);
+    System.setOut(new PrintStream(new ByteArrayOutputStream()));
+    Thread serverThread = new Thread(server::start);
+    serverThread.start();
+    Thread.sleep(300);
+
+    List<Socket> sockets = new ArrayList<>(count);
+    List<Thread> readers = new ArrayList<>(count);
+
+    try {
+      for (int i = 0; i < count; i++) {
+        Socket socket = new Socket(LOCALHOST, port);
+        socket.setTcpNoDelay(true);
+        DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+        output.writeInt(MessageType.CONNECT_MESSAGE.getValue());
+        MessageProtocol.writeString(output, "bot" + i);
+
+        DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        input.readInt();
+        input.readBoolean();
+        MessageProtocol.readString(input);
+        sockets.add(socket);
+
+        readers.add(new Thread(() -> readBroadcasts(input, broadcasts)));
+      }
+
+      long start = System.nanoTime();
+      readers.forEach(Thread::start);
+
+      DataOutputStream sender = new DataOutputStream(new BufferedOutputStream(sockets.get(0).getOutputStream()));
+
+      for (int i = 0; i < broadcasts; i++) {
+        sender.writeInt(MessageType.BROADCAST_MESSAGE.getValue());
+        MessageProtocol.writeString(sender, "bot0");
+        MessageProtocol.writeString(sender, MESSAGE);
+      }
+
+      sender.flush();
+
+      for (Thread reader : readers) {
+        reader.join();
+      }
+
+      double seconds = (System.nanoTime() - start) / 1e9;
+      OutboundStats stats = server.getOutboundStats();
+      System.setOut(out);
+      System.out.printf("%-9s %8d %11d %14.2f %14.0f%n", mode, count, broadcasts,
+          stats.getFramesPerWrite(), stats.getFramesWritten() / seconds);
+    }
+
+    finally {
+      System.setOut(out);
+
+      for (Socket socket : sockets) {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          // Already closed by the server.
+        }
+      }
+
+      server.stop();
+      serverThread.join(5000);
+    }
+  }
+
+  private static void readBroadcasts(DataInputStream input, int broadcasts) {
+    try {
+      for (int i = 0; i < broadcasts; i++) {
+        input.readInt();
+        MessageProtocol.readString(input);
+        MessageProtocol.readString(input);
+      }
+    } catch (IOException e) {
+      System.err.println("Reader stopped: " + e.getMessage());
+    }
+  }
+}
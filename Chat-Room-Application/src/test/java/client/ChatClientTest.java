@@ -4,10 +4,13 @@ import static org.junit.jupiter.api.Assertions.*;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.List;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
@@ -15,6 +18,10 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import server.ChatServer;
 import server.ConnectedClient;
+import util.Message;
+import util.MessageCodec;
+import util.MessageType;
+import util.PresenceEvent;
 
 class ChatClientTest {
   private ChatClient client;
@@ -216,19 +223,111 @@ class ChatClientTest {
   }
   @Test
   void testWhoCommand() throws IOException {
+    // A server that accepts but never answers, so no presence snapshot can arrive.
+    try (ServerSocket silent = new ServerSocket(0)) {
+      ChatClient unsynced = new ChatClient(SERVER_ADDRESS, silent.getLocalPort(), USERNAME);
+      System.setIn(new ByteArrayInputStream(("who" + System.lineSeparator()).getBytes()));
 
-    String queryCommand = "who";
-    ByteArrayInputStream in = new ByteArrayInputStream((queryCommand + System.lineSeparator()).getBytes());
-    System.setIn(in);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      System.setOut(new PrintStream(out));
+      unsynced.start();
 
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-    System.setOut(new PrintStream(out));
-    client.start();
-    String output = out.toString();
+      assertTrue(out.toString().contains("Sending query users message..."));
 
-    assertTrue(output.contains("Sending query users message..."));
+      try (Socket accepted = silent.accept()) {
+        DataInputStream sent = new DataInputStream(accepted.getInputStream());
+        MessageCodec codec = new MessageCodec();
 
-    client.disconnect();
+        assertTrue(codec.read(sent).is(MessageType.CONNECT_MESSAGE));
+        assertEquals(Message.of(MessageType.QUERY_CONNECTED_USERS, USERNAME), codec.read(sent));
+      }
+
+      unsynced.disconnect();
+    }
+  }
+
+  @Test
+  void testWhoCommandAnsweredFromSyncedRoster() throws IOException {
+    try (ServerSocket silent = new ServerSocket(0)) {
+      ChatClient synced = new ChatClient(SERVER_ADDRESS, silent.getLocalPort(), USERNAME);
+      synced.getRoster().applySnapshot(Message.presenceSnapshot(1, List.of(USERNAME, "Alice", "Bob")));
+      System.setIn(new ByteArrayInputStream(("who" + System.lineSeparator()).getBytes()));
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      System.setOut(new PrintStream(out));
+      synced.start();
+      String output = out.toString();
+
+      assertTrue(output.contains("Connected users:" + System.lineSeparator()
+          + "- Alice" + System.lineSeparator() + "- Bob"));
+      assertFalse(output.contains("Sending query users message..."));
+      assertFalse(output.contains("- " + USERNAME));
+
+      synced.disconnect();
+    }
+  }
+
+  private static void reply(DataOutputStream replies, Message message) throws IOException {
+    MessageCodec.encode(message, MessageCodec.CURRENT_VERSION).writeTo(replies);
+    replies.flush();
+  }
+
+  @Test
+  void testPresenceResyncSentWhileOutOfCredit() throws IOException {
+    try (ServerSocket fake = new ServerSocket(0)) {
+      ChatClient flowing = new ChatClient(SERVER_ADDRESS, fake.getLocalPort(), USERNAME);
+      flowing.connect();
+
+      try (Socket accepted = fake.accept()) {
+        accepted.setSoTimeout(5000);
+        DataInputStream sent = new DataInputStream(accepted.getInputStream());
+        DataOutputStream replies = new DataOutputStream(accepted.getOutputStream());
+        MessageCodec codec = new MessageCodec();
+
+        assertTrue(codec.read(sent).is(MessageType.CONNECT_MESSAGE));
+        reply(replies, Message.connectResponse(true, "Welcome."));
+        assertTrue(codec.read(sent).is(MessageType.CREDIT));
+        assertEquals(Message.of(MessageType.PRESENCE_SUBSCRIBE, USERNAME), codec.read(sent));
+
+        // A grant of one frame is used up by the subscribe, then a delta shows a gap.
+        reply(replies, Message.credit(1));
+        reply(replies, Message.presenceSnapshot(1, List.of(USERNAME)));
+        reply(replies, Message.presenceDelta(5, List.of(PresenceEvent.joined("Alice"))));
+
+        assertEquals(Message.of(MessageType.PRESENCE_SUBSCRIBE, USERNAME), codec.read(sent));
+      }
+
+      flowing.disconnect();
+    }
+  }
+
+  @Test
+  void testInvalidCreditIgnored() throws IOException {
+    try (ServerSocket fake = new ServerSocket(0)) {
+      ChatClient flowing = new ChatClient(SERVER_ADDRESS, fake.getLocalPort(), USERNAME);
+      flowing.connect();
+
+      try (Socket accepted = fake.accept()) {
+        accepted.setSoTimeout(5000);
+        DataInputStream sent = new DataInputStream(accepted.getInputStream());
+        DataOutputStream replies = new DataOutputStream(accepted.getOutputStream());
+        MessageCodec codec = new MessageCodec();
+
+        assertTrue(codec.read(sent).is(MessageType.CONNECT_MESSAGE));
+        reply(replies, Message.connectResponse(true, "Welcome."));
+        assertTrue(codec.read(sent).is(MessageType.CREDIT));
+        assertEquals(Message.of(MessageType.PRESENCE_SUBSCRIBE, USERNAME), codec.read(sent));
+
+        // The listener outlives the bad grant and still answers a gap with a resync.
+        reply(replies, Message.of(MessageType.CREDIT, "plenty"));
+        reply(replies, Message.presenceSnapshot(1, List.of(USERNAME)));
+        reply(replies, Message.presenceDelta(5, List.of(PresenceEvent.joined("Alice"))));
+
+        assertEquals(Message.of(MessageType.PRESENCE_SUBSCRIBE, USERNAME), codec.read(sent));
+      }
+
+      flowing.disconnect();
+    }
   }
 
   @Test
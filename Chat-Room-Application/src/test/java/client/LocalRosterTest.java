@@ -0,0 +1,56 @@
+package client;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import util.Message;
+import util.PresenceEvent;
+
+class LocalRosterTest {
+
+  @Test
+  void testSnapshotThenDeltas() {
+    LocalRoster roster = new LocalRoster();
+    assertFalse(roster.isSynced());
+
+    roster.applySnapshot(Message.presenceSnapshot(5, List.of("Bob", "Alice")));
+    assertTrue(roster.isSynced());
+    assertEquals(List.of("Alice", "Bob"), roster.usernames(null));
+
+    assertTrue(roster.applyDelta(Message.presenceDelta(6,
+        List.of(PresenceEvent.joined("Carol"), PresenceEvent.left("Bob")))));
+    assertEquals(List.of("Carol"), roster.usernames("Alice"));
+    assertEquals(7, roster.getSequence());
+  }
+
+  @Test
+  void testOverlappingDeltaAppliesOnlyNewEvents() {
+    LocalRoster roster = new LocalRoster();
+    roster.applySnapshot(Message.presenceSnapshot(6, List.of("Alice", "Carol")));
+
+    // Events 5 and 6 are already in the snapshot; only 7 is new.
+    assertTrue(roster.applyDelta(Message.presenceDelta(5,
+        List.of(PresenceEvent.left("Alice"), PresenceEvent.joined("Carol"), PresenceEvent.joined("Dave")))));
+    assertEquals(List.of("Alice", "Carol", "Dave"), roster.usernames(null));
+    assertEquals(7, roster.getSequence());
+
+    assertTrue(roster.applyDelta(Message.presenceDelta(3, List.of(PresenceEvent.left("Alice")))));
+    assertEquals(3, roster.usernames(null).size());
+  }
+
+  @Test
+  void testGapNeedsResync() {
+    LocalRoster roster = new LocalRoster();
+    assertTrue(roster.applyDelta(Message.presenceDelta(1, List.of(PresenceEvent.joined("Alice")))));
+    assertFalse(roster.isSynced());
+
+    roster.applySnapshot(Message.presenceSnapshot(1, List.of("Alice")));
+    assertFalse(roster.applyDelta(Message.presenceDelta(3, List.of(PresenceEvent.joined("Bob")))));
+    assertFalse(roster.isSynced());
+
+    roster.applySnapshot(Message.presenceSnapshot(3, List.of("Alice", "Bob", "Carol")));
+    assertTrue(roster.isSynced());
+    assertEquals(List.of("Bob", "Carol"), roster.usernames("Alice"));
+  }
+}
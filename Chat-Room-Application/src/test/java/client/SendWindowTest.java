@@ -0,0 +1,80 @@
+package client;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class SendWindowTest {
+  @Test
+  void testUnlimitedUntilFirstGrant() throws IOException {
+    SendWindow window = new SendWindow();
+
+    for (int i = 0; i < 100; i++) {
+      window.acquire();
+    }
+
+    assertFalse(window.isStalled());
+    window.grant(100);
+    assertTrue(window.isStalled());
+  }
+
+  @Test
+  void testSenderWaitsForGrant() throws Exception {
+    SendWindow window = new SendWindow();
+    window.grant(1);
+    window.acquire();
+
+    CountDownLatch sent = new CountDownLatch(1);
+    Thread sender = new Thread(() -> {
+      try {
+        window.acquire();
+        sent.countDown();
+      } catch (IOException e) {
+        fail(e.getMessage());
+      }
+    });
+    sender.start();
+
+    assertFalse(sent.await(100, TimeUnit.MILLISECONDS));
+    window.grant(2);
+    assertTrue(sent.await(5, TimeUnit.SECONDS));
+    sender.join();
+  }
+
+  @Test
+  void testOverdrawCountsWithoutWaiting() throws IOException {
+    SendWindow window = new SendWindow();
+    window.grant(1);
+    window.acquire();
+    window.overdraw();
+
+    // The overdrawn frame is owed out of the next grant.
+    window.grant(2);
+    assertTrue(window.isStalled());
+    window.grant(3);
+    assertFalse(window.isStalled());
+  }
+
+  @Test
+  void testCloseReleasesWaitingSender() throws Exception {
+    SendWindow window = new SendWindow();
+    window.grant(0);
+
+    CountDownLatch failed = new CountDownLatch(1);
+    Thread sender = new Thread(() -> {
+      try {
+        window.acquire();
+      } catch (IOException e) {
+        failed.countDown();
+      }
+    });
+    sender.start();
+
+    window.close();
+    assertTrue(failed.await(5, TimeUnit.SECONDS));
+    sender.join();
+  }
+}
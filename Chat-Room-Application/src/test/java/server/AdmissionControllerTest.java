@@ -0,0 +1,119 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import util.Message;
+import util.MessageCodec;
+
+class AdmissionControllerTest {
+  private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+
+  @AfterEach
+  void tearDown() {
+    timer.shutdownNow();
+  }
+
+  private static InetAddress address(int last) throws Exception {
+    return InetAddress.getByAddress(new byte[] {10, 0, 0, (byte) last});
+  }
+
+  @Test
+  void testConnectionLimit() throws Exception {
+    AdmissionController controller = new AdmissionController(
+        new ServerConfig().setMaxClients(2).setAcceptRate(0, 1), timer);
+
+    Admission first = controller.admit(address(1));
+    Admission second = controller.admit(address(2));
+    first.completeHandshake();
+    second.completeHandshake();
+    Admission third = controller.admit(address(3));
+
+    assertTrue(first.isAccepted());
+    assertTrue(second.isAccepted());
+    assertFalse(third.isAccepted());
+    assertEquals(RefusalReason.SERVER_FULL, third.getRefusal());
+    assertEquals(0, controller.getPendingHandshakeCount());
+
+    first.release();
+    assertTrue(controller.admit(address(3)).isAccepted());
+    assertEquals(3, controller.getAcceptedCount());
+    assertEquals(1, controller.getRefusedCount(RefusalReason.SERVER_FULL));
+  }
+
+  @Test
+  void testPendingHandshakeLimit() throws Exception {
+    AdmissionController controller = new AdmissionController(
+        new ServerConfig().setMaxPendingHandshakes(1).setAcceptRate(0, 1), timer);
+
+    Admission first = controller.admit(address(1));
+    assertEquals(RefusalReason.TOO_MANY_HANDSHAKES, controller.admit(address(2)).getRefusal());
+
+    first.completeHandshake();
+    assertTrue(controller.admit(address(2)).isAccepted());
+    assertEquals(2, controller.getConnectionCount());
+  }
+
+  @Test
+  void testAcceptRateIsPerAddress() throws Exception {
+    AdmissionController controller = new AdmissionController(
+        new ServerConfig().setAcceptRate(0.001, 2), timer);
+
+    assertTrue(controller.admit(address(1)).isAccepted());
+    assertTrue(controller.admit(address(1)).isAccepted());
+    assertEquals(RefusalReason.RATE_LIMITED, controller.admit(address(1)).getRefusal());
+    assertTrue(controller.admit(address(2)).isAccepted());
+    assertEquals(1, controller.getRefusedCount());
+  }
+
+  @Test
+  void testReleaseIsIdempotent() throws Exception {
+    AdmissionController controller = new AdmissionController(new ServerConfig().setAcceptRate(0, 1), timer);
+
+    Admission admission = controller.admit(address(1));
+    admission.release();
+    admission.release();
+    admission.completeHandshake();
+
+    assertEquals(0, controller.getConnectionCount());
+    assertEquals(0, controller.getPendingHandshakeCount());
+  }
+
+  @Test
+  void testHandshakeTimeout() throws Exception {
+    AdmissionController controller = new AdmissionController(
+        new ServerConfig().setAcceptRate(0, 1).setHandshakeTimeoutMillis(20), timer);
+    CountDownLatch timedOut = new CountDownLatch(1);
+
+    Admission slow = controller.admit(address(1));
+    controller.startHandshakeTimer(slow, timedOut::countDown);
+    Admission quick = controller.admit(address(2));
+    controller.startHandshakeTimer(quick, () -> fail("Completed handshake timed out."));
+    quick.completeHandshake();
+
+    assertTrue(timedOut.await(5, TimeUnit.SECONDS));
+    assertFalse(slow.isPending());
+    assertEquals(1, controller.getTimedOutCount());
+    assertEquals(0, controller.getPendingHandshakeCount());
+
+    // The connection slot is held until the timed-out connection closes.
+    assertEquals(2, controller.getConnectionCount());
+    slow.release();
+    assertEquals(1, controller.getConnectionCount());
+  }
+
+  @Test
+  void testRefusalFrameNamesReason() throws Exception {
+    Message response = new MessageCodec().decode(
+        AdmissionController.refusalFrame(RefusalReason.SERVER_FULL).buffer());
+
+    assertFalse(response.isSuccess());
+    assertEquals(RefusalReason.SERVER_FULL.toMessage(), response.getField(0));
+  }
+}
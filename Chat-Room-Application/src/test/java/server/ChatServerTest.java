@@ -2,15 +2,28 @@ package server;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import storage.LogRecord;
+import util.Message;
+import util.MessageCodec;
+import util.MessageType;
 
 class ChatServerTest {
   private final String testUsername = "TestUser";
@@ -146,6 +159,37 @@ class ChatServerTest {
 
     assertTrue(byteArrayOutputStream.size() > 0);
   }
+  @Test
+  void testDirectMessageToFullQueueReportedToSender() throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    server.addClient(new ConnectedClient(testUser1, new Socket(), new DataOutputStream(output)));
+
+    // A connection whose writer never takes anything off its two-frame queue.
+    ConnectedClient stalled = new ConnectedClient(testUser2, new Socket(), new OutboundQueue(2, 2, 1),
+        new FrameWriter() {
+          @Override
+          public void requestDrain() {
+          }
+
+          @Override
+          public void close() {
+          }
+
+          @Override
+          public void closeNow() {
+          }
+        });
+    server.addClient(stalled);
+
+    for (int i = 0; i < 3; i++) {
+      server.directMessage(MESSAGE_USER1 + i, testUser1, testUser2);
+    }
+
+    assertEquals(2, stalled.getOutboundQueue().size());
+    assertEquals(List.of(Message.of(MessageType.FAILED_MESSAGE, "Message to " + testUser2 + " could not be delivered.")),
+        read(output));
+  }
+
   @Test
   void testEqualsBasic() {
     assertTrue(server1.equals(server2));
@@ -180,6 +224,256 @@ class ChatServerTest {
     assertFalse(server1.equals(new Object()));
   }
 
+  @Test
+  void testRelayedMessagesLogged() throws IOException {
+    Path directory = Files.createTempDirectory("chat-server-log-test");
+    ChatServer logging = new ChatServer(PORT_NUMBER, new ServerConfig()
+        .setMessageLogDirectory(directory)
+        .clearMessageRateLimits());
+
+    try {
+      logging.addClient(new ConnectedClient(testUser1, new Socket(), new DataOutputStream(new ByteArrayOutputStream())));
+      logging.broadcastMessage(MESSAGE, testUser1);
+      logging.directMessage(MESSAGE_USER1, testUser2, testUser1);
+      logging.getMessageLog().flush();
+
+      List<LogRecord> records = logging.getMessageLog().read(0, 10);
+      assertEquals(2, records.size());
+      assertEquals(Message.of(MessageType.BROADCAST_MESSAGE, testUser1, MESSAGE), records.get(0).getMessage());
+      assertEquals(Message.of(MessageType.DIRECT_MESSAGE, testUser2, testUser1, MESSAGE_USER1),
+          records.get(1).getMessage());
+    }
+
+    finally {
+      logging.stop();
+
+      try (Stream<Path> files = Files.walk(directory)) {
+        for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+          Files.delete(file);
+        }
+      }
+    }
+  }
+
+  @Test
+  void testDirectMessagesStoredForOfflineUserAndDeliveredOnConnect() throws Exception {
+    Path directory = Files.createTempDirectory("chat-server-mailbox-test");
+    ChatServer storing = new ChatServer(PORT_NUMBER, new ServerConfig()
+        .setMailboxDirectory(directory)
+        .clearMessageRateLimits());
+
+    try {
+      for (int i = 0; i < 300; i++) {
+        storing.directMessage(MESSAGE_USER1 + i, testUser2, testUser1);
+      }
+
+      assertEquals(300, storing.getOfflineDelivery().getStore().pending(testUser1));
+
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      ConnectedClient client = new ConnectedClient(testUser1, new Socket(), new DataOutputStream(output));
+      storing.addClient(client);
+      storing.deliverOfflineMessages(client);
+
+      long deadline = System.currentTimeMillis() + 5000;
+
+      while (storing.getOfflineDelivery().hasBacklog(testUser1) && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+
+      assertFalse(storing.getOfflineDelivery().hasBacklog(testUser1));
+      assertTrue(storing.getOfflineDelivery().getBatchCount() >= 2);
+
+      DataInputStream replies = new DataInputStream(new ByteArrayInputStream(output.toByteArray()));
+      MessageCodec codec = new MessageCodec();
+
+      for (int i = 0; i < 300; i++) {
+        assertEquals(Message.of(MessageType.DIRECT_MESSAGE, testUser2, testUser1, MESSAGE_USER1 + i),
+            codec.read(replies));
+      }
+
+      assertEquals(0, replies.available());
+    }
+
+    finally {
+      storing.stop();
+
+      try (Stream<Path> files = Files.walk(directory)) {
+        for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+          Files.delete(file);
+        }
+      }
+    }
+  }
+
+  @Test
+  void testStoredMessagesKeptUntilWrittenAndRedeliveredOnReconnect() throws Exception {
+    Path directory = Files.createTempDirectory("chat-server-mailbox-test");
+    ChatServer storing = new ChatServer(PORT_NUMBER, new ServerConfig()
+        .setMailboxDirectory(directory)
+        .clearMessageRateLimits());
+
+    try {
+      for (int i = 0; i < 300; i++) {
+        storing.directMessage(MESSAGE_USER1 + i, testUser2, testUser1);
+      }
+
+      // A connection whose writer never takes anything off its queue.
+      ConnectedClient stalled = new ConnectedClient(testUser1, new Socket(), storing.newOutboundQueue(),
+          new FrameWriter() {
+            @Override
+            public void requestDrain() {
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public void closeNow() {
+            }
+          });
+      storing.addClient(stalled);
+      storing.deliverOfflineMessages(stalled);
+
+      long deadline = System.currentTimeMillis() + 5000;
+
+      while (storing.getOfflineDelivery().getBatchCount() == 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+
+      assertTrue(storing.getOfflineDelivery().getBatchCount() > 0);
+      storing.removeClient(stalled);
+      assertEquals(300, storing.getOfflineDelivery().getStore().pending(testUser1));
+
+      // Reconnects before the old connection's delivery has wound down.
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      ConnectedClient client = new ConnectedClient(testUser1, new Socket(), new DataOutputStream(output));
+      storing.addClient(client);
+      storing.deliverOfflineMessages(client);
+
+      deadline = System.currentTimeMillis() + 5000;
+
+      while (storing.getOfflineDelivery().hasBacklog(testUser1) && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+
+      assertFalse(storing.getOfflineDelivery().hasBacklog(testUser1));
+      List<Message> received = read(output);
+      assertEquals(300, received.size());
+
+      for (int i = 0; i < 300; i++) {
+        assertEquals(Message.of(MessageType.DIRECT_MESSAGE, testUser2, testUser1, MESSAGE_USER1 + i),
+            received.get(i));
+      }
+    }
+
+    finally {
+      storing.stop();
+
+      try (Stream<Path> files = Files.walk(directory)) {
+        for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+          Files.delete(file);
+        }
+      }
+    }
+  }
+
+  /**
+   * Blocks the first write through it until released, so a fan-out can be held midway.
+   */
+  private static class GatedOutput extends ByteArrayOutputStream {
+    private final CountDownLatch entered = new CountDownLatch(1);
+    private final CountDownLatch released = new CountDownLatch(1);
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+      entered.countDown();
+
+      try {
+        released.await();
+      }
+
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+
+      super.write(b, off, len);
+    }
+  }
+
+  private static List<Message> read(ByteArrayOutputStream output) throws IOException {
+    DataInputStream input = new DataInputStream(new ByteArrayInputStream(output.toByteArray()));
+    MessageCodec codec = new MessageCodec();
+    List<Message> messages = new ArrayList<>();
+
+    while (input.available() > 0) {
+      messages.add(codec.read(input));
+    }
+
+    return messages;
+  }
+
+  @Test
+  void testBroadcastDuringSubscribeReachesClientOnce() throws Exception {
+    GatedOutput gated = new GatedOutput();
+    server.addClient(new ConnectedClient(testUser1, new Socket(), new DataOutputStream(gated)));
+
+    // Kept in the history, then held in the fan-out.
+    Thread broadcaster = new Thread(() -> server.broadcastMessage(MESSAGE, SENDER));
+    broadcaster.start();
+    assertTrue(gated.entered.await(5, TimeUnit.SECONDS));
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ConnectedClient joiner = new ConnectedClient(testUser2, new Socket(), new DataOutputStream(output));
+    assertTrue(server.registerClient(joiner));
+    // Subscribing doesn't wait for the relay in progress.
+    Thread subscriber = new Thread(() -> server.subscribeBroadcasts(joiner));
+    subscriber.start();
+    subscriber.join(5000);
+    assertFalse(subscriber.isAlive());
+
+    gated.released.countDown();
+    broadcaster.join(5000);
+    server.broadcastMessage(MESSAGE_USER2, SENDER);
+
+    assertEquals(List.of(Message.of(MessageType.BROADCAST_MESSAGE, SENDER, MESSAGE),
+        Message.of(MessageType.BROADCAST_MESSAGE, SENDER, MESSAGE_USER2)), read(output));
+  }
+
+  @Test
+  void testRoomMessageDuringJoinReachesMemberOnce() throws Exception {
+    ConnectedClient member = new ConnectedClient(testUser1, new Socket(),
+        new DataOutputStream(new ByteArrayOutputStream()));
+    server.addClient(member);
+    Room room = server.joinRoom(member, "general");
+    assertNotNull(room);
+
+    GatedOutput held = new GatedOutput();
+    ConnectedClient blocker = new ConnectedClient(testUsername, new Socket(), new DataOutputStream(held));
+    server.addClient(blocker);
+    server.getRooms().join("general", blocker);
+
+    Thread poster = new Thread(() -> server.roomMessage(MESSAGE, testUser1, room));
+    poster.start();
+    assertTrue(held.entered.await(5, TimeUnit.SECONDS));
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ConnectedClient joiner = new ConnectedClient(testUser2, new Socket(), new DataOutputStream(output));
+    server.addClient(joiner);
+    Thread joining = new Thread(() -> server.joinRoom(joiner, "general"));
+    joining.start();
+    joining.join(5000);
+    assertFalse(joining.isAlive());
+
+    held.released.countDown();
+    poster.join(5000);
+    server.roomMessage(MESSAGE_USER2, testUser1, room);
+
+    assertEquals(List.of(Message.of(MessageType.JOIN_ROOM, testUser2, "general"),
+        Message.of(MessageType.ROOM_MESSAGE, testUser1, "general", MESSAGE),
+        Message.of(MessageType.ROOM_MESSAGE, testUser1, "general", MESSAGE_USER2)), read(output));
+  }
+
   @Test
   void testDifferentArgs() {
     assertFalse(server1.equals(serverNotEquals));
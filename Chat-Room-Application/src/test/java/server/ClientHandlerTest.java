@@ -6,7 +6,20 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+import storage.MessageLog;
+import util.Frame;
+import util.Message;
+import util.MessageCodec;
+import util.MessageType;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -97,6 +110,321 @@ class ClientHandlerTest {
     String response = new String(outputStream.toByteArray());
     assertTrue(response.contains("Unknown message type"));
   }
+  @Test
+  void testFramesBeforeConnectRefusedAndAdmissionReleased() throws Exception {
+    ByteArrayOutputStream byteArray = new ByteArrayOutputStream();
+
+    for (Message message : List.of(
+        Message.of(MessageType.BROADCAST_MESSAGE, USERNAME, "hello"),
+        Message.of(MessageType.DIRECT_MESSAGE, USERNAME, "Other", "hello"),
+        Message.of(MessageType.SEND_INSULT, USERNAME, "Other"),
+        Message.of(MessageType.QUERY_CONNECTED_USERS, USERNAME),
+        Message.of(MessageType.DISCONNECT_MESSAGE, USERNAME))) {
+      MessageCodec.encode(message, MessageCodec.CURRENT_VERSION).writeTo(byteArray);
+    }
+
+    inputStream = new ByteArrayInputStream(byteArray.toByteArray());
+    dataInputStream = new DataInputStream(inputStream);
+    clientHandler = new ClientHandler(mockSocket, server);
+    AdmissionController admissions = server.getAdmissionController();
+    Admission admission = admissions.admit(InetAddress.getLoopbackAddress());
+    assertTrue(admission.isAccepted());
+    clientHandler.setAdmission(admission);
+
+    clientHandler.run();
+    assertEquals(0, admissions.getConnectionCount());
+
+    DataInputStream replies = new DataInputStream(new ByteArrayInputStream(outputStream.toByteArray()));
+    MessageCodec codec = new MessageCodec();
+
+    for (int i = 0; i < 4; i++) {
+      assertTrue(codec.read(replies).is(MessageType.FAILED_MESSAGE));
+    }
+
+    Message refused = codec.read(replies);
+    assertTrue(refused.is(MessageType.CONNECT_RESPONSE));
+    assertFalse(refused.isSuccess());
+  }
+
+  @Test
+  void testRepliesInClientVersion() throws Exception {
+    ByteArrayOutputStream byteArray = new ByteArrayOutputStream();
+    MessageCodec.encode(Message.of(MessageType.CONNECT_MESSAGE, USERNAME), MessageCodec.CURRENT_VERSION)
+        .writeTo(byteArray);
+
+    inputStream = new ByteArrayInputStream(byteArray.toByteArray());
+    dataInputStream = new DataInputStream(inputStream);
+    clientHandler = new ClientHandler(mockSocket, server);
+
+    clientHandler.run();
+    MessageCodec codec = new MessageCodec();
+    Message reply = codec.read(new DataInputStream(new ByteArrayInputStream(outputStream.toByteArray())));
+
+    assertEquals(MessageCodec.CURRENT_VERSION, codec.getVersion());
+    assertTrue(reply.is(MessageType.CONNECT_RESPONSE));
+    assertTrue(reply.isSuccess());
+  }
+
+  @Test
+  void testQueryUsersReusesFrameUntilMembershipChanges() throws Exception {
+    server.addClient(new ConnectedClient("Other", mockSocket, new DataOutputStream(new ByteArrayOutputStream())));
+
+    ByteArrayOutputStream byteArray = new ByteArrayOutputStream();
+    MessageCodec.encode(Message.of(MessageType.CONNECT_MESSAGE, USERNAME), MessageCodec.CURRENT_VERSION)
+        .writeTo(byteArray);
+
+    for (int i = 0; i < 2; i++) {
+      MessageCodec.encode(Message.of(MessageType.QUERY_CONNECTED_USERS, USERNAME), MessageCodec.CURRENT_VERSION)
+          .writeTo(byteArray);
+    }
+
+    inputStream = new ByteArrayInputStream(byteArray.toByteArray());
+    dataInputStream = new DataInputStream(inputStream);
+    clientHandler = new ClientHandler(mockSocket, server);
+    Roster before = server.getRoster();
+
+    clientHandler.run();
+    DataInputStream replies = new DataInputStream(new ByteArrayInputStream(outputStream.toByteArray()));
+    MessageCodec codec = new MessageCodec();
+
+    assertTrue(codec.read(replies).is(MessageType.CONNECT_RESPONSE));
+
+    for (int i = 0; i < 2; i++) {
+      Message reply = codec.read(replies);
+      assertTrue(reply.is(MessageType.QUERY_USER_RESPONSE));
+      assertEquals(List.of("Other"), reply.getFields());
+    }
+
+    assertNotSame(before, server.getRoster());
+  }
+
+  @Test
+  void testUsersPageQuery() throws Exception {
+    for (String name : List.of("Bob", "Bobby", "Boris", "Alice")) {
+      server.addClient(new ConnectedClient(name, mockSocket, new DataOutputStream(new ByteArrayOutputStream())));
+    }
+
+    ByteArrayOutputStream byteArray = new ByteArrayOutputStream();
+
+    for (Message message : List.of(Message.of(MessageType.CONNECT_MESSAGE, USERNAME),
+        Message.usersPageQuery(USERNAME, "Bo", "", 2),
+        Message.usersPageQuery(USERNAME, "Bo", "Bobby", 2),
+        Message.usersPageQuery(USERNAME, "Bo", "", 0))) {
+      MessageCodec.encode(message, MessageCodec.CURRENT_VERSION).writeTo(byteArray);
+    }
+
+    inputStream = new ByteArrayInputStream(byteArray.toByteArray());
+    dataInputStream = new DataInputStream(inputStream);
+    clientHandler = new ClientHandler(mockSocket, server);
+
+    clientHandler.run();
+    DataInputStream replies = new DataInputStream(new ByteArrayInputStream(outputStream.toByteArray()));
+    MessageCodec codec = new MessageCodec();
+
+    assertTrue(codec.read(replies).is(MessageType.CONNECT_RESPONSE));
+    assertEquals(Message.usersPage(List.of("Bob", "Bobby"), "Bobby"), codec.read(replies));
+    assertEquals(Message.usersPage(List.of("Boris"), ""), codec.read(replies));
+    assertEquals(Message.of(MessageType.FAILED_MESSAGE, "Invalid page size: 0"), codec.read(replies));
+  }
+
+  @Test
+  void testOversizedFramesAnsweredAndScored() throws Exception {
+    server = new ChatServer(PORT_NUMBER, new ServerConfig().setFrameLimits(16, 256).setAbuseThreshold(2));
+    Frame oversized = MessageCodec.encode(Message.of(MessageType.BROADCAST_MESSAGE, USERNAME, "x".repeat(300)),
+        MessageCodec.CURRENT_VERSION);
+
+    ByteArrayOutputStream byteArray = new ByteArrayOutputStream();
+    oversized.writeTo(byteArray);
+    oversized.writeTo(byteArray);
+
+    inputStream = new ByteArrayInputStream(byteArray.toByteArray());
+    dataInputStream = new DataInputStream(inputStream);
+    clientHandler = new ClientHandler(mockSocket, server);
+
+    clientHandler.run();
+    DataInputStream replies = new DataInputStream(new ByteArrayInputStream(outputStream.toByteArray()));
+    MessageCodec codec = new MessageCodec();
+
+    for (int i = 0; i < 2; i++) {
+      Message reply = codec.read(replies);
+      assertTrue(reply.is(MessageType.FAILED_MESSAGE));
+      assertTrue(reply.getField(0).startsWith("Message rejected: Frame of " + oversized.length() + " bytes"));
+    }
+
+    assertEquals(2, server.getRejectedFrameCount());
+    assertTrue(mockSocket.isClosed());
+  }
+
+  @Test
+  void testDirectMessagesOverLimitRejected() throws Exception {
+    server = new ChatServer(PORT_NUMBER, new ServerConfig()
+        .setMessageRateLimit(MessageType.DIRECT_MESSAGE, new RateLimit(0.001, 2, RateLimitPolicy.REJECT)));
+    ByteArrayOutputStream otherOutput = new ByteArrayOutputStream();
+    server.addClient(new ConnectedClient("Other", mockSocket, new DataOutputStream(otherOutput)));
+
+    ByteArrayOutputStream byteArray = new ByteArrayOutputStream();
+    MessageCodec.encode(Message.of(MessageType.CONNECT_MESSAGE, USERNAME), MessageCodec.CURRENT_VERSION)
+        .writeTo(byteArray);
+
+    for (int i = 0; i < 3; i++) {
+      MessageCodec.encode(Message.of(MessageType.DIRECT_MESSAGE, USERNAME, "Other", "hi " + i),
+          MessageCodec.CURRENT_VERSION).writeTo(byteArray);
+    }
+
+    inputStream = new ByteArrayInputStream(byteArray.toByteArray());
+    dataInputStream = new DataInputStream(inputStream);
+    clientHandler = new ClientHandler(mockSocket, server);
+
+    clientHandler.run();
+    DataInputStream replies = new DataInputStream(new ByteArrayInputStream(outputStream.toByteArray()));
+    MessageCodec codec = new MessageCodec();
+
+    assertTrue(codec.read(replies).is(MessageType.CONNECT_RESPONSE));
+    Message reply = codec.read(replies);
+    assertTrue(reply.is(MessageType.FAILED_MESSAGE));
+    assertTrue(reply.getField(0).startsWith("Rate limit exceeded"));
+    assertEquals(1, server.getRateLimiter().getLimitedCount(RateLimitPolicy.REJECT));
+  }
+
+  @Test
+  void testRoomMessagesReachMembersOnly() throws Exception {
+    server = new ChatServer(PORT_NUMBER, new ServerConfig().clearMessageRateLimits());
+    ByteArrayOutputStream otherOutput = new ByteArrayOutputStream();
+    ConnectedClient other = new ConnectedClient("Other", mockSocket, new DataOutputStream(otherOutput));
+    server.addClient(other);
+    server.joinRoom(other, "general");
+
+    ByteArrayOutputStream byteArray = new ByteArrayOutputStream();
+    int version = MessageCodec.CURRENT_VERSION;
+    MessageCodec.encode(Message.of(MessageType.CONNECT_MESSAGE, USERNAME), version).writeTo(byteArray);
+    MessageCodec.encode(Message.of(MessageType.ROOM_MESSAGE, USERNAME, "general", "early"), version)
+        .writeTo(byteArray);
+    MessageCodec.encode(Message.of(MessageType.JOIN_ROOM, USERNAME, "general"), version).writeTo(byteArray);
+    MessageCodec.encode(Message.of(MessageType.ROOM_MESSAGE, USERNAME, "general", "hello"), version)
+        .writeTo(byteArray);
+    MessageCodec.encode(Message.of(MessageType.LIST_ROOMS, USERNAME), version).writeTo(byteArray);
+
+    inputStream = new ByteArrayInputStream(byteArray.toByteArray());
+    dataInputStream = new DataInputStream(inputStream);
+    clientHandler = new ClientHandler(mockSocket, server);
+
+    clientHandler.run();
+    DataInputStream replies = new DataInputStream(new ByteArrayInputStream(outputStream.toByteArray()));
+    MessageCodec codec = new MessageCodec();
+
+    assertTrue(codec.read(replies).is(MessageType.CONNECT_RESPONSE));
+    Message refused = codec.read(replies);
+    assertTrue(refused.is(MessageType.FAILED_MESSAGE));
+    assertEquals("You are not in #general.", refused.getField(0));
+    assertEquals(Message.of(MessageType.JOIN_ROOM, USERNAME, "general"), codec.read(replies));
+    assertEquals(Message.of(MessageType.ROOM_MESSAGE, USERNAME, "general", "hello"), codec.read(replies));
+    assertEquals(Message.roomList(Map.of("general", 2)), codec.read(replies));
+
+    // The handler's client left every room when its connection closed.
+    assertEquals(Map.of("general", 1), server.getRoomListing());
+    assertEquals(Set.of("general"), other.getRooms());
+  }
+
+  @Test
+  void testRecentBroadcastsReplayedOnConnect() throws Exception {
+    server = new ChatServer(PORT_NUMBER, new ServerConfig().setHistoryLimits(2, 1024));
+    server.broadcastMessage("first", "Other");
+    server.broadcastMessage("second", "Other");
+    server.broadcastMessage("third", "Other");
+
+    ByteArrayOutputStream byteArray = new ByteArrayOutputStream();
+    MessageCodec.encode(Message.of(MessageType.CONNECT_MESSAGE, USERNAME), MessageCodec.CURRENT_VERSION)
+        .writeTo(byteArray);
+    inputStream = new ByteArrayInputStream(byteArray.toByteArray());
+    dataInputStream = new DataInputStream(inputStream);
+    clientHandler = new ClientHandler(mockSocket, server);
+
+    clientHandler.run();
+    DataInputStream replies = new DataInputStream(new ByteArrayInputStream(outputStream.toByteArray()));
+    MessageCodec codec = new MessageCodec();
+
+    assertTrue(codec.read(replies).is(MessageType.CONNECT_RESPONSE));
+    assertEquals(Message.of(MessageType.BROADCAST_MESSAGE, "Other", "second"), codec.read(replies));
+    assertEquals(Message.of(MessageType.BROADCAST_MESSAGE, "Other", "third"), codec.read(replies));
+    assertEquals(0, replies.available());
+  }
+
+  @Test
+  void testHistoryQueryPagesDirectMessages() throws Exception {
+    Path directory = Files.createTempDirectory("client-handler-history-test");
+    server = new ChatServer(PORT_NUMBER, new ServerConfig().setMessageLogDirectory(directory));
+
+    try {
+      MessageLog log = server.getMessageLog();
+      log.append(MessageCodec.encode(Message.of(MessageType.DIRECT_MESSAGE, "Other", USERNAME, "one"),
+          MessageCodec.CURRENT_VERSION), 1000);
+      log.append(MessageCodec.encode(Message.of(MessageType.DIRECT_MESSAGE, "Other", "Third", "elsewhere"),
+          MessageCodec.CURRENT_VERSION), 1500);
+      log.append(MessageCodec.encode(Message.of(MessageType.DIRECT_MESSAGE, USERNAME, "Other", "two"),
+          MessageCodec.CURRENT_VERSION), 2000);
+      log.append(MessageCodec.encode(Message.of(MessageType.DIRECT_MESSAGE, "Other", USERNAME, "three"),
+          MessageCodec.CURRENT_VERSION), 3000);
+      log.flush();
+
+      ByteArrayOutputStream byteArray = new ByteArrayOutputStream();
+      MessageCodec.encode(Message.of(MessageType.CONNECT_MESSAGE, USERNAME), MessageCodec.CURRENT_VERSION)
+          .writeTo(byteArray);
+      MessageCodec.encode(Message.historyQuery(USERNAME, "Other", 0, 10000, "", 2), MessageCodec.CURRENT_VERSION)
+          .writeTo(byteArray);
+      MessageCodec.encode(Message.historyQuery(USERNAME, "Other", 0, 10000, "2", 2), MessageCodec.CURRENT_VERSION)
+          .writeTo(byteArray);
+      inputStream = new ByteArrayInputStream(byteArray.toByteArray());
+      dataInputStream = new DataInputStream(inputStream);
+      clientHandler = new ClientHandler(mockSocket, server);
+
+      clientHandler.run();
+      DataInputStream replies = new DataInputStream(new ByteArrayInputStream(outputStream.toByteArray()));
+      MessageCodec codec = new MessageCodec();
+
+      assertTrue(codec.read(replies).is(MessageType.CONNECT_RESPONSE));
+      assertEquals(Message.historyPage(List.of("1000", "Other", "one", "2000", USERNAME, "two"), "2"),
+          codec.read(replies));
+      assertEquals(Message.historyPage(List.of("3000", "Other", "three"), ""), codec.read(replies));
+    }
+
+    finally {
+      server.stop();
+
+      try (Stream<Path> files = Files.walk(directory)) {
+        for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+          Files.delete(file);
+        }
+      }
+    }
+  }
+
+  @Test
+  void testSearchReturnsOnlyVisibleMatchesNewestFirst() throws Exception {
+    SearchIndex index = server.getSearchIndex();
+    index.add(Message.of(MessageType.BROADCAST_MESSAGE, "Other", "Lunch at noon?"), 1000);
+    index.add(Message.of(MessageType.DIRECT_MESSAGE, "Other", "Third", "secret lunch plans"), 2000);
+    index.add(Message.of(MessageType.ROOM_MESSAGE, "Other", "lobby", "lunch in the lobby"), 3000);
+    index.add(Message.of(MessageType.DIRECT_MESSAGE, "Other", USERNAME, "lunch tomorrow?"), 4000);
+    index.add(Message.of(MessageType.BROADCAST_MESSAGE, "Other", "dinner at eight"), 5000);
+
+    ByteArrayOutputStream byteArray = new ByteArrayOutputStream();
+    MessageCodec.encode(Message.of(MessageType.CONNECT_MESSAGE, USERNAME), MessageCodec.CURRENT_VERSION)
+        .writeTo(byteArray);
+    MessageCodec.encode(Message.search(USERNAME, "LUNCH", 10), MessageCodec.CURRENT_VERSION).writeTo(byteArray);
+    inputStream = new ByteArrayInputStream(byteArray.toByteArray());
+    dataInputStream = new DataInputStream(inputStream);
+    clientHandler = new ClientHandler(mockSocket, server);
+
+    clientHandler.run();
+    DataInputStream replies = new DataInputStream(new ByteArrayInputStream(outputStream.toByteArray()));
+    MessageCodec codec = new MessageCodec();
+
+    assertTrue(codec.read(replies).is(MessageType.CONNECT_RESPONSE));
+    assertEquals(Message.searchResults(List.of(
+        "4000", "Other", USERNAME, "lunch tomorrow?",
+        "1000", "Other", "", "Lunch at noon?")), codec.read(replies));
+  }
+
   @Test
   void testEqualsBasic() {
     assertTrue(clientHandler1.equals(clientHandler2));
@@ -0,0 +1,183 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class ClientRegistryTest {
+  private static final FrameWriter NO_OP_WRITER = new FrameWriter() {
+    @Override
+    public void requestDrain() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void closeNow() {
+    }
+  };
+
+  private static ConnectedClient client(String username) {
+    return new ConnectedClient(username, null, new OutboundQueue(4, 3, 1), NO_OP_WRITER);
+  }
+
+  @Test
+  void testRegisterAndLookup() {
+    ClientRegistry registry = new ClientRegistry();
+    ConnectedClient alice = client("Alice");
+
+    assertTrue(registry.register(alice));
+    assertTrue(registry.register(client("Bob")));
+
+    assertSame(alice, registry.get("Alice"));
+    assertNull(registry.get("Carol"));
+    assertNull(registry.get(null));
+    assertEquals(2, registry.size());
+    assertEquals(List.of("Bob"), registry.usernames("Alice"));
+  }
+
+  @Test
+  void testNameTaken() {
+    ClientRegistry registry = new ClientRegistry();
+    ConnectedClient first = client("Alice");
+
+    assertTrue(registry.register(first));
+    assertFalse(registry.register(client("Alice")));
+    assertSame(first, registry.get("Alice"));
+  }
+
+  @Test
+  void testUnregisterByIdentity() {
+    ClientRegistry registry = new ClientRegistry();
+    ConnectedClient owner = client("Alice");
+    ConnectedClient impostor = client("Alice");
+    registry.register(owner);
+
+    assertFalse(registry.unregister(impostor));
+    assertSame(owner, registry.get("Alice"));
+
+    assertTrue(registry.unregister(owner));
+    assertFalse(registry.unregister(owner));
+    assertNull(registry.get("Alice"));
+    assertFalse(registry.unregister(client(null)));
+  }
+
+  @Test
+  void testOnlyOneRacerWins() throws InterruptedException {
+    ClientRegistry registry = new ClientRegistry();
+    int racers = 16;
+    CountDownLatch start = new CountDownLatch(1);
+    AtomicInteger winners = new AtomicInteger();
+    List<Thread> threads = new ArrayList<>();
+
+    for (int i = 0; i < racers; i++) {
+      threads.add(new Thread(() -> {
+        try {
+          start.await();
+        }
+
+        catch (InterruptedException e) {
+          return;
+        }
+
+        if (registry.register(client("Alice"))) {
+          winners.incrementAndGet();
+        }
+      }));
+    }
+
+    threads.forEach(Thread::start);
+    start.countDown();
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(1, winners.get());
+    assertEquals(1, registry.size());
+  }
+
+  @Test
+  void testChangesToOneNameNumberedInMapOrder() throws InterruptedException {
+    Map<Long, Boolean> changes = new ConcurrentSkipListMap<>();
+    ClientRegistry registry = new ClientRegistry((version, username, joined) -> changes.put(version, joined));
+    List<Thread> threads = new ArrayList<>();
+
+    for (int i = 0; i < 2; i++) {
+      threads.add(new Thread(() -> {
+        ConnectedClient alice = client("Alice");
+
+        for (int round = 0; round < 5000; round++) {
+          if (registry.register(alice)) {
+            registry.unregister(alice);
+          }
+        }
+      }));
+    }
+
+    threads.forEach(Thread::start);
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    // In version order, the name is always joined, then left, then joined again.
+    boolean expected = true;
+
+    for (boolean joined : changes.values()) {
+      assertEquals(expected, joined);
+      expected = !expected;
+    }
+
+    assertEquals(registry.getVersion(), changes.size());
+  }
+
+  @Test
+  void testRosterRebuiltOnlyOnMembershipChange() {
+    ClientRegistry registry = new ClientRegistry();
+    ConnectedClient alice = client("Alice");
+    registry.register(alice);
+
+    Roster first = registry.roster();
+    assertSame(first, registry.roster());
+    assertEquals(List.of("Alice"), first.getUsernames());
+
+    assertFalse(registry.register(client("Alice")));
+    assertFalse(registry.unregister(client("Alice")));
+    assertSame(first, registry.roster());
+
+    registry.register(client("Bob"));
+    Roster second = registry.roster();
+    assertNotSame(first, second);
+    assertTrue(second.getVersion() > first.getVersion());
+    assertEquals(2, second.size());
+
+    registry.unregister(alice);
+    assertEquals(List.of("Bob"), registry.roster().getUsernames());
+    assertEquals(List.of("Alice"), first.getUsernames());
+  }
+
+  @Test
+  void testPageFollowsMembership() {
+    ClientRegistry registry = new ClientRegistry();
+    ConnectedClient bob = client("Bob");
+    registry.register(bob);
+    registry.register(client("Bobby"));
+    registry.register(client("Alice"));
+    assertFalse(registry.register(client("Bob")));
+
+    assertEquals(List.of("Bob", "Bobby"), registry.page("Bo", "", 10, null).getUsernames());
+
+    registry.unregister(client("Bob"));
+    registry.unregister(bob);
+    assertEquals(List.of("Bobby"), registry.page("Bo", "", 10, null).getUsernames());
+  }
+}
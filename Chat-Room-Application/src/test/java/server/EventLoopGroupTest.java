@@ -0,0 +1,68 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class EventLoopGroupTest {
+  private static final int PORT_NUMBER = 9101;
+  private static final int LOOP_COUNT = 3;
+
+  @Test
+  void testRoundRobin() throws IOException {
+    EventLoopGroup group = new EventLoopGroup(new ChatServer(PORT_NUMBER), LOOP_COUNT,
+        LoopSelection.ROUND_ROBIN);
+    List<NioEventLoop> loops = group.getLoops();
+
+    for (int i = 0; i < LOOP_COUNT * 2; i++) {
+      assertSame(loops.get(i % LOOP_COUNT), group.next());
+    }
+
+    group.shutdown();
+  }
+
+  @Test
+  void testLeastLoaded() throws IOException {
+    EventLoopGroup group = new EventLoopGroup(new ChatServer(PORT_NUMBER), LOOP_COUNT,
+        LoopSelection.LEAST_LOADED);
+
+    // Loops are not running, so registrations stay queued but still count as load.
+    for (int i = 0; i < LOOP_COUNT; i++) {
+      NioEventLoop chosen = group.next();
+      assertEquals(0, chosen.getConnectionCount());
+      chosen.register(SocketChannel.open());
+    }
+
+    for (NioEventLoop loop : group.getLoops()) {
+      assertEquals(1, loop.getConnectionCount());
+    }
+
+    group.shutdown();
+  }
+
+  @Test
+  void testInvalidSize() {
+    assertThrows(IllegalArgumentException.class,
+        () -> new EventLoopGroup(new ChatServer(PORT_NUMBER), 0, LoopSelection.ROUND_ROBIN));
+  }
+
+  @Test
+  void testLoopStats() {
+    LoopStats earlier = new LoopStats("loop", 2, 100, 300);
+    LoopStats later = new LoopStats("loop", 2, 400, 400);
+
+    assertEquals(0.25, earlier.getUtilization(), 0.0001);
+    assertEquals(0.75, later.utilizationSince(earlier), 0.0001);
+    assertEquals(0.0, later.utilizationSince(later), 0.0001);
+    assertTrue(later.toString().contains("connections=2"));
+  }
+
+  @Test
+  void testLoopSelectionParse() {
+    assertEquals(LoopSelection.LEAST_LOADED, LoopSelection.parse("least-loaded"));
+    assertEquals(LoopSelection.ROUND_ROBIN, LoopSelection.parse("ROUND_ROBIN"));
+  }
+}
@@ -0,0 +1,117 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class FanOutEngineTest {
+  private static final FrameWriter NO_OP_WRITER = new FrameWriter() {
+    @Override
+    public void requestDrain() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void closeNow() {
+    }
+  };
+
+  private static List<ConnectedClient> fill(SubscriberSet set, int count) {
+    List<ConnectedClient> clients = new ArrayList<>();
+
+    for (int i = 0; i < count; i++) {
+      ConnectedClient client = new ConnectedClient("User" + i, null, new OutboundQueue(4, 3, 1), NO_OP_WRITER);
+      set.add(client);
+      clients.add(client);
+    }
+
+    return clients;
+  }
+
+  @Test
+  void testSmallSetStaysSequential() {
+    FanOutEngine engine = new FanOutEngine(4, 1000);
+    SubscriberSet set = new SubscriberSet();
+    fill(set, 10);
+    AtomicInteger visited = new AtomicInteger();
+
+    engine.fanOut(set, client -> visited.incrementAndGet());
+
+    assertEquals(10, visited.get());
+    assertEquals(1, engine.getSequentialCount());
+    assertEquals(0, engine.getParallelCount());
+    engine.shutdown();
+  }
+
+  @Test
+  void testParallelFanOutReachesEveryClientOnce() {
+    FanOutEngine engine = new FanOutEngine(4, 100);
+    SubscriberSet set = new SubscriberSet();
+    List<ConnectedClient> clients = fill(set, 5000);
+    set.remove(clients.get(17));
+    Map<ConnectedClient, AtomicInteger> visits = new ConcurrentHashMap<>();
+
+    engine.fanOut(set, client -> visits.computeIfAbsent(client, c -> new AtomicInteger()).incrementAndGet());
+
+    assertEquals(4999, visits.size());
+    assertFalse(visits.containsKey(clients.get(17)));
+    visits.values().forEach(count -> assertEquals(1, count.get()));
+    assertEquals(1, engine.getParallelCount());
+    engine.shutdown();
+  }
+
+  @Test
+  void testEachRecipientSeesMessagesInOrder() {
+    FanOutEngine engine = new FanOutEngine(4, 1);
+    SubscriberSet set = new SubscriberSet();
+    fill(set, 3000);
+    Map<ConnectedClient, List<Integer>> received = new IdentityHashMap<>();
+    set.forEach(client -> received.put(client, new ArrayList<>()));
+
+    for (int message = 0; message < 20; message++) {
+      int sent = message;
+      engine.fanOut(set, client -> {
+        List<Integer> messages = received.get(client);
+
+        synchronized (messages) {
+          messages.add(sent);
+        }
+      });
+    }
+
+    for (List<Integer> messages : received.values()) {
+      synchronized (messages) {
+        for (int i = 0; i < messages.size(); i++) {
+          assertEquals(Integer.valueOf(i), messages.get(i));
+        }
+
+        assertEquals(20, messages.size());
+      }
+    }
+
+    engine.shutdown();
+  }
+
+  @Test
+  void testShutdownFallsBackToSequential() {
+    FanOutEngine engine = new FanOutEngine(4, 1);
+    SubscriberSet set = new SubscriberSet();
+    fill(set, 500);
+    engine.shutdown();
+    AtomicInteger visited = new AtomicInteger();
+
+    engine.fanOut(set, client -> visited.incrementAndGet());
+
+    assertEquals(500, visited.get());
+    assertEquals(1, engine.getSequentialCount());
+  }
+}
@@ -0,0 +1,84 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import org.junit.jupiter.api.Test;
+import util.Frame;
+
+class FlushPolicyTest {
+
+  @Test
+  void testGrowsWhileBacklogged() {
+    FlushPolicy policy = new FlushPolicy(1, 16, 1024);
+    assertEquals(1, policy.getFrameLimit());
+
+    for (int expected : new int[] {2, 4, 8, 16, 16}) {
+      policy.recordBatch(policy.getFrameLimit(), true);
+      assertEquals(expected, policy.getFrameLimit());
+    }
+  }
+
+  @Test
+  void testShrinksWhenBatchesStaySmall() {
+    FlushPolicy policy = new FlushPolicy(1, 16, 1024);
+
+    for (int i = 0; i < 4; i++) {
+      policy.recordBatch(policy.getFrameLimit(), true);
+    }
+
+    for (int i = 0; i < 20; i++) {
+      policy.recordBatch(1, false);
+    }
+
+    assertEquals(2, policy.getFrameLimit());
+  }
+
+  @Test
+  void testInvalidLimits() {
+    assertThrows(IllegalArgumentException.class, () -> new FlushPolicy(0, 4, 1024));
+    assertThrows(IllegalArgumentException.class, () -> new FlushPolicy(4, 2, 1024));
+    assertThrows(IllegalArgumentException.class, () -> new FlushPolicy(1, 4, 0));
+  }
+
+  @Test
+  void testStreamWriterCoalescesQueuedFrames() throws IOException {
+    OutboundQueue queue = new OutboundQueue(64, 48, 16);
+    CountingOutputStream counting = new CountingOutputStream();
+    StreamFrameWriter writer = new StreamFrameWriter(queue, new DataOutputStream(counting), new Socket(),
+        Runnable::run);
+
+    for (int i = 0; i < 10; i++) {
+      queue.offer(Frame.of(24, new byte[] {(byte) i}));
+    }
+
+    writer.requestDrain();
+
+    assertTrue(queue.isEmpty());
+    assertEquals(10, queue.getWrittenFrameCount());
+    assertTrue(queue.getWriteCount() < 10);
+    assertEquals(queue.getWriteCount(), counting.writes);
+    assertEquals(50, counting.bytes.size());
+  }
+
+  private static class CountingOutputStream extends OutputStream {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private int writes;
+
+    @Override
+    public void write(int b) {
+      writes++;
+      bytes.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      writes++;
+      bytes.write(b, off, len);
+    }
+  }
+}
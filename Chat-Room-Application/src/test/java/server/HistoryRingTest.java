@@ -0,0 +1,133 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+import util.Message;
+import util.MessageType;
+
+class HistoryRingTest {
+  private static EncodedMessage message(String text) {
+    return new EncodedMessage(Message.of(MessageType.BROADCAST_MESSAGE, "Alice", text));
+  }
+
+  private static List<String> texts(HistoryRing ring) {
+    List<String> texts = new ArrayList<>();
+
+    for (EncodedMessage message : ring.snapshot()) {
+      texts.add(message.getMessage().getField(1));
+    }
+
+    return texts;
+  }
+
+  @Test
+  void testKeepsMostRecentByCount() throws IOException {
+    HistoryRing ring = new HistoryRing(3, 1 << 20);
+
+    for (int i = 0; i < 5; i++) {
+      assertTrue(ring.append(message("m" + i)));
+    }
+
+    assertEquals(List.of("m2", "m3", "m4"), texts(ring));
+    assertEquals(3, ring.size());
+  }
+
+  @Test
+  void testEvictsByBytes() throws IOException {
+    int length = message("m0").length();
+    HistoryRing ring = new HistoryRing(10, length * 2L);
+
+    for (int i = 0; i < 4; i++) {
+      ring.append(message("m" + i));
+    }
+
+    assertEquals(List.of("m2", "m3"), texts(ring));
+    assertEquals(length * 2L, ring.getBytes());
+  }
+
+  @Test
+  void testOversizedMessageNotKept() throws IOException {
+    HistoryRing ring = new HistoryRing(10, 16);
+
+    assertFalse(ring.append(message("a message longer than the limit")));
+    assertTrue(ring.snapshot().isEmpty());
+  }
+
+  @Test
+  void testZeroCapacityKeepsNothing() throws IOException {
+    HistoryRing ring = new HistoryRing(0, 1024);
+
+    assertFalse(ring.append(message("m0")));
+    assertTrue(ring.snapshot().isEmpty());
+  }
+
+  @Test
+  void testReadersSeeOrderedRunsDuringWrites() throws Exception {
+    HistoryRing ring = new HistoryRing(8, 1 << 20);
+    AtomicBoolean done = new AtomicBoolean();
+    List<String> problems = new ArrayList<>();
+
+    Thread reader = new Thread(() -> {
+      while (!done.get()) {
+        List<String> seen = texts(ring);
+
+        for (int i = 1; i < seen.size(); i++) {
+          int previous = Integer.parseInt(seen.get(i - 1));
+          int current = Integer.parseInt(seen.get(i));
+
+          if (current <= previous) {
+            synchronized (problems) {
+              problems.add(seen.toString());
+            }
+          }
+        }
+
+        if (seen.size() > 8) {
+          synchronized (problems) {
+            problems.add("too many: " + seen.size());
+          }
+        }
+      }
+    });
+    reader.start();
+
+    for (int i = 0; i < 20000; i++) {
+      ring.append(message(Integer.toString(i)));
+    }
+
+    done.set(true);
+    reader.join();
+
+    assertEquals(List.of(), problems);
+    assertEquals(List.of("19992", "19993", "19994", "19995", "19996", "19997", "19998", "19999"), texts(ring));
+  }
+
+  @Test
+  void testSubscriptionHoldsLiveMessagesUntilReplayed() throws IOException {
+    HistoryRing ring = new HistoryRing(4, 1 << 20);
+    long first = ring.keep(message("m0"));
+    HistoryRing.Subscription subscription = ring.subscribe();
+    List<String> received = new ArrayList<>();
+
+    subscription.deliver(first, () -> received.add("live m0"));
+    subscription.deliver(-1, () -> received.add("live unkept"));
+    assertEquals(List.of(), received);
+
+    subscription.replay(messages -> {
+      for (EncodedMessage message : messages) {
+        received.add("replay " + message.getMessage().getField(1));
+      }
+    });
+    assertEquals(List.of("replay m0", "live unkept"), received);
+
+    long second = ring.keep(message("m1"));
+    subscription.deliver(second, () -> received.add("live m1"));
+    subscription.deliver(first, () -> received.add("live m0"));
+    assertEquals(List.of("replay m0", "live unkept", "live m1"), received);
+  }
+}
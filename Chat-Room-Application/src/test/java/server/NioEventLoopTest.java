@@ -0,0 +1,239 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import util.Message;
+import util.MessageCodec;
+import util.MessageProtocol;
+import util.MessageType;
+
+class NioEventLoopTest {
+  private static final int PORT_NUMBER = 9100;
+  private static final String LOCALHOST = "localhost";
+  private static final String USER1 = "User1";
+  private static final String USER2 = "User2";
+  private static final String MESSAGE = "Hello over nio!";
+  private static final int TIMEOUT_MILLIS = 5000;
+
+  private ChatServer server;
+  private Thread serverThread;
+
+  @BeforeEach
+  void setUp() throws InterruptedException {
+    server = new ChatServer(PORT_NUMBER, new ServerConfig().setMode(ServerMode.NIO).setWorkerThreads(2));
+    serverThread = new Thread(server::start);
+    serverThread.start();
+    Thread.sleep(200);
+  }
+
+  @AfterEach
+  void tearDown() throws InterruptedException {
+    server.stop();
+    serverThread.join(TIMEOUT_MILLIS);
+  }
+
+  private Socket connect(String username) throws IOException {
+    Socket socket = new Socket(LOCALHOST, PORT_NUMBER);
+    socket.setSoTimeout(TIMEOUT_MILLIS);
+    DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+
+    output.writeInt(MessageType.CONNECT_MESSAGE.getValue());
+    MessageProtocol.writeString(output, username);
+
+    DataInputStream input = new DataInputStream(socket.getInputStream());
+    assertEquals(MessageType.CONNECT_RESPONSE.getValue(), input.readInt());
+    assertTrue(input.readBoolean());
+    MessageProtocol.readString(input);
+
+    return socket;
+  }
+
+  @Test
+  void testConnectAndBroadcast() throws IOException {
+    try (Socket socket1 = connect(USER1); Socket socket2 = connect(USER2)) {
+      DataOutputStream output1 = new DataOutputStream(socket1.getOutputStream());
+
+      // Write the message a byte at a time so the server has to reassemble it.
+      DataOutputStream slowOutput = new DataOutputStream(new java.io.OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+          output1.write(b);
+          output1.flush();
+        }
+      });
+      slowOutput.writeInt(MessageType.BROADCAST_MESSAGE.getValue());
+      MessageProtocol.writeString(slowOutput, USER1);
+      MessageProtocol.writeString(slowOutput, MESSAGE);
+
+      DataInputStream input2 = new DataInputStream(socket2.getInputStream());
+      assertEquals(MessageType.BROADCAST_MESSAGE.getValue(), input2.readInt());
+      assertEquals(USER1, MessageProtocol.readString(input2));
+      assertEquals(MESSAGE, MessageProtocol.readString(input2));
+    }
+  }
+
+  @Test
+  void testDelayedBroadcastsArriveInOrder() throws IOException {
+    server.getRateLimiter().setLimit(MessageType.BROADCAST_MESSAGE, new RateLimit(20, 1, RateLimitPolicy.DELAY));
+
+    try (Socket socket1 = connect(USER1); Socket socket2 = connect(USER2)) {
+      DataOutputStream output1 = new DataOutputStream(socket1.getOutputStream());
+      long start = System.nanoTime();
+
+      for (int i = 0; i < 3; i++) {
+        output1.writeInt(MessageType.BROADCAST_MESSAGE.getValue());
+        MessageProtocol.writeString(output1, USER1);
+        MessageProtocol.writeString(output1, MESSAGE + i);
+      }
+
+      output1.flush();
+      DataInputStream input2 = new DataInputStream(socket2.getInputStream());
+
+      for (int i = 0; i < 3; i++) {
+        assertEquals(MessageType.BROADCAST_MESSAGE.getValue(), input2.readInt());
+        assertEquals(USER1, MessageProtocol.readString(input2));
+        assertEquals(MESSAGE + i, MessageProtocol.readString(input2));
+      }
+
+      // Two of the three wait a 50 ms interval each.
+      assertTrue(System.nanoTime() - start >= 80_000_000L);
+      assertEquals(2, server.getRateLimiter().getLimitedCount(RateLimitPolicy.DELAY));
+    }
+  }
+
+  @Test
+  void testBroadcastsWaitForCredit() throws IOException {
+    try (Socket socket1 = connect(USER1); Socket socket2 = connect(USER2)) {
+      DataOutputStream output1 = new DataOutputStream(socket1.getOutputStream());
+      DataInputStream input1 = new DataInputStream(socket1.getInputStream());
+      MessageCodec codec = new MessageCodec();
+
+      output1.writeInt(MessageType.CREDIT.getValue());
+      MessageProtocol.writeString(output1, "2");
+      assertEquals(Message.credit(64), codec.read(input1));
+
+      DataOutputStream output2 = new DataOutputStream(socket2.getOutputStream());
+
+      for (int i = 0; i < 5; i++) {
+        output2.writeInt(MessageType.BROADCAST_MESSAGE.getValue());
+        MessageProtocol.writeString(output2, USER2);
+        MessageProtocol.writeString(output2, MESSAGE + i);
+      }
+
+      assertEquals(MESSAGE + 0, codec.read(input1).getField(1));
+      assertEquals(MESSAGE + 1, codec.read(input1).getField(1));
+
+      socket1.setSoTimeout(300);
+      assertThrows(java.net.SocketTimeoutException.class, () -> input1.readInt());
+      socket1.setSoTimeout(TIMEOUT_MILLIS);
+
+      output1.writeInt(MessageType.CREDIT.getValue());
+      MessageProtocol.writeString(output1, "5");
+
+      for (int i = 2; i < 5; i++) {
+        assertEquals(MESSAGE + i, codec.read(input1).getField(1));
+      }
+    }
+  }
+
+  @Test
+  void testMixedProtocolVersions() throws IOException {
+    try (Socket legacy = connect(USER1); Socket framed = new Socket(LOCALHOST, PORT_NUMBER)) {
+      framed.setSoTimeout(TIMEOUT_MILLIS);
+      DataOutputStream framedOutput = new DataOutputStream(framed.getOutputStream());
+      DataInputStream framedInput = new DataInputStream(framed.getInputStream());
+      MessageCodec codec = new MessageCodec();
+
+      MessageCodec.encode(Message.of(MessageType.CONNECT_MESSAGE, USER2), MessageCodec.CURRENT_VERSION)
+          .writeTo(framedOutput);
+      assertTrue(codec.read(framedInput).isSuccess());
+      assertEquals(MessageCodec.CURRENT_VERSION, codec.getVersion());
+
+      MessageCodec.encode(Message.of(MessageType.BROADCAST_MESSAGE, USER2, MESSAGE), MessageCodec.CURRENT_VERSION)
+          .writeTo(framedOutput);
+
+      // Each side gets the same broadcast in the version it spoke.
+      assertEquals(Message.of(MessageType.BROADCAST_MESSAGE, USER2, MESSAGE), codec.read(framedInput));
+      assertEquals(MessageCodec.CURRENT_VERSION, codec.getVersion());
+
+      DataInputStream legacyInput = new DataInputStream(legacy.getInputStream());
+      assertEquals(MessageType.BROADCAST_MESSAGE.getValue(), legacyInput.readInt());
+      assertEquals(USER2, MessageProtocol.readString(legacyInput));
+      assertEquals(MESSAGE, MessageProtocol.readString(legacyInput));
+    }
+  }
+
+  @Test
+  void testUsernameTaken() throws IOException {
+    try (Socket socket1 = connect(USER1); Socket socket2 = new Socket(LOCALHOST, PORT_NUMBER)) {
+      socket2.setSoTimeout(TIMEOUT_MILLIS);
+      DataOutputStream output2 = new DataOutputStream(socket2.getOutputStream());
+      output2.writeInt(MessageType.CONNECT_MESSAGE.getValue());
+      MessageProtocol.writeString(output2, USER1);
+
+      DataInputStream input2 = new DataInputStream(socket2.getInputStream());
+      assertEquals(MessageType.CONNECT_RESPONSE.getValue(), input2.readInt());
+      assertFalse(input2.readBoolean());
+      assertEquals("Username already taken.", MessageProtocol.readString(input2));
+    }
+  }
+
+  @Test
+  void testFailedTaskDoesNotStopLoop() throws Exception {
+    NioEventLoop loop = new NioEventLoop(server, "nio-test");
+    Thread thread = new Thread(loop);
+    thread.start();
+
+    try {
+      CountDownLatch ran = new CountDownLatch(1);
+      loop.execute(() -> {
+        throw new IllegalStateException("task failed");
+      });
+      loop.execute(ran::countDown);
+
+      assertTrue(ran.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+      assertTrue(thread.isAlive());
+    }
+
+    finally {
+      loop.shutdown();
+      thread.join(TIMEOUT_MILLIS);
+    }
+  }
+
+  @Test
+  void testDisconnectRemovesClient() throws IOException, InterruptedException {
+    try (Socket socket1 = connect(USER1)) {
+      assertNotNull(server.getClientByUsername(USER1));
+    }
+
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+
+    while (server.getClientByUsername(USER1) != null && System.currentTimeMillis() < deadline) {
+      Thread.sleep(20);
+    }
+
+    assertNull(server.getClientByUsername(USER1));
+  }
+
+  @Test
+  void testConnectionsSpreadAcrossWorkers() throws IOException {
+    try (Socket socket1 = connect(USER1); Socket socket2 = connect(USER2)) {
+      List<LoopStats> stats = server.getLoopStats();
+
+      assertEquals(2, stats.size());
+      assertEquals(1, stats.get(0).getConnections());
+      assertEquals(1, stats.get(1).getConnections());
+    }
+  }
+}
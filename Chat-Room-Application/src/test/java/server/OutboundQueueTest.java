@@ -0,0 +1,189 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import util.Frame;
+
+class OutboundQueueTest {
+  private static final int MESSAGE_TYPE = 24;
+
+  private static Frame frame(int value) {
+    return Frame.of(MESSAGE_TYPE, new byte[] {(byte) value});
+  }
+
+  @Test
+  void testOfferAndPollInOrder() {
+    OutboundQueue queue = new OutboundQueue(4, 3, 1);
+
+    for (int i = 0; i < 4; i++) {
+      assertTrue(queue.offer(frame(i)));
+    }
+
+    assertEquals(4, queue.size());
+    assertEquals(4 * frame(0).length(), queue.getQueuedBytes());
+
+    for (int i = 0; i < 4; i++) {
+      assertEquals(frame(i), queue.poll());
+    }
+
+    assertNull(queue.poll());
+    assertTrue(queue.isEmpty());
+    assertEquals(0, queue.getQueuedBytes());
+  }
+
+  @Test
+  void testOfferAllQueuesWhatFits() {
+    OutboundQueue queue = new OutboundQueue(4, 3, 1);
+    queue.offer(frame(0));
+
+    assertEquals(3, queue.offerAll(List.of(frame(1), frame(2), frame(3), frame(4), frame(5)), false));
+    assertEquals(2, queue.getDroppedCount());
+    assertTrue(queue.isOverloaded());
+
+    for (int i = 0; i < 4; i++) {
+      assertEquals(frame(i), queue.poll());
+    }
+  }
+
+  @Test
+  void testBroadcastsLeaveRoomForReplies() {
+    OutboundQueue queue = new OutboundQueue(8, 4, 2);
+
+    // Broadcasts may take half the four slots above the high watermark.
+    assertEquals(6, queue.offerAll(List.of(frame(0), frame(1), frame(2), frame(3), frame(4), frame(5),
+        frame(6), frame(7)), true));
+    assertFalse(queue.offer(frame(8), true));
+
+    assertTrue(queue.offer(frame(9)));
+    assertTrue(queue.offer(frame(10)));
+    assertFalse(queue.offer(frame(11)));
+    assertEquals(4, queue.getDroppedCount());
+  }
+
+  @Test
+  void testDropsWhenFull() {
+    OutboundQueue queue = new OutboundQueue(2, 2, 1);
+
+    assertTrue(queue.offer(frame(1)));
+    assertTrue(queue.offer(frame(2)));
+    assertFalse(queue.offer(frame(3)));
+
+    assertEquals(2, queue.getEnqueuedCount());
+    assertEquals(1, queue.getDroppedCount());
+    assertEquals(frame(1), queue.poll());
+  }
+
+  @Test
+  void testWatermarkHysteresis() {
+    OutboundQueue queue = new OutboundQueue(8, 4, 2);
+
+    for (int i = 0; i < 3; i++) {
+      queue.offer(frame(i));
+    }
+
+    assertFalse(queue.isOverloaded());
+    queue.offer(frame(3));
+    assertTrue(queue.isOverloaded());
+
+    queue.poll();
+    assertTrue(queue.isOverloaded());
+    queue.poll();
+    assertFalse(queue.isOverloaded());
+  }
+
+  @Test
+  void testClearCountsDropped() {
+    OutboundQueue queue = new OutboundQueue(4, 3, 1);
+    queue.offer(frame(1));
+    queue.offer(frame(2));
+    queue.recordDisconnect();
+    queue.clear();
+
+    assertTrue(queue.isEmpty());
+    assertEquals(2, queue.getDroppedCount());
+    assertEquals(1, queue.getDisconnectCount());
+  }
+
+  @Test
+  void testCreditHoldsFramesBack() {
+    OutboundQueue queue = new OutboundQueue(8, 6, 2);
+    queue.grantCredit(2);
+
+    for (int i = 0; i < 4; i++) {
+      assertTrue(queue.offer(frame(i)));
+    }
+
+    assertEquals(frame(0), queue.poll());
+    assertEquals(frame(1), queue.poll());
+    assertNull(queue.poll());
+    assertTrue(queue.isStalled());
+    assertFalse(queue.hasWritable());
+
+    // A control frame goes out even with no credit left.
+    Frame control = Frame.of(33, new byte[] {9});
+    queue.offerControl(control);
+    assertTrue(queue.hasWritable());
+    assertEquals(control, queue.poll());
+
+    // Grants are totals, so an old one changes nothing.
+    queue.grantCredit(1);
+    assertNull(queue.poll());
+    queue.grantCredit(3);
+    assertEquals(frame(2), queue.poll());
+    assertNull(queue.poll());
+
+    queue.disableCredit();
+    assertEquals(frame(3), queue.poll());
+    assertFalse(queue.isStalled());
+  }
+
+  @Test
+  void testLaterControlFrameReplacesEarlier() {
+    OutboundQueue queue = new OutboundQueue(4, 3, 1);
+    queue.offer(frame(0));
+    queue.offerControl(Frame.of(33, new byte[] {1}));
+    queue.offerControl(Frame.of(33, new byte[] {2}));
+
+    assertEquals(Frame.of(33, new byte[] {2}), queue.poll());
+    assertEquals(frame(0), queue.poll());
+    assertNull(queue.poll());
+  }
+
+  @Test
+  void testInvalidWatermarks() {
+    assertThrows(IllegalArgumentException.class, () -> new OutboundQueue(4, 5, 1));
+    assertThrows(IllegalArgumentException.class, () -> new OutboundQueue(4, 2, 2));
+    assertThrows(IllegalArgumentException.class, () -> new OutboundQueue(0, 0, 0));
+  }
+
+  @Test
+  void testSendDoesNotWaitForWriter() throws IOException {
+    OutboundQueue queue = new OutboundQueue(2, 2, 1);
+    List<Runnable> pending = new ArrayList<>();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    StreamFrameWriter writer = new StreamFrameWriter(queue, new DataOutputStream(bytes), new Socket(),
+        pending::add);
+    ConnectedClient client = new ConnectedClient("slow", new Socket(), queue, writer);
+
+    // The writer never runs, so the client stands in for a consumer that has stopped reading.
+    for (int i = 0; i < 5; i++) {
+      client.sendMessage(MESSAGE_TYPE, new byte[] {(byte) i});
+    }
+
+    assertEquals(1, pending.size());
+    assertEquals(2, queue.size());
+    assertEquals(3, queue.getDroppedCount());
+    assertEquals(0, bytes.size());
+
+    pending.get(0).run();
+    assertTrue(queue.isEmpty());
+    assertEquals(2 * frame(0).length(), bytes.size());
+  }
+}
@@ -0,0 +1,145 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import client.LocalRoster;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import util.Frame;
+import util.Message;
+import util.MessageCodec;
+import util.MessageType;
+
+class PresenceFeedTest {
+  private static final FrameWriter NO_OP_WRITER = new FrameWriter() {
+    @Override
+    public void requestDrain() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void closeNow() {
+    }
+  };
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+  private final SubscriberSet subscribers = new SubscriberSet();
+  private ClientRegistry registry;
+
+  @AfterEach
+  void tearDown() {
+    scheduler.shutdownNow();
+  }
+
+  private PresenceFeed feed(long batchMillis) {
+    PresenceFeed feed = new PresenceFeed(subscribers, () -> registry.roster(), scheduler, batchMillis);
+    registry = new ClientRegistry(feed);
+    return feed;
+  }
+
+  private ConnectedClient join(String username) {
+    ConnectedClient client = new ConnectedClient(username, null, new OutboundQueue(64, 48, 16), NO_OP_WRITER);
+    client.setProtocolVersion(MessageCodec.CURRENT_VERSION);
+    assertTrue(registry.register(client));
+    subscribers.add(client);
+    return client;
+  }
+
+  private static List<Message> drain(ConnectedClient client) throws Exception {
+    List<Message> messages = new ArrayList<>();
+    MessageCodec codec = new MessageCodec();
+    Frame frame;
+
+    while ((frame = client.getOutboundQueue().poll()) != null) {
+      messages.add(codec.decode(frame.buffer()));
+    }
+
+    return messages;
+  }
+
+  @Test
+  void testSnapshotThenDeltas() throws Exception {
+    PresenceFeed feed = feed(0);
+    join("Alice");
+    ConnectedClient bob = join("Bob");
+    feed.subscribe(bob);
+
+    ConnectedClient carol = join("Carol");
+    registry.unregister(carol);
+
+    List<Message> messages = drain(bob);
+    assertEquals(3, messages.size());
+    assertTrue(messages.get(0).is(MessageType.PRESENCE_SNAPSHOT));
+    assertTrue(messages.get(1).is(MessageType.PRESENCE_DELTA));
+
+    LocalRoster roster = new LocalRoster();
+    roster.applySnapshot(messages.get(0));
+    assertEquals(2, roster.getSequence());
+
+    for (Message delta : messages.subList(1, messages.size())) {
+      assertTrue(roster.applyDelta(delta));
+    }
+
+    assertEquals(List.of("Alice", "Bob"), roster.usernames(null));
+    assertEquals(4, roster.getSequence());
+  }
+
+  @Test
+  void testUnsubscribedClientsGetNothing() throws Exception {
+    feed(0);
+    ConnectedClient alice = join("Alice");
+    join("Bob");
+
+    assertTrue(drain(alice).isEmpty());
+  }
+
+  @Test
+  void testBurstCoalesced() throws Exception {
+    PresenceFeed feed = feed(60_000);
+    ConnectedClient watcher = join("Watcher");
+    feed.subscribe(watcher);
+
+    for (int i = 0; i < 1000; i++) {
+      registry.register(new ConnectedClient("user" + i, null, new OutboundQueue(4, 3, 1), NO_OP_WRITER));
+    }
+
+    feed.flush();
+
+    List<Message> messages = drain(watcher);
+    int deltas = (1000 + PresenceFeed.MAX_EVENTS_PER_DELTA - 1) / PresenceFeed.MAX_EVENTS_PER_DELTA;
+    assertEquals(1 + deltas, messages.size());
+    assertEquals(deltas, feed.getDeltaCount());
+
+    LocalRoster roster = new LocalRoster();
+    roster.applySnapshot(messages.get(0));
+
+    for (Message delta : messages.subList(1, messages.size())) {
+      assertTrue(roster.applyDelta(delta));
+    }
+
+    assertEquals(1001, roster.usernames(null).size());
+  }
+
+  @Test
+  void testChangesHeldUntilGapFills() throws Exception {
+    PresenceFeed feed = feed(0);
+    ConnectedClient watcher = join("Watcher");
+    feed.subscribe(watcher);
+    drain(watcher);
+
+    feed.membershipChanged(3, "Late", true);
+    assertTrue(drain(watcher).isEmpty());
+
+    feed.membershipChanged(2, "Early", true);
+    List<Message> messages = drain(watcher);
+    assertEquals(1, messages.size());
+    assertEquals(List.of("2", "+Early", "+Late"), messages.get(0).getFields());
+  }
+}
@@ -0,0 +1,143 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import org.junit.jupiter.api.Test;
+
+class RoomRegistryTest {
+  private static final FrameWriter NO_OP_WRITER = new FrameWriter() {
+    @Override
+    public void requestDrain() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void closeNow() {
+    }
+  };
+
+  private static ConnectedClient client(String username) {
+    return new ConnectedClient(username, null, new OutboundQueue(4, 3, 1), NO_OP_WRITER);
+  }
+
+  private static List<String> members(Room room) {
+    List<String> members = new ArrayList<>();
+    room.getMembers().forEach(client -> members.add(client.getUsername()));
+    return members;
+  }
+
+  @Test
+  void testJoinCreatesRoom() {
+    RoomRegistry registry = new RoomRegistry();
+    ConnectedClient alice = client("Alice");
+    ConnectedClient bob = client("Bob");
+
+    Room room = registry.join("general", alice);
+    assertNotNull(room);
+    assertSame(room, registry.join("general", bob));
+    assertNull(registry.join("general", alice));
+
+    assertEquals(1, registry.size());
+    assertEquals(List.of("Alice", "Bob"), members(room));
+    assertEquals(Set.of("general"), alice.getRooms());
+  }
+
+  @Test
+  void testLastLeaveRemovesRoom() {
+    RoomRegistry registry = new RoomRegistry();
+    ConnectedClient alice = client("Alice");
+    ConnectedClient bob = client("Bob");
+    registry.join("general", alice);
+    registry.join("general", bob);
+
+    assertNotNull(registry.leave("general", alice));
+    assertNull(registry.leave("general", alice));
+    assertNotNull(registry.get("general"));
+    assertTrue(alice.getRooms().isEmpty());
+
+    assertNotNull(registry.leave("general", bob));
+    assertNull(registry.get("general"));
+    assertEquals(0, registry.size());
+  }
+
+  @Test
+  void testLeaveAll() {
+    RoomRegistry registry = new RoomRegistry();
+    ConnectedClient alice = client("Alice");
+    ConnectedClient bob = client("Bob");
+    registry.join("general", alice);
+    registry.join("random", alice);
+    registry.join("random", bob);
+
+    assertEquals(2, registry.leaveAll(alice).size());
+    assertTrue(alice.getRooms().isEmpty());
+    assertEquals(Map.of("random", 1), registry.listing());
+  }
+
+  @Test
+  void testListingIsSortedByName() {
+    RoomRegistry registry = new RoomRegistry();
+    registry.join("zeta", client("Alice"));
+    registry.join("alpha", client("Bob"));
+    registry.join("alpha", client("Carol"));
+
+    assertEquals(List.of("alpha", "zeta"), new ArrayList<>(registry.listing().keySet()));
+    assertEquals(Integer.valueOf(2), registry.listing().get("alpha"));
+  }
+
+  @Test
+  void testValidNames() {
+    assertTrue(RoomRegistry.isValidName("general"));
+    assertTrue(RoomRegistry.isValidName("team_1-ops"));
+    assertFalse(RoomRegistry.isValidName(""));
+    assertFalse(RoomRegistry.isValidName(null));
+    assertFalse(RoomRegistry.isValidName("has space"));
+    assertFalse(RoomRegistry.isValidName("#general"));
+    assertFalse(RoomRegistry.isValidName("x".repeat(33)));
+  }
+
+  @Test
+  void testConcurrentJoinAndLeaveKeepRoomsConsistent() throws InterruptedException {
+    RoomRegistry registry = new RoomRegistry();
+    int threads = 4;
+    int rounds = 2000;
+    CountDownLatch start = new CountDownLatch(1);
+    List<Thread> workers = new ArrayList<>();
+
+    for (int t = 0; t < threads; t++) {
+      ConnectedClient member = client("User" + t);
+      Thread worker = new Thread(() -> {
+        try {
+          start.await();
+        }
+        catch (InterruptedException e) {
+          return;
+        }
+
+        for (int i = 0; i < rounds; i++) {
+          assertNotNull(registry.join("busy", member));
+          assertNotNull(registry.leave("busy", member));
+        }
+      });
+      workers.add(worker);
+      worker.start();
+    }
+
+    start.countDown();
+
+    for (Thread worker : workers) {
+      worker.join();
+    }
+
+    assertNull(registry.get("busy"));
+    assertEquals(0, registry.size());
+  }
+}
@@ -0,0 +1,119 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import util.Message;
+import util.MessageType;
+
+class SearchIndexTest {
+  private static Message broadcast(String text) {
+    return Message.of(MessageType.BROADCAST_MESSAGE, "Alice", text);
+  }
+
+  private static List<String> texts(List<SearchIndex.Match> matches) {
+    List<String> texts = new ArrayList<>();
+
+    for (SearchIndex.Match match : matches) {
+      texts.add(match.getMessage().getField(1));
+    }
+
+    return texts;
+  }
+
+  private static List<SearchIndex.Match> search(SearchIndex index, String query, int limit) {
+    return index.search(query, limit, message -> true);
+  }
+
+  @Test
+  void testTokenize() {
+    assertEquals(Set.of("hello", "world", "x2"), SearchIndex.tokenize("Hello, WORLD! a x2 hello"));
+    assertEquals(SearchIndex.MAX_TOKEN_LENGTH, SearchIndex.tokenize("y".repeat(100)).iterator().next().length());
+    assertTrue(SearchIndex.tokenize("!? a").isEmpty());
+  }
+
+  @Test
+  void testMatchesHoldEveryTokenNewestFirst() {
+    SearchIndex index = new SearchIndex(100);
+    index.add(broadcast("the quick brown fox"), 1000);
+    index.add(broadcast("a quick lunch"), 2000);
+    index.add(broadcast("Brown bread, quick!"), 3000);
+
+    assertEquals(List.of("Brown bread, quick!", "the quick brown fox"), texts(search(index, "quick BROWN", 10)));
+    assertEquals(List.of("Brown bread, quick!"), texts(search(index, "quick", 1)));
+    assertEquals(3000, search(index, "bread", 1).get(0).getTimestampMillis());
+    assertTrue(search(index, "quick zebra", 10).isEmpty());
+    assertTrue(search(index, "", 10).isEmpty());
+  }
+
+  @Test
+  void testIntersectsAcrossBlocks() {
+    SearchIndex index = new SearchIndex(10000);
+
+    for (int i = 0; i < 1000; i++) {
+      String text = "m" + i + (i % 2 == 0 ? " even" : "") + (i % 3 == 0 ? " three" : "");
+      index.add(broadcast(text), i);
+    }
+
+    List<SearchIndex.Match> matches = search(index, "even three", 1000);
+    assertEquals(167, matches.size());
+    assertEquals(996, matches.get(0).getTimestampMillis());
+    assertEquals(0, matches.get(166).getTimestampMillis());
+  }
+
+  @Test
+  void testVisibilityFiltersMatches() {
+    SearchIndex index = new SearchIndex(100);
+    index.add(Message.of(MessageType.DIRECT_MESSAGE, "Alice", "Bob", "hello bob"), 1000);
+    index.add(Message.of(MessageType.ROOM_MESSAGE, "Alice", "general", "hello room"), 2000);
+
+    List<SearchIndex.Match> matches = index.search("hello", 10, message -> message.is(MessageType.DIRECT_MESSAGE));
+    assertEquals(1, matches.size());
+    assertEquals("hello bob", matches.get(0).getMessage().getField(2));
+  }
+
+  @Test
+  void testEvictsOldestAndSweepsTheirTokens() {
+    SearchIndex index = new SearchIndex(300);
+
+    for (int i = 0; i < 1000; i++) {
+      index.add(broadcast("common word" + i), i);
+    }
+
+    assertEquals(300, index.size());
+    List<SearchIndex.Match> matches = search(index, "common", 1000);
+    assertEquals(300, matches.size());
+    assertEquals(999, matches.get(0).getTimestampMillis());
+    assertEquals(700, matches.get(299).getTimestampMillis());
+    assertTrue(search(index, "word10", 10).isEmpty());
+
+    // Evicted messages' tokens go as the sweep rotation reaches them.
+    assertTrue(index.getTokenCount() <= 2 * 300 + 1);
+  }
+
+  @Test
+  void testRenumbersBeforeNumbersOverflow() {
+    SearchIndex index = new SearchIndex(10, 25);
+
+    for (int i = 0; i < 100; i++) {
+      index.add(broadcast("common word" + i), i);
+    }
+
+    assertEquals(10, index.size());
+    assertEquals(List.of("common word99"), texts(search(index, "word99", 10)));
+    assertEquals(10, search(index, "common", 100).size());
+    assertEquals(90, search(index, "common", 100).get(9).getTimestampMillis());
+  }
+
+  @Test
+  void testZeroCapacityKeepsNothing() {
+    SearchIndex index = new SearchIndex(0);
+    index.add(broadcast("hello"), 1000);
+
+    assertEquals(0, index.size());
+    assertTrue(search(index, "hello", 10).isEmpty());
+  }
+}
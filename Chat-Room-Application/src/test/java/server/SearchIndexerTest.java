@@ -0,0 +1,76 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import util.Message;
+import util.MessageType;
+
+class SearchIndexerTest {
+  private static Message broadcast(String text) {
+    return Message.of(MessageType.BROADCAST_MESSAGE, "Alice", text);
+  }
+
+  private static void awaitIndexed(SearchIndexer indexer, long count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+
+    while (indexer.getIndexedCount() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+  }
+
+  @Test
+  void testSubmittedMessagesBecomeSearchable() throws InterruptedException {
+    SearchIndexer indexer = new SearchIndexer(new SearchIndex(100));
+
+    try {
+      indexer.submit(broadcast("lunch at noon"), 1000);
+      indexer.submit(broadcast("dinner at eight"), 2000);
+      awaitIndexed(indexer, 2);
+
+      assertEquals(2, indexer.getIndexedCount());
+      assertEquals(List.of(new SearchIndex.Match(broadcast("lunch at noon"), 1000)),
+          indexer.getIndex().search("lunch", 10, message -> true));
+    }
+
+    finally {
+      indexer.shutdown();
+    }
+  }
+
+  @Test
+  void testSubmitDoesNotWaitForIndexLock() throws InterruptedException {
+    SearchIndexer indexer = new SearchIndexer(new SearchIndex(100));
+
+    try {
+      // A search stuck inside the index holds its read lock until released.
+      Thread searcher = new Thread(() -> indexer.getIndex().search("hello", 10, message -> {
+        try {
+          Thread.sleep(500);
+        }
+
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+
+        return true;
+      }));
+      indexer.getIndex().add(broadcast("hello"), 500);
+      searcher.start();
+      Thread.sleep(100);
+
+      long start = System.nanoTime();
+      indexer.submit(broadcast("hello again"), 1000);
+      assertTrue(System.nanoTime() - start < 100_000_000L);
+
+      searcher.join();
+      awaitIndexed(indexer, 1);
+      assertEquals(2, indexer.getIndex().size());
+    }
+
+    finally {
+      indexer.shutdown();
+    }
+  }
+}
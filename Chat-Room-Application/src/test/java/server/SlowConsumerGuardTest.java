@@ -0,0 +1,103 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import util.Frame;
+import util.MessageType;
+
+class SlowConsumerGuardTest {
+  private OutboundQueue queue;
+  private ConnectedClient client;
+  private SlowConsumerGuard guard;
+
+  @BeforeEach
+  void setUp() {
+    // The writer's executor never runs, so the client stands in for one that has stopped reading.
+    queue = new OutboundQueue(4, 2, 1);
+    List<Runnable> neverRun = new ArrayList<>();
+    StreamFrameWriter writer = new StreamFrameWriter(queue,
+        new DataOutputStream(new ByteArrayOutputStream()), new Socket(), neverRun::add);
+    client = new ConnectedClient("slow", new Socket(), queue, writer);
+  }
+
+  @AfterEach
+  void tearDown() {
+    guard.shutdown();
+  }
+
+  private static Frame broadcast(int value) {
+    return Frame.of(MessageType.BROADCAST_MESSAGE.getValue(), new byte[] {(byte) value});
+  }
+
+  private void deliver(int count) throws IOException {
+    for (int i = 0; i < count; i++) {
+      guard.deliver(client, broadcast(i));
+    }
+  }
+
+  @Test
+  void testDropOldest() throws IOException {
+    guard = new SlowConsumerGuard(SlowConsumerPolicy.DROP_OLDEST, 0);
+    deliver(4);
+
+    // Each broadcast past the watermark pushes out the oldest one; the notice is never dropped.
+    assertEquals(MessageType.FAILED_MESSAGE.getValue(), queue.poll().getType());
+    assertEquals(broadcast(2), queue.poll());
+    assertEquals(broadcast(3), queue.poll());
+    assertNull(queue.poll());
+    assertEquals(2, guard.getEvictionCount(EvictionReason.DROPPED_OLDEST));
+  }
+
+  @Test
+  void testSummarize() throws IOException {
+    guard = new SlowConsumerGuard(SlowConsumerPolicy.SUMMARIZE, 0);
+    deliver(5);
+
+    assertEquals(2, queue.size());
+    assertEquals(3, guard.getEvictionCount(EvictionReason.SUMMARIZED));
+
+    // Draining to the low watermark queues the summary behind what was already waiting.
+    assertEquals(broadcast(0), queue.poll());
+    assertEquals(broadcast(1), queue.poll());
+    assertEquals(MessageType.FAILED_MESSAGE.getValue(), queue.poll().getType());
+    assertNull(queue.poll());
+  }
+
+  @Test
+  void testDisconnectAfterGrace() throws IOException {
+    guard = new SlowConsumerGuard(SlowConsumerPolicy.DISCONNECT, 0);
+    deliver(3);
+
+    assertEquals(1, guard.getEvictionCount(EvictionReason.FELL_BEHIND));
+    assertEquals(1, queue.getDisconnectCount());
+    assertEquals(MessageType.FAILED_MESSAGE.getValue(), queue.poll().getType());
+    assertNull(queue.poll());
+    assertThrows(IOException.class, () -> client.sendMessage(24, new byte[0]));
+  }
+
+  @Test
+  void testDisconnectWithinGrace() throws IOException {
+    guard = new SlowConsumerGuard(SlowConsumerPolicy.DISCONNECT, 60000);
+    deliver(3);
+
+    assertEquals(3, queue.size());
+    assertEquals(0, guard.getEvictionCount(EvictionReason.FELL_BEHIND));
+  }
+
+  @Test
+  void testParse() {
+    guard = new SlowConsumerGuard(SlowConsumerPolicy.parse("drop-oldest"), 0);
+    assertEquals(SlowConsumerPolicy.DROP_OLDEST, guard.getPolicy());
+    assertEquals(SlowConsumerPolicy.SUMMARIZE, SlowConsumerPolicy.parse(" Summarize "));
+    assertThrows(IllegalArgumentException.class, () -> SlowConsumerPolicy.parse("ignore"));
+  }
+}
@@ -0,0 +1,143 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+
+class SubscriberSetTest {
+  private static final FrameWriter NO_OP_WRITER = new FrameWriter() {
+    @Override
+    public void requestDrain() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void closeNow() {
+    }
+  };
+
+  private static ConnectedClient client(String username) {
+    return new ConnectedClient(username, null, new OutboundQueue(4, 3, 1), NO_OP_WRITER);
+  }
+
+  private static List<ConnectedClient> members(SubscriberSet set) {
+    List<ConnectedClient> members = new ArrayList<>();
+    set.forEach(members::add);
+    return members;
+  }
+
+  @Test
+  void testAddAndRemove() {
+    SubscriberSet set = new SubscriberSet();
+    ConnectedClient alice = client("Alice");
+    ConnectedClient bob = client("Bob");
+
+    assertTrue(set.add(alice));
+    assertFalse(set.add(alice));
+    assertTrue(set.add(bob));
+    assertEquals(2, set.size());
+
+    assertTrue(set.remove(alice));
+    assertFalse(set.remove(alice));
+    assertEquals(List.of(bob), members(set));
+  }
+
+  @Test
+  void testRangesCoverTheSet() {
+    SubscriberSet set = new SubscriberSet(2);
+    List<ConnectedClient> added = new ArrayList<>();
+
+    for (int i = 0; i < 10; i++) {
+      ConnectedClient client = client("User" + i);
+      set.add(client);
+      added.add(client);
+    }
+
+    assertEquals(10, set.slotCount());
+    List<ConnectedClient> walked = new ArrayList<>();
+    set.forEachInRange(0, 3, walked::add);
+    set.forEachInRange(3, 7, walked::add);
+    set.forEachInRange(7, 100, walked::add);
+    assertEquals(added, walked);
+  }
+
+  @Test
+  void testRemoveMatchesIdentity() {
+    SubscriberSet set = new SubscriberSet();
+    ConnectedClient owner = client("Alice");
+    set.add(owner);
+
+    assertFalse(set.remove(client("Alice")));
+    assertEquals(List.of(owner), members(set));
+  }
+
+  @Test
+  void testSlotsReusedAcrossChunks() {
+    SubscriberSet set = new SubscriberSet();
+    List<ConnectedClient> clients = new ArrayList<>();
+
+    for (int i = 0; i < 3000; i++) {
+      ConnectedClient client = client("user" + i);
+      clients.add(client);
+      set.add(client);
+    }
+
+    for (int i = 0; i < 3000; i += 2) {
+      set.remove(clients.get(i));
+    }
+
+    for (int i = 0; i < 1500; i++) {
+      ConnectedClient client = client("again" + i);
+      clients.set(i * 2, client);
+      set.add(client);
+    }
+
+    assertEquals(3000, set.size());
+    assertEquals(new HashSet<>(clients), new HashSet<>(members(set)));
+    assertTrue(set.toString().contains("highWater=3000"));
+  }
+
+  @Test
+  void testIterationDuringChurn() throws InterruptedException {
+    SubscriberSet set = new SubscriberSet();
+    List<ConnectedClient> stable = new ArrayList<>();
+
+    for (int i = 0; i < 500; i++) {
+      ConnectedClient client = client("stable" + i);
+      stable.add(client);
+      set.add(client);
+    }
+
+    AtomicBoolean running = new AtomicBoolean(true);
+    Thread churn = new Thread(() -> {
+      int i = 0;
+
+      while (running.get()) {
+        ConnectedClient client = client("churn" + i++);
+        set.add(client);
+        set.remove(client);
+      }
+    });
+    churn.start();
+
+    try {
+      for (int round = 0; round < 200; round++) {
+        Set<ConnectedClient> seen = new HashSet<>(members(set));
+        assertTrue(seen.containsAll(stable));
+      }
+    }
+
+    finally {
+      running.set(false);
+      churn.join();
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class TokenBucketTest {
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  @Test
+  void testBurstThenRefill() {
+    TokenBucket bucket = new TokenBucket(2, 3, 0);
+
+    assertTrue(bucket.tryAcquire(0));
+    assertTrue(bucket.tryAcquire(0));
+    assertTrue(bucket.tryAcquire(0));
+    assertFalse(bucket.tryAcquire(0));
+
+    // Two tokens a second: one more after half a second.
+    assertTrue(bucket.tryAcquire(SECOND / 2));
+    assertFalse(bucket.tryAcquire(SECOND / 2));
+  }
+
+  @Test
+  void testRefillStopsAtBurst() {
+    TokenBucket bucket = new TokenBucket(10, 2, 0);
+    assertTrue(bucket.tryAcquire(0));
+    assertFalse(bucket.isFull(0));
+    assertTrue(bucket.isFull(10 * SECOND));
+
+    assertTrue(bucket.tryAcquire(10 * SECOND));
+    assertTrue(bucket.tryAcquire(10 * SECOND));
+    assertFalse(bucket.tryAcquire(10 * SECOND));
+  }
+
+  @Test
+  void testReserveBorrowsAgainstRefill() {
+    TokenBucket bucket = new TokenBucket(4, 1, 0);
+
+    assertEquals(0, bucket.reserve(0));
+    assertEquals(SECOND / 4, bucket.reserve(0));
+    assertEquals(SECOND / 2, bucket.reserve(0));
+    assertEquals(0, bucket.available(0));
+
+    // The borrowed tokens are paid back before any new ones are earned.
+    assertFalse(bucket.tryAcquire(SECOND / 2));
+    assertTrue(bucket.tryAcquire(3 * SECOND / 4));
+  }
+
+  @Test
+  void testRejectsInvalidSettings() {
+    assertThrows(IllegalArgumentException.class, () -> new TokenBucket(0, 1, 0));
+    assertThrows(IllegalArgumentException.class, () -> new TokenBucket(1, 0, 0));
+  }
+}
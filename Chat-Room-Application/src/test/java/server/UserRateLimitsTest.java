@@ -0,0 +1,64 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import util.MessageType;
+
+class UserRateLimitsTest {
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+  private static final int BROADCAST = MessageType.BROADCAST_MESSAGE.getValue();
+  private static final int DIRECT = MessageType.DIRECT_MESSAGE.getValue();
+
+  private final MessageRateLimiter limiter = new MessageRateLimiter();
+  private final UserRateLimits limits = new UserRateLimits(limiter);
+
+  @Test
+  void testUnlimitedTypesPass() {
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(0, limits.acquire(BROADCAST, 0));
+    }
+  }
+
+  @Test
+  void testRejectAndDropSpendNothing() {
+    limiter.setLimit(MessageType.BROADCAST_MESSAGE, new RateLimit(1, 1, RateLimitPolicy.REJECT));
+    limiter.setLimit(MessageType.DIRECT_MESSAGE, new RateLimit(1, 1, RateLimitPolicy.DROP));
+
+    assertEquals(0, limits.acquire(BROADCAST, 0));
+    assertEquals(UserRateLimits.OVER_LIMIT, limits.acquire(BROADCAST, 0));
+    assertEquals(RateLimitPolicy.REJECT, limits.getPolicy(BROADCAST));
+    assertEquals(0, limits.acquire(BROADCAST, SECOND));
+
+    assertEquals(0, limits.acquire(DIRECT, 0));
+    assertEquals(UserRateLimits.OVER_LIMIT, limits.acquire(DIRECT, 0));
+    assertEquals(RateLimitPolicy.DROP, limits.getPolicy(DIRECT));
+
+    assertEquals(1, limiter.getLimitedCount(RateLimitPolicy.REJECT));
+    assertEquals(1, limiter.getLimitedCount(RateLimitPolicy.DROP));
+  }
+
+  @Test
+  void testDelayReturnsWait() {
+    limiter.setLimit(MessageType.BROADCAST_MESSAGE, new RateLimit(2, 1, RateLimitPolicy.DELAY));
+
+    assertEquals(0, limits.acquire(BROADCAST, 0));
+    assertEquals(SECOND / 2, limits.acquire(BROADCAST, 0));
+    assertEquals(1, limiter.getLimitedCount(RateLimitPolicy.DELAY));
+  }
+
+  @Test
+  void testLimitChangesApplyToExistingUsers() {
+    limiter.setLimit(MessageType.BROADCAST_MESSAGE, new RateLimit(1, 1, RateLimitPolicy.REJECT));
+    assertEquals(0, limits.acquire(BROADCAST, 0));
+    assertEquals(UserRateLimits.OVER_LIMIT, limits.acquire(BROADCAST, 0));
+
+    limiter.setLimit(MessageType.BROADCAST_MESSAGE, new RateLimit(1, 3, RateLimitPolicy.REJECT));
+    assertEquals(0, limits.acquire(BROADCAST, 0));
+    assertEquals(0, limits.acquire(BROADCAST, 0));
+
+    limiter.setLimit(MessageType.BROADCAST_MESSAGE, null);
+    assertEquals(0, limits.acquire(BROADCAST, 0));
+  }
+}
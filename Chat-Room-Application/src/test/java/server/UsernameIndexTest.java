@@ -0,0 +1,83 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class UsernameIndexTest {
+
+  private static UsernameIndex index(String... usernames) {
+    UsernameIndex index = new UsernameIndex();
+
+    for (String username : usernames) {
+      index.add(username);
+    }
+
+    return index;
+  }
+
+  @Test
+  void testPrefixPage() {
+    UsernameIndex index = index("bob", "alice", "bobby", "carol", "bo");
+
+    assertEquals(new UserPage(List.of("bo", "bob", "bobby"), ""), index.page("bo", "", 10, null));
+    assertEquals(new UserPage(List.of(), ""), index.page("dave", "", 10, null));
+    assertEquals(5, index.page("", "", 10, null).getUsernames().size());
+  }
+
+  @Test
+  void testPagingWithCursor() {
+    UsernameIndex index = new UsernameIndex();
+
+    for (int i = 0; i < 25; i++) {
+      index.add(String.format("user%02d", i));
+    }
+
+    index.add("zed");
+    List<String> seen = new ArrayList<>();
+    String cursor = "";
+    int pages = 0;
+
+    do {
+      UserPage page = index.page("user", cursor, 10, null);
+      seen.addAll(page.getUsernames());
+      cursor = page.getNextCursor();
+      pages++;
+    } while (!cursor.isEmpty());
+
+    assertEquals(3, pages);
+    assertEquals(25, seen.size());
+    assertEquals("user00", seen.get(0));
+    assertEquals("user24", seen.get(24));
+  }
+
+  @Test
+  void testExactPageHasNoNextCursor() {
+    UsernameIndex index = index("a1", "a2", "b1");
+
+    assertEquals(new UserPage(List.of("a1", "a2"), ""), index.page("a", "", 2, null));
+    assertEquals(new UserPage(List.of("a1"), "a1"), index.page("a", "", 1, null));
+  }
+
+  @Test
+  void testExcludesRequester() {
+    UsernameIndex index = index("ann", "anna", "annie");
+
+    assertEquals(new UserPage(List.of("ann", "annie"), ""), index.page("an", "", 2, "anna"));
+  }
+
+  @Test
+  void testRemoveAndStaleCursor() {
+    UsernameIndex index = index("amy", "ann", "avery");
+    UserPage first = index.page("a", "", 1, null);
+
+    index.remove("amy");
+    index.remove("ann");
+
+    // The cursor need not still be indexed; the next page starts after it.
+    assertEquals(new UserPage(List.of("avery"), ""), index.page("a", first.getNextCursor(), 1, null));
+    assertEquals(1, index.size());
+  }
+}
@@ -0,0 +1,229 @@
+package storage;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import util.Frame;
+import util.Message;
+import util.MessageCodec;
+import util.MessageType;
+
+class MailboxStoreTest {
+  private static final long DAY = 24 * 60 * 60 * 1000L;
+
+  private Path directory;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    directory = Files.createTempDirectory("mailbox-test");
+  }
+
+  @AfterEach
+  void tearDown() throws IOException {
+    try (Stream<Path> files = Files.walk(directory)) {
+      for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  private static Message direct(int i) {
+    return Message.of(MessageType.DIRECT_MESSAGE, "Alice", "Bob", "message " + i);
+  }
+
+  private static Frame frame(int i) throws IOException {
+    return MessageCodec.encode(direct(i), MessageCodec.CURRENT_VERSION);
+  }
+
+  private static long fileCount(Path directory) throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.count();
+    }
+  }
+
+  @Test
+  void testStoredMessagesTakenInOrderInBatches() throws IOException {
+    MailboxStore store = new MailboxStore(directory, 100, 1 << 20, DAY);
+
+    for (int i = 0; i < 10; i++) {
+      assertTrue(store.store("Bob", frame(i)));
+    }
+
+    assertEquals(10, store.pending("Bob"));
+    assertEquals(0, store.pending("Carol"));
+
+    List<Message> taken = new ArrayList<>(store.take("Bob", 4));
+    assertEquals(4, taken.size());
+    assertEquals(6, store.pending("Bob"));
+
+    taken.addAll(store.take("Bob", 100));
+
+    for (int i = 0; i < 10; i++) {
+      assertEquals(direct(i), taken.get(i));
+    }
+
+    assertEquals(0, store.pending("Bob"));
+    assertEquals(10, store.getDeliveredCount());
+    assertEquals(0, fileCount(directory));
+    store.close();
+  }
+
+  @Test
+  void testPeekedMessagesStayUntilAcknowledged() throws IOException {
+    MailboxStore store = new MailboxStore(directory, 100, 1 << 20, DAY);
+
+    for (int i = 0; i < 10; i++) {
+      store.store("Bob", frame(i));
+    }
+
+    MailboxStore.Batch batch = store.peek("Bob", 4);
+    assertEquals(List.of(direct(0), direct(1), direct(2), direct(3)), batch.getMessages());
+    assertEquals(10, store.pending("Bob"));
+
+    assertEquals(3, store.acknowledge("Bob", batch.through(3)));
+    assertEquals(7, store.pending("Bob"));
+    assertEquals(0, store.acknowledge("Bob", batch.through(3)));
+
+    MailboxStore.Batch rest = store.peek("Bob", 100);
+    assertEquals(direct(3), rest.getMessages().get(0));
+    assertEquals(7, store.acknowledge("Bob", rest.through(rest.size())));
+    assertEquals(10, store.getDeliveredCount());
+    assertEquals(0, fileCount(directory));
+    store.close();
+  }
+
+  @Test
+  void testQuotaRejectsOverflow() throws IOException {
+    MailboxStore store = new MailboxStore(directory, 3, 1 << 20, DAY);
+
+    for (int i = 0; i < 3; i++) {
+      assertTrue(store.store("Bob", frame(i)));
+    }
+
+    assertFalse(store.store("Bob", frame(3)));
+    assertTrue(store.store("Carol", frame(3)));
+    assertEquals(1, store.getRejectedCount());
+
+    store.take("Bob", 1);
+    assertTrue(store.store("Bob", frame(4)));
+    store.close();
+  }
+
+  @Test
+  void testByteQuotaRejectsOverflow() throws IOException {
+    int recordBytes = 16 + frame(0).length();
+    MailboxStore store = new MailboxStore(directory, 100, 2L * recordBytes, DAY);
+
+    assertTrue(store.store("Bob", frame(0)));
+    assertTrue(store.store("Bob", frame(1)));
+    assertFalse(store.store("Bob", frame(2)));
+    store.close();
+  }
+
+  @Test
+  void testExpiredMessagesDropped() throws IOException {
+    MailboxStore store = new MailboxStore(directory, 100, 1 << 20, DAY);
+    long now = System.currentTimeMillis();
+
+    store.store("Bob", frame(0), now - 3 * DAY);
+    store.store("Bob", frame(1), now - 2 * DAY);
+    store.store("Carol", frame(2), now - 2 * DAY);
+
+    // Storing a fresh message expires the stale ones ahead of it.
+    store.store("Bob", frame(3), now);
+    assertEquals(1, store.pending("Bob"));
+
+    assertEquals(1, store.purgeExpired());
+    assertEquals(0, store.pending("Carol"));
+    assertEquals(3, store.getExpiredCount());
+    assertEquals(List.of(direct(3)), store.take("Bob", 10));
+    store.close();
+  }
+
+  @Test
+  void testReopenResumesAfterDelivered() throws IOException {
+    MailboxStore store = new MailboxStore(directory, 100, 1 << 20, DAY);
+
+    for (int i = 0; i < 5; i++) {
+      store.store("Bob", frame(i));
+    }
+
+    store.take("Bob", 2);
+    store.close();
+
+    MailboxStore reopened = new MailboxStore(directory, 100, 1 << 20, DAY);
+    assertEquals(3, reopened.pending("Bob"));
+    assertEquals(List.of(direct(2), direct(3), direct(4)), reopened.take("Bob", 10));
+    reopened.close();
+  }
+
+  @Test
+  void testDeliveredPrefixCompactedAway() throws IOException {
+    MailboxStore store = new MailboxStore(directory, 100_000, 1L << 30, DAY);
+
+    // The recipient keeps taking but never catches up.
+    for (int i = 0; i < 20_000; i++) {
+      store.store("Bob", frame(i));
+
+      if (i >= 50) {
+        assertEquals(List.of(direct(i - 50)), store.take("Bob", 1));
+      }
+    }
+
+    assertEquals(1, fileCount(directory));
+
+    try (Stream<Path> files = Files.list(directory)) {
+      assertTrue(Files.size(files.findFirst().get()) < 2 * Mailbox.MIN_COMPACT_BYTES);
+    }
+
+    store.close();
+
+    MailboxStore reopened = new MailboxStore(directory, 100_000, 1L << 30, DAY);
+    assertEquals(50, reopened.pending("Bob"));
+    List<Message> taken = reopened.take("Bob", 100);
+
+    for (int i = 0; i < 50; i++) {
+      assertEquals(direct(19_950 + i), taken.get(i));
+    }
+
+    reopened.close();
+  }
+
+  @Test
+  void testTornTailCutOffOnReopen() throws IOException {
+    MailboxStore store = new MailboxStore(directory, 100, 1 << 20, DAY);
+
+    for (int i = 0; i < 3; i++) {
+      store.store("Bob", frame(i));
+    }
+
+    store.close();
+
+    Path file;
+
+    try (Stream<Path> files = Files.list(directory)) {
+      file = files.findFirst().orElseThrow();
+    }
+
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      channel.truncate(channel.size() - 3);
+    }
+
+    MailboxStore reopened = new MailboxStore(directory, 100, 1 << 20, DAY);
+    assertEquals(2, reopened.pending("Bob"));
+    assertTrue(reopened.store("Bob", frame(3)));
+    assertEquals(List.of(direct(0), direct(1), direct(3)), reopened.take("Bob", 10));
+    reopened.close();
+  }
+}
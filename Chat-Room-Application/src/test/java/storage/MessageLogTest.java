@@ -0,0 +1,354 @@
+package storage;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import util.Frame;
+import util.Message;
+import util.MessageCodec;
+import util.MessageType;
+
+class MessageLogTest {
+  private Path directory;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    directory = Files.createTempDirectory("message-log-test");
+  }
+
+  @AfterEach
+  void tearDown() throws IOException {
+    try (Stream<Path> files = Files.walk(directory)) {
+      for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  private static Message broadcast(int i) {
+    return Message.of(MessageType.BROADCAST_MESSAGE, "Alice", "message " + i);
+  }
+
+  private static Message roomMessage(String room, int i) {
+    return Message.of(MessageType.ROOM_MESSAGE, "Alice", room, "message " + i);
+  }
+
+  private static void append(MessageLog log, Message message, long timestampMillis) throws IOException {
+    log.append(MessageCodec.encode(message, MessageCodec.CURRENT_VERSION), timestampMillis);
+  }
+
+  private static List<Message> messages(HistoryPage page) {
+    return page.getRecords().stream().map(LogRecord::getMessage).toList();
+  }
+
+  @Test
+  void testAppendAndReadBack() throws IOException {
+    try (MessageLog log = new MessageLog(directory, 1 << 16, FsyncPolicy.OS_MANAGED, 10)) {
+      for (int i = 0; i < 10; i++) {
+        log.append(MessageCodec.encode(broadcast(i), MessageCodec.CURRENT_VERSION), 1000 + i);
+      }
+
+      log.flush();
+
+      assertEquals(10, log.getNextSequence());
+      assertEquals(new LogRecord(3, 1003, broadcast(3)), log.read(3));
+      assertNull(log.read(10));
+
+      List<LogRecord> records = log.read(5, 3);
+      assertEquals(List.of(5L, 6L, 7L), records.stream().map(LogRecord::getSequence).toList());
+    }
+  }
+
+  @Test
+  void testRollsOverAndReadsAcrossSegments() throws IOException {
+    try (MessageLog log = new MessageLog(directory, 4096, FsyncPolicy.EVERY_MESSAGE, 10)) {
+      for (int i = 0; i < 500; i++) {
+        log.append(broadcast(i));
+      }
+
+      log.flush();
+
+      assertTrue(log.getSegmentCount() > 1);
+      assertEquals(500, log.getSyncCount());
+
+      List<LogRecord> records = log.read(0, 1000);
+      assertEquals(500, records.size());
+
+      for (int i = 0; i < 500; i++) {
+        assertEquals(i, records.get(i).getSequence());
+        assertEquals(broadcast(i), records.get(i).getMessage());
+      }
+    }
+  }
+
+  @Test
+  void testFindsSequenceByTimestamp() throws IOException {
+    try (MessageLog log = new MessageLog(directory, 8192, FsyncPolicy.OS_MANAGED, 10)) {
+      for (int i = 0; i < 2000; i++) {
+        // Two records per millisecond.
+        log.append(MessageCodec.encode(broadcast(i), MessageCodec.CURRENT_VERSION), 10_000 + i / 2);
+      }
+
+      log.flush();
+
+      assertEquals(0, log.findSequence(0));
+      assertEquals(1000, log.findSequence(10_500));
+      assertEquals(1998, log.findSequence(10_999));
+      assertEquals(2000, log.findSequence(11_000));
+    }
+  }
+
+  @Test
+  void testEarlierTimestampsRaisedToKeepOrder() throws IOException {
+    try (MessageLog log = new MessageLog(directory, 4096, FsyncPolicy.OS_MANAGED, 10)) {
+      log.append(MessageCodec.encode(broadcast(0), MessageCodec.CURRENT_VERSION), 5000);
+      log.append(MessageCodec.encode(broadcast(1), MessageCodec.CURRENT_VERSION), 4000);
+      log.flush();
+
+      assertEquals(5000, log.read(1).getTimestampMillis());
+    }
+  }
+
+  @Test
+  void testReopenContinuesAfterLastRecord() throws IOException {
+    try (MessageLog log = new MessageLog(directory, 4096, FsyncPolicy.GROUP_COMMIT, 5)) {
+      for (int i = 0; i < 100; i++) {
+        log.append(broadcast(i));
+      }
+    }
+
+    try (MessageLog log = new MessageLog(directory, 4096, FsyncPolicy.GROUP_COMMIT, 5)) {
+      assertEquals(100, log.getNextSequence());
+      log.append(broadcast(100));
+      log.flush();
+
+      assertEquals(broadcast(99), log.read(99).getMessage());
+      assertEquals(broadcast(100), log.read(100).getMessage());
+    }
+  }
+
+  @Test
+  void testTornRecordEndsRecovery() throws IOException {
+    try (MessageLog log = new MessageLog(directory, 4096, FsyncPolicy.OS_MANAGED, 10)) {
+      for (int i = 0; i < 3; i++) {
+        log.append(broadcast(i));
+      }
+    }
+
+    Path segment = directory.resolve(LogSegment.fileName(0));
+    int secondRecord = LogSegment.recordBytes(MessageCodec.encode(broadcast(0), MessageCodec.CURRENT_VERSION));
+
+    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+      // Corrupt the second record's frame so its checksum no longer matches.
+      channel.write(ByteBuffer.wrap(new byte[] {(byte) 0xFF}), secondRecord + LogSegment.RECORD_HEADER_BYTES + 10);
+    }
+
+    try (MessageLog log = new MessageLog(directory, 4096, FsyncPolicy.OS_MANAGED, 10)) {
+      assertEquals(1, log.getNextSequence());
+      assertEquals(broadcast(0), log.read(0).getMessage());
+      assertNull(log.read(1));
+    }
+  }
+
+  @Test
+  void testOversizedRecordGetsItsOwnSegment() throws IOException {
+    Message large = Message.of(MessageType.BROADCAST_MESSAGE, "Alice", "x".repeat(10_000));
+
+    try (MessageLog log = new MessageLog(directory, 4096, FsyncPolicy.OS_MANAGED, 10)) {
+      log.append(broadcast(0));
+      log.append(large);
+      log.append(broadcast(2));
+      log.flush();
+
+      assertEquals(large, log.read(1).getMessage());
+      assertEquals(broadcast(2), log.read(2).getMessage());
+      assertEquals(0, log.getFailureCount());
+    }
+  }
+
+  @Test
+  void testWriterSurvivesFailedWrites() throws IOException {
+    Path moved = directory.resolveSibling(directory.getFileName() + "-moved");
+    MessageLog log = new MessageLog(directory, 4096, FsyncPolicy.OS_MANAGED, 10);
+
+    try {
+      log.append(broadcast(0));
+      log.flush();
+
+      // With the directory gone, every rollover to a new segment fails.
+      Files.move(directory, moved);
+
+      for (int i = 1; i < 500; i++) {
+        log.append(broadcast(i));
+      }
+
+      log.flush();
+      assertTrue(log.getFailureCount() > 0);
+
+      Files.move(moved, directory);
+      long failures = log.getFailureCount();
+      log.append(broadcast(500));
+      log.flush();
+
+      assertEquals(failures, log.getFailureCount());
+      assertEquals(broadcast(500), log.read(log.getNextSequence() - 1).getMessage());
+    }
+
+    finally {
+      if (Files.exists(moved)) {
+        Files.move(moved, directory);
+      }
+
+      log.close();
+    }
+  }
+
+  @Test
+  void testAppendsBeyondQueueDroppedNotBlocked() throws IOException {
+    int count = MessageLog.QUEUE_CAPACITY * 2;
+
+    try (MessageLog log = new MessageLog(directory, 1 << 20, FsyncPolicy.OS_MANAGED, 10)) {
+      Frame frame = MessageCodec.encode(broadcast(0), MessageCodec.CURRENT_VERSION);
+
+      for (int i = 0; i < count; i++) {
+        log.append(frame, 1000);
+      }
+
+      log.flush();
+
+      // Every append was either written or counted as dropped.
+      assertEquals(count, log.getAppendedCount() + log.getDroppedCount());
+      assertEquals(log.getAppendedCount(), log.getNextSequence());
+    }
+  }
+
+  @Test
+  void testHistoryPagesThroughOneConversationByTime() throws IOException {
+    try (MessageLog log = new MessageLog(directory, 4096, FsyncPolicy.OS_MANAGED, 10)) {
+      for (int i = 0; i < 300; i++) {
+        append(log, roomMessage(i % 2 == 0 ? "general" : "random", i), 1000 + i);
+        append(log, broadcast(i), 1000 + i);
+      }
+
+      append(log, Message.of(MessageType.DIRECT_MESSAGE, "Bob", "Alice", "hi"), 2000);
+      log.flush();
+
+      assertTrue(log.getSegmentCount() > 1);
+      assertEquals(3, log.getConversationCount());
+
+      // Even messages 100 to 198 fall in [1100, 1200) in #general.
+      HistoryPage first = log.history(Conversations.room("general"), 1100, 1200, -1, 30);
+      assertEquals(30, first.getRecords().size());
+      assertEquals(roomMessage("general", 100), messages(first).get(0));
+      assertTrue(first.hasMore());
+
+      HistoryPage second = log.history(Conversations.room("general"), 1100, 1200, first.getNextCursor(), 30);
+      assertEquals(20, second.getRecords().size());
+      assertEquals(roomMessage("general", 160), messages(second).get(0));
+      assertEquals(roomMessage("general", 198), messages(second).get(19));
+      assertFalse(second.hasMore());
+
+      HistoryPage direct = log.history(Conversations.direct("Alice", "Bob"), 0, Long.MAX_VALUE, -1, 10);
+      assertEquals(List.of(Message.of(MessageType.DIRECT_MESSAGE, "Bob", "Alice", "hi")), messages(direct));
+      assertEquals(0, log.history(Conversations.room("missing"), 0, Long.MAX_VALUE, -1, 10).getRecords().size());
+    }
+  }
+
+  @Test
+  void testRetentionDeletesOldSegmentsWhole() throws IOException {
+    try (MessageLog log = new MessageLog(directory, 4096, FsyncPolicy.OS_MANAGED, 10, 10_000, Long.MAX_VALUE)) {
+      for (int i = 0; i < 200; i++) {
+        append(log, roomMessage("general", i), 1000 + i * 100);
+      }
+
+      log.flush();
+      int segments = log.getSegmentCount();
+
+      // At 20000, everything before 10000 has expired: the first 90 messages.
+      log.cleanUp(20_000);
+
+      assertTrue(log.getSegmentCount() < segments);
+      assertTrue(log.getRemovedSegmentCount() > 0);
+      assertNull(log.read(0));
+      assertEquals(roomMessage("general", 90), log.read(90).getMessage());
+      assertEquals(roomMessage("general", 199), log.read(199).getMessage());
+
+      HistoryPage page = log.history(Conversations.room("general"), 0, Long.MAX_VALUE, -1, 1000);
+      assertEquals(110, page.getRecords().size());
+      assertEquals(roomMessage("general", 90), messages(page).get(0));
+    }
+  }
+
+  @Test
+  void testRetentionBySizeKeepsNewestSegments() throws IOException {
+    try (MessageLog log = new MessageLog(directory, 4096, FsyncPolicy.OS_MANAGED, 10, Long.MAX_VALUE, 8192)) {
+      for (int i = 0; i < 500; i++) {
+        append(log, broadcast(i), 1000 + i);
+      }
+
+      log.flush();
+      log.cleanUp(2000);
+
+      assertTrue(log.getSegmentCount() <= 3);
+      assertTrue(log.getFirstSequence() > 0);
+      assertEquals(broadcast(499), log.read(499).getMessage());
+    }
+  }
+
+  @Test
+  void testCompactionDropsDeletedRecordsAndSurvivesRestart() throws IOException {
+    try (MessageLog log = new MessageLog(directory, 4096, FsyncPolicy.OS_MANAGED, 10)) {
+      for (int i = 0; i < 200; i++) {
+        append(log, roomMessage("general", i), 1000 + i);
+      }
+
+      log.flush();
+
+      assertTrue(log.delete(3));
+      assertTrue(log.delete(4));
+      assertTrue(log.delete(199));
+      assertFalse(log.delete(3));
+      assertNull(log.read(3));
+      assertEquals(List.of(5L), log.read(3, 1).stream().map(LogRecord::getSequence).toList());
+
+      log.cleanUp(5000);
+      assertTrue(log.getCompactionCount() > 0);
+      assertNull(log.read(4));
+      assertEquals(roomMessage("general", 5), log.read(5).getMessage());
+
+      HistoryPage page = log.history(Conversations.room("general"), 0, Long.MAX_VALUE, -1, 1000);
+      assertEquals(197, page.getRecords().size());
+    }
+
+    try (MessageLog log = new MessageLog(directory, 4096, FsyncPolicy.OS_MANAGED, 10)) {
+      assertEquals(200, log.getNextSequence());
+      assertNull(log.read(3));
+      // The last record is in the segment still being written, so only its tombstone hides it.
+      assertNull(log.read(199));
+      assertEquals(roomMessage("general", 2), log.read(2).getMessage());
+      assertEquals(roomMessage("general", 198), log.read(198).getMessage());
+
+      HistoryPage page = log.history(Conversations.room("general"), 0, Long.MAX_VALUE, -1, 1000);
+      assertEquals(197, page.getRecords().size());
+      assertFalse(page.hasMore());
+    }
+  }
+
+  @Test
+  void testParsePolicy() {
+    assertEquals(FsyncPolicy.GROUP_COMMIT, FsyncPolicy.parse("group-commit"));
+    assertEquals(FsyncPolicy.EVERY_MESSAGE, FsyncPolicy.parse("EVERY_MESSAGE"));
+    assertThrows(IllegalArgumentException.class, () -> FsyncPolicy.parse("sometimes"));
+  }
+}
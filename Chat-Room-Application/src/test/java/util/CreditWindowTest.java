@@ -0,0 +1,35 @@
+package util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class CreditWindowTest {
+  @Test
+  void testGrantsOnceHalfUsed() {
+    CreditWindow window = new CreditWindow(4);
+    assertEquals(4, window.getLimit());
+
+    window.consume();
+    assertEquals(-1, window.replenish());
+    window.consume();
+    assertEquals(6, window.replenish());
+    assertEquals(-1, window.replenish());
+  }
+
+  @Test
+  void testLateGrantCoversFramesAlreadyTaken() {
+    CreditWindow window = new CreditWindow(2);
+
+    window.consume();
+    window.consume();
+    window.consume();
+    assertEquals(3, window.getConsumed());
+    assertEquals(5, window.replenish());
+  }
+
+  @Test
+  void testRejectsTinyWindow() {
+    assertThrows(IllegalArgumentException.class, () -> new CreditWindow(1));
+  }
+}
@@ -0,0 +1,110 @@
+package util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class FrameScannerTest {
+  private static final String SENDER = "Alice";
+  private static final String RECIPIENT = "Bob";
+  private static final String MESSAGE = "Hello there!";
+
+  private byte[] directMessage() throws IOException {
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOutputStream);
+
+    dataOutputStream.writeInt(MessageType.DIRECT_MESSAGE.getValue());
+    MessageProtocol.writeString(dataOutputStream, SENDER);
+    MessageProtocol.writeString(dataOutputStream, RECIPIENT);
+    MessageProtocol.writeString(dataOutputStream, MESSAGE);
+
+    return byteArrayOutputStream.toByteArray();
+  }
+
+  @Test
+  void testCompleteFrame() throws IOException {
+    byte[] frame = directMessage();
+
+    assertEquals(frame.length, FrameScanner.frameLength(ByteBuffer.wrap(frame)));
+  }
+
+  @Test
+  void testIncompleteFrame() throws IOException {
+    byte[] frame = directMessage();
+
+    for (int length = 0; length < frame.length; length++) {
+      assertEquals(-1, FrameScanner.frameLength(ByteBuffer.wrap(frame, 0, length)));
+    }
+  }
+
+  @Test
+  void testFrameFollowedByMore() throws IOException {
+    byte[] frame = directMessage();
+    ByteBuffer buffer = ByteBuffer.allocate(frame.length * 2);
+    buffer.put(frame).put(frame).flip();
+
+    assertEquals(frame.length, FrameScanner.frameLength(buffer));
+    assertEquals(0, buffer.position());
+  }
+
+  @Test
+  void testQueryUserResponse() throws IOException {
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOutputStream);
+
+    dataOutputStream.writeInt(MessageType.QUERY_USER_RESPONSE.getValue());
+    dataOutputStream.writeInt(2);
+    MessageProtocol.writeString(dataOutputStream, SENDER);
+    MessageProtocol.writeString(dataOutputStream, RECIPIENT);
+    byte[] frame = byteArrayOutputStream.toByteArray();
+
+    assertEquals(frame.length, FrameScanner.frameLength(ByteBuffer.wrap(frame)));
+  }
+
+  @Test
+  void testPresenceAndPageFrames() throws IOException {
+    List<Message> messages = List.of(Message.of(MessageType.PRESENCE_SUBSCRIBE, SENDER),
+        Message.presenceSnapshot(3, List.of(SENDER, RECIPIENT)),
+        Message.presenceDelta(4, List.of(PresenceEvent.left(SENDER))),
+        Message.usersPageQuery(SENDER, "B", RECIPIENT, 20),
+        Message.usersPage(List.of(RECIPIENT), ""));
+
+    for (Message message : messages) {
+      Frame frame = MessageCodec.encode(message, MessageCodec.LEGACY_VERSION);
+      ByteBuffer buffer = ByteBuffer.allocate(frame.length() + 4).put(frame.buffer()).putInt(99).flip();
+
+      assertEquals(frame.length(), FrameScanner.frameLength(buffer));
+    }
+  }
+
+  @Test
+  void testUnknownTypeHasNoFields() throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(8).putInt(99).putInt(1234).flip();
+
+    assertEquals(4, FrameScanner.frameLength(buffer));
+  }
+
+  @Test
+  void testEnvelopeFrame() throws IOException {
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    Frame.of(MessageCodec.CURRENT_VERSION, MessageType.DIRECT_MESSAGE.getValue(), new byte[10])
+        .writeTo(byteArrayOutputStream);
+    byte[] frame = byteArrayOutputStream.toByteArray();
+
+    assertEquals(MessageCodec.ENVELOPE_BYTES + 10, FrameScanner.frameLength(ByteBuffer.wrap(frame)));
+    assertEquals(-1, FrameScanner.frameLength(ByteBuffer.wrap(frame, 0, frame.length - 1)));
+  }
+
+  @Test
+  void testNegativeLength() {
+    ByteBuffer buffer = ByteBuffer.allocate(8)
+        .putInt(MessageType.CONNECT_MESSAGE.getValue()).putInt(-1).flip();
+
+    assertThrows(IOException.class, () -> FrameScanner.frameLength(buffer));
+  }
+}
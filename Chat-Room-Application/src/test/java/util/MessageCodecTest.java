@@ -0,0 +1,240 @@
+package util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class MessageCodecTest {
+  private static final Message DIRECT =
+      Message.of(MessageType.DIRECT_MESSAGE, "Alice", "Bob", "Hello there!");
+
+  private static byte[] bytes(Frame frame) throws IOException {
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    frame.writeTo(byteArrayOutputStream);
+    return byteArrayOutputStream.toByteArray();
+  }
+
+  @Test
+  void testHeader() {
+    int header = MessageCodec.header(MessageCodec.CURRENT_VERSION, MessageType.BROADCAST_MESSAGE.getValue());
+
+    assertEquals(MessageCodec.CURRENT_VERSION, MessageCodec.versionOf(header));
+    assertEquals(MessageType.BROADCAST_MESSAGE.getValue(), MessageCodec.typeOf(header));
+    assertEquals(MessageCodec.LEGACY_VERSION, MessageCodec.versionOf(MessageType.SEND_INSULT.getValue()));
+  }
+
+  @Test
+  void testRoundTripBothVersions() throws IOException {
+    List<Message> messages = List.of(DIRECT,
+        Message.connectResponse(true, "There are 2 other connected clients."),
+        Message.userList(List.of("Alice", "Bob")),
+        Message.userList(List.of()),
+        Message.of(MessageType.PRESENCE_SUBSCRIBE, "Alice"),
+        Message.presenceSnapshot(7, List.of("Alice", "Bob")),
+        Message.presenceDelta(8, List.of(PresenceEvent.joined("Carol"), PresenceEvent.left("Bob"))),
+        Message.usersPageQuery("Alice", "B", "", 20),
+        Message.usersPage(List.of("Bob", "Bobby"), "Bobby"));
+
+    for (int version = MessageCodec.LEGACY_VERSION; version <= MessageCodec.CURRENT_VERSION; version++) {
+      for (Message message : messages) {
+        byte[] frame = bytes(MessageCodec.encode(message, version));
+        MessageCodec streamCodec = new MessageCodec();
+        MessageCodec bufferCodec = new MessageCodec();
+
+        assertEquals(message, streamCodec.read(new DataInputStream(new ByteArrayInputStream(frame))));
+        assertEquals(message, bufferCodec.decode(ByteBuffer.wrap(frame)));
+        assertEquals(version, streamCodec.getVersion());
+        assertEquals(version, bufferCodec.getVersion());
+      }
+    }
+  }
+
+  @Test
+  void testLegacyFrameMatchesOriginalLayout() throws IOException {
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOutputStream);
+    dataOutputStream.writeInt(MessageType.DIRECT_MESSAGE.getValue());
+    MessageProtocol.writeString(dataOutputStream, "Alice");
+    MessageProtocol.writeString(dataOutputStream, "Bob");
+    MessageProtocol.writeString(dataOutputStream, "Hello there!");
+
+    assertArrayEquals(byteArrayOutputStream.toByteArray(),
+        bytes(MessageCodec.encode(DIRECT, MessageCodec.LEGACY_VERSION)));
+  }
+
+  @Test
+  void testDecodesAcrossPartialReads() throws IOException {
+    byte[] frame = bytes(MessageCodec.encode(DIRECT, MessageCodec.CURRENT_VERSION));
+    ByteBuffer buffer = ByteBuffer.allocate(frame.length * 2);
+    MessageCodec codec = new MessageCodec();
+
+    for (int i = 0; i < frame.length; i++) {
+      buffer.flip();
+      assertNull(codec.decode(buffer));
+      assertEquals(0, buffer.position());
+      buffer.compact();
+      buffer.put(frame[i]);
+    }
+
+    buffer.flip();
+    assertEquals(DIRECT, codec.decode(buffer));
+    assertFalse(buffer.hasRemaining());
+  }
+
+  @Test
+  void testSkipsUnknownVersionOneType() throws IOException {
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOutputStream);
+    dataOutputStream.writeInt(MessageCodec.header(MessageCodec.CURRENT_VERSION, 99));
+    dataOutputStream.writeInt(3);
+    dataOutputStream.write(new byte[] {1, 2, 3});
+    MessageCodec.encode(DIRECT, MessageCodec.CURRENT_VERSION).writeTo(dataOutputStream);
+
+    ByteBuffer buffer = ByteBuffer.wrap(byteArrayOutputStream.toByteArray());
+    MessageCodec codec = new MessageCodec();
+
+    Message unknown = codec.decode(buffer);
+    assertEquals(99, unknown.getType());
+    assertTrue(unknown.getFields().isEmpty());
+    assertEquals(DIRECT, codec.decode(buffer));
+  }
+
+  @Test
+  void testRejectsUnsupportedVersion() {
+    ByteBuffer buffer = ByteBuffer.allocate(8).putInt(MessageCodec.header(7, 24)).putInt(0).flip();
+
+    assertThrows(IOException.class, () -> new MessageCodec().decode(buffer));
+  }
+
+  @Test
+  void testRejectsTruncatedPayload() {
+    // The envelope claims 4 payload bytes, but a broadcast needs two strings.
+    ByteBuffer buffer = ByteBuffer.allocate(12)
+        .putInt(MessageCodec.header(MessageCodec.CURRENT_VERSION, MessageType.BROADCAST_MESSAGE.getValue()))
+        .putInt(4).putInt(0).flip();
+
+    assertThrows(IOException.class, () -> new MessageCodec().decode(buffer));
+  }
+
+  @Test
+  void testHugeFieldLengthRejectedBeforeAllocation() throws IOException {
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(byteArrayOutputStream);
+    output.writeInt(MessageType.CONNECT_MESSAGE.getValue());
+    output.writeInt(Integer.MAX_VALUE);
+    byte[] bytes = byteArrayOutputStream.toByteArray();
+
+    FrameTooLargeException streamError = assertThrows(FrameTooLargeException.class,
+        () -> new MessageCodec().read(new DataInputStream(new ByteArrayInputStream(bytes))));
+    FrameTooLargeException bufferError = assertThrows(FrameTooLargeException.class,
+        () -> new MessageCodec().decode(ByteBuffer.wrap(bytes)));
+
+    assertFalse(streamError.isRecoverable());
+    assertFalse(bufferError.isRecoverable());
+  }
+
+  @Test
+  void testLegacyFrameOverLimitRejected() throws IOException {
+    FrameLimits limits = new FrameLimits(64, 80);
+    Frame frame = MessageCodec.encode(Message.of(MessageType.DIRECT_MESSAGE, "Alice", "Bob", "x".repeat(50)),
+        MessageCodec.LEGACY_VERSION);
+    Frame large = MessageCodec.encode(Message.of(MessageType.DIRECT_MESSAGE, "Alice", "Bob", "x".repeat(64)),
+        MessageCodec.LEGACY_VERSION);
+
+    assertEquals("x".repeat(50), new MessageCodec(limits).decode(ByteBuffer.wrap(bytes(frame))).getField(2));
+    assertThrows(FrameTooLargeException.class,
+        () -> new MessageCodec(limits).decode(ByteBuffer.wrap(bytes(large))));
+    assertThrows(FrameTooLargeException.class,
+        () -> new MessageCodec(limits).read(new DataInputStream(new ByteArrayInputStream(bytes(large)))));
+  }
+
+  @Test
+  void testOversizedFramesSkipped() throws IOException {
+    FrameLimits limits = new FrameLimits(64, 256);
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    MessageCodec.encode(Message.of(MessageType.BROADCAST_MESSAGE, "Alice", "x".repeat(1000)),
+        MessageCodec.CURRENT_VERSION).writeTo(byteArrayOutputStream);
+    MessageCodec.encode(Message.of(MessageType.BROADCAST_MESSAGE, "Alice", "y".repeat(100)),
+        MessageCodec.CURRENT_VERSION).writeTo(byteArrayOutputStream);
+    MessageCodec.encode(DIRECT, MessageCodec.CURRENT_VERSION).writeTo(byteArrayOutputStream);
+    byte[] bytes = byteArrayOutputStream.toByteArray();
+
+    MessageCodec streamCodec = new MessageCodec(limits);
+    DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+
+    assertTrue(assertThrows(FrameTooLargeException.class, () -> streamCodec.read(input)).isRecoverable());
+    assertTrue(assertThrows(FrameTooLargeException.class, () -> streamCodec.read(input)).isRecoverable());
+    assertEquals(DIRECT, streamCodec.read(input));
+
+    MessageCodec bufferCodec = new MessageCodec(limits);
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+    assertTrue(assertThrows(FrameTooLargeException.class, () -> bufferCodec.decode(buffer)).isRecoverable());
+    assertTrue(assertThrows(FrameTooLargeException.class, () -> bufferCodec.decode(buffer)).isRecoverable());
+    assertEquals(DIRECT, bufferCodec.decode(buffer));
+    assertFalse(buffer.hasRemaining());
+  }
+
+  @Test
+  void testLargeFrameDecodedInChunks() throws IOException {
+    String text = "z".repeat(10_000);
+    Message large = Message.of(MessageType.DIRECT_MESSAGE, "Alice", text, text);
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    MessageCodec.encode(large, MessageCodec.CURRENT_VERSION).writeTo(byteArrayOutputStream);
+    MessageCodec.encode(DIRECT, MessageCodec.CURRENT_VERSION).writeTo(byteArrayOutputStream);
+    byte[] bytes = byteArrayOutputStream.toByteArray();
+
+    assertTrue(bytes.length > MessageCodec.BUFFERED_PAYLOAD_BYTES);
+
+    // A buffer big enough for one field but not the whole frame, refilled in small reads.
+    ByteBuffer buffer = ByteBuffer.allocate(12 * 1024);
+    MessageCodec codec = new MessageCodec();
+    List<Message> decoded = new ArrayList<>();
+    int offset = 0;
+
+    while (offset < bytes.length || buffer.position() > 0) {
+      int chunk = Math.min(Math.min(1000, buffer.remaining()), bytes.length - offset);
+      buffer.put(bytes, offset, chunk);
+      offset += chunk;
+      buffer.flip();
+
+      Message message;
+
+      while ((message = codec.decode(buffer)) != null) {
+        decoded.add(message);
+      }
+
+      buffer.compact();
+
+      if (chunk == 0 && offset == bytes.length) {
+        break;
+      }
+    }
+
+    assertEquals(List.of(large, DIRECT), decoded);
+    assertEquals(List.of(large, DIRECT), List.of(
+        new MessageCodec().read(new DataInputStream(new ByteArrayInputStream(bytes))),
+        readSecond(bytes)));
+  }
+
+  private static Message readSecond(byte[] bytes) throws IOException {
+    MessageCodec codec = new MessageCodec();
+    DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+    codec.read(input);
+    return codec.read(input);
+  }
+
+  @Test
+  void testFrameLimitsValidation() {
+    assertThrows(IllegalArgumentException.class, () -> new FrameLimits(0, 10));
+    assertThrows(IllegalArgumentException.class, () -> new FrameLimits(100, 10));
+  }
+}
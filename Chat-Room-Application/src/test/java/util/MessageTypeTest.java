@@ -25,6 +25,21 @@ class MessageTypeTest {
     assertEquals(25, MessageType.DIRECT_MESSAGE.getValue());
     assertEquals(26, MessageType.FAILED_MESSAGE.getValue());
     assertEquals(27, MessageType.SEND_INSULT.getValue());
+    assertEquals(28, MessageType.PRESENCE_SUBSCRIBE.getValue());
+    assertEquals(29, MessageType.PRESENCE_SNAPSHOT.getValue());
+    assertEquals(30, MessageType.PRESENCE_DELTA.getValue());
+    assertEquals(31, MessageType.QUERY_USERS_PAGE.getValue());
+    assertEquals(32, MessageType.USERS_PAGE_RESPONSE.getValue());
+    assertEquals(33, MessageType.CREDIT.getValue());
+    assertEquals(34, MessageType.JOIN_ROOM.getValue());
+    assertEquals(35, MessageType.LEAVE_ROOM.getValue());
+    assertEquals(36, MessageType.LIST_ROOMS.getValue());
+    assertEquals(37, MessageType.ROOM_LIST_RESPONSE.getValue());
+    assertEquals(38, MessageType.ROOM_MESSAGE.getValue());
+    assertEquals(39, MessageType.QUERY_HISTORY.getValue());
+    assertEquals(40, MessageType.HISTORY_RESPONSE.getValue());
+    assertEquals(41, MessageType.SEARCH.getValue());
+    assertEquals(42, MessageType.SEARCH_RESPONSE.getValue());
   }
 
 }
\ No newline at end of file
@@ -0,0 +1,45 @@
+package util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class UserListFrameTest {
+  private static final List<String> NAMES = List.of("Alice", "B\u00f6b", "Carol");
+
+  @Test
+  void testFullMatchesCodec() throws Exception {
+    for (int version = MessageCodec.LEGACY_VERSION; version <= MessageCodec.CURRENT_VERSION; version++) {
+      UserListFrame list = UserListFrame.encode(NAMES, version);
+
+      assertEquals(MessageCodec.encode(Message.userList(NAMES), version), list.full());
+      assertSame(list.full(), list.without(-1));
+      assertEquals(3, list.size());
+    }
+  }
+
+  @Test
+  void testWithoutMatchesCodec() throws Exception {
+    for (int version = MessageCodec.LEGACY_VERSION; version <= MessageCodec.CURRENT_VERSION; version++) {
+      UserListFrame list = UserListFrame.encode(NAMES, version);
+
+      for (int i = 0; i < NAMES.size(); i++) {
+        List<String> others = new ArrayList<>(NAMES);
+        others.remove(i);
+
+        assertEquals(MessageCodec.encode(Message.userList(others), version), list.without(i));
+      }
+    }
+  }
+
+  @Test
+  void testSplicedFrameDecodes() throws Exception {
+    Frame frame = UserListFrame.encode(NAMES, MessageCodec.CURRENT_VERSION).without(1);
+    Message message = new MessageCodec().decode(frame.buffer());
+
+    assertTrue(message.is(MessageType.QUERY_USER_RESPONSE));
+    assertEquals(List.of("Alice", "Carol"), message.getFields());
+  }
+}
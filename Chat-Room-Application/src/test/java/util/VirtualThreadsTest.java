@@ -0,0 +1,43 @@
+package util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class VirtualThreadsTest {
+  private static final long TIMEOUT_SECONDS = 5;
+
+  @Test
+  void testStartPlatformThread() throws InterruptedException {
+    CountDownLatch ran = new CountDownLatch(1);
+    Thread thread = VirtualThreads.start(ran::countDown, false);
+
+    assertTrue(ran.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    thread.join();
+  }
+
+  @Test
+  void testStartVirtualThreadOrFallback() throws InterruptedException {
+    CountDownLatch ran = new CountDownLatch(1);
+    Thread thread = VirtualThreads.start(ran::countDown, true);
+
+    assertNotNull(thread);
+    assertTrue(ran.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+  }
+
+  @Test
+  void testPerTaskExecutor() throws InterruptedException {
+    ExecutorService executor = VirtualThreads.newPerTaskExecutor();
+    CountDownLatch ran = new CountDownLatch(3);
+
+    for (int i = 0; i < 3; i++) {
+      executor.execute(ran::countDown);
+    }
+
+    assertTrue(ran.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    executor.shutdown();
+  }
+}